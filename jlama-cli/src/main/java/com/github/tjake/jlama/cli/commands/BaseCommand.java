@@ -15,8 +15,12 @@
  */
 package com.github.tjake.jlama.cli.commands;
 
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.ModelSupport;
+import com.github.tjake.jlama.model.SpeculativeDecoder;
 import com.github.tjake.jlama.safetensors.DType;
 import java.io.File;
+import java.util.Optional;
 import picocli.CommandLine;
 
 public class BaseCommand extends SimpleBaseCommand {
@@ -37,6 +41,27 @@ public class BaseCommand extends SimpleBaseCommand {
             defaultValue = "I8")
     protected DType workingQuantizationType = DType.I8;
 
+    @CommandLine.Option(
+            names = {"-kv", "--kv-dtype"},
+            description = "KV cache data type, one of F32, BF16, F16 or I8 (default: ${DEFAULT-VALUE})",
+            defaultValue = "F32")
+    protected DType kvType = DType.F32;
+
+    @CommandLine.Option(
+            names = {"--kv-max-mb"},
+            description = "Budget for the KV cache in megabytes, least recently used sessions are evicted past it")
+    protected Long kvMaxMb = null;
+
+    @CommandLine.Option(
+            names = {"--kv-session-timeout"},
+            description = "Seconds a session may be idle before its KV cache is evicted (default: never)")
+    protected Long kvSessionTimeout = null;
+
+    @CommandLine.Option(
+            names = {"--kv-spill"},
+            description = "Write evicted sessions to the working directory and reload them when used again")
+    protected boolean kvSpill = false;
+
     @CommandLine.Option(
             names = {"-tc", "--threads"},
             description = "Number of threads to use (default: number of cores)")
@@ -46,4 +71,45 @@ public class BaseCommand extends SimpleBaseCommand {
             names = {"-q", "--quantization"},
             description = "Model quantization type")
     protected DType modelQuantization;
+
+    @CommandLine.Option(
+            names = {"--draft-model"},
+            description =
+                    "Smaller model sharing the tokenizer, used to speculatively decode when sampling by temperature alone")
+    protected File draftModel = null;
+
+    @CommandLine.Option(
+            names = {"--prompt-lookup"},
+            description =
+                    "Speculatively decode with tokens copied from the prompt, when no draft model is given and sampling by temperature alone")
+    protected boolean promptLookup = false;
+
+    @CommandLine.Option(
+            names = {"--draft-tokens"},
+            description = "Number of tokens proposed per step when speculatively decoding (default: ${DEFAULT-VALUE})",
+            defaultValue = "" + SpeculativeDecoder.DEFAULT_DRAFT_TOKENS)
+    protected Integer draftTokens = SpeculativeDecoder.DEFAULT_DRAFT_TOKENS;
+
+    protected AbstractModel loadModel() {
+        AbstractModel m = loadModel(model);
+        if (draftModel != null) m.setDraftModel(loadModel(draftModel), draftTokens);
+        else if (promptLookup) m.setPromptLookup(draftTokens);
+
+        return m;
+    }
+
+    private AbstractModel loadModel(File model) {
+        AbstractModel m = ModelSupport.loadModel(
+                model,
+                workingDirectory,
+                workingMemoryType,
+                workingQuantizationType,
+                Optional.ofNullable(modelQuantization),
+                Optional.ofNullable(threadCount));
+        m.getConfig().setKvDType(kvType);
+        if (kvMaxMb != null) m.getConfig().setKvCacheMaxBytes(kvMaxMb * 1024 * 1024);
+        if (kvSessionTimeout != null) m.getConfig().setKvSessionTimeoutMillis(kvSessionTimeout * 1000);
+        m.getConfig().setKvSpill(kvSpill);
+        return m;
+    }
 }
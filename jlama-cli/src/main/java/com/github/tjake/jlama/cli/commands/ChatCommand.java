@@ -15,8 +15,6 @@
  */
 package com.github.tjake.jlama.cli.commands;
 
-import static com.github.tjake.jlama.model.ModelSupport.loadModel;
-
 import com.github.tjake.jlama.model.AbstractModel;
 import java.util.Optional;
 import java.util.UUID;
@@ -32,19 +30,13 @@ public class ChatCommand extends ModelBaseCommand {
 
     @Override
     public void run() {
-        AbstractModel m = loadModel(
-                model,
-                workingDirectory,
-                workingMemoryType,
-                workingQuantizationType,
-                Optional.ofNullable(modelQuantization),
-                Optional.ofNullable(threadCount));
+        AbstractModel m = loadModel();
 
         m.generate(
                 UUID.randomUUID(),
                 m.wrapPrompt(prompt, Optional.of(systemPrompt)),
                 prompt,
-                temperature,
+                makeSampler(),
                 tokens,
                 true,
                 makeOutHandler());
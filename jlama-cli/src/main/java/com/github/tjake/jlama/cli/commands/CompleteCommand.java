@@ -15,10 +15,7 @@
  */
 package com.github.tjake.jlama.cli.commands;
 
-import static com.github.tjake.jlama.model.ModelSupport.loadModel;
-
 import com.github.tjake.jlama.model.AbstractModel;
-import java.util.Optional;
 import java.util.UUID;
 import picocli.CommandLine.*;
 
@@ -27,13 +24,7 @@ public class CompleteCommand extends ModelBaseCommand {
 
     @Override
     public void run() {
-        AbstractModel m = loadModel(
-                model,
-                workingDirectory,
-                workingMemoryType,
-                workingQuantizationType,
-                Optional.ofNullable(modelQuantization),
-                Optional.ofNullable(threadCount));
-        m.generate(UUID.randomUUID(), prompt, temperature, tokens, false, makeOutHandler());
+        AbstractModel m = loadModel();
+        m.generate(UUID.randomUUID(), prompt, null, makeSampler(), tokens, false, makeOutHandler());
     }
 }
@@ -15,8 +15,11 @@
  */
 package com.github.tjake.jlama.cli.commands;
 
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.LogitsSampler;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import picocli.CommandLine.*;
@@ -41,12 +44,55 @@ public class ModelBaseCommand extends BaseCommand {
             defaultValue = ".9")
     protected Float topp;
 
+    @Option(
+            names = {"--top-k"},
+            description = "Only considers the k most likely words per token, 0 for all (default: ${DEFAULT-VALUE})",
+            defaultValue = "0")
+    protected Integer topk;
+
+    @Option(
+            names = {"--min-p"},
+            description =
+                    "Ignores words less likely than this fraction of the most likely one [0,1) (default: ${DEFAULT-VALUE})",
+            defaultValue = "0")
+    protected Float minp;
+
+    @Option(
+            names = {"--repetition-penalty"},
+            description = "Penalizes words already in the prompt or response, 1 for none (default: ${DEFAULT-VALUE})",
+            defaultValue = "1.0")
+    protected Float repetitionPenalty;
+
+    @Option(
+            names = {"--seed"},
+            description = "Seed for repeatable sampling")
+    protected Long seed;
+
     @Option(
             names = {"-n", "--tokens"},
             description = "Number of tokens to generate (default: ${DEFAULT-VALUE})",
             defaultValue = "256")
     protected Integer tokens;
 
+    @Spec
+    protected Model.CommandSpec spec;
+
+    @Override
+    protected AbstractModel loadModel() {
+        // The draft's proposals are only checked against the temperature, so the other options would be ignored
+        if ((draftModel != null || promptLookup) && !makeSampler().isTemperatureOnly())
+            throw new ParameterException(
+                    spec.commandLine(),
+                    "--draft-model and --prompt-lookup only sample by temperature, use --top-p 1 and leave --top-k, --min-p and --repetition-penalty unset");
+
+        return super.loadModel();
+    }
+
+    protected LogitsSampler makeSampler() {
+        return new LogitsSampler(
+                temperature, topk, topp, minp, repetitionPenalty, 0.0f, 0.0f, Optional.ofNullable(seed));
+    }
+
     protected BiConsumer<String, Float> makeOutHandler() {
         PrintWriter out;
         Charset utf8 = Charset.forName("UTF-8");
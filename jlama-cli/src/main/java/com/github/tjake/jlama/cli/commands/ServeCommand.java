@@ -15,14 +15,12 @@
  */
 package com.github.tjake.jlama.cli.commands;
 
-import static com.github.tjake.jlama.model.ModelSupport.loadModel;
 import static io.undertow.Handlers.resource;
 
 import com.github.tjake.jlama.cli.serve.JlamaRestApi;
 import com.github.tjake.jlama.model.AbstractModel;
 import io.undertow.Undertow;
 import io.undertow.server.handlers.resource.ClassPathResourceManager;
-import java.util.Optional;
 import org.jboss.resteasy.plugins.server.undertow.UndertowJaxrsServer;
 import picocli.CommandLine;
 
@@ -40,13 +38,7 @@ public class ServeCommand extends BaseCommand {
     @Override
     public void run() {
         try {
-            AbstractModel m = loadModel(
-                    model,
-                    workingDirectory,
-                    workingMemoryType,
-                    workingQuantizationType,
-                    java.util.Optional.ofNullable(modelQuantization),
-                    Optional.ofNullable(threadCount));
+            AbstractModel m = loadModel();
 
             UndertowJaxrsServer ut = new UndertowJaxrsServer();
             ut.deploy(new JlamaRestApi(m), APPLICATION_PATH);
@@ -29,4 +29,25 @@ public class GenerateParams {
 
     @JsonProperty("temperature")
     public Float temp;
+
+    @JsonProperty("top_k")
+    public Integer topK;
+
+    @JsonProperty("top_p")
+    public Float topP;
+
+    @JsonProperty("min_p")
+    public Float minP;
+
+    @JsonProperty("repetition_penalty")
+    public Float repetitionPenalty;
+
+    @JsonProperty("frequency_penalty")
+    public Float frequencyPenalty;
+
+    @JsonProperty("presence_penalty")
+    public Float presencePenalty;
+
+    @JsonProperty("seed")
+    public Long seed;
 }
@@ -16,7 +16,9 @@
 package com.github.tjake.jlama.cli.serve;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tjake.jlama.model.LogitsSampler;
 import com.github.tjake.jlama.model.functions.Generator;
+import com.github.tjake.jlama.model.functions.Sampler;
 import java.io.IOException;
 import java.util.Optional;
 import java.util.UUID;
@@ -33,6 +35,7 @@ import org.slf4j.LoggerFactory;
 public class GenerateResource {
     private static final ObjectMapper om = new ObjectMapper();
     private static final Logger logger = LoggerFactory.getLogger(GenerateResource.class);
+    private static final float DEFAULT_TEMPERATURE = 0.7f;
 
     final Generator model;
 
@@ -44,11 +47,29 @@ public class GenerateResource {
     public Response generate(@NotNull GenerateParams params) {
         logger.debug("Sending generate request: {}", params);
         UUID sessionId = params.sessionId == null ? UUID.randomUUID() : params.sessionId;
+
+        Sampler sampler;
+        try {
+            sampler = new LogitsSampler(
+                    Optional.ofNullable(params.temp).orElse(DEFAULT_TEMPERATURE),
+                    Optional.ofNullable(params.topK).orElse(0),
+                    Optional.ofNullable(params.topP).orElse(1.0f),
+                    Optional.ofNullable(params.minP).orElse(0.0f),
+                    Optional.ofNullable(params.repetitionPenalty).orElse(1.0f),
+                    Optional.ofNullable(params.frequencyPenalty).orElse(0.0f),
+                    Optional.ofNullable(params.presencePenalty).orElse(0.0f),
+                    Optional.ofNullable(params.seed));
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
+
         StreamingOutput so = os -> model.generate(
                 sessionId,
                 model.wrapPrompt(params.prompt, Optional.empty()),
                 "",
-                0.7f,
+                sampler,
                 Integer.MAX_VALUE,
                 false,
                 (s, timing) -> {
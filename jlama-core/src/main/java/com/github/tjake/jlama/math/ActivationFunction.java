@@ -24,7 +24,7 @@ public class ActivationFunction {
 
     public static float eval(Type t, float x) {
         return switch (t) {
-            case SILU -> (float) (x * (1.0f / (1.0f + exp(-x))));
+            case SILU -> (float) (x / (1.0 + Math.exp(-x)));
             case GELU -> (float) (0.5 * x * (1 + Math.tanh(Math.sqrt(2 / Math.PI) * (x + 0.044715 * Math.pow(x, 3)))));
         };
     }
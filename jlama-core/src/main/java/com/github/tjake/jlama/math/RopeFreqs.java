@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.math;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The cos and sin tables of rotary position embeddings (RoPE).
+ *
+ * Each position has a row of headSize floats, the cos of the headSize / 2 angles followed by their sin.
+ * Rows are stored in flat tensors of CHUNK_SIZE positions which are only computed once a position in them
+ * is used, so long contexts don't pay for the whole table up front.
+ */
+public final class RopeFreqs {
+    /** Positions per chunk of the table */
+    public static final int CHUNK_SIZE = 1024;
+
+    private final int headSize;
+    private final int contextLength;
+    private final float[] freqs;
+    private final AtomicReferenceArray<FloatBufferTensor> chunks;
+
+    public RopeFreqs(int headSize, int contextLength, double theta, double scalingFactor) {
+        Preconditions.checkArgument(headSize % 2 == 0, "headSize must be even");
+        this.headSize = headSize;
+        this.contextLength = contextLength;
+        this.freqs = new float[headSize / 2];
+        float step = 0.0f;
+        for (int i = 0; i < freqs.length; i++, step += 2.0)
+            freqs[i] = (float) ((1.0 / StrictMath.pow(theta, step / headSize)) / scalingFactor);
+
+        this.chunks = new AtomicReferenceArray<>((contextLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public int headSize() {
+        return headSize;
+    }
+
+    public int contextLength() {
+        return contextLength;
+    }
+
+    /**
+     * The row of a position, shape [1, headSize] with the cos of each angle then the sin
+     */
+    public AbstractTensor row(int position) {
+        return chunk(position).slice(position % CHUNK_SIZE);
+    }
+
+    public float cos(int position, int i) {
+        return chunk(position).get(position % CHUNK_SIZE, i);
+    }
+
+    public float sin(int position, int i) {
+        return chunk(position).get(position % CHUNK_SIZE, headSize / 2 + i);
+    }
+
+    private FloatBufferTensor chunk(int position) {
+        Preconditions.checkArgument(
+                position >= 0 && position < contextLength, "Position %s is outside the context", position);
+        int c = position / CHUNK_SIZE;
+        FloatBufferTensor chunk = chunks.get(c);
+        if (chunk != null) return chunk;
+
+        int start = c * CHUNK_SIZE;
+        int rows = Math.min(CHUNK_SIZE, contextLength - start);
+        int half = headSize / 2;
+        chunk = new FloatBufferTensor(rows, headSize);
+        for (int p = 0; p < rows; p++) {
+            float t = start + p;
+            for (int i = 0; i < half; i++) {
+                float angle = t * freqs[i];
+                chunk.set((float) StrictMath.cos(angle), p, i);
+                chunk.set((float) StrictMath.sin(angle), p, half + i);
+            }
+        }
+
+        // Another thread may have computed it first, they are identical so keep theirs
+        return chunks.compareAndSet(c, null, chunk) ? chunk : chunks.get(c);
+    }
+}
@@ -43,8 +43,8 @@ public class VectorMath {
         if (splits == 1) {
             splits = length;
             chunkSize = 1;
-        } else if (length % chunkSize != 0) {
-            remainder = length % chunkSize;
+        } else {
+            remainder = length - splits * chunkSize;
         }
 
         int fsplits = splits;
@@ -54,29 +54,12 @@ public class VectorMath {
         PhysicalCoreExecutor.instance.get().execute(() -> IntStream.range(0, fsplits)
                 .parallel()
                 .forEach(i -> action.accept(
-                        offset + (i * fchunkSize), fremainder > 0 && i == fsplits - 1 ? fchunkSize + fremainder : fchunkSize)));
+                        offset + (i * fchunkSize),
+                        fremainder > 0 && i == fsplits - 1 ? fchunkSize + fremainder : fchunkSize)));
     }
 
     public static void softMax(AbstractTensor x, int offset, int length) {
-        long size = offset + length;
-
-        // find max value (for numerical stability)
-        float max_val = x.get(0, offset);
-        for (int i = offset + 1; i < size; i++) {
-            if (x.get(0, i) > max_val) {
-                max_val = x.get(0, i);
-            }
-        }
-        // exp and sum
-        float sum = 0.0f;
-        for (int i = offset; i < size; i++) {
-            x.set((float) StrictMath.exp(x.get(0, i) - max_val), 0, i);
-            sum += x.get(0, i);
-        }
-        // normalize
-        for (int i = 0; i < size; i++) {
-            x.set(x.get(0, i) / sum, 0, i);
-        }
+        TensorOperationsProvider.get().softmax(x, offset, length);
     }
 
     public static void l1normalize(float[] x) {
@@ -143,21 +126,7 @@ public class VectorMath {
         return result;
     }
 
-    public static float[][] precomputeFreqsCis(int dim, int end, double theta, double scaling_factor) {
-        float[] freqs = new float[dim / 2];
-        float step = 0.0f;
-        for (int i = 0; i < freqs.length; i++, step += 2.0)
-            freqs[i] = (float) ((1.0 / StrictMath.pow(theta, step / dim)) / scaling_factor);
-
-        float[] t = new float[end];
-        for (int i = 0; i < end; i++) t[i] = i;
-
-        float[] freqs_cis = outerProduct(t, freqs);
-
-        float[][] r = new float[freqs_cis.length][];
-        for (int i = 0; i < freqs_cis.length; i++)
-            r[i] = new float[] {(float) StrictMath.cos(freqs_cis[i]), (float) StrictMath.sin(freqs_cis[i])};
-
-        return r;
+    public static RopeFreqs precomputeFreqsCis(int dim, int end, double theta, double scaling_factor) {
+        return new RopeFreqs(dim, end, theta, scaling_factor);
     }
 }
@@ -19,6 +19,7 @@ import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.functions.EmbedInput;
 import com.github.tjake.jlama.model.functions.Generator;
 import com.github.tjake.jlama.model.functions.SampleOutput;
+import com.github.tjake.jlama.model.functions.Sampler;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.WeightLoader;
@@ -30,21 +31,26 @@ import com.github.tjake.jlama.tensor.TensorShape;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Suppliers;
 import com.google.common.primitives.Ints;
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public abstract class AbstractModel implements Generator {
     private static final Logger logger = LoggerFactory.getLogger(AbstractModel.class);
 
+    /** Rows of the output weights projected at a time when only the top logits are kept */
+    static final int LOGITS_TILE_SIZE = 256;
+
     public enum InferenceType {
         INPUT_TO_EMBEDDING(true, false, false),
         OUTPUT_TO_TOKEN(false, true, false),
@@ -86,6 +92,9 @@ public abstract class AbstractModel implements Generator {
     protected SampleOutput sampleOutput;
     protected TransformerBlock[] transformerBlocks;
     protected KvBufferCache kvBufferCache;
+    protected final Supplier<BatchScheduler> batchScheduler;
+    protected volatile Optional<SpeculativeDecoder> speculativeDecoder = Optional.empty();
+    private volatile boolean warnedSpeculativeSampler = false;
 
     protected AbstractModel(
             InferenceType inferenceType,
@@ -103,6 +112,14 @@ public abstract class AbstractModel implements Generator {
         this.workingDType = workingMemoryDType;
         this.modelQType = modelQType;
         this.kvBufferCache = new KvBufferCache(this);
+        this.batchScheduler = Suppliers.memoize(() -> new BatchScheduler(this));
+
+        // 16-bit float weights are multiplied against the unquantized working memory
+        DType weightType = modelQType.orElse(modelDType);
+        if ((weightType == DType.BF16 || weightType == DType.F16) && workingMemoryQType != workingMemoryDType) {
+            logger.info("{} weights use working memory type {} for matmuls", weightType, workingMemoryDType);
+            workingMemoryQType = workingMemoryDType;
+        }
 
         if (workingMemoryQType != workingMemoryDType) {
             boolean supportsQType;
@@ -131,6 +148,28 @@ public abstract class AbstractModel implements Generator {
         this.sampleOutput = inferenceType.isOutput ? loadOutputWeights() : null;
     }
 
+    /**
+     * Embedding and output tables in the working type. 16-bit float tables are kept as loaded
+     * since they are widened as they are read.
+     */
+    protected AbstractTensor toWorkingType(AbstractTensor t) {
+        return t.dType() == DType.BF16 || t.dType() == DType.F16 ? t : t.quantize(workingDType);
+    }
+
+    /**
+     * Quantizes a weight to qType. Unless a modelQType was asked for, weights the file already stores quantized keep
+     * their type, so the Q6_K and Q8_0 tensors of a mixed GGUF aren't requantized to its majority type
+     */
+    protected AbstractTensor quantizeWeight(AbstractTensor t, DType qType) {
+        boolean quantized =
+                switch (t.dType()) {
+                    case I8, Q4, Q5, Q4_K -> true;
+                    default -> false;
+                };
+
+        return modelQType.isEmpty() && quantized ? t : t.quantize(qType);
+    }
+
     protected abstract EmbedInput loadInputWeights();
 
     protected abstract TransformerBlock[] loadTransformerBlockWeights();
@@ -145,6 +184,26 @@ public abstract class AbstractModel implements Generator {
         return tokenizer;
     }
 
+    public KvBufferCache getKvBufferCache() {
+        return kvBufferCache;
+    }
+
+    /**
+     * Generate with speculative decoding, the draft model proposes draftTokens tokens for this model to verify.
+     * The draft model must share this model's tokenizer.
+     */
+    public void setDraftModel(AbstractModel draft, int draftTokens) {
+        this.speculativeDecoder = Optional.of(new SpeculativeDecoder(this, draft, draftTokens));
+    }
+
+    /**
+     * Generate with prompt lookup speculative decoding, proposing up to draftTokens tokens copied from earlier
+     * in the prompt or output for this model to verify.  This needs no extra memory.
+     */
+    public void setPromptLookup(int draftTokens) {
+        this.speculativeDecoder = Optional.of(new SpeculativeDecoder(this, draftTokens));
+    }
+
     public String wrapPrompt(String prompt, Optional<String> systemPrompt) {
         return prompt;
     }
@@ -168,7 +227,14 @@ public abstract class AbstractModel implements Generator {
         return t2;
     }
 
-    protected AbstractTensor forward(int token_id, int pos, AbstractTensor kvbuf) {
+    /**
+     * An empty tensor of t's shape in the type maybeQuantize converts t to, null if it keeps its type
+     */
+    protected AbstractTensor makeQuantizedTensor(AbstractTensor t) {
+        return null;
+    }
+
+    protected AbstractTensor forward(int token_id, int pos, KvBufferCache.KvBuffer kvbuf) {
         return forward(token_id, pos, kvbuf, Optional.empty(), Optional.empty());
     }
 
@@ -185,37 +251,74 @@ public abstract class AbstractModel implements Generator {
     public AbstractTensor forward(
             int token_id,
             int pos,
-            AbstractTensor kvbuf,
+            KvBufferCache.KvBuffer kvbuf,
             Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer,
             Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
-        AbstractTensor embedding = embedInput.inputTokenToEmbedding(token_id, pos);
+        return batchForward(
+                new int[] {token_id},
+                new int[] {pos},
+                new KvBufferCache.KvBuffer[] {kvbuf},
+                normReducer,
+                tensorReducer);
+    }
 
-        for (int i = c.layerStart(); i < c.layerEnd(); i++) {
-            AbstractTensor kvlayer = kvbuf.slice(true, i);
-            AbstractTensor ref = embedding; // reference so we can free
-            embedding = transformerBlocks[i].forward(embedding, pos, kvlayer, normReducer, tensorReducer);
-            ref.close();
+    protected AbstractTensor batchForward(int[] token_ids, int startPos, KvBufferCache.KvBuffer kvbuf) {
+        int[] positions = new int[token_ids.length];
+        KvBufferCache.KvBuffer[] kvbufs = new KvBufferCache.KvBuffer[token_ids.length];
+        for (int i = 0; i < token_ids.length; i++) {
+            positions[i] = startPos + i;
+            kvbufs[i] = kvbuf;
         }
 
-        return embedding;
+        return batchForward(token_ids, positions, kvbufs);
+    }
+
+    public AbstractTensor batchForward(int[] token_ids, int[] positions, KvBufferCache.KvBuffer[] kvbufs) {
+        return batchForward(token_ids, positions, kvbufs, Optional.empty(), Optional.empty());
     }
 
-    protected AbstractTensor batchForward(int[] token_ids, int startPos, AbstractTensor kvbuf) {
+    /**
+     * Multi-sequence forward pass. Each row of the batch carries its own token, position and kv buffer,
+     * so rows from different sessions (batched serving, beam search, parallel sampling) can share one
+     * set of matmuls.  Rows that share a kv buffer must be ordered by position.
+     *
+     * @param token_ids token per row
+     * @param positions position of each token in its sequence
+     * @param kvbufs kv buffer each row reads from and writes to, see {@link #getKvBufferCache()}
+     * @return the output embeddings, one row per input token
+     */
+    public AbstractTensor batchForward(
+            int[] token_ids,
+            int[] positions,
+            KvBufferCache.KvBuffer[] kvbufs,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        Preconditions.checkArgument(token_ids.length == positions.length && token_ids.length == kvbufs.length);
+
+        // Sessions can't be evicted while the pass reads their kv memory
+        for (KvBufferCache.KvBuffer kvbuf : kvbufs) kvbuf.pin();
+        try {
+            AbstractTensor embedding = embedInput.batchInputsToEmbeddings(token_ids, positions);
+            KvBufferCache.KvBuffer.KvLayer[] kvlayers = new KvBufferCache.KvBuffer.KvLayer[kvbufs.length];
+            for (int i = c.layerStart(); i < c.layerEnd(); i++) {
+                for (int j = 0; j < kvbufs.length; j++) kvlayers[j] = kvbufs[j].getLayer(i);
+
+                AbstractTensor ref = embedding; // reference so we can free
+                embedding = transformerBlocks[i].forward(embedding, positions, kvlayers, normReducer, tensorReducer);
+                ref.close();
+            }
 
-        AbstractTensor embedding = embedInput.batchInputsToEmbeddings(token_ids, startPos);
-        for (int i = c.layerStart(); i < c.layerEnd(); i++) {
-            AbstractTensor kvlayer = kvbuf.slice(true, i);
-            AbstractTensor ref = embedding; // reference so we can free
-            embedding = transformerBlocks[i].forward(embedding, startPos, kvlayer, Optional.empty(), Optional.empty());
-            ref.close();
+            return embedding;
+        } finally {
+            for (KvBufferCache.KvBuffer kvbuf : kvbufs) kvbuf.unpin();
         }
-
-        return embedding;
     }
 
-    public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
+    /**
+     * Project an output embedding to the logits over the vocabulary
+     */
+    void computeLogits(AbstractTensor output, AbstractTensor logits) {
         try (AbstractTensor embedding = sampleOutput.getOutputLayerNorm().forward(output)) {
-            // This is a mix of argmax and sampling with softmax
             VectorMath.pchunk(0, c.vocabularySize, (chunkStart, chunkSize) -> {
                 TensorOperationsProvider.get()
                         .dotProductChunk(
@@ -227,123 +330,116 @@ public abstract class AbstractModel implements Generator {
                                 chunkStart,
                                 chunkSize);
             });
+        }
+    }
 
-            int maxi = Integer.MIN_VALUE;
-            double maxv = Double.NEGATIVE_INFINITY;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = logits.get(0, i);
-                if (v > maxv) {
-                    maxi = i;
-                    maxv = v;
+    /**
+     * Project an output embedding to its k most likely tokens and their logits, most likely first, returning
+     * how many there were.  Each chunk of the vocabulary is projected a tile at a time into a running top-k,
+     * so the logits over the vocabulary are never written out.
+     */
+    int computeTopLogits(AbstractTensor output, int k, int[] tokens, float[] topLogits) {
+        int chunks = Math.max(
+                1, Math.min(TensorOperationsProvider.get().parallelSplitSize(), c.vocabularySize / LOGITS_TILE_SIZE));
+        int chunkSize = c.vocabularySize / chunks;
+        Queue<LogitsSampler.Heap> heaps = new ConcurrentLinkedQueue<>();
+        AbstractTensor weights = sampleOutput.getOutputLogitsWeights();
+        try (AbstractTensor embedding = sampleOutput.getOutputLayerNorm().forward(output)) {
+            VectorMath.pfor(0, chunks, chunk -> {
+                int start = chunk * chunkSize;
+                int end = chunk == chunks - 1 ? c.vocabularySize : start + chunkSize;
+                LogitsSampler.Heap heap = new LogitsSampler.Heap(k);
+                for (int t = start; t < end; t += LOGITS_TILE_SIZE) {
+                    int rows = Math.min(LOGITS_TILE_SIZE, end - t);
+                    try (AbstractTensor tile = c.tensorCache.get(DType.F32, TensorShape.of(rows))) {
+                        TensorOperationsProvider.get()
+                                .dotProductChunk(
+                                        tile, embedding, weights.sliceRows(t, rows), 0, c.embeddingLength, 0, rows);
+                        heap.offer(tile, 0, rows, Float.NEGATIVE_INFINITY, t);
+                    }
                 }
-            }
+                heaps.add(heap);
+            });
+        }
 
-            if (temperature == 0.0) {
-                return maxi;
-            }
+        return LogitsSampler.merge(heaps, k, tokens, topLogits);
+    }
 
-            float sum = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = (float) Math.exp((logits.get(0, i) - maxv) / temperature);
-                sum += v;
-                logits.set(v, 0, i);
-            }
+    public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
+        LogitsSampler sampler = new LogitsSampler(temperature);
+        int k = sampler.candidates();
+        if (k > 0) {
+            int[] tokens = new int[k];
+            float[] topLogits = new float[k];
+            return sampler.sample(tokens, topLogits, computeTopLogits(output, k, tokens, topLogits), uniformSample);
+        }
 
-            float acc = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = logits.get(0, i) / sum;
-                acc += v;
-                if (acc >= uniformSample) return i;
-            }
+        computeLogits(output, logits);
+        return sampler.sample(logits, c.vocabularySize, uniformSample);
+    }
 
-            return c.vocabularySize - 1;
+    /**
+     * Pick the next token of an output embedding, the logits are only written when the sampler needs all of them
+     */
+    public int sample(AbstractTensor output, Sampler sampler, AbstractTensor logits) {
+        int k = Math.min(sampler.candidates(), c.vocabularySize);
+        if (k > 0) {
+            int[] tokens = new int[k];
+            float[] topLogits = new float[k];
+            return sampler.sample(tokens, topLogits, computeTopLogits(output, k, tokens, topLogits));
         }
+
+        computeLogits(output, logits);
+        return sampler.sample(logits, c.vocabularySize);
     }
 
     public void generate(
             UUID sessionId,
             String prompt,
             String cleanPrompt,
-            float temperature,
+            Sampler sampler,
             int ntokens,
             boolean useEOS,
             BiConsumer<String, Float> onTokenWithTimings) {
         long[] encoded = tokenizer.encode(prompt);
         Preconditions.checkArgument(encoded.length < c.contextLength);
 
-        AbstractTensor kvmem = kvBufferCache.getKvBuffer(sessionId); // k and v for context window
-        Integer startPos = (Integer) kvmem.getMetadata(KvBufferCache.TOKEN_COUNT); // Number of tokens in the buffer
-        if (startPos == null) startPos = 0;
-
-        logger.info("Starting at token {} for session {}", startPos, sessionId);
-
-        if (ntokens > c.contextLength) ntokens = c.contextLength;
-
-        try (AbstractTensor logits = makeTensor(c.vocabularySize)) {
-
-            int[] promptTokens = new int[useEOS ? (1 + encoded.length + 1) : (1 + encoded.length)];
-
-            promptTokens[0] = c.bosToken;
-            for (int i = 1; i <= encoded.length; i++) promptTokens[i] = Ints.checkedCast(encoded[i - 1]);
-
-            int promptLength = encoded.length;
-
-            if (useEOS) {
-                promptTokens[promptTokens.length - 1] = c.eosToken; // Add EOS
-                promptLength++;
-            }
-
-            String clientPrompt = cleanPrompt == null ? prompt : cleanPrompt;
-            onTokenWithTimings.accept(clientPrompt, 0f);
-            long start = System.currentTimeMillis();
-            // Batch Process Prompt
-            AbstractTensor last = batchForward(promptTokens, startPos, kvmem);
-
-            long promptBatchTime = System.currentTimeMillis() - start;
-            float batchMsPerToken = Math.round((((double) promptBatchTime) / (double) promptLength));
-            logger.debug("{} prompt tokens in {}ms | {}ms per token", promptLength, promptBatchTime, batchMsPerToken);
-
-            float genMsPerToken = 0;
-            int tokensGenerated = 0;
-            int next = sample(
-                    last.slice(promptTokens.length - 1),
-                    temperature,
-                    ThreadLocalRandom.current().nextFloat(),
-                    logits);
-            last.close();
-            try {
-                String c = tokenizer.decode(next);
-                onTokenWithTimings.accept(c, batchMsPerToken);
-            } catch (Exception e) {
-                logger.error("Failed to decode token {}", next, e);
-            }
-
-            start = System.currentTimeMillis();
-            for (int i = startPos + promptTokens.length - 1; i < ntokens; i++) {
-                AbstractTensor output = forward(next, i, kvmem);
-                tokensGenerated++;
-
-                next = sample(output, temperature, ThreadLocalRandom.current().nextFloat(), logits);
-
-                if (logger.isTraceEnabled()) logger.trace("Sampled token {} with temperature {}", next, temperature);
-                output.close();
-                // Model may tell us it's done
-                if (next == c.eosToken) break;
-                kvmem.setMetadata(KvBufferCache.TOKEN_COUNT, i);
-
-                try {
-                    String c = tokenizer.decode(next);
-                    genMsPerToken = (System.currentTimeMillis() - start) / (float) (tokensGenerated);
-                    onTokenWithTimings.accept(c, genMsPerToken);
-                } catch (Exception e) {
-                    logger.error("Failed to decode token {}", next, e);
-                }
-            }
+        int[] promptTokens = new int[useEOS ? (1 + encoded.length + 1) : (1 + encoded.length)];
+
+        promptTokens[0] = c.bosToken;
+        for (int i = 1; i <= encoded.length; i++) promptTokens[i] = Ints.checkedCast(encoded[i - 1]);
+
+        if (useEOS) promptTokens[promptTokens.length - 1] = c.eosToken; // Add EOS
+
+        String clientPrompt = cleanPrompt == null ? prompt : cleanPrompt;
+        onTokenWithTimings.accept(clientPrompt, 0f);
+
+        // Speculative sessions sample from the whole distribution so other samplers take the batch,
+        // both kinds run on the scheduler thread so forward passes never overlap
+        if (speculativeDecoder.isPresent() && sampler instanceof LogitsSampler ls && ls.isTemperatureOnly()) {
+            batchScheduler
+                    .get()
+                    .submit(
+                            speculativeDecoder.get(),
+                            sessionId,
+                            promptTokens,
+                            ls.temperature(),
+                            ntokens,
+                            onTokenWithTimings)
+                    .join();
+            return;
+        }
 
-            long end = System.currentTimeMillis();
-            System.out.printf(
-                    "\n\nelapsed: %ds, prompt %.1fms per token, gen %.1fms per token\n",
-                    TimeUnit.MILLISECONDS.toSeconds(end - start), batchMsPerToken, genMsPerToken);
+        if (speculativeDecoder.isPresent() && !warnedSpeculativeSampler) {
+            warnedSpeculativeSampler = true;
+            logger.warn("Speculative decoding is configured but only used when sampling by temperature alone, "
+                    + "set top-p to 1 and top-k, min-p and the penalties off to enable it");
         }
+
+        // Decode steps from concurrent sessions are batched together by the scheduler
+        batchScheduler
+                .get()
+                .submit(sessionId, promptTokens, sampler, ntokens, onTokenWithTimings)
+                .join();
     }
 }
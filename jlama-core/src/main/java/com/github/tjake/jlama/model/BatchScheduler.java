@@ -0,0 +1,498 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.model.functions.Sampler;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Continuous batching scheduler for concurrent generate calls.
+ *
+ * Every iteration the scheduler admits newly submitted sessions, runs the next chunk of the
+ * oldest unfinished prompt, then collects the next decode step of every other active session
+ * and runs them as a single batched forward pass, so the weights are streamed once per step
+ * instead of once per session.  Sessions join and leave the batch between steps.
+ *
+ * Prompts are run in chunks so a long prompt neither allocates working memory for all of its
+ * tokens at once nor stalls the sessions already decoding.
+ *
+ * Speculative sessions verify several of their own tokens per forward pass, so rather than joining
+ * the batch they run one verification round each per step.  Every forward pass of the model runs on
+ * the scheduler thread, since the layers keep per-pass working state.
+ */
+public class BatchScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BatchScheduler.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = Integer.getInteger("jlama.max_batch_size", 16);
+    public static final int DEFAULT_PREFILL_CHUNK_SIZE = Integer.getInteger("jlama.prefill_chunk_size", 512);
+
+    private final AbstractModel model;
+    private final int maxBatchSize;
+    private final int prefillChunkSize;
+    private final LinkedBlockingQueue<Job> pending;
+    private final List<Sequence> active;
+    private final List<SpeculativeJob> speculative;
+    private final Thread thread;
+    private volatile boolean closed;
+    // Only the scheduler thread touches active, other threads read its size from here
+    private volatile int activeCount;
+
+    public BatchScheduler(AbstractModel model) {
+        this(model, DEFAULT_MAX_BATCH_SIZE, DEFAULT_PREFILL_CHUNK_SIZE);
+    }
+
+    public BatchScheduler(AbstractModel model, int maxBatchSize, int prefillChunkSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+        Preconditions.checkArgument(prefillChunkSize > 0, "prefillChunkSize must be positive");
+        this.model = model;
+        this.maxBatchSize = maxBatchSize;
+        this.prefillChunkSize = prefillChunkSize;
+        this.pending = new LinkedBlockingQueue<>();
+        this.active = new ArrayList<>(maxBatchSize);
+        this.speculative = new ArrayList<>();
+        this.closed = false;
+        this.thread = new Thread(this::run, "jlama-batch-scheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a session for generation.
+     * @return a future completed once the session has finished generating
+     */
+    public CompletableFuture<Void> submit(
+            UUID sessionId,
+            int[] promptTokens,
+            float temperature,
+            int ntokens,
+            BiConsumer<String, Float> onTokenWithTimings) {
+        return submit(sessionId, promptTokens, new LogitsSampler(temperature), ntokens, onTokenWithTimings);
+    }
+
+    /**
+     * Queue a session for generation, picking its tokens with the sampler.
+     * @return a future completed once the session has finished generating
+     */
+    public CompletableFuture<Void> submit(
+            UUID sessionId,
+            int[] promptTokens,
+            Sampler sampler,
+            int ntokens,
+            BiConsumer<String, Float> onTokenWithTimings) {
+        Preconditions.checkState(!closed, "Scheduler is closed");
+        Preconditions.checkArgument(promptTokens.length > 0);
+
+        Sequence s = new Sequence(sessionId, promptTokens, sampler, ntokens, onTokenWithTimings);
+        pending.add(s);
+        return s.done;
+    }
+
+    /**
+     * Queue a session for speculative generation with the decoder.
+     * @return a future completed once the session has finished generating
+     */
+    public CompletableFuture<Void> submit(
+            SpeculativeDecoder decoder,
+            UUID sessionId,
+            int[] promptTokens,
+            float temperature,
+            int ntokens,
+            BiConsumer<String, Float> onTokenWithTimings) {
+        Preconditions.checkState(!closed, "Scheduler is closed");
+        Preconditions.checkArgument(promptTokens.length > 0);
+
+        SpeculativeJob j =
+                new SpeculativeJob(decoder, sessionId, promptTokens, temperature, ntokens, onTokenWithTimings);
+        pending.add(j);
+        return j.done;
+    }
+
+    /** Number of sessions currently prefilling or decoding */
+    public int activeSessions() {
+        return activeCount;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                admit();
+                if (sessions() > 0) step();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        RuntimeException e = new IllegalStateException("Scheduler closed");
+        for (Sequence s : active) s.fail(e);
+        active.clear();
+        for (SpeculativeJob j : speculative) j.fail(e);
+        speculative.clear();
+        activeCount = 0;
+        for (Job j; (j = pending.poll()) != null; ) j.fail(e);
+    }
+
+    private int sessions() {
+        return active.size() + speculative.size();
+    }
+
+    private void admit() throws InterruptedException {
+        if (sessions() == 0) {
+            Job j = pending.poll(100, TimeUnit.MILLISECONDS);
+            if (j != null) start(j);
+        }
+
+        Job j;
+        while (sessions() < maxBatchSize && (j = pending.poll()) != null) start(j);
+        activeCount = sessions();
+    }
+
+    private void start(Job job) {
+        if (job instanceof SpeculativeJob j) startSpeculative(j);
+        else startSequence((Sequence) job);
+    }
+
+    /** Set up a new speculative session, its prompt is run by the next step */
+    private void startSpeculative(SpeculativeJob j) {
+        try {
+            j.session =
+                    j.decoder.newSession(j.sessionId, j.promptTokens, j.temperature, j.ntokens, j.onTokenWithTimings);
+            speculative.add(j);
+        } catch (Throwable t) {
+            j.fail(t);
+        }
+    }
+
+    /** Set up a new session, its prompt is run by the following steps */
+    private void startSequence(Sequence s) {
+        try {
+            s.kvmem = model.kvBufferCache.getPinnedKvBuffer(s.sessionId);
+            int startPos = s.kvmem.getCurrentContextPosition();
+
+            // A new session only needs to run the part of the prompt that isn't already cached
+            boolean newSession = startPos == 0;
+            int cached = newSession ? s.kvmem.reusePrefix(s.promptTokens) : 0;
+
+            logger.info("Starting at token {} for session {} ({} cached)", startPos, s.sessionId, cached);
+
+            int maxContextLength = s.kvmem.maxContextLength();
+            Preconditions.checkArgument(
+                    startPos + s.promptTokens.length <= maxContextLength,
+                    "Prompt of %s tokens at position %s exceeds the max context length %s of session %s",
+                    s.promptTokens.length,
+                    startPos,
+                    maxContextLength,
+                    s.sessionId);
+
+            if (s.limit > maxContextLength) {
+                logger.warn("Limiting session {} to {} tokens, the max context length", s.sessionId, maxContextLength);
+                s.limit = maxContextLength;
+            }
+            s.logits = model.makeTensor(model.c.vocabularySize);
+            s.newSession = newSession;
+            s.startPos = startPos;
+            s.prefilled = cached;
+            s.start = System.currentTimeMillis();
+            active.add(s);
+        } catch (Throwable t) {
+            s.fail(t);
+        }
+    }
+
+    /** Run the next chunk of a session's prompt, sampling its first token once the whole prompt has run */
+    private void prefill(Sequence s) {
+        try {
+            int end = Math.min(s.promptTokens.length, s.prefilled + prefillChunkSize);
+            int[] chunk = Arrays.copyOfRange(s.promptTokens, s.prefilled, end);
+            AbstractTensor last = model.batchForward(chunk, s.startPos + s.prefilled, s.kvmem);
+            s.prefilled = end;
+            s.kvmem.setCurrentContextPosition(s.startPos + end);
+
+            if (s.isPrefilling()) {
+                last.close();
+                return;
+            }
+
+            s.position = s.startPos + s.promptTokens.length;
+            if (s.newSession) s.kvmem.cachePrefix(s.promptTokens);
+
+            long promptBatchTime = System.currentTimeMillis() - s.start;
+            s.batchMsPerToken = Math.round((((double) promptBatchTime) / (double) s.promptTokens.length));
+            logger.debug(
+                    "{} prompt tokens in {}ms | {}ms per token",
+                    s.promptTokens.length,
+                    promptBatchTime,
+                    s.batchMsPerToken);
+
+            for (int token : s.promptTokens) s.sampler.accept(token);
+            s.next = model.sample(last.slice(chunk.length - 1), s.sampler, s.logits);
+            s.sampler.accept(s.next);
+            last.close();
+
+            s.emit(s.batchMsPerToken);
+            s.start = System.currentTimeMillis();
+        } catch (Throwable t) {
+            s.fail(t);
+        }
+    }
+
+    /**
+     * Run the next prompt chunk of the oldest prefilling session, then one decode step for every
+     * decoding session as a single batch, then one round of every speculative session
+     */
+    private void step() {
+        for (Sequence s : active) {
+            if (s.isPrefilling()) {
+                prefill(s);
+                break;
+            }
+        }
+
+        List<Sequence> decoding = new ArrayList<>(active.size());
+        for (Sequence s : active) if (!s.isPrefilling() && !s.done.isDone() && !s.isFinished()) decoding.add(s);
+
+        if (!decoding.isEmpty()) decode(decoding);
+
+        // Sessions leave the batch between steps
+        for (Iterator<Sequence> it = active.iterator(); it.hasNext(); ) {
+            Sequence s = it.next();
+            if (s.done.isDone()) {
+                it.remove();
+            } else if (!s.isPrefilling() && s.isFinished()) {
+                s.finish();
+                it.remove();
+            }
+        }
+
+        for (Iterator<SpeculativeJob> it = speculative.iterator(); it.hasNext(); ) {
+            SpeculativeJob j = it.next();
+            try {
+                if (!j.prefilled) {
+                    j.session.prefill();
+                    j.prefilled = true;
+                } else if (j.session.step()) {
+                    j.finish();
+                    it.remove();
+                }
+            } catch (Throwable t) {
+                j.fail(t);
+                it.remove();
+            }
+        }
+
+        activeCount = sessions();
+    }
+
+    private void decode(List<Sequence> decoding) {
+        int batchSize = decoding.size();
+        int[] tokens = new int[batchSize];
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer[] kvbufs = new KvBufferCache.KvBuffer[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            Sequence s = decoding.get(i);
+            tokens[i] = s.next;
+            positions[i] = s.position;
+            kvbufs[i] = s.kvmem;
+        }
+
+        AbstractTensor output;
+        try {
+            output = model.batchForward(tokens, positions, kvbufs);
+        } catch (Throwable t) {
+            for (Sequence s : decoding) s.fail(t);
+            return;
+        }
+
+        try {
+            for (int i = 0; i < batchSize; i++) {
+                Sequence s = decoding.get(i);
+                s.position++;
+                s.tokensGenerated++;
+                s.kvmem.setCurrentContextPosition(s.position);
+                try {
+                    s.next = model.sample(output.slice(i), s.sampler, s.logits);
+                    s.sampler.accept(s.next);
+
+                    if (logger.isTraceEnabled()) logger.trace("Sampled token {} for session {}", s.next, s.sessionId);
+
+                    // Model may tell us it's done
+                    if (s.next == model.c.eosToken) {
+                        s.stopped = true;
+                        continue;
+                    }
+
+                    s.emit((System.currentTimeMillis() - s.start) / (float) s.tokensGenerated);
+                } catch (Throwable t) {
+                    s.fail(t);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private abstract static class Job {
+        final UUID sessionId;
+        final int[] promptTokens;
+        final BiConsumer<String, Float> onTokenWithTimings;
+        final CompletableFuture<Void> done;
+
+        Job(UUID sessionId, int[] promptTokens, BiConsumer<String, Float> onTokenWithTimings) {
+            this.sessionId = sessionId;
+            this.promptTokens = promptTokens;
+            this.onTokenWithTimings = onTokenWithTimings;
+            this.done = new CompletableFuture<>();
+        }
+
+        abstract void fail(Throwable t);
+    }
+
+    private static class SpeculativeJob extends Job {
+        final SpeculativeDecoder decoder;
+        final float temperature;
+        final int ntokens;
+
+        SpeculativeDecoder.Session session;
+        boolean prefilled;
+
+        SpeculativeJob(
+                SpeculativeDecoder decoder,
+                UUID sessionId,
+                int[] promptTokens,
+                float temperature,
+                int ntokens,
+                BiConsumer<String, Float> onTokenWithTimings) {
+            super(sessionId, promptTokens, onTokenWithTimings);
+            this.decoder = decoder;
+            this.temperature = temperature;
+            this.ntokens = ntokens;
+        }
+
+        void finish() {
+            session.finish();
+            release();
+            done.complete(null);
+        }
+
+        @Override
+        void fail(Throwable t) {
+            release();
+            done.completeExceptionally(t);
+        }
+
+        private void release() {
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+        }
+    }
+
+    private class Sequence extends Job {
+        final Sampler sampler;
+
+        int limit;
+        KvBufferCache.KvBuffer kvmem;
+        AbstractTensor logits;
+        boolean newSession;
+        int startPos;
+        int prefilled;
+        int position;
+        int next;
+        int tokensGenerated;
+        boolean stopped;
+        long start;
+        float batchMsPerToken;
+        float genMsPerToken;
+
+        Sequence(
+                UUID sessionId,
+                int[] promptTokens,
+                Sampler sampler,
+                int ntokens,
+                BiConsumer<String, Float> onTokenWithTimings) {
+            super(sessionId, promptTokens, onTokenWithTimings);
+            this.sampler = sampler;
+            this.limit = ntokens;
+        }
+
+        boolean isPrefilling() {
+            return prefilled < promptTokens.length;
+        }
+
+        boolean isFinished() {
+            return stopped || position >= limit;
+        }
+
+        void emit(float msPerToken) {
+            genMsPerToken = msPerToken;
+            try {
+                String c = model.tokenizer.decode(next);
+                onTokenWithTimings.accept(c, msPerToken);
+            } catch (Exception e) {
+                logger.error("Failed to decode token {}", next, e);
+            }
+        }
+
+        void finish() {
+            release();
+            long end = System.currentTimeMillis();
+            System.out.printf(
+                    "\n\nelapsed: %ds, prompt %.1fms per token, gen %.1fms per token\n",
+                    TimeUnit.MILLISECONDS.toSeconds(end - start),
+                    batchMsPerToken,
+                    tokensGenerated == 0 ? 0f : genMsPerToken);
+            done.complete(null);
+        }
+
+        @Override
+        void fail(Throwable t) {
+            release();
+            done.completeExceptionally(t);
+        }
+
+        private void release() {
+            if (logits != null) {
+                logits.close();
+                logits = null;
+            }
+
+            if (kvmem != null) {
+                kvmem.unpin();
+                kvmem = null;
+            }
+        }
+    }
+}
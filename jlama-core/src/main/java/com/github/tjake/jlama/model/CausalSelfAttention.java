@@ -18,7 +18,9 @@ package com.github.tjake.jlama.model;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.github.tjake.jlama.util.PhysicalCoreExecutor;
 import com.google.common.base.Preconditions;
 import java.util.*;
 import java.util.function.Consumer;
@@ -37,14 +39,82 @@ public class CausalSelfAttention {
 
     final AbstractTensor valueAttnWeights;
 
-    private final AbstractTensor outputProjectionWeights;
+    final AbstractTensor outputProjectionWeights;
+
+    /**
+     * Concatenate the query, key and value weights at load time so they are projected by a single matmul.
+     * The fused tensor is a copy: while a layer loads both it and the separate weights are resident, and the
+     * copy lives on the heap (or in off-heap memory) for the life of the model. Weights mapped straight from the
+     * model file are therefore never fused, see {@link #fuseQkv}
+     */
+    public static final boolean FUSE_QKV = Boolean.parseBoolean(System.getProperty("jlama.fuse_qkv", "true"));
+
+    /** Number of query rows in a tile of the prompt attention */
+    private static final int QUERY_TILE_SIZE = 16;
+
+    /** Fewest kv blocks a segment of the split decode attention covers */
+    private static final int MIN_SEGMENT_BLOCKS = 4;
+
+    /** Segments per head for decode attention over long contexts, 0 picks them from the core count */
+    static int decodeSegments = Integer.getInteger("jlama.decode_segments", 0);
 
     private final float attentionScale;
 
     private final AbstractTensor[] qkvResults;
     private final AbstractTensor[] qkvWeights;
+    private final Optional<AbstractTensor> fusedQkvWeights;
+
+    /**
+     * Whether loaders should concatenate these projection weights. Weights still backed by a read-only mapping
+     * of the model file (mmap'd BF16/F16 safetensors, zero-copy GGUF tensors) stay separate, since copying them
+     * would trade page cache for a second resident copy. Weights of different types (a GGUF file can mix them)
+     * also stay separate, since one tensor can only hold one type
+     */
+    public static boolean fuseQkv(AbstractTensor... weights) {
+        if (!FUSE_QKV) return false;
+
+        for (AbstractTensor w : weights) {
+            if (w.getMemorySegment().isReadOnly() || w.dType() != weights[0].dType()) return false;
+        }
+
+        return true;
+    }
 
-    private static final boolean USE_FLASH_ATTN = false;
+    /**
+     * Attention with the query, key and value weights fused into one [embeddingLength + 2 * kvLength, embeddingLength]
+     * tensor, the rows of the query weights followed by those of the key and value weights
+     */
+    public CausalSelfAttention(AbstractModel m, AbstractTensor qkvWeights, AbstractTensor outputProjectionWeights) {
+        this(
+                m,
+                Optional.empty(),
+                Optional.empty(),
+                Optional.empty(),
+                qkvWeights,
+                Optional.empty(),
+                outputProjectionWeights);
+    }
+
+    public CausalSelfAttention(
+            AbstractModel m,
+            Optional<AbstractTensor> queryAttnBias,
+            Optional<AbstractTensor> keyAttnBias,
+            Optional<AbstractTensor> valueAttnBias,
+            AbstractTensor qkvWeights,
+            Optional<AbstractTensor> outputProjectionBias,
+            AbstractTensor outputProjectionWeights) {
+        this(
+                m,
+                queryAttnBias,
+                keyAttnBias,
+                valueAttnBias,
+                qkvWeights.sliceRows(0, m.c.embeddingLength),
+                qkvWeights.sliceRows(m.c.embeddingLength, m.c.kvLength),
+                qkvWeights.sliceRows(m.c.embeddingLength + m.c.kvLength, m.c.kvLength),
+                Optional.of(qkvWeights),
+                outputProjectionBias,
+                outputProjectionWeights);
+    }
 
     public CausalSelfAttention(
             AbstractModel m,
@@ -96,6 +166,32 @@ public class CausalSelfAttention {
             AbstractTensor valueAttnWeights,
             Optional<AbstractTensor> outputProjectionBias,
             AbstractTensor outputProjectionWeights) {
+        this(
+                m,
+                queryAttnBias,
+                keyAttnBias,
+                valueAttnBias,
+                queryAttnWeights,
+                keyAttnWeights,
+                valueAttnWeights,
+                Optional.empty(),
+                outputProjectionBias,
+                outputProjectionWeights);
+    }
+
+    private CausalSelfAttention(
+            AbstractModel m,
+            Optional<AbstractTensor> queryAttnBias,
+            Optional<AbstractTensor> keyAttnBias,
+            Optional<AbstractTensor> valueAttnBias,
+            AbstractTensor queryAttnWeights,
+            AbstractTensor keyAttnWeights,
+            AbstractTensor valueAttnWeights,
+            Optional<AbstractTensor> fusedQkvWeights,
+            Optional<AbstractTensor> outputProjectionBias,
+            AbstractTensor outputProjectionWeights) {
+        Preconditions.checkArgument(fusedQkvWeights.isEmpty()
+                || fusedQkvWeights.get().shape().first() == m.c.embeddingLength + 2 * m.c.kvLength);
         this.m = m;
         this.c = m.c;
         this.queryAttnBias = queryAttnBias;
@@ -112,24 +208,46 @@ public class CausalSelfAttention {
 
         this.qkvResults = new AbstractTensor[3];
         this.qkvWeights = new AbstractTensor[] {queryAttnWeights, keyAttnWeights, valueAttnWeights};
+        this.fusedQkvWeights = fusedQkvWeights;
     }
 
     public AbstractTensor forward(
             AbstractTensor input,
             int startPosition,
-            AbstractTensor kvMem,
+            KvBufferCache.KvBuffer.KvLayer kvMem,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        int batchSize = input.shape().first();
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer.KvLayer[] kvMems = new KvBufferCache.KvBuffer.KvLayer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = startPosition + i;
+            kvMems[i] = kvMem;
+        }
+
+        return forward(input, positions, kvMems, tensorReducer);
+    }
+
+    /**
+     * Attention over a batch where each row can belong to a different sequence.
+     * Row i is written to (and attends over) kvMem[i] at positions[i].
+     */
+    public AbstractTensor forward(
+            AbstractTensor input,
+            int[] positions,
+            KvBufferCache.KvBuffer.KvLayer[] kvMem,
             Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
         Preconditions.checkArgument(input.dims() == 2 && input.shape().last() == c.embeddingLength);
         int batchSize = input.shape().first();
+        Preconditions.checkArgument(positions.length == batchSize && kvMem.length == batchSize);
 
-        try (AbstractTensor flashAttn_m = m.makeTensor(batchSize, c.numberOfHeads);
-                AbstractTensor flashAttn_l = m.makeTensor(batchSize, c.numberOfHeads);
-                AbstractTensor queryBatch = m.makeFullTensor(batchSize, c.embeddingLength);
+        try (AbstractTensor queryBatch = m.makeFullTensor(batchSize, c.embeddingLength);
                 AbstractTensor tmpKeyBatch = m.makeFullTensor(batchSize, c.kvLength);
                 AbstractTensor tmpValBatch = m.makeFullTensor(batchSize, c.kvLength);
                 AbstractTensor valueBatch = m.makeFullTensor(batchSize, c.embeddingLength)) {
 
-            if (c.isGQA) {
+            if (fusedQkvWeights.isPresent()) {
+                project(input, fusedQkvWeights.get(), queryBatch, tmpKeyBatch, tmpValBatch, tensorReducer);
+            } else if (c.isGQA) {
                 VectorMath.pchunk(0, c.embeddingLength, (chunkStart, chunkLength) -> {
                     TensorOperationsProvider.get()
                             .dotProductChunk(
@@ -181,7 +299,8 @@ public class CausalSelfAttention {
             }
 
             // For distributed sum of tensor
-            tensorReducer.ifPresent(func -> func.accept(List.of(queryBatch, tmpKeyBatch, tmpValBatch)));
+            if (fusedQkvWeights.isEmpty())
+                tensorReducer.ifPresent(func -> func.accept(List.of(queryBatch, tmpKeyBatch, tmpValBatch)));
 
             queryAttnBias.ifPresent(bias -> TensorOperationsProvider.get()
                     .accumulate(queryBatch, bias, c.embeddingSegmentStart(), c.embeddingSegmentLength()));
@@ -190,180 +309,39 @@ public class CausalSelfAttention {
             valueAttnBias.ifPresent(bias -> TensorOperationsProvider.get()
                     .accumulate(tmpValBatch, bias, c.kvSegmentStart(), c.kvSegmentLength()));
 
-            // with all key-value entries populated, compute attention
-            // the softmax is incrementally aggregated using the flash attention technique
-            AbstractTensor k0 = kvMem.slice(true, 0).slice(0);
-            AbstractTensor v0 = kvMem.slice(true, 1).slice(0);
+            // Apply RoPE if present to the queries and keys of every row
+            c.ropeFreqs.ifPresent(rf -> {
+                TensorOperationsProvider.get()
+                        .rope(queryBatch, rf, positions, c.embeddingSegmentStart(), c.embeddingSegmentLength());
+                TensorOperationsProvider.get()
+                        .rope(tmpKeyBatch, rf, positions, c.kvSegmentStart(), c.kvSegmentLength());
+            });
 
             // This is our memory of the key and value vectors for each position
-            for (int position = startPosition, bi = 0; position < startPosition + batchSize; position++, bi++) {
-                int finalPostion = position;
-                int finalBi = bi;
-
-                AbstractTensor kvp = kvMem.slice(true, 0);
-                AbstractTensor vvp = kvMem.slice(true, 1);
-
-                AbstractTensor key = kvp.slice(position);
-                AbstractTensor val = vvp.slice(position);
-
+            // Every row is stored before attending as the rows of a prompt attend to each other
+            for (int bi = 0; bi < batchSize; bi++) {
+                int position = positions[bi];
                 AbstractTensor tmpKey = tmpKeyBatch.slice(bi);
                 AbstractTensor tmpVal = tmpValBatch.slice(bi);
-                AbstractTensor query = queryBatch.slice(bi);
-                AbstractTensor value = valueBatch.slice(bi);
-
-                key.copyFrom(
-                        tmpKey,
-                        tmpKey.getOffset(0, c.kvSegmentStart()),
-                        key.getOffset(0, c.kvSegmentStart()),
-                        c.kvSegmentLength());
-                val.copyFrom(
-                        tmpVal,
-                        tmpVal.getOffset(0, c.kvSegmentStart()),
-                        val.getOffset(0, c.kvSegmentStart()),
-                        c.kvSegmentLength());
-
-                // apply RoPE if present (accounting for huggingface permutation)
-                // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
-                c.ropeFreqs.ifPresent(rf -> {
-                    int headPiece = c.headSize / 2;
-                    int poffset = finalPostion * headPiece;
-
-                    if (c.isGQA) {
-                        // apply RoPE rotation to the q and k vectors for each head
-                        for (int h = c.headStart(); h < c.headEnd(); h++) {
-                            // get the q vectors for this head
-                            int offset = h * c.headSize;
-                            int goffset = c.maybeMapToGroupHead(h) * c.headSize;
-                            // rotate q by the freq theta and freq r
-                            for (int i = offset, g = goffset; i < (offset + headPiece); i++, g++) {
-                                float q0 = query.get(0, i);
-                                float q1 = query.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float[] f = rf[poffset + g];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                query.set(q0 * fcr - q1 * fci, 0, i);
-                                query.set(q0 * fci + q1 * fcr, 0, i + headPiece);
-                            }
-                        }
 
-                        for (int h = c.groupHeadStart(); h < c.groupHeadEnd(); h++) {
-                            // get the k vectors for this head
-                            int offset = h * c.headSize;
-                            // rotate k by the freq theta and freq r
-                            for (int i = offset; i < (offset + headPiece); i++) {
-                                float k00 = key.get(0, i);
-                                float k1 = key.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float[] f = rf[poffset + i];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                key.set(k00 * fcr - k1 * fci, 0, i);
-                                key.set(k00 * fci + k1 * fcr, 0, i + headPiece);
-                            }
-                        }
-                    } else {
-                        // apply RoPE rotation to the q and k vectors for each head
-                        for (int h = c.headStart(); h < c.headEnd(); h++) {
-                            // get the q and k vectors for this head
-                            int offset = h * c.headSize;
-                            // rotate q and k by the freq theta and freq r
-                            for (int i = offset; i < (offset + headPiece); i++) {
-                                float q0 = query.get(0, i);
-                                float q1 = query.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float k00 = key.get(0, i);
-                                float k1 = key.get(0, i + headPiece);
-                                float[] f = rf[poffset + i];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                query.set(q0 * fcr - q1 * fci, 0, i);
-                                query.set(q0 * fci + q1 * fcr, 0, i + headPiece);
-                                key.set(k00 * fcr - k1 * fci, 0, i);
-                                key.set(k00 * fci + k1 * fcr, 0, i + headPiece);
-                            }
-                        }
-                    }
-                });
-
-                if (USE_FLASH_ATTN) {
-
-                    // value is initially the position 0 value for all heads
-                    // POSITION ZERO
-                    for (int i = c.headStart(); i < c.headEnd(); i++) {
-                        value.copyFrom(
-                                v0,
-                                v0.getOffset(0, c.maybeMapToGroupHead(i) * c.headSize),
-                                value.getOffset(0, i * c.headSize),
-                                c.headSize);
-                        float a = TensorOperationsProvider.get()
-                                        .dotProduct(
-                                                query,
-                                                k0,
-                                                i * c.headSize,
-                                                c.maybeMapToGroupHead(i) * c.headSize,
-                                                c.headSize)
-                                * attentionScale;
-                        flashAttn_m.set(a, bi, i);
-                        flashAttn_l.set(1, bi, i);
-                    }
-
-                    // POSITION > 0
-                    // This is where the context length gets expensive! We need to run this query token by all prior
-                    // tokens.
-                    // Now aggregate results per head
-                    VectorMath.pfor(c.headStart(), c.headEnd(), h -> {
-                        int xoffset = c.maybeMapToGroupHead(h) * c.headSize;
-                        int yoffset = h * c.headSize;
-                        for (int i = 0; i < finalPostion; i++) {
-
-                            AbstractTensor pmem = kvMem.slice(true, i + 1);
-                            // KEY
-                            float a =
-                                    TensorOperationsProvider.get().dotProduct(query, pmem, yoffset, xoffset, c.headSize)
-                                            * attentionScale;
-
-                            // VALUE
-                            if (a > flashAttn_m.get(finalBi, h)) {
-                                float e = (float) Math.exp(flashAttn_m.get(finalBi, h) - a);
-                                TensorOperationsProvider.get().sxpby(e, pmem, value, xoffset, yoffset, c.headSize);
-                                flashAttn_l.set(1 + e * flashAttn_l.get(finalBi, h), finalBi, h);
-                                flashAttn_m.set(a, finalBi, h);
-                            } else {
-                                float e = (float) Math.exp(a - flashAttn_m.get(finalBi, h));
-                                TensorOperationsProvider.get()
-                                        .saxpy(e, pmem, value, pmem.getOffset(1, xoffset), yoffset, c.headSize);
-                                flashAttn_l.set(flashAttn_l.get(finalBi, h) + e, finalBi, h);
-                            }
-                        }
-                    });
-
-                    // scale y by 1/l
-                    for (int h = c.headStart(); h < c.headEnd(); h++) {
-                        float scale = 1.0f / flashAttn_l.get(bi, h);
-                        TensorOperationsProvider.get().scale(scale, value, (h * c.headSize), c.headSize);
-                    }
-                } else {
+                // Store the rotated key and the value in the kv cache, in the type of the cache
+                AbstractTensor key = kvMem[bi].getKeyTensorForPosition(position);
+                AbstractTensor val = kvMem[bi].getValTensorForPosition(position);
+                TensorOperationsProvider.get().kvStore(tmpKey, key, c.kvSegmentStart(), c.kvSegmentLength());
+                TensorOperationsProvider.get().kvStore(tmpVal, val, c.kvSegmentStart(), c.kvSegmentLength());
+            }
 
-                    VectorMath.pfor(c.headStart(), c.headEnd(), h -> {
-                        try (AbstractTensor attn =
-                                m.makeFullTensor(1, kvp.shape().first())) {
-                            int xoffset = c.maybeMapToGroupHead(h) * c.headSize;
-                            int yoffset = h * c.headSize;
+            // Rows of one sequence at consecutive positions (a prompt) attend in tiles, the rest one at a time
+            for (int bi = 0; bi < batchSize; ) {
+                int end = bi + 1;
+                while (end < batchSize && kvMem[end] == kvMem[bi] && positions[end] == positions[end - 1] + 1) end++;
 
-                            // compute attention scores by multiplying query and key for every position
-                            TensorOperationsProvider.get()
-                                    .batchDotProduct(
-                                            attn, query, kvp, yoffset, xoffset, c.headSize, 0, finalPostion + 1);
-                            TensorOperationsProvider.get().scale(attentionScale, attn, 0, finalPostion + 1);
+                if (end - bi > 1) attendTiled(queryBatch, valueBatch, positions, kvMem[bi], bi, end);
+                else attend(queryBatch.slice(bi), valueBatch.slice(bi), positions[bi], kvMem[bi]);
 
-                            // softmax the scores to get attention weights, from 0..pos inclusively
-                            VectorMath.softMax(attn, 0, finalPostion + 1);
-
-                            // apply adjusted attention weights to value vectors
-                            TensorOperationsProvider.get()
-                                    .saxpy(attn, vvp, value, xoffset, yoffset, c.headSize, finalPostion + 1);
-                        }
-                    });
-                }
+                bi = end;
             }
+
             // matmul the projection and sum into input
             // input += c_proj_weight @ ybuf + c_proj_bias
             AbstractTensor result = m.makeFullTensor(batchSize, c.embeddingLength);
@@ -389,4 +367,298 @@ public class CausalSelfAttention {
             return result;
         }
     }
+
+    /**
+     * Project the input with the fused weights in one matmul, then split the rows into the query, key and value
+     */
+    private void project(
+            AbstractTensor input,
+            AbstractTensor qkvWeights,
+            AbstractTensor queryBatch,
+            AbstractTensor keyBatch,
+            AbstractTensor valBatch,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        int batchSize = input.shape().first();
+        int qkvLength = c.embeddingLength + 2 * c.kvLength;
+        try (AbstractTensor qkvBatch = m.makeFullTensor(batchSize, qkvLength)) {
+            VectorMath.pchunk(0, qkvLength, (chunkStart, chunkLength) -> {
+                TensorOperationsProvider.get()
+                        .dotProductChunk(
+                                qkvBatch,
+                                input,
+                                qkvWeights,
+                                c.embeddingSegmentStart(),
+                                c.embeddingSegmentLength(),
+                                chunkStart,
+                                chunkLength);
+            });
+
+            // For distributed sum of tensor
+            tensorReducer.ifPresent(func -> func.accept(List.of(qkvBatch)));
+
+            for (int i = 0; i < batchSize; i++) {
+                int offset = qkvBatch.getOffset(i, 0);
+                queryBatch.copyFrom(qkvBatch, offset, queryBatch.getOffset(i, 0), c.embeddingLength);
+                keyBatch.copyFrom(qkvBatch, offset + c.embeddingLength, keyBatch.getOffset(i, 0), c.kvLength);
+                valBatch.copyFrom(
+                        qkvBatch, offset + c.embeddingLength + c.kvLength, valBatch.getOffset(i, 0), c.kvLength);
+            }
+        }
+    }
+
+    /**
+     * Attention of a single query row over every position up to its own.
+     *
+     * The work is split over kv heads, each scoring all the query heads of its group so every kv row is read
+     * once per group.  Long contexts are also split into segments (split-K / flash decoding) so more cores
+     * than kv heads can work on them: every (kv head, segment) pair computes the max, sum and weighted values
+     * of its part of the softmax in parallel, then the partials of each query head are merged.
+     */
+    private void attend(
+            AbstractTensor query, AbstractTensor value, int position, KvBufferCache.KvBuffer.KvLayer kvLayer) {
+        // The kv memory is paged so walk the block table, each block holds blockSize positions
+        AbstractTensor[] keyBlocks = kvLayer.getKeyTensors(position);
+        AbstractTensor[] valBlocks = kvLayer.getValTensors(position);
+        int blockSize = kvLayer.blockSize();
+        int groupSize = c.headGroupSize;
+        int groups = c.groupHeadEnd() - c.groupHeadStart();
+
+        int segments = Math.max(
+                1,
+                Math.min(
+                        keyBlocks.length / MIN_SEGMENT_BLOCKS,
+                        decodeSegments > 0
+                                ? decodeSegments
+                                : PhysicalCoreExecutor.instance.get().getCoreCount() / groups));
+
+        float[] max = new float[groups * segments * groupSize];
+        float[] sum = new float[groups * segments * groupSize];
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+        try (AbstractTensor partials =
+                segments > 1 ? m.makeFullTensor(groups * segments, groupSize * c.headSize) : null) {
+            VectorMath.pfor(0, groups * segments, i -> {
+                int head = (c.groupHeadStart() + i / segments) * groupSize;
+                int segment = i % segments;
+                int fromBlock = segment * keyBlocks.length / segments;
+                int toBlock = (segment + 1) * keyBlocks.length / segments;
+
+                // A single segment accumulates straight into the value
+                AbstractTensor target = segments > 1 ? partials.slice(i) : value;
+                int voffset = segments > 1 ? 0 : head * c.headSize;
+
+                try (AbstractTensor scores = m.makeFullTensor(groupSize, blockSize)) {
+                    for (int b = fromBlock; b < toBlock; b++) {
+                        int blockLength = Math.min(blockSize, position + 1 - b * blockSize);
+                        attendBlock(
+                                scores,
+                                query,
+                                target,
+                                keyBlocks[b],
+                                valBlocks[b],
+                                head,
+                                voffset,
+                                blockLength,
+                                max,
+                                sum,
+                                i * groupSize);
+                    }
+                }
+
+                if (segments == 1) {
+                    for (int g = 0; g < groupSize; g++)
+                        TensorOperationsProvider.get()
+                                .scale(1.0f / sum[i * groupSize + g], value, (head + g) * c.headSize, c.headSize);
+                }
+            });
+
+            if (segments > 1) {
+                // Rescale each segment to the head's overall max and normalize by the overall sum
+                for (int k = 0; k < groups; k++) {
+                    for (int g = 0; g < groupSize; g++) {
+                        int head = (c.groupHeadStart() + k) * groupSize + g;
+                        float headMax = Float.NEGATIVE_INFINITY;
+                        for (int s = 0; s < segments; s++)
+                            headMax = Math.max(headMax, max[(k * segments + s) * groupSize + g]);
+
+                        float headSum = 0;
+                        for (int s = 0; s < segments; s++) {
+                            int t = (k * segments + s) * groupSize + g;
+                            headSum += sum[t] * (float) Math.exp(max[t] - headMax);
+                        }
+
+                        for (int s = 0; s < segments; s++) {
+                            int t = (k * segments + s) * groupSize + g;
+                            float weight = (float) Math.exp(max[t] - headMax) / headSum;
+                            TensorOperationsProvider.get()
+                                    .saxpy(
+                                            weight,
+                                            partials.slice(k * segments + s),
+                                            value,
+                                            g * c.headSize,
+                                            head * c.headSize,
+                                            c.headSize);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One step of the online softmax for the query heads [head, head + headGroupSize) which share a kv head:
+     * score them against a kv block, then fold the block into their running max[t + g] and sum[t + g] and the
+     * weighted values accumulated in value at voffset + g * headSize
+     */
+    private void attendBlock(
+            AbstractTensor scores,
+            AbstractTensor query,
+            AbstractTensor value,
+            AbstractTensor keyBlock,
+            AbstractTensor valBlock,
+            int head,
+            int voffset,
+            int blockLength,
+            float[] max,
+            float[] sum,
+            int t) {
+        int groupSize = c.headGroupSize;
+        int xoffset = c.maybeMapToGroupHead(head) * c.headSize;
+
+        TensorOperationsProvider.get()
+                .kvDotProductGroup(
+                        scores, query, keyBlock, head * c.headSize, xoffset, c.headSize, blockLength, groupSize);
+
+        for (int g = 0; g < groupSize; g++) {
+            AbstractTensor headScores = scores.slice(g);
+            TensorOperationsProvider.get().scale(attentionScale, headScores, 0, blockLength);
+
+            float blockMax = TensorOperationsProvider.get().max(headScores, 0, blockLength);
+
+            // Rescale what was accumulated under the previous max
+            float newMax = Math.max(max[t + g], blockMax);
+            float correction = (float) Math.exp(max[t + g] - newMax);
+            float blockSum = TensorOperationsProvider.get().expSum(headScores, newMax, 0, blockLength);
+            sum[t + g] = sum[t + g] * correction + blockSum;
+            max[t + g] = newMax;
+
+            if (correction != 1.0f)
+                TensorOperationsProvider.get().scale(correction, value, voffset + g * c.headSize, c.headSize);
+        }
+
+        TensorOperationsProvider.get()
+                .kvSaxpyGroup(scores, valBlock, value, xoffset, voffset, c.headSize, blockLength, groupSize);
+    }
+
+    /**
+     * Flash attention for the rows [start, end) of one sequence, which are at consecutive positions.
+     *
+     * The work is split over (kv head, tile of query rows).  Each tile walks the kv blocks up to its last
+     * position, scoring the whole tile, for all the query heads of the group, against a block in one kernel
+     * call while the block is in cache.  A running max and sum per query (online softmax) means scores over the
+     * whole context are never materialized.  Queries only see the positions up to their own (causal mask).
+     */
+    private void attendTiled(
+            AbstractTensor queryBatch,
+            AbstractTensor valueBatch,
+            int[] positions,
+            KvBufferCache.KvBuffer.KvLayer kvLayer,
+            int start,
+            int end) {
+        int lastPosition = positions[end - 1];
+        AbstractTensor[] keyBlocks = kvLayer.getKeyTensors(lastPosition);
+        AbstractTensor[] valBlocks = kvLayer.getValTensors(lastPosition);
+        int blockSize = kvLayer.blockSize();
+        int groupSize = c.headGroupSize;
+
+        int groups = c.groupHeadEnd() - c.groupHeadStart();
+        int tiles = (end - start + QUERY_TILE_SIZE - 1) / QUERY_TILE_SIZE;
+
+        VectorMath.pfor(0, groups * tiles, i -> {
+            int head = (c.groupHeadStart() + i % groups) * groupSize;
+            int tileStart = start + (i / groups) * QUERY_TILE_SIZE;
+            int queries = Math.min(end, tileStart + QUERY_TILE_SIZE) - tileStart;
+            int yoffset = head * c.headSize;
+            int xoffset = c.maybeMapToGroupHead(head) * c.headSize;
+
+            // Row q * groupSize + g of the scores is query q of the tile for head g of the group
+            float[] max = new float[queries * groupSize];
+            float[] sum = new float[queries * groupSize];
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+            AbstractTensor queryTile = queryBatch.sliceRows(tileStart, queries);
+            AbstractTensor valueTile = valueBatch.sliceRows(tileStart, queries);
+            AbstractTensor[] valueRows = new AbstractTensor[queries];
+            for (int q = 0; q < queries; q++) valueRows[q] = valueTile.slice(q);
+
+            try (AbstractTensor scores = m.makeFullTensor(queries * groupSize, blockSize)) {
+                int lastBlock = positions[tileStart + queries - 1] / blockSize;
+                for (int b = 0; b <= lastBlock; b++) {
+                    int blockStart = b * blockSize;
+                    // The last query of the tile sees the most of the block
+                    int blockLength = Math.min(blockSize, positions[tileStart + queries - 1] + 1 - blockStart);
+
+                    TensorOperationsProvider.get()
+                            .kvDotProductTile(
+                                    scores,
+                                    queryTile,
+                                    keyBlocks[b],
+                                    yoffset,
+                                    xoffset,
+                                    c.headSize,
+                                    blockLength,
+                                    groupSize,
+                                    queries);
+
+                    for (int q = 0; q < queries; q++) {
+                        int visible = Math.min(blockLength, positions[tileStart + q] + 1 - blockStart);
+                        for (int g = 0; g < groupSize; g++) {
+                            int t = q * groupSize + g;
+                            AbstractTensor headScores = scores.slice(t);
+
+                            // Masked positions get no weight
+                            for (int j = Math.max(0, visible); j < blockLength; j++) headScores.set(0.0f, 0, j);
+                            if (visible <= 0) continue;
+
+                            TensorOperationsProvider.get().scale(attentionScale, headScores, 0, visible);
+                            float blockMax = TensorOperationsProvider.get().max(headScores, 0, visible);
+
+                            // Rescale what was accumulated under the previous max
+                            float newMax = Math.max(max[t], blockMax);
+                            float correction = (float) Math.exp(max[t] - newMax);
+                            float blockSum = TensorOperationsProvider.get().expSum(headScores, newMax, 0, visible);
+                            sum[t] = sum[t] * correction + blockSum;
+                            max[t] = newMax;
+
+                            if (correction != 1.0f)
+                                TensorOperationsProvider.get()
+                                        .scale(correction, valueRows[q], yoffset + g * c.headSize, c.headSize);
+                        }
+                    }
+
+                    TensorOperationsProvider.get()
+                            .kvSaxpyTile(
+                                    scores,
+                                    valBlocks[b],
+                                    valueTile,
+                                    xoffset,
+                                    yoffset,
+                                    c.headSize,
+                                    blockLength,
+                                    groupSize,
+                                    queries);
+                }
+
+                for (int q = 0; q < queries; q++) {
+                    for (int g = 0; g < groupSize; g++)
+                        TensorOperationsProvider.get()
+                                .scale(
+                                        1.0f / sum[q * groupSize + g],
+                                        valueRows[q],
+                                        yoffset + g * c.headSize,
+                                        c.headSize);
+                }
+            }
+        });
+    }
 }
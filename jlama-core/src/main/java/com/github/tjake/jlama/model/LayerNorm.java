@@ -15,7 +15,10 @@
  */
 package com.github.tjake.jlama.model;
 
+import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
 import java.util.Optional;
@@ -51,35 +54,44 @@ public class LayerNorm {
             int length,
             Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
 
-        int batchSize = input.shape().first();
         AbstractTensor output = input.copyShape();
+        normalize(output, input, offset, length, reducer);
+        return output;
+    }
 
-        for (int b = 0; b < batchSize; b++) {
-            float sum = 0;
-            float sumSq = 0;
-            int limit = offset + length;
-            for (int i = offset; i < limit; i++) {
-                float v = input.get(b, i);
-                sum += v;
-                sumSq += v * v;
-            }
-
-            if (reducer.isPresent()) {
-                Pair<Float, Float> p = reducer.get().apply(sumSq, sum);
-                sumSq = p.left;
-                sum = p.right;
-            }
+    /**
+     * Normalizes input straight into the type the model quantizes matmul inputs to, so a norm feeding a
+     * projection skips the intermediate F32 tensor.  Types the norm can't write directly are normalized then
+     * quantized.
+     */
+    public AbstractTensor forwardQuantized(
+            AbstractTensor input, Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        AbstractTensor output = m.makeQuantizedTensor(input);
+        if (output == null) return forward(input, reducer);
 
-            float mean = sum / m.c.embeddingLength;
-            float variance = sumSq / m.c.embeddingLength - mean * mean;
-            float invStddev = 1.0f / (float) Math.sqrt(variance + m.c.layerNormEps);
+        int offset = m.c.embeddingSegmentStart();
+        int length = m.c.embeddingSegmentLength();
+        if (output.dType() == DType.I8
+                && offset % Q8ByteBufferTensor.BLOCK_SIZE == 0
+                && length % Q8ByteBufferTensor.BLOCK_SIZE == 0) {
+            normalize(output, input, offset, length, reducer);
+            return output;
+        }
 
-            for (int i = offset; i < limit; i++) {
-                float v = (input.get(b, i) - mean) * invStddev * weights.get(0, i) + bias.get(0, i);
-                output.set(v, b, i);
-            }
+        output.close();
+        try (AbstractTensor lnemb = forward(input, reducer)) {
+            return m.maybeQuantize(lnemb);
         }
+    }
 
-        return output;
+    protected void normalize(
+            AbstractTensor output,
+            AbstractTensor input,
+            int offset,
+            int length,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        TensorOperationsProvider.get()
+                .layerNorm(
+                        output, input, weights, bias, m.c.layerNormEps, m.c.embeddingLength, offset, length, reducer);
     }
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.model.functions.Sampler;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperations;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * Samples with repetition, frequency and presence penalties, then temperature, then top-k, top-p and min-p
+ * filtering of the softmax.
+ *
+ * Only the penalized tokens are touched before the softmax, the max and exponentials are vectorized
+ * tensor operations and the filters only sort the few tokens that can be chosen, which are selected from
+ * chunks of the vocabulary in parallel.
+ */
+public class LogitsSampler implements Sampler {
+    /** Power of two bands of probability top-p and min-p bound their candidates with */
+    static final int BANDS = 64;
+
+    /** Smallest part of the vocabulary worth selecting from on its own thread */
+    static final int MIN_CHUNK_SIZE = 4096;
+
+    private final float temperature;
+    private final int topK;
+    private final float topP;
+    private final float minP;
+    private final float repetitionPenalty;
+    private final float frequencyPenalty;
+    private final float presencePenalty;
+    private final Random random;
+    private final Map<Integer, Integer> counts;
+
+    public LogitsSampler(float temperature) {
+        this(temperature, 0, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f, Optional.empty());
+    }
+
+    /**
+     * @param topK keep the k most likely tokens, 0 keeps them all
+     * @param topP keep the most likely tokens holding this share of the probability, 1 keeps them all
+     * @param minP drop tokens less likely than this fraction of the most likely one, 0 keeps them all
+     * @param repetitionPenalty divides the positive logits of seen tokens and multiplies their negative ones
+     * @param frequencyPenalty subtracted from the logit of a token for each time it's been seen
+     * @param presencePenalty subtracted from the logit of a token once it's been seen
+     * @param seed makes the samples repeatable
+     */
+    public LogitsSampler(
+            float temperature,
+            int topK,
+            float topP,
+            float minP,
+            float repetitionPenalty,
+            float frequencyPenalty,
+            float presencePenalty,
+            Optional<Long> seed) {
+        Preconditions.checkArgument(temperature >= 0.0f, "temperature must not be negative");
+        Preconditions.checkArgument(topK >= 0, "topK must not be negative");
+        Preconditions.checkArgument(topP > 0.0f && topP <= 1.0f, "topP must be in (0, 1]");
+        Preconditions.checkArgument(minP >= 0.0f && minP < 1.0f, "minP must be in [0, 1)");
+        Preconditions.checkArgument(repetitionPenalty > 0.0f, "repetitionPenalty must be positive");
+        this.temperature = temperature;
+        this.topK = topK;
+        this.topP = topP;
+        this.minP = minP;
+        this.repetitionPenalty = repetitionPenalty;
+        this.frequencyPenalty = frequencyPenalty;
+        this.presencePenalty = presencePenalty;
+        this.random = seed.map(Random::new).orElseGet(Random::new);
+        this.counts = new HashMap<>();
+    }
+
+    public float temperature() {
+        return temperature;
+    }
+
+    /** True when only the temperature shapes the distribution */
+    public boolean isTemperatureOnly() {
+        return !hasFilters() && !hasPenalties();
+    }
+
+    private boolean hasFilters() {
+        return topK > 0 || topP < 1.0f || minP > 0.0f;
+    }
+
+    private boolean hasPenalties() {
+        return repetitionPenalty != 1.0f || frequencyPenalty != 0.0f || presencePenalty != 0.0f;
+    }
+
+    @Override
+    public void accept(int token) {
+        if (hasPenalties()) counts.merge(token, 1, Integer::sum);
+    }
+
+    @Override
+    public int candidates() {
+        // Penalties can lower any token below the others, so they need them all
+        if (hasPenalties()) return 0;
+
+        return temperature == 0.0f ? 1 : topK;
+    }
+
+    @Override
+    public int sample(AbstractTensor logits, int length) {
+        return sample(logits, length, random.nextFloat());
+    }
+
+    @Override
+    public int sample(int[] tokens, float[] logits, int n) {
+        return sample(tokens, logits, n, random.nextFloat());
+    }
+
+    /**
+     * Sample from the n most likely tokens, which are all top-k keeps, with the given uniform sample
+     */
+    int sample(int[] tokens, float[] logits, int n, float uniformSample) {
+        if (temperature == 0.0f || n == 1) return tokens[0];
+
+        // The softmax over the candidates, the most likely being 1
+        float[] p = new float[n];
+        float sum = 0;
+        for (int i = 0; i < n; i++) sum += p[i] = (float) Math.exp((logits[i] - logits[0]) / temperature);
+
+        int kept = 0;
+        float keptSum = 0;
+        float nucleus = topP * sum;
+        while (kept < n && p[kept] >= minP && (kept == 0 || keptSum < nucleus)) keptSum += p[kept++];
+
+        float target = uniformSample * keptSum;
+        float acc = 0;
+        for (int i = 0; i < kept; i++) {
+            acc += p[i];
+            if (acc >= target) return tokens[i];
+        }
+
+        return tokens[kept - 1];
+    }
+
+    /**
+     * Sample with the given uniform sample in [0, 1) rather than the sampler's own
+     */
+    public int sample(AbstractTensor logits, int length, float uniformSample) {
+        penalize(logits, length);
+
+        // Greedy and top-k only need the largest logits
+        if (temperature == 0.0f || topK > 0) {
+            int k = Math.min(temperature == 0.0f ? 1 : topK, length);
+            int[] idx = new int[k];
+            float[] val = new float[k];
+            int n = select(logits, length, k, Float.NEGATIVE_INFINITY, idx, val);
+            return sample(idx, val, n, uniformSample);
+        }
+
+        TensorOperations ops = TensorOperationsProvider.get();
+        if (temperature != 1.0f) ops.scale(1.0f / temperature, logits, 0, length);
+
+        // The logits become unnormalized probabilities, the most likely being 1
+        float sum = ops.expSum(logits, ops.max(logits, 0, length), 0, length);
+
+        if (!hasFilters()) {
+            float target = uniformSample * sum;
+            float acc = 0;
+            for (int i = 0; i < length; i++) {
+                acc += logits.get(0, i);
+                if (acc >= target) return i;
+            }
+
+            return length - 1;
+        }
+
+        // Bands of probability from the most likely down bound the candidates that top-p and min-p need,
+        // so they are selected in one pass
+        int[] counts = new int[BANDS];
+        double[] mass = new double[BANDS];
+        bands(logits, length, counts, mass);
+
+        int k = 0;
+        float floor = minP;
+        double acc = 0;
+        for (int b = 0; b < BANDS && bandFloor(b - 1) > minP; b++) {
+            k += counts[b];
+            acc += mass[b];
+            floor = Math.max(minP, bandFloor(b));
+            if (acc >= topP * sum) break;
+        }
+
+        int[] idx = new int[k];
+        float[] p = new float[k];
+        int n = select(logits, length, k, floor, idx, p);
+
+        int kept = 0;
+        float keptSum = 0;
+        float nucleus = topP * sum;
+        while (kept < n && (kept == 0 || keptSum < nucleus)) keptSum += p[kept++];
+
+        float target = uniformSample * keptSum;
+        float cdf = 0;
+        for (int i = 0; i < kept; i++) {
+            cdf += p[i];
+            if (cdf >= target) return idx[i];
+        }
+
+        return kept > 0 ? idx[kept - 1] : 0;
+    }
+
+    /** The lowest probability of a band, band b holds [2^-b, 2^(1-b)) and the last all that's left */
+    private static float bandFloor(int b) {
+        return b < 0 ? Float.POSITIVE_INFINITY : b == BANDS - 1 ? 0.0f : Math.scalb(1.0f, -b);
+    }
+
+    /**
+     * Counts the probabilities in [0, length) of a row, each at most 1, and their mass by band
+     */
+    static void bands(AbstractTensor x, int length, int[] counts, double[] mass) {
+        int chunks = chunks(length);
+        int chunkSize = length / chunks;
+        int[][] chunkCounts = new int[chunks][BANDS];
+        double[][] chunkMass = new double[chunks][BANDS];
+        VectorMath.pfor(0, chunks, c -> {
+            int end = c == chunks - 1 ? length : (c + 1) * chunkSize;
+            for (int i = c * chunkSize; i < end; i++) {
+                float v = x.get(0, i);
+                int b = Math.min(BANDS - 1, Math.max(0, -Math.getExponent(v)));
+                chunkCounts[c][b]++;
+                chunkMass[c][b] += v;
+            }
+        });
+
+        for (int c = 0; c < chunks; c++) {
+            for (int b = 0; b < BANDS; b++) {
+                counts[b] += chunkCounts[c][b];
+                mass[b] += chunkMass[c][b];
+            }
+        }
+    }
+
+    private static int chunks(int length) {
+        return Math.max(1, Math.min(TensorOperationsProvider.get().parallelSplitSize(), length / MIN_CHUNK_SIZE));
+    }
+
+    private void penalize(AbstractTensor logits, int length) {
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            int token = e.getKey();
+            if (token >= length) continue;
+
+            float v = logits.get(0, token);
+            if (repetitionPenalty != 1.0f) v = v > 0 ? v / repetitionPenalty : v * repetitionPenalty;
+
+            logits.set(v - e.getValue() * frequencyPenalty - presencePenalty, 0, token);
+        }
+    }
+
+    /**
+     * Selects the k largest values of [0, length) of a row that are at least floor into idx and val, largest
+     * first, returning how many there were.  Ties keep the lower index.
+     *
+     * Chunks of the row each keep their k best in a heap, in parallel, then the heaps are merged.
+     */
+    public static int select(AbstractTensor x, int length, int k, float floor, int[] idx, float[] val) {
+        int chunks = chunks(length);
+        if (chunks == 1) {
+            Heap heap = new Heap(k);
+            heap.offer(x, 0, length, floor, 0);
+            return heap.drain(idx, val);
+        }
+
+        int chunkSize = length / chunks;
+        Heap[] heaps = new Heap[chunks];
+        VectorMath.pfor(0, chunks, c -> {
+            int start = c * chunkSize;
+            int end = c == chunks - 1 ? length : start + chunkSize;
+            heaps[c] = new Heap(k);
+            heaps[c].offer(x, start, end, floor, 0);
+        });
+
+        return merge(Arrays.asList(heaps), k, idx, val);
+    }
+
+    /**
+     * Merges the k largest values of the heaps into idx and val, largest first, returning how many there were
+     */
+    static int merge(Collection<Heap> heaps, int k, int[] idx, float[] val) {
+        Heap merged = new Heap(k);
+        int[] hidx = new int[k];
+        float[] hval = new float[k];
+        for (Heap heap : heaps) {
+            int n = heap.drain(hidx, hval);
+            for (int i = 0; i < n; i++) merged.offer(hidx[i], hval[i]);
+        }
+
+        return merged.drain(idx, val);
+    }
+
+    /**
+     * A bounded min-heap of the largest values offered
+     */
+    static final class Heap {
+        private final int[] idx;
+        private final float[] val;
+        private int size;
+
+        Heap(int capacity) {
+            this.idx = new int[capacity];
+            this.val = new float[capacity];
+            this.size = 0;
+        }
+
+        /** Offers [start, end) of a row, as the indexes from base */
+        void offer(AbstractTensor x, int start, int end, float floor, int base) {
+            for (int i = start; i < end; i++) {
+                float v = x.get(0, i);
+                // Most values fall under the smallest kept once the heap is full
+                if (v >= floor && (size < val.length || v > val[0])) offer(base + i, v);
+            }
+        }
+
+        void offer(int i, float v) {
+            if (size < val.length) {
+                int c = size++;
+                // Sift up
+                while (c > 0) {
+                    int parent = (c - 1) >> 1;
+                    if (!less(v, i, val[parent], idx[parent])) break;
+                    idx[c] = idx[parent];
+                    val[c] = val[parent];
+                    c = parent;
+                }
+                idx[c] = i;
+                val[c] = v;
+            } else if (less(val[0], idx[0], v, i)) {
+                siftDown(i, v);
+            }
+        }
+
+        /** Ordered by value, then by index reversed so the lower of equal values outranks the higher */
+        private static boolean less(float v1, int i1, float v2, int i2) {
+            return v1 < v2 || (v1 == v2 && i1 > i2);
+        }
+
+        private void siftDown(int i, float v) {
+            int c = 0;
+            while (true) {
+                int child = 2 * c + 1;
+                if (child >= size) break;
+                if (child + 1 < size && less(val[child + 1], idx[child + 1], val[child], idx[child])) child++;
+                if (!less(val[child], idx[child], v, i)) break;
+                idx[c] = idx[child];
+                val[c] = val[child];
+                c = child;
+            }
+            idx[c] = i;
+            val[c] = v;
+        }
+
+        /** Empties the heap into idx and val, largest first */
+        int drain(int[] toIdx, float[] toVal) {
+            int n = size;
+            for (int j = n - 1; j >= 0; j--) {
+                toIdx[j] = idx[0];
+                toVal[j] = val[0];
+                size--;
+                if (size > 0) siftDown(idx[size], val[size]);
+            }
+            return n;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.functions.FeedForward;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import java.util.ArrayList;
 import java.util.List;
@@ -101,71 +102,86 @@ public class MLPBlock implements FeedForward {
         int hiddenLength = model.c.hiddenLength;
         int batchSize = lnemb.shape().first();
         try (AbstractTensor buf = model.makeTensor(batchSize, hiddenLength);
-                AbstractTensor buf2 = model.makeTensor(batchSize, hiddenLength)) {
+                AbstractTensor buf2 = model.makeTensor(batchSize, hiddenLength);
+                AbstractTensor bufq = model.makeQuantizedTensor(buf)) {
 
             batchResults[0] = buf;
             batchResults[1] = buf2;
 
-            VectorMath.pchunk(0, hiddenLength, (chunkStart, chunkSize) -> {
-                if (upProjectionWeights != null) {
-                    TensorOperationsProvider.get()
-                            .dotProductBatchChunk(
-                                    batchResults,
-                                    lnemb,
-                                    batchWeights,
-                                    model.c.embeddingSegmentStart(),
-                                    model.c.embeddingSegmentLength(),
-                                    chunkStart,
-                                    chunkSize);
-                } else {
-                    TensorOperationsProvider.get()
-                            .dotProductChunk(
-                                    buf,
-                                    lnemb,
-                                    fullyConnectedWeights,
-                                    model.c.embeddingSegmentStart(),
-                                    model.c.embeddingSegmentLength(),
-                                    chunkStart,
-                                    chunkSize);
-                }
-            });
-
-            tensorReducer.ifPresent(func -> {
-                List<AbstractTensor> ts = new ArrayList<>(2);
-                ts.add(buf);
-                if (upProjectionWeights != null) ts.add(buf2);
-
-                func.accept(ts);
-            });
-
-            fullyConnectedBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(buf, bias, 0, hiddenLength));
-
-            VectorMath.pfor(0, hiddenLength, i -> {
-                for (int j = 0; j < batchSize; j++) {
-                    float w1 = buf.get(j, i);
-                    float w1a = ActivationFunction.eval(activationFunction, w1);
-                    buf.set(w1a, j, i);
-                }
-            });
-
-            if (upProjectionWeights != null) {
-                TensorOperationsProvider.get().maccumulate(buf, buf2, 0, hiddenLength);
-            }
-
-            try (AbstractTensor bufq = model.maybeQuantize(buf)) {
-                // matmul the projection and sum into input
-                AbstractTensor result = model.makeTensor(batchSize, model.c.embeddingLength);
+            // Without a reducer to sum the projections first, each chunk is activated (and quantized for the
+            // down projection) right after its projections while it is still in cache
+            if (tensorReducer.isEmpty() && hiddenLength % Q8ByteBufferTensor.BLOCK_SIZE == 0) {
+                VectorMath.pchunk(0, hiddenLength / Q8ByteBufferTensor.BLOCK_SIZE, (chunkStart, chunkSize) -> {
+                    int start = chunkStart * Q8ByteBufferTensor.BLOCK_SIZE;
+                    int length = chunkSize * Q8ByteBufferTensor.BLOCK_SIZE;
+                    project(lnemb, buf, start, length);
+                    activate(buf, buf2, bufq, start, length);
+                });
+            } else {
                 VectorMath.pchunk(
-                        model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength(), (chunkStart, chunkSize) -> {
-                            TensorOperationsProvider.get()
-                                    .dotProductChunk(
-                                            result, bufq, projectionWeights, 0, hiddenLength, chunkStart, chunkSize);
-                        });
-
-                projectionBias.ifPresent(bias -> TensorOperationsProvider.get()
-                        .accumulate(result, bias, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength()));
-                return result;
+                        0, hiddenLength, (chunkStart, chunkSize) -> project(lnemb, buf, chunkStart, chunkSize));
+
+                tensorReducer.ifPresent(func -> {
+                    List<AbstractTensor> ts = new ArrayList<>(2);
+                    ts.add(buf);
+                    if (upProjectionWeights != null) ts.add(buf2);
+
+                    func.accept(ts);
+                });
+
+                activate(buf, buf2, bufq, 0, hiddenLength);
             }
+
+            // matmul the projection and sum into input
+            AbstractTensor down = bufq != null ? bufq : buf;
+            AbstractTensor result = model.makeTensor(batchSize, model.c.embeddingLength);
+            VectorMath.pchunk(
+                    model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength(), (chunkStart, chunkSize) -> {
+                        TensorOperationsProvider.get()
+                                .dotProductChunk(
+                                        result, down, projectionWeights, 0, hiddenLength, chunkStart, chunkSize);
+                    });
+
+            projectionBias.ifPresent(bias -> TensorOperationsProvider.get()
+                    .accumulate(result, bias, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength()));
+            return result;
         }
     }
+
+    private void project(AbstractTensor lnemb, AbstractTensor buf, int chunkStart, int chunkSize) {
+        if (upProjectionWeights != null) {
+            TensorOperationsProvider.get()
+                    .dotProductBatchChunk(
+                            batchResults,
+                            lnemb,
+                            batchWeights,
+                            model.c.embeddingSegmentStart(),
+                            model.c.embeddingSegmentLength(),
+                            chunkStart,
+                            chunkSize);
+        } else {
+            TensorOperationsProvider.get()
+                    .dotProductChunk(
+                            buf,
+                            lnemb,
+                            fullyConnectedWeights,
+                            model.c.embeddingSegmentStart(),
+                            model.c.embeddingSegmentLength(),
+                            chunkStart,
+                            chunkSize);
+        }
+    }
+
+    private void activate(AbstractTensor buf, AbstractTensor buf2, AbstractTensor bufq, int offset, int length) {
+        fullyConnectedBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(buf, bias, offset, length));
+
+        TensorOperationsProvider.get()
+                .gatedActivation(
+                        activationFunction,
+                        buf,
+                        upProjectionWeights != null ? Optional.of(buf2) : Optional.empty(),
+                        Optional.ofNullable(bufq),
+                        offset,
+                        length);
+    }
 }
@@ -20,6 +20,7 @@ import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.functions.FeedForward;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import java.util.*;
 import java.util.function.Consumer;
@@ -77,7 +78,8 @@ public class MoEBlock implements FeedForward {
 
         try (AbstractTensor buf = model.makeTensor(1, hiddenLength);
                 AbstractTensor buf2 = model.makeTensor(1, hiddenLength);
-                AbstractTensor moeResult = model.makeTensor(1, model.c.embeddingLength)) {
+                AbstractTensor moeResult = model.makeTensor(1, model.c.embeddingLength);
+                AbstractTensor bufq = model.makeQuantizedTensor(buf)) {
 
             for (int b = 0; b < batchSize; b++) {
                 AbstractTensor lnembSlice = lnemb.slice(true, b);
@@ -111,50 +113,75 @@ public class MoEBlock implements FeedForward {
                     batchResults[0] = buf;
                     batchResults[1] = buf2;
 
-                    VectorMath.pchunk(0, hiddenLength, (chunkStart, chunkSize) -> {
+                    if (tensorReducer.isEmpty() && hiddenLength % Q8ByteBufferTensor.BLOCK_SIZE == 0) {
+                        // Activate each chunk right after its projections while it is still in cache
+                        VectorMath.pchunk(0, hiddenLength / Q8ByteBufferTensor.BLOCK_SIZE, (chunkStart, chunkSize) -> {
+                            int start = chunkStart * Q8ByteBufferTensor.BLOCK_SIZE;
+                            int length = chunkSize * Q8ByteBufferTensor.BLOCK_SIZE;
+                            TensorOperationsProvider.get()
+                                    .dotProductBatchChunk(
+                                            batchResults,
+                                            lnembSlice,
+                                            batchWeights,
+                                            model.c.embeddingSegmentStart(),
+                                            model.c.embeddingSegmentLength(),
+                                            start,
+                                            length);
+                            TensorOperationsProvider.get()
+                                    .gatedActivation(
+                                            activationFunction,
+                                            buf,
+                                            Optional.of(buf2),
+                                            Optional.ofNullable(bufq),
+                                            start,
+                                            length);
+                        });
+                    } else {
+                        VectorMath.pchunk(0, hiddenLength, (chunkStart, chunkSize) -> {
+                            TensorOperationsProvider.get()
+                                    .dotProductBatchChunk(
+                                            batchResults,
+                                            lnembSlice,
+                                            batchWeights,
+                                            model.c.embeddingSegmentStart(),
+                                            model.c.embeddingSegmentLength(),
+                                            chunkStart,
+                                            chunkSize);
+                        });
+
+                        tensorReducer.ifPresent(func -> {
+                            tmpTensors1.clear();
+                            tmpTensors1.add(buf);
+                            tmpTensors1.add(buf2);
+                            func.accept(tmpTensors1);
+                        });
+
                         TensorOperationsProvider.get()
-                                .dotProductBatchChunk(
-                                        batchResults,
-                                        lnembSlice,
-                                        batchWeights,
-                                        model.c.embeddingSegmentStart(),
-                                        model.c.embeddingSegmentLength(),
-                                        chunkStart,
-                                        chunkSize);
-                    });
-
-                    tensorReducer.ifPresent(func -> {
-                        tmpTensors1.clear();
-                        tmpTensors1.add(buf);
-                        tmpTensors1.add(buf2);
-                        func.accept(tmpTensors1);
-                    });
-
-                    VectorMath.pfor(0, hiddenLength, iv -> {
-                        float w1 = buf.get(0, iv);
-                        float w1a = ActivationFunction.eval(activationFunction, w1);
-                        buf.set(w1a, 0, iv);
-                    });
-
-                    TensorOperationsProvider.get().maccumulate(buf, buf2, 0, hiddenLength);
+                                .gatedActivation(
+                                        activationFunction,
+                                        buf,
+                                        Optional.of(buf2),
+                                        Optional.ofNullable(bufq),
+                                        0,
+                                        hiddenLength);
+                    }
 
                     // matmul the projection and sum into result
-                    try (AbstractTensor bufq = model.maybeQuantize(buf)) {
-                        VectorMath.pchunk(
-                                model.c.embeddingSegmentStart(),
-                                model.c.embeddingSegmentLength(),
-                                (chunkStart, chunkSize) -> {
-                                    TensorOperationsProvider.get()
-                                            .dotProductChunk(
-                                                    moeResult,
-                                                    bufq,
-                                                    projectionWeight,
-                                                    0,
-                                                    hiddenLength,
-                                                    chunkStart,
-                                                    chunkSize);
-                                });
-                    }
+                    AbstractTensor down = bufq != null ? bufq : buf;
+                    VectorMath.pchunk(
+                            model.c.embeddingSegmentStart(),
+                            model.c.embeddingSegmentLength(),
+                            (chunkStart, chunkSize) -> {
+                                TensorOperationsProvider.get()
+                                        .dotProductChunk(
+                                                moeResult,
+                                                down,
+                                                projectionWeight,
+                                                0,
+                                                hiddenLength,
+                                                chunkStart,
+                                                chunkSize);
+                            });
 
                     if (i == 0) {
                         result.copyFrom(
@@ -35,6 +35,7 @@ import com.github.tjake.jlama.model.mixtral.MixtralConfig;
 import com.github.tjake.jlama.model.mixtral.MixtralModel;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.GGUFIndex;
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
@@ -91,6 +92,32 @@ public class ModelSupport {
                 Optional.empty());
     }
 
+    /**
+     * Load a model that generates with speculative decoding, using draftModel to propose draftTokens
+     * tokens at a time.  The draft model must share the model's tokenizer.
+     */
+    public static AbstractModel loadModel(
+            File model,
+            File draftModel,
+            int draftTokens,
+            File workingDirectory,
+            DType workingMemoryType,
+            DType workingQuantizationType,
+            Optional<DType> modelQuantization,
+            Optional<Integer> threadCount) {
+        AbstractModel m = loadModel(
+                model, workingDirectory, workingMemoryType, workingQuantizationType, modelQuantization, threadCount);
+        AbstractModel draft = loadModel(
+                draftModel,
+                workingDirectory,
+                workingMemoryType,
+                workingQuantizationType,
+                modelQuantization,
+                threadCount);
+        m.setDraftModel(draft, draftTokens);
+        return m;
+    }
+
     public static AbstractModel loadModel(
             AbstractModel.InferenceType inferenceType,
             File model,
@@ -112,6 +139,9 @@ public class ModelSupport {
             throw new IllegalArgumentException("Model directory does not exist: " + baseDir);
         }
 
+        // A GGUF file carries its own hyperparameters, only the tokenizer is read from its directory
+        boolean isGGUF = model.isFile() && model.getName().endsWith(GGUFIndex.FILE_EXTENSION);
+
         File configFile = null;
         for (File f : Objects.requireNonNull(baseDir.listFiles())) {
             if (f.getName().equals("config.json")) {
@@ -120,21 +150,31 @@ public class ModelSupport {
             }
         }
 
-        if (configFile == null) {
+        if (configFile == null && !isGGUF) {
             throw new IllegalArgumentException("config.json in model directory does not exist: " + baseDir);
         }
 
         try {
             threadCount.ifPresent(PhysicalCoreExecutor::overrideThreadCount);
 
-            ModelSupport.ModelType modelType = SafeTensorSupport.detectModel(configFile);
-            Config c = om.readValue(configFile, modelType.configClass);
+            ModelSupport.ModelType modelType;
+            Config c;
+            WeightLoader wl;
+            if (isGGUF) {
+                GGUFIndex gguf = GGUFIndex.load(model.toPath());
+                modelType = gguf.modelType();
+                c = gguf.config();
+                wl = gguf;
+            } else {
+                modelType = SafeTensorSupport.detectModel(configFile);
+                c = om.readValue(configFile, modelType.configClass);
+                wl = SafeTensorSupport.loadWeights(baseDir);
+            }
             offset.ifPresent(c::setOffset);
 
             c.setWorkingDirectory(workingDirectory);
 
             Tokenizer t = modelType.tokenizerClass.getConstructor(Path.class).newInstance(baseDir.toPath());
-            WeightLoader wl = SafeTensorSupport.loadWeights(baseDir);
 
             return modelType
                     .modelClass
@@ -16,6 +16,7 @@
 package com.github.tjake.jlama.model;
 
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 import java.util.Optional;
 import java.util.function.BiFunction;
@@ -33,36 +34,22 @@ public class RMSNorm extends LayerNorm {
     }
 
     @Override
-    public AbstractTensor forward(
+    protected void normalize(
+            AbstractTensor output,
             AbstractTensor input,
             int offset,
             int length,
             Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
-
-        int batchSize = input.shape().first();
-        AbstractTensor output = input.copyShape();
-
-        int limit = offset + length;
-        for (int b = 0; b < batchSize; b++) {
-            float ss = 0.0f;
-            for (int j = offset; j < limit; j++) {
-                float v = input.get(b, j);
-                ss += v * v;
-            }
-
-            if (reducer.isPresent()) {
-                Pair<Float, Float> p = reducer.get().apply(ss, 0f);
-                ss = p.left;
-            }
-
-            ss /= m.c.embeddingLength;
-            ss += m.c.layerNormEps;
-            ss = (float) (1.0 / StrictMath.sqrt(ss));
-            // normalize and scale
-            for (int j = offset; j < limit; j++) {
-                output.set((weightAdjustment + weights.get(0, j)) * (ss * input.get(b, j)), b, j);
-            }
-        }
-        return output;
+        TensorOperationsProvider.get()
+                .rmsNorm(
+                        output,
+                        input,
+                        weights,
+                        weightAdjustment,
+                        m.c.layerNormEps,
+                        m.c.embeddingLength,
+                        offset,
+                        length,
+                        reducer);
     }
 }
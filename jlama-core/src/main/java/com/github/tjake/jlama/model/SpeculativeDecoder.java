@@ -0,0 +1,528 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Speculative decoding, tokens are proposed cheaply and the target model verifies them in a single batched
+ * forward pass.
+ *
+ * Proposals come from either a small draft model sharing the tokenizer, or from prompt lookup: the most recent
+ * earlier occurrence of the last few tokens in the prompt or output is found and the tokens that followed it
+ * are proposed, which works well when the output copies spans of the prompt (summaries, code edits).
+ *
+ * Proposals are accepted while they agree with the target (exactly for greedy decoding, by rejection sampling
+ * otherwise) so the output follows the target model's distribution.  The kv caches are then rolled back to
+ * the accepted prefix.
+ */
+public class SpeculativeDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(SpeculativeDecoder.class);
+
+    public static final int DEFAULT_DRAFT_TOKENS = 4;
+    public static final int MAX_NGRAM_SIZE = Integer.getInteger("jlama.prompt_lookup_max_ngram", 3);
+
+    private final AbstractModel target;
+    private final Optional<AbstractModel> draft;
+    private final int draftTokens;
+
+    /**
+     * Propose tokens with a draft model
+     */
+    public SpeculativeDecoder(AbstractModel target, AbstractModel draft, int draftTokens) {
+        Preconditions.checkArgument(draftTokens > 0, "draftTokens must be positive");
+        Preconditions.checkArgument(
+                target.c.vocabularySize == draft.c.vocabularySize,
+                "Draft model vocabulary size %s does not match target %s",
+                draft.c.vocabularySize,
+                target.c.vocabularySize);
+        Preconditions.checkArgument(
+                target.c.bosToken == draft.c.bosToken && target.c.eosToken == draft.c.eosToken,
+                "Draft model special tokens do not match the target model");
+
+        this.target = target;
+        this.draft = Optional.of(draft);
+        this.draftTokens = draftTokens;
+    }
+
+    /**
+     * Propose tokens by prompt lookup
+     */
+    public SpeculativeDecoder(AbstractModel target, int draftTokens) {
+        Preconditions.checkArgument(draftTokens > 0, "draftTokens must be positive");
+        this.target = target;
+        this.draft = Optional.empty();
+        this.draftTokens = draftTokens;
+    }
+
+    public int draftTokens() {
+        return draftTokens;
+    }
+
+    public Optional<AbstractModel> draftModel() {
+        return draft;
+    }
+
+    /**
+     * Generate a whole session on the calling thread.  Concurrent sessions of a model go through its
+     * {@link BatchScheduler} instead, which runs one verification round per step.
+     */
+    public void generate(
+            UUID sessionId,
+            int[] promptTokens,
+            float temperature,
+            int ntokens,
+            BiConsumer<String, Float> onTokenWithTimings) {
+        try (Session session = newSession(sessionId, promptTokens, temperature, ntokens, onTokenWithTimings)) {
+            session.prefill();
+            boolean finished = false;
+            while (!finished) finished = session.step();
+            session.finish();
+        }
+    }
+
+    Session newSession(
+            UUID sessionId,
+            int[] promptTokens,
+            float temperature,
+            int ntokens,
+            BiConsumer<String, Float> onTokenWithTimings) {
+        Preconditions.checkArgument(promptTokens.length > 0);
+        return new Session(sessionId, promptTokens, temperature, ntokens, onTokenWithTimings);
+    }
+
+    /**
+     * The state of one speculative generate call, advanced a verification round at a time
+     */
+    final class Session implements AutoCloseable {
+        private final UUID sessionId;
+        private final int[] promptTokens;
+        private final float temperature;
+        private final BiConsumer<String, Float> onTokenWithTimings;
+        private final KvBufferCache.KvBuffer kvmem;
+        private final Drafter drafter;
+        private final AbstractTensor logits;
+        private final int startPos;
+        private final int limit;
+        private final int[] proposals;
+        private final float[][] draftProbs;
+
+        // The prompt and every token sampled since, next is always the last
+        private int[] history;
+        private int historyLength;
+        private int position;
+        private int next;
+        private boolean stopped;
+        private long start;
+        private float batchMsPerToken;
+        private int tokensGenerated;
+        private int rounds;
+        private int proposed;
+        private int accepted;
+
+        private Session(
+                UUID sessionId,
+                int[] promptTokens,
+                float temperature,
+                int ntokens,
+                BiConsumer<String, Float> onTokenWithTimings) {
+            this.sessionId = sessionId;
+            this.promptTokens = promptTokens;
+            this.temperature = temperature;
+            this.onTokenWithTimings = onTokenWithTimings;
+            this.proposals = new int[draftTokens];
+            this.draftProbs = new float[draftTokens][];
+
+            this.kvmem = target.kvBufferCache.getPinnedKvBuffer(sessionId);
+            this.startPos = kvmem.getCurrentContextPosition();
+
+            Drafter drafter = null;
+            AbstractTensor logits = null;
+            try {
+                drafter = draft.isPresent()
+                        ? new ModelDrafter(draft.get(), sessionId, startPos)
+                        : new PromptLookupDrafter();
+                logits = target.makeTensor(target.c.vocabularySize);
+
+                int maxContextLength = Math.min(kvmem.maxContextLength(), drafter.maxContextLength());
+                Preconditions.checkArgument(
+                        startPos + promptTokens.length <= maxContextLength,
+                        "Prompt of %s tokens at position %s exceeds the max context length %s of session %s",
+                        promptTokens.length,
+                        startPos,
+                        maxContextLength,
+                        sessionId);
+
+                if (ntokens > maxContextLength) {
+                    logger.warn(
+                            "Limiting session {} to {} tokens, the max context length", sessionId, maxContextLength);
+                    ntokens = maxContextLength;
+                }
+            } catch (RuntimeException e) {
+                if (drafter != null) drafter.close();
+                if (logits != null) logits.close();
+                kvmem.unpin();
+                throw e;
+            }
+
+            this.drafter = drafter;
+            this.logits = logits;
+            this.limit = ntokens;
+        }
+
+        /**
+         * Run the prompt through both models and sample the first token
+         */
+        void prefill() {
+            logger.info("Starting at token {} for session {} with {} draft tokens", startPos, sessionId, draftTokens);
+
+            start = System.currentTimeMillis();
+            AbstractTensor last = target.batchForward(promptTokens, startPos, kvmem);
+            drafter.prefill(promptTokens, startPos);
+
+            position = startPos + promptTokens.length;
+            kvmem.setCurrentContextPosition(position);
+
+            long promptBatchTime = System.currentTimeMillis() - start;
+            batchMsPerToken = Math.round((((double) promptBatchTime) / (double) promptTokens.length));
+            logger.debug(
+                    "{} prompt tokens in {}ms | {}ms per token", promptTokens.length, promptBatchTime, batchMsPerToken);
+
+            next = target.sample(
+                    last.slice(promptTokens.length - 1),
+                    temperature,
+                    ThreadLocalRandom.current().nextFloat(),
+                    logits);
+            last.close();
+            emit(next, batchMsPerToken, onTokenWithTimings);
+
+            history = Arrays.copyOf(promptTokens, promptTokens.length + Math.max(0, limit - position) + 1);
+            historyLength = promptTokens.length;
+            history[historyLength++] = next;
+
+            start = System.currentTimeMillis();
+        }
+
+        /**
+         * Propose tokens and verify them with one target forward pass
+         * @return true once the session has finished
+         */
+        boolean step() {
+            if (stopped || position >= limit) return true;
+
+            // Up to k tokens are proposed after next, the target then scores next plus every proposal
+            int k = drafter.propose(
+                    history,
+                    historyLength,
+                    position,
+                    Math.min(draftTokens, limit - position - 1),
+                    temperature,
+                    proposals,
+                    draftProbs);
+
+            int[] verify = new int[k + 1];
+            verify[0] = next;
+            System.arraycopy(proposals, 0, verify, 1, k);
+
+            int n = 0;
+            int correction;
+            try (AbstractTensor out = target.batchForward(verify, position, kvmem)) {
+                for (; ; n++) {
+                    float[] p = probabilities(target, out.slice(n), temperature, logits);
+                    if (n == k) {
+                        // Every proposal was accepted, so the target's prediction after them is free
+                        correction = temperature == 0.0f
+                                ? argmax(p)
+                                : pick(p, ThreadLocalRandom.current().nextFloat());
+                        break;
+                    }
+
+                    int d = proposals[n];
+                    if (temperature == 0.0f) {
+                        int t = argmax(p);
+                        if (t != d) {
+                            correction = t;
+                            break;
+                        }
+                    } else {
+                        // Proposals picked without a distribution had probability 1
+                        float[] q = draftProbs[n];
+                        float qd = q == null ? 1.0f : q[d];
+                        if (ThreadLocalRandom.current().nextFloat() * qd >= p[d]) {
+                            correction = pick(
+                                    residual(p, q, d),
+                                    ThreadLocalRandom.current().nextFloat());
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // Roll back to the accepted prefix, the rejected positions get overwritten
+            position += n + 1;
+            kvmem.setCurrentContextPosition(position);
+            drafter.rollback(position, n, k);
+            rounds++;
+            proposed += k;
+            accepted += n;
+
+            for (int i = 0; i <= n; i++) {
+                int t = i < n ? proposals[i] : correction;
+                if (t == target.c.eosToken) {
+                    stopped = true;
+                    return true;
+                }
+                history[historyLength++] = t;
+                tokensGenerated++;
+                emit(t, (System.currentTimeMillis() - start) / (float) tokensGenerated, onTokenWithTimings);
+            }
+
+            next = correction;
+            return position >= limit;
+        }
+
+        void finish() {
+            long end = System.currentTimeMillis();
+            logger.debug("Accepted {} of {} draft tokens over {} rounds", accepted, proposed, rounds);
+            System.out.printf(
+                    "\n\nelapsed: %ds, prompt %.1fms per token, gen %.1fms per token, %.1f draft tokens accepted per round\n",
+                    TimeUnit.MILLISECONDS.toSeconds(end - start),
+                    batchMsPerToken,
+                    tokensGenerated == 0 ? 0f : (end - start) / (float) tokensGenerated,
+                    rounds == 0 ? 0f : accepted / (float) rounds);
+        }
+
+        @Override
+        public void close() {
+            try {
+                drafter.close();
+                logits.close();
+            } finally {
+                kvmem.unpin();
+            }
+        }
+    }
+
+    /**
+     * Proposes the tokens for the target model to verify, one per generate call
+     */
+    private interface Drafter extends AutoCloseable {
+        /** Run the prompt alongside the target model */
+        default void prefill(int[] promptTokens, int startPos) {}
+
+        /**
+         * Propose up to k tokens to follow history, whose last token is at position.
+         * probs receives the distribution each proposal was sampled from, or null if it was picked outright
+         * @return the number of tokens proposed
+         */
+        int propose(
+                int[] history, int length, int position, int k, float temperature, int[] proposals, float[][] probs);
+
+        /** n of the k proposals were accepted and the target is now at position */
+        default void rollback(int position, int n, int k) {}
+
+        default int maxContextLength() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        default void close() {}
+    }
+
+    /**
+     * Proposes by running the draft model one token at a time
+     */
+    private static final class ModelDrafter implements Drafter {
+        private final AbstractModel model;
+        private final KvBufferCache.KvBuffer kvmem;
+        private final AbstractTensor logits;
+        private int[] proposals;
+
+        ModelDrafter(AbstractModel model, UUID sessionId, int startPos) {
+            this.model = model;
+            this.kvmem = model.kvBufferCache.getPinnedKvBuffer(sessionId);
+            try {
+                Preconditions.checkState(
+                        kvmem.getCurrentContextPosition() == startPos,
+                        "Draft model is at position %s but the target is at %s for session %s",
+                        kvmem.getCurrentContextPosition(),
+                        startPos,
+                        sessionId);
+                this.logits = model.makeTensor(model.c.vocabularySize);
+            } catch (RuntimeException e) {
+                kvmem.unpin();
+                throw e;
+            }
+        }
+
+        @Override
+        public void prefill(int[] promptTokens, int startPos) {
+            model.batchForward(promptTokens, startPos, kvmem).close();
+            kvmem.setCurrentContextPosition(startPos + promptTokens.length);
+        }
+
+        @Override
+        public int propose(
+                int[] history, int length, int position, int k, float temperature, int[] proposals, float[][] probs) {
+            this.proposals = proposals;
+            int token = history[length - 1];
+            for (int i = 0; i < k; i++) {
+                try (AbstractTensor out = model.forward(token, position + i, kvmem)) {
+                    probs[i] = probabilities(model, out, temperature, logits);
+                    token = temperature == 0.0f
+                            ? argmax(probs[i])
+                            : pick(probs[i], ThreadLocalRandom.current().nextFloat());
+                    proposals[i] = token;
+                }
+            }
+
+            return k;
+        }
+
+        @Override
+        public void rollback(int position, int n, int k) {
+            // The draft never ran the last proposal, so catch it up when all of them were accepted
+            if (n == k && k > 0)
+                model.forward(proposals[k - 1], position - 1, kvmem).close();
+
+            kvmem.setCurrentContextPosition(position);
+        }
+
+        @Override
+        public int maxContextLength() {
+            return kvmem.maxContextLength();
+        }
+
+        @Override
+        public void close() {
+            logits.close();
+            kvmem.unpin();
+        }
+    }
+
+    /**
+     * Proposes the tokens that followed the most recent earlier match of the longest suffix of the history
+     */
+    private static final class PromptLookupDrafter implements Drafter {
+        @Override
+        public int propose(
+                int[] history, int length, int position, int k, float temperature, int[] proposals, float[][] probs) {
+            for (int n = Math.min(MAX_NGRAM_SIZE, length - 1); n > 0; n--) {
+                int suffix = length - n;
+                for (int i = suffix - 1; i >= 0; i--) {
+                    if (!Arrays.equals(history, i, i + n, history, suffix, length)) continue;
+
+                    int found = Math.min(k, length - (i + n));
+                    System.arraycopy(history, i + n, proposals, 0, found);
+                    Arrays.fill(probs, 0, found, null);
+                    return found;
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    private void emit(int token, float msPerToken, BiConsumer<String, Float> onTokenWithTimings) {
+        try {
+            String c = target.tokenizer.decode(token);
+            onTokenWithTimings.accept(c, msPerToken);
+        } catch (Exception e) {
+            logger.error("Failed to decode token {}", token, e);
+        }
+    }
+
+    /**
+     * The next token distribution of the model output, one-hot on the argmax for greedy decoding
+     */
+    private static float[] probabilities(
+            AbstractModel m, AbstractTensor output, float temperature, AbstractTensor logits) {
+        m.computeLogits(output, logits);
+        int size = m.c.vocabularySize;
+        float[] probs = new float[size];
+
+        int maxi = 0;
+        float maxv = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            float v = logits.get(0, i);
+            if (v > maxv) {
+                maxi = i;
+                maxv = v;
+            }
+        }
+
+        if (temperature == 0.0f) {
+            probs[maxi] = 1.0f;
+            return probs;
+        }
+
+        float sum = 0;
+        for (int i = 0; i < size; i++) {
+            float v = (float) Math.exp((logits.get(0, i) - maxv) / temperature);
+            sum += v;
+            probs[i] = v;
+        }
+
+        for (int i = 0; i < size; i++) probs[i] /= sum;
+
+        return probs;
+    }
+
+    /**
+     * The distribution to resample from after rejecting token d, normalized max(0, p - q).
+     * A null q had all of its probability on d
+     */
+    private static float[] residual(float[] p, float[] q, int d) {
+        float[] r = new float[p.length];
+        float sum = 0;
+        for (int i = 0; i < p.length; i++) {
+            r[i] = Math.max(0, p[i] - (q == null ? (i == d ? 1.0f : 0.0f) : q[i]));
+            sum += r[i];
+        }
+
+        // p and q are equal up to rounding, so fall back to the target distribution
+        if (sum == 0) return Arrays.copyOf(p, p.length);
+
+        for (int i = 0; i < r.length; i++) r[i] /= sum;
+        return r;
+    }
+
+    private static int argmax(float[] probs) {
+        int maxi = 0;
+        for (int i = 1; i < probs.length; i++) if (probs[i] > probs[maxi]) maxi = i;
+        return maxi;
+    }
+
+    private static int pick(float[] probs, float uniformSample) {
+        float acc = 0;
+        for (int i = 0; i < probs.length; i++) {
+            acc += probs[i];
+            if (acc >= uniformSample) return i;
+        }
+
+        return probs.length - 1;
+    }
+}
@@ -17,6 +17,7 @@ package com.github.tjake.jlama.model;
 
 import com.github.tjake.jlama.model.functions.FeedForward;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 import java.util.List;
@@ -64,31 +65,48 @@ public class TransformerBlock {
         this.postFFNorm = Optional.of(postFFNorm);
     }
 
-    public AbstractTensor forward(AbstractTensor embedding, int position, AbstractTensor kvBuffer) {
+    public AbstractTensor forward(AbstractTensor embedding, int position, KvBufferCache.KvBuffer.KvLayer kvBuffer) {
         return forward(embedding, position, kvBuffer, Optional.empty(), Optional.empty());
     }
 
     public AbstractTensor forward(
             AbstractTensor embedding,
             int position,
-            AbstractTensor kvBuffer,
+            KvBufferCache.KvBuffer.KvLayer kvBuffer,
             Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer,
             Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        int batchSize = embedding.shape().first();
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer.KvLayer[] kvBuffers = new KvBufferCache.KvBuffer.KvLayer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = position + i;
+            kvBuffers[i] = kvBuffer;
+        }
+
+        return forward(embedding, positions, kvBuffers, normReducer, tensorReducer);
+    }
 
-        AbstractTensor lnemb =
-                preAttentionNorm.map(ln -> ln.forward(embedding, normReducer)).orElse(embedding);
+    public AbstractTensor forward(
+            AbstractTensor embedding,
+            int[] positions,
+            KvBufferCache.KvBuffer.KvLayer[] kvBuffers,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+
+        // The norms write the matmul input type directly
         AbstractTensor postAttention;
-        try (AbstractTensor qlnemb = model.maybeQuantize(lnemb)) {
-            postAttention = attention.forward(qlnemb, position, kvBuffer, tensorReducer);
+        try (AbstractTensor qlnemb = preAttentionNorm
+                .map(ln -> ln.forwardQuantized(embedding, normReducer))
+                .orElseGet(() -> model.maybeQuantize(embedding))) {
+            postAttention = attention.forward(qlnemb, positions, kvBuffers, tensorReducer);
         }
         // residual connection
         TensorOperationsProvider.get()
                 .accumulate(
                         postAttention, embedding, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength());
 
-        AbstractTensor lnemb2 = postAttentionNorm.forward(postAttention, normReducer);
         AbstractTensor postFF;
-        try (AbstractTensor qlnemb2 = model.maybeQuantize(lnemb2)) {
+        try (AbstractTensor qlnemb2 = postAttentionNorm.forwardQuantized(postAttention, normReducer)) {
             postFF = ffBlock.forward(qlnemb2, tensorReducer);
         }
 
@@ -97,9 +115,6 @@ public class TransformerBlock {
                 .accumulate(postFF, postAttention, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength());
 
         // Release any tmp buffers
-        if (lnemb != embedding) lnemb.close();
-
-        lnemb2.close();
         postAttention.close();
 
         return postFFNorm
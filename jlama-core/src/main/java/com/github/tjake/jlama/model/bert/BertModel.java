@@ -25,8 +25,10 @@ import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.Weights;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
 import com.google.common.base.Preconditions;
 import java.util.Optional;
+import java.util.UUID;
 
 public class BertModel extends AbstractModel {
 
@@ -93,8 +95,25 @@ public class BertModel extends AbstractModel {
 
             AbstractTensor outputBias = weights.load(prefix + "output.dense.bias");
             AbstractTensor outputWeight = weights.load(prefix + "output.dense.weight");
-            CausalSelfAttention attention = new CausalSelfAttention(
-                    this, keyBias, queryBias, valueBias, keyWeight, queryWeight, valueWeight, outputBias, outputWeight);
+            CausalSelfAttention attention = CausalSelfAttention.fuseQkv(keyWeight, queryWeight, valueWeight)
+                    ? new CausalSelfAttention(
+                            this,
+                            Optional.of(keyBias),
+                            Optional.of(queryBias),
+                            Optional.of(valueBias),
+                            AbstractTensor.concat(keyWeight, queryWeight, valueWeight),
+                            Optional.of(outputBias),
+                            outputWeight)
+                    : new CausalSelfAttention(
+                            this,
+                            keyBias,
+                            queryBias,
+                            valueBias,
+                            keyWeight,
+                            queryWeight,
+                            valueWeight,
+                            outputBias,
+                            outputWeight);
 
             prefix = b;
             MLPBlock mlpBlock = new MLPBlock(
@@ -127,26 +146,25 @@ public class BertModel extends AbstractModel {
         long[] encoded = tokenizer.encode(input);
         Preconditions.checkArgument(encoded.length < c.contextLength);
 
-        AbstractTensor kvmem =
-                makeTensor(c.getNumberOfLayers(), encoded.length, 2, c.embeddingLength); // 2 for key and value
-
         int promptLength = encoded.length;
         float avgp = 1.0f / promptLength;
 
         float[] outputEmbedding = new float[c.embeddingLength];
 
-        for (int i = 0; i < promptLength; i++) {
-            int next = (int) encoded[i];
-            AbstractTensor output = forward(next, i, kvmem);
+        // The session is only used for this call, its blocks go back to the pool even if the forward pass fails
+        try (KvBufferCache.KvBuffer kvmem = kvBufferCache.getKvBuffer(UUID.randomUUID())) {
+            for (int i = 0; i < promptLength; i++) {
+                int next = (int) encoded[i];
+                AbstractTensor output = forward(next, i, kvmem);
 
-            // Average Pooling
-            for (int ii = 0; ii < c.embeddingLength; ii++) outputEmbedding[ii] += output.get(ii) * avgp;
+                // Average Pooling
+                for (int ii = 0; ii < c.embeddingLength; ii++) outputEmbedding[ii] += output.get(ii) * avgp;
 
-            output.close();
+                output.close();
+            }
         }
 
         VectorMath.l2normalize(outputEmbedding);
-        kvmem.close();
         return outputEmbedding;
     }
 }
@@ -25,9 +25,17 @@ public interface EmbedInput {
     AbstractTensor inputTokenToEmbedding(int inputToken, int position);
 
     default AbstractTensor batchInputsToEmbeddings(int[] inputTokens, int startPos) {
+        int[] positions = new int[inputTokens.length];
+        for (int i = 0; i < positions.length; i++) positions[i] = startPos + i;
+
+        return batchInputsToEmbeddings(inputTokens, positions);
+    }
+
+    default AbstractTensor batchInputsToEmbeddings(int[] inputTokens, int[] positions) {
         Preconditions.checkArgument(inputTokens.length > 0);
+        Preconditions.checkArgument(inputTokens.length == positions.length);
 
-        AbstractTensor t = inputTokenToEmbedding(inputTokens[0], startPos);
+        AbstractTensor t = inputTokenToEmbedding(inputTokens[0], positions[0]);
         if (inputTokens.length == 1) return t;
 
         TensorShape tbs = TensorShape.of(inputTokens.length, t.shape().last());
@@ -39,7 +47,7 @@ public interface EmbedInput {
         t.close();
 
         VectorMath.pfor(1, inputTokens.length, i -> {
-            AbstractTensor ti = inputTokenToEmbedding(inputTokens[i], startPos + i);
+            AbstractTensor ti = inputTokenToEmbedding(inputTokens[i], positions[i]);
 
             tb.copyFrom(ti, 0, i * ti.shape().sparseLength(), ti.shape().sparseLength());
 
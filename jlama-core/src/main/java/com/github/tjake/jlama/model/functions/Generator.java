@@ -15,6 +15,7 @@
  */
 package com.github.tjake.jlama.model.functions;
 
+import com.github.tjake.jlama.model.LogitsSampler;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.function.BiConsumer;
@@ -30,13 +31,24 @@ public interface Generator {
         generate(session, prompt, null, temperature, ntokens, useEOS, onTokenWithTimings);
     }
 
-    void generate(
+    default void generate(
             UUID session,
             String prompt,
             String cleanPrompt,
             float temperature,
             int ntokens,
             boolean useEOS,
+            BiConsumer<String, Float> onTokenWithTimings) {
+        generate(session, prompt, cleanPrompt, new LogitsSampler(temperature), ntokens, useEOS, onTokenWithTimings);
+    }
+
+    void generate(
+            UUID session,
+            String prompt,
+            String cleanPrompt,
+            Sampler sampler,
+            int ntokens,
+            boolean useEOS,
             BiConsumer<String, Float> onTokenWithTimings);
 
     String wrapPrompt(String prompt, Optional<String> systemPrompt);
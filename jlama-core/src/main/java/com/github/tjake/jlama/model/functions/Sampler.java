@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model.functions;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+
+/**
+ * Used to pick the next token of a session from its logits.  A sampler serves one session at a time and
+ * may keep state about it, like the tokens it has seen.
+ */
+public interface Sampler {
+
+    /**
+     * The next token from the logits over [0, length) of the vocabulary, the logits may be overwritten
+     */
+    int sample(AbstractTensor logits, int length);
+
+    /**
+     * How many of the most likely tokens are enough to sample from, 0 when it needs all the logits.
+     * When non-zero only those candidates are kept as the logits are computed.
+     */
+    default int candidates() {
+        return 0;
+    }
+
+    /**
+     * The next token from the n most likely tokens and their logits, most likely first.  By default the
+     * candidates are laid out as full logits, the others left out, and sampled from those.
+     */
+    default int sample(int[] tokens, float[] logits, int n) {
+        int length = 0;
+        for (int i = 0; i < n; i++) length = Math.max(length, tokens[i] + 1);
+
+        try (AbstractTensor full = new FloatBufferTensor(1, length)) {
+            for (int i = 0; i < length; i++) full.set(Float.NEGATIVE_INFINITY, 0, i);
+            for (int i = 0; i < n; i++) full.set(logits[i], 0, tokens[i]);
+
+            return sample(full, length);
+        }
+    }
+
+    /**
+     * Called with each token of the session, prompt and generated, in order
+     */
+    default void accept(int token) {}
+}
@@ -72,21 +72,22 @@ public class GemmaModel extends LlamaModel {
         IntStream.range(c.layerStart(), c.layerEnd()).parallel().forEach(i -> {
             String base = "model.layers." + i + ".";
             String prefix = base + "self_attn.";
-            CausalSelfAttention attention = new CausalSelfAttention(
-                    this,
-                    weights.load(prefix + "q_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "k_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "v_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "o_proj.weight", c.offset()).quantize(qType));
+            AbstractTensor q = quantizeWeight(weights.load(prefix + "q_proj.weight", c.offset()), qType);
+            AbstractTensor k = quantizeWeight(weights.load(prefix + "k_proj.weight", c.offset()), qType);
+            AbstractTensor v = quantizeWeight(weights.load(prefix + "v_proj.weight", c.offset()), qType);
+            AbstractTensor o = quantizeWeight(weights.load(prefix + "o_proj.weight", c.offset()), qType);
+            CausalSelfAttention attention = CausalSelfAttention.fuseQkv(q, k, v)
+                    ? new CausalSelfAttention(this, AbstractTensor.concat(q, k, v), o)
+                    : new CausalSelfAttention(this, q, k, v, o);
 
             prefix = base + "mlp.";
 
             MLPBlock mlp = new MLPBlock(
                     this,
                     c.activationFunction,
-                    weights.load(prefix + "gate_proj.weight", c.offset()).quantize(qType), // w1
-                    weights.load(prefix + "down_proj.weight").quantize(qType), // w2
-                    weights.load(prefix + "up_proj.weight", c.offset()).quantize(qType)); // w3
+                    quantizeWeight(weights.load(prefix + "gate_proj.weight", c.offset()), qType), // w1
+                    quantizeWeight(weights.load(prefix + "down_proj.weight"), qType), // w2
+                    quantizeWeight(weights.load(prefix + "up_proj.weight", c.offset()), qType)); // w3
 
             transformerBlocks[i] = new TransformerBlock(
                     this,
@@ -110,9 +111,8 @@ public class GemmaModel extends LlamaModel {
     @Override
     protected EmbedInput loadInputWeights() {
 
-        if (wte == null)
-            wte = weights.load("model.embed_tokens.weight", c.offset())
-                    .quantize(workingDType); // Don't quantize this, it's used for the embedding layer
+        // Don't quantize this, it's used for the embedding layer
+        if (wte == null) wte = toWorkingType(weights.load("model.embed_tokens.weight", c.offset()));
 
         return (inputToken, position) -> {
             AbstractTensor embedding = makeTensor(c.embeddingLength);
@@ -138,9 +138,8 @@ public class GemmaModel extends LlamaModel {
     protected SampleOutput loadOutputWeights() {
         DType qType = modelQType.orElse(this.modelDType);
 
-        if (wte == null)
-            wte = weights.load("model.embed_tokens.weight", c.offset())
-                    .quantize(workingDType); // Don't quantize this, it's used for the embedding layer
+        // Don't quantize this, it's used for the embedding layer
+        if (wte == null) wte = toWorkingType(weights.load("model.embed_tokens.weight", c.offset()));
 
         final LayerNorm layerNorm =
                 new RMSNorm(this, weights.load("model.norm.weight").quantize(qType), 1.0f);
@@ -71,19 +71,35 @@ public class GPT2Model extends AbstractModel {
             String b = "h." + i + ".";
             String prefix = b + "attn.";
 
+            // c_attn already holds the query, key and value weights one after the other
             AbstractTensor[] attnBias = weights.load(prefix + "c_attn.bias").split(3, 1);
-            AbstractTensor[] attnWeights =
-                    weights.load(prefix + "c_attn.weight").transpose().split(3, 0);
-            CausalSelfAttention attention = new CausalSelfAttention(
-                    this,
-                    attnBias[0],
-                    attnBias[1],
-                    attnBias[2],
-                    attnWeights[0],
-                    attnWeights[1],
-                    attnWeights[2],
-                    weights.load(prefix + "c_proj.bias"),
-                    weights.load(prefix + "c_proj.weight").transpose());
+            AbstractTensor attnWeights = weights.load(prefix + "c_attn.weight").transpose();
+            AbstractTensor outputBias = weights.load(prefix + "c_proj.bias");
+            AbstractTensor outputWeights =
+                    weights.load(prefix + "c_proj.weight").transpose();
+            CausalSelfAttention attention;
+            if (CausalSelfAttention.FUSE_QKV) {
+                attention = new CausalSelfAttention(
+                        this,
+                        Optional.of(attnBias[0]),
+                        Optional.of(attnBias[1]),
+                        Optional.of(attnBias[2]),
+                        attnWeights,
+                        Optional.of(outputBias),
+                        outputWeights);
+            } else {
+                AbstractTensor[] qkvWeights = attnWeights.split(3, 0);
+                attention = new CausalSelfAttention(
+                        this,
+                        attnBias[0],
+                        attnBias[1],
+                        attnBias[2],
+                        qkvWeights[0],
+                        qkvWeights[1],
+                        qkvWeights[2],
+                        outputBias,
+                        outputWeights);
+            }
 
             prefix = b + "mlp.";
             MLPBlock mlpBlock = new MLPBlock(
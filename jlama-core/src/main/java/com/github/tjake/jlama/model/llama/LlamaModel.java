@@ -58,8 +58,8 @@ public class LlamaModel extends AbstractModel {
     @Override
     protected EmbedInput loadInputWeights() {
 
-        final AbstractTensor wte = weights.load("model.embed_tokens.weight", c.offset())
-                .quantize(workingDType); // Don't quantize this, it's used for the embedding layer
+        // Don't quantize this, it's used for the embedding layer
+        final AbstractTensor wte = toWorkingType(weights.load("model.embed_tokens.weight", c.offset()));
 
         return (inputToken, position) -> {
             AbstractTensor embedding = makeTensor(1, c.embeddingLength);
@@ -85,21 +85,22 @@ public class LlamaModel extends AbstractModel {
         IntStream.range(c.layerStart(), c.layerEnd()).parallel().forEach(i -> {
             String base = "model.layers." + i + ".";
             String prefix = base + "self_attn.";
-            CausalSelfAttention attention = new CausalSelfAttention(
-                    this,
-                    weights.load(prefix + "q_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "k_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "v_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "o_proj.weight", c.offset()).quantize(qType));
+            AbstractTensor q = quantizeWeight(weights.load(prefix + "q_proj.weight", c.offset()), qType);
+            AbstractTensor k = quantizeWeight(weights.load(prefix + "k_proj.weight", c.offset()), qType);
+            AbstractTensor v = quantizeWeight(weights.load(prefix + "v_proj.weight", c.offset()), qType);
+            AbstractTensor o = quantizeWeight(weights.load(prefix + "o_proj.weight", c.offset()), qType);
+            CausalSelfAttention attention = CausalSelfAttention.fuseQkv(q, k, v)
+                    ? new CausalSelfAttention(this, AbstractTensor.concat(q, k, v), o)
+                    : new CausalSelfAttention(this, q, k, v, o);
 
             prefix = base + "mlp.";
 
             MLPBlock mlp = new MLPBlock(
                     this,
                     c.activationFunction,
-                    weights.load(prefix + "gate_proj.weight", c.offset()).quantize(qType), // w1
-                    weights.load(prefix + "down_proj.weight").quantize(qType), // w2
-                    weights.load(prefix + "up_proj.weight", c.offset()).quantize(qType)); // w3
+                    quantizeWeight(weights.load(prefix + "gate_proj.weight", c.offset()), qType), // w1
+                    quantizeWeight(weights.load(prefix + "down_proj.weight"), qType), // w2
+                    quantizeWeight(weights.load(prefix + "up_proj.weight", c.offset()), qType)); // w3
 
             transformerBlocks[i] = new TransformerBlock(
                     this,
@@ -124,7 +125,7 @@ public class LlamaModel extends AbstractModel {
         final LayerNorm outputLayerNorm =
                 new RMSNorm(this, weights.load("model.norm.weight").quantize(qType));
         final AbstractTensor classificationWeights =
-                weights.load("lm_head.weight").quantize(workingDType); // Don't quantize this, it's the output layer
+                toWorkingType(weights.load("lm_head.weight")); // Don't quantize this, it's the output layer
 
         return new SampleOutput() {
             @Override
@@ -162,4 +163,9 @@ public class LlamaModel extends AbstractModel {
                 : TensorOperationsProvider.get()
                         .quantize(t, workingQType, 0, Ints.checkedCast(t.shape().last()));
     }
+
+    @Override
+    protected AbstractTensor makeQuantizedTensor(AbstractTensor t) {
+        return t.dType() == workingQType ? null : c.tensorCache.get(workingQType, t.shape());
+    }
 }
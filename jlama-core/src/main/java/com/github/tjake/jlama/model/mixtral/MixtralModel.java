@@ -65,12 +65,13 @@ public class MixtralModel extends MistralModel {
         IntStream.range(c.layerStart(), c.layerEnd()).parallel().forEach(i -> {
             String base = "model.layers." + i + ".";
             String prefix = base + "self_attn.";
-            CausalSelfAttention attention = new CausalSelfAttention(
-                    this,
-                    weights.load(prefix + "q_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "k_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "v_proj.weight", c.offset()).quantize(qType),
-                    weights.load(prefix + "o_proj.weight", c.offset()).quantize(qType));
+            AbstractTensor q = quantizeWeight(weights.load(prefix + "q_proj.weight", c.offset()), qType);
+            AbstractTensor k = quantizeWeight(weights.load(prefix + "k_proj.weight", c.offset()), qType);
+            AbstractTensor v = quantizeWeight(weights.load(prefix + "v_proj.weight", c.offset()), qType);
+            AbstractTensor o = quantizeWeight(weights.load(prefix + "o_proj.weight", c.offset()), qType);
+            CausalSelfAttention attention = CausalSelfAttention.fuseQkv(q, k, v)
+                    ? new CausalSelfAttention(this, AbstractTensor.concat(q, k, v), o)
+                    : new CausalSelfAttention(this, q, k, v, o);
 
             prefix = base + "block_sparse_moe.";
 
@@ -80,11 +81,9 @@ public class MixtralModel extends MistralModel {
 
             for (int e = 0; e < mixtralConfig.numberOfExperts; e++) {
                 String expertPrefix = prefix + "experts." + e + ".";
-                expertGateWeights[e] =
-                        weights.load(expertPrefix + "w1.weight", c.offset()).quantize(qType);
-                expertDownWeights[e] = weights.load(expertPrefix + "w2.weight").quantize(qType);
-                expertUpWeights[e] =
-                        weights.load(expertPrefix + "w3.weight", c.offset()).quantize(qType);
+                expertGateWeights[e] = quantizeWeight(weights.load(expertPrefix + "w1.weight", c.offset()), qType);
+                expertDownWeights[e] = quantizeWeight(weights.load(expertPrefix + "w2.weight"), qType);
+                expertUpWeights[e] = quantizeWeight(weights.load(expertPrefix + "w3.weight", c.offset()), qType);
             }
 
             MoEBlock moe = new MoEBlock(
@@ -92,7 +91,7 @@ public class MixtralModel extends MistralModel {
                     mixtralConfig.numberOfExperts,
                     mixtralConfig.numberOfExpertsPerToken,
                     c.activationFunction,
-                    weights.load(prefix + "gate.weight", c.offset()).quantize(qType),
+                    quantizeWeight(weights.load(prefix + "gate.weight", c.offset()), qType),
                     expertGateWeights, // w1
                     expertDownWeights, // w2
                     expertUpWeights); // w3
@@ -16,7 +16,9 @@
 package com.github.tjake.jlama.safetensors;
 
 import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.RopeFreqs;
 import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
@@ -40,9 +42,14 @@ public class Config {
     public final int vocabularySize;
     public final int bosToken;
     public final int eosToken;
-    public final Optional<float[][]> ropeFreqs;
+    public final Optional<RopeFreqs> ropeFreqs;
     private volatile Optional<Pair<Integer, Integer>> offset;
     private volatile File workingDirectory;
+    private volatile DType kvDType = DType.F32;
+    private volatile int maxContextLength;
+    private volatile long kvCacheMaxBytes = Long.MAX_VALUE;
+    private volatile long kvSessionTimeoutMillis = 0;
+    private volatile boolean kvSpill = false;
 
     // Suppliers to store values that chance when offset is adjusted
     private volatile int embeddingSegmentStart;
@@ -98,6 +105,7 @@ public class Config {
 
         // Set default values
         setOffset(null);
+        this.maxContextLength = contextLength;
     }
 
     public void setOffset(Pair<Integer, Integer> offset) {
@@ -129,6 +137,83 @@ public class Config {
         return Optional.ofNullable(this.workingDirectory);
     }
 
+    /**
+     * Sets the data type of the kv cache, must be set before the model runs its first session.
+     * BF16 and F16 halve the kv memory, I8 (block quantized) quarters it.
+     */
+    public void setKvDType(DType kvDType) {
+        Preconditions.checkArgument(
+                kvDType == DType.F32 || kvDType == DType.BF16 || kvDType == DType.F16 || kvDType == DType.I8,
+                "Unsupported kv cache type %s",
+                kvDType);
+        Preconditions.checkArgument(
+                kvDType != DType.I8 || headSize % Q8ByteBufferTensor.BLOCK_SIZE == 0,
+                "I8 kv cache requires a head size divisible by %s",
+                Q8ByteBufferTensor.BLOCK_SIZE);
+        this.kvDType = kvDType;
+    }
+
+    public DType kvDType() {
+        return kvDType;
+    }
+
+    /**
+     * Sets the default number of positions a session's kv buffer may hold, up to the context length.
+     * Kv memory grows with the positions used so this only bounds long sessions.
+     */
+    public void setMaxContextLength(int maxContextLength) {
+        Preconditions.checkArgument(
+                maxContextLength > 0 && maxContextLength <= contextLength,
+                "Max context length %s must be between 1 and %s",
+                maxContextLength,
+                contextLength);
+        this.maxContextLength = maxContextLength;
+    }
+
+    public int maxContextLength() {
+        return maxContextLength;
+    }
+
+    /**
+     * Sets the budget for kv memory across sessions.  When a new block would exceed it the least recently
+     * used idle sessions are evicted first.
+     */
+    public void setKvCacheMaxBytes(long kvCacheMaxBytes) {
+        Preconditions.checkArgument(kvCacheMaxBytes > 0, "Kv cache budget must be positive");
+        this.kvCacheMaxBytes = kvCacheMaxBytes;
+    }
+
+    public long kvCacheMaxBytes() {
+        return kvCacheMaxBytes;
+    }
+
+    /**
+     * Sets how long a session may go unused before it is dropped along with any spilled kv memory,
+     * 0 keeps sessions until closed.
+     */
+    public void setKvSessionTimeoutMillis(long kvSessionTimeoutMillis) {
+        Preconditions.checkArgument(kvSessionTimeoutMillis >= 0, "Kv session timeout can't be negative");
+        this.kvSessionTimeoutMillis = kvSessionTimeoutMillis;
+    }
+
+    public long kvSessionTimeoutMillis() {
+        return kvSessionTimeoutMillis;
+    }
+
+    /**
+     * Evicted sessions are written to a file in the working directory and read back when next used,
+     * instead of being dropped.
+     */
+    public void setKvSpill(boolean kvSpill) {
+        Preconditions.checkArgument(
+                !kvSpill || workingDirectory != null, "Spilling the kv cache requires a working directory");
+        this.kvSpill = kvSpill;
+    }
+
+    public boolean kvSpill() {
+        return kvSpill;
+    }
+
     public Optional<Pair<Integer, Integer>> offset() {
         return offset;
     }
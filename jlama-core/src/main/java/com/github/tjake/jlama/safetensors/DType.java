@@ -47,7 +47,9 @@ public enum DType {
     // Q4 represents a 4-bit quantized type.
     Q4(1),
     // Q5 represents a 5-bit quantized type.
-    Q5(1);
+    Q5(1),
+    // Q4_K represents a 4-bit quantized type with 256 value super-blocks.
+    Q4_K(1);
 
     private final int size;
 
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.safetensors;
+
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.FloatConversions;
+import com.github.tjake.jlama.model.ModelSupport;
+import com.github.tjake.jlama.model.llama.LlamaConfig;
+import com.github.tjake.jlama.tensor.*;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.github.tjake.jlama.util.Pair;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads weights from a single GGUF file.  Tensors are renamed to the HF names the models load, and are mapped
+ * straight from the file when Jlama has the same layout (F32, F16, BF16 and Q4_K).  Q8_0 and Q4_0 keep their quants
+ * but are repacked since Jlama keeps the block scales in a separate tensor, and Q6_K is widened to I8.
+ */
+public class GGUFIndex implements WeightLoader {
+    private static final Logger logger = LoggerFactory.getLogger(GGUFIndex.class);
+
+    public static final String FILE_EXTENSION = ".gguf";
+    private static final int MAGIC = 0x46554747; // "GGUF" little endian
+    private static final int DEFAULT_ALIGNMENT = 32;
+
+    /**
+     * The ggml tensor types, with the Jlama type each one is loaded as (null when unsupported)
+     */
+    enum GGMLType {
+        F32(0, 1, 4, DType.F32),
+        F16(1, 1, 2, DType.F16),
+        Q4_0(2, 32, 18, DType.Q4),
+        Q4_1(3, 32, 20, null),
+        Q5_0(6, 32, 22, null),
+        Q5_1(7, 32, 24, null),
+        Q8_0(8, 32, 34, DType.I8),
+        Q8_1(9, 32, 36, null),
+        Q2_K(10, 256, 84, null),
+        Q3_K(11, 256, 110, null),
+        Q4_K(12, 256, 144, DType.Q4_K),
+        Q5_K(13, 256, 176, null),
+        Q6_K(14, 256, 210, DType.I8),
+        Q8_K(15, 256, 292, null),
+        BF16(30, 1, 2, DType.BF16);
+
+        final int id;
+        final int blockSize;
+        final int blockBytes;
+        final DType dType;
+
+        GGMLType(int id, int blockSize, int blockBytes, DType dType) {
+            this.id = id;
+            this.blockSize = blockSize;
+            this.blockBytes = blockBytes;
+            this.dType = dType;
+        }
+
+        static GGMLType of(int id) {
+            for (GGMLType t : values()) if (t.id == id) return t;
+            throw new IllegalArgumentException("Unknown ggml type " + id);
+        }
+
+        long bytes(long elements) {
+            return elements / blockSize * blockBytes;
+        }
+    }
+
+    record GGUFTensor(String name, GGMLType type, int[] shape, long offset) {
+        long size() {
+            long size = 1;
+            for (int d : shape) size *= d;
+            return size;
+        }
+    }
+
+    // llama.cpp names to the names the models load, for the llama family
+    private static final Map<String, String> TENSOR_NAMES = ImmutableMap.<String, String>builder()
+            .put("token_embd.weight", "model.embed_tokens.weight")
+            .put("output_norm.weight", "model.norm.weight")
+            .put("output.weight", "lm_head.weight")
+            .build();
+
+    private static final Pattern LAYER_NAME = Pattern.compile("blk\\.(\\d+)\\.(\\w+)\\.(weight|bias)");
+    private static final Map<String, String> LAYER_NAMES = ImmutableMap.<String, String>builder()
+            .put("attn_norm", "input_layernorm")
+            .put("attn_q", "self_attn.q_proj")
+            .put("attn_k", "self_attn.k_proj")
+            .put("attn_v", "self_attn.v_proj")
+            .put("attn_output", "self_attn.o_proj")
+            .put("ffn_norm", "post_attention_layernorm")
+            .put("ffn_gate", "mlp.gate_proj")
+            .put("ffn_up", "mlp.up_proj")
+            .put("ffn_down", "mlp.down_proj")
+            .build();
+
+    private final RandomAccessFile raf;
+    private final Map<String, Object> ggufMetadata;
+    private final Map<String, String> metadata;
+    private final Map<String, GGUFTensor> tensors;
+    private final Map<String, TensorInfo> tensorInfoMap;
+    private final long dataOffset;
+    private final String architecture;
+    private final DType majorityDType;
+
+    public static GGUFIndex load(Path ggufFile) throws IOException {
+        return new GGUFIndex(new RandomAccessFile(ggufFile.toFile(), "r"));
+    }
+
+    GGUFIndex(RandomAccessFile raf) throws IOException {
+        this.raf = raf;
+
+        // The header holds the vocabulary so it can be a few MB, it is read from a mapping of the file start
+        ByteBuffer header = raf.getChannel()
+                .map(FileChannel.MapMode.READ_ONLY, 0, Math.min(Integer.MAX_VALUE, raf.length()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        Preconditions.checkArgument(header.getInt() == MAGIC, "Not a GGUF file");
+        int version = header.getInt();
+        if (version < 2 || version > 3) throw new UnsupportedOperationException("GGUF version " + version);
+
+        long tensorCount = header.getLong();
+        long metadataCount = header.getLong();
+
+        Map<String, Object> ggufMetadata = new LinkedHashMap<>();
+        for (long i = 0; i < metadataCount; i++) {
+            String key = readString(header);
+            ggufMetadata.put(key, readValue(header, header.getInt()));
+        }
+        this.ggufMetadata = Collections.unmodifiableMap(ggufMetadata);
+        this.architecture = (String) ggufMetadata.getOrDefault("general.architecture", "llama");
+
+        Map<String, String> metadata = new LinkedHashMap<>();
+        ggufMetadata.forEach((k, v) -> {
+            if (!(v instanceof List)) metadata.put(k, String.valueOf(v));
+        });
+        this.metadata = Collections.unmodifiableMap(metadata);
+
+        Map<String, GGUFTensor> tensors = new LinkedHashMap<>();
+        for (long i = 0; i < tensorCount; i++) {
+            String name = readString(header);
+            int dims = header.getInt();
+
+            // ggml lists the innermost dimension first
+            int[] shape = new int[dims];
+            for (int d = dims - 1; d >= 0; d--) shape[d] = Ints.checkedCast(header.getLong());
+
+            GGMLType type = GGMLType.of(header.getInt());
+            long offset = header.getLong();
+            tensors.put(toModelName(name), new GGUFTensor(name, type, shape, offset));
+        }
+
+        // Tied embeddings have no output tensor
+        if (!tensors.containsKey("lm_head.weight") && tensors.containsKey("model.embed_tokens.weight"))
+            tensors.put("lm_head.weight", tensors.get("model.embed_tokens.weight"));
+
+        this.tensors = Collections.unmodifiableMap(tensors);
+
+        long alignment = ((Number) ggufMetadata.getOrDefault("general.alignment", DEFAULT_ALIGNMENT)).longValue();
+        this.dataOffset = (header.position() + alignment - 1) / alignment * alignment;
+
+        Map<String, TensorInfo> tensorInfoMap = new LinkedHashMap<>();
+        for (Map.Entry<String, GGUFTensor> e : tensors.entrySet()) {
+            GGUFTensor t = e.getValue();
+            if (t.type.dType == null) continue;
+
+            long[] lshape = Arrays.stream(t.shape).asLongStream().toArray();
+            long start = dataOffset + t.offset;
+            tensorInfoMap.put(
+                    e.getKey(),
+                    new TensorInfo(t.type.dType, lshape, new long[] {start, start + t.type.bytes(t.size())}));
+        }
+        this.tensorInfoMap = Collections.unmodifiableMap(tensorInfoMap);
+        this.majorityDType = findDType();
+
+        logger.debug("Loaded GGUF v{} {} with {} tensors", version, architecture, tensors.size());
+    }
+
+    private DType findDType() {
+        EnumMap<DType, Integer> counts = new EnumMap<>(DType.class);
+        for (TensorInfo info : tensorInfoMap.values()) counts.merge(info.dType, 1, Integer::sum);
+
+        return counts.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(null);
+    }
+
+    static String toModelName(String name) {
+        String mapped = TENSOR_NAMES.get(name);
+        if (mapped != null) return mapped;
+
+        Matcher m = LAYER_NAME.matcher(name);
+        if (m.matches() && LAYER_NAMES.containsKey(m.group(2)))
+            return "model.layers." + m.group(1) + "." + LAYER_NAMES.get(m.group(2)) + "." + m.group(3);
+
+        return name;
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] bytes = new byte[Ints.checkedCast(b.getLong())];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Object readValue(ByteBuffer b, int type) {
+        return switch (type) {
+            case 0 -> (short) Byte.toUnsignedInt(b.get());
+            case 1 -> b.get();
+            case 2 -> Short.toUnsignedInt(b.getShort());
+            case 3 -> b.getShort();
+            case 4 -> Integer.toUnsignedLong(b.getInt());
+            case 5 -> b.getInt();
+            case 6 -> b.getFloat();
+            case 7 -> b.get() != 0;
+            case 8 -> readString(b);
+            case 9 -> {
+                int elementType = b.getInt();
+                int count = Ints.checkedCast(b.getLong());
+                List<Object> values = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) values.add(readValue(b, elementType));
+                yield Collections.unmodifiableList(values);
+            }
+            case 10, 11 -> b.getLong();
+            case 12 -> b.getDouble();
+            default -> throw new IllegalArgumentException("Unknown GGUF metadata type " + type);
+        };
+    }
+
+    /**
+     * All GGUF metadata, arrays (like the vocabulary) are kept as lists
+     */
+    public Map<String, Object> ggufMetadata() {
+        return ggufMetadata;
+    }
+
+    @Override
+    public Map<String, String> metadata() {
+        return metadata;
+    }
+
+    @Override
+    public Map<String, TensorInfo> tensorInfoMap() {
+        return tensorInfoMap;
+    }
+
+    @Override
+    public DType getModelDType() {
+        return majorityDType;
+    }
+
+    public ModelSupport.ModelType modelType() {
+        return switch (architecture) {
+            case "llama" -> ModelSupport.ModelType.LLAMA;
+            default -> throw new UnsupportedOperationException("GGUF architecture " + architecture);
+        };
+    }
+
+    /**
+     * Builds the model config from the GGUF hyperparameters
+     */
+    public Config config() {
+        String arch = architecture + ".";
+        int embeddingLength = intValue(arch + "embedding_length", null);
+        int heads = intValue(arch + "attention.head_count", null);
+
+        int vocabularySize = ggufMetadata.containsKey(arch + "vocab_size")
+                ? intValue(arch + "vocab_size", null)
+                : ggufMetadata.containsKey("tokenizer.ggml.tokens")
+                        ? ((List<?>) ggufMetadata.get("tokenizer.ggml.tokens")).size()
+                        : tensors.get("model.embed_tokens.weight").shape[0];
+
+        Map<String, String> ropeScaling = "linear".equals(ggufMetadata.get(arch + "rope.scaling.type"))
+                ? Map.of("factor", String.valueOf(ggufMetadata.get(arch + "rope.scaling.factor")))
+                : null;
+
+        return switch (modelType()) {
+            case LLAMA -> new LlamaConfig(
+                    intValue(arch + "context_length", null),
+                    embeddingLength,
+                    intValue(arch + "feed_forward_length", null),
+                    heads,
+                    intValue(arch + "attention.head_count_kv", heads),
+                    intValue(arch + "block_count", null),
+                    ((Number) ggufMetadata.get(arch + "attention.layer_norm_rms_epsilon")).floatValue(),
+                    vocabularySize,
+                    intValue("tokenizer.ggml.bos_token_id", 1),
+                    intValue("tokenizer.ggml.eos_token_id", 2),
+                    ActivationFunction.Type.SILU,
+                    ((Number) ggufMetadata.getOrDefault(arch + "rope.freq_base", 10000.0)).doubleValue(),
+                    ropeScaling);
+            default -> throw new UnsupportedOperationException("GGUF config for " + architecture);
+        };
+    }
+
+    private int intValue(String key, Integer defaultValue) {
+        Object v = ggufMetadata.get(key);
+        if (v == null) {
+            if (defaultValue == null) throw new NoSuchElementException(key + " not found in GGUF metadata");
+            return defaultValue;
+        }
+        return Ints.checkedCast(((Number) v).longValue());
+    }
+
+    @Override
+    public AbstractTensor load(String name, Optional<Pair<Integer, Integer>> offset) {
+        GGUFTensor gt = tensors.get(name);
+        if (gt == null) throw new NoSuchElementException(name + " not found in weights");
+        if (gt.type.dType == null)
+            throw new UnsupportedOperationException("Unsupported GGUF tensor type: " + gt.type + " for " + name);
+
+        long length = gt.type.bytes(gt.size());
+        ByteBuffer b;
+        try {
+            b = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, dataOffset + gt.offset, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // llama.cpp interleaves the rotary halves of the q and k rows of llama models
+        if (architecture.equals("llama") && (name.endsWith("q_proj.weight") || name.endsWith("k_proj.weight"))) {
+            int heads = name.endsWith("q_proj.weight")
+                    ? intValue("llama.attention.head_count", null)
+                    : intValue("llama.attention.head_count_kv", intValue("llama.attention.head_count", null));
+            b = unpermuteRows(b, gt.shape[0], heads);
+        }
+
+        TensorShape shape = TensorShape.of(gt.shape);
+        AbstractTensor t =
+                switch (gt.type) {
+                    case F32 -> new FloatBufferTensor(name, b.asFloatBuffer(), shape, true);
+                    case F16, BF16 -> {
+                        ShortBuffer sb = b.asShortBuffer();
+                        if (gt.shape.length == 1) {
+                            // Vectors are small so they are widened to F32 like in Weights
+                            FloatBuffer fb = FloatBuffer.allocate(sb.remaining());
+                            for (int i = 0; i < fb.capacity(); i++) {
+                                short s = sb.get(i);
+                                fb.put(
+                                        i,
+                                        gt.type == GGMLType.BF16
+                                                ? FloatConversions.bFloat16ToFloat32(s)
+                                                : Float.float16ToFloat(s));
+                            }
+                            yield new FloatBufferTensor(name, fb, shape, true);
+                        }
+                        yield gt.type == GGMLType.BF16
+                                ? new BFloat16BufferTensor(name, sb, shape, true)
+                                : new Float16BufferTensor(name, sb, shape, true);
+                    }
+                    case Q4_K -> new Q4KByteBufferTensor(name, b, shape, true);
+                    case Q8_0 -> loadQ8_0(name, b, shape);
+                    case Q4_0 -> loadQ4_0(name, b, shape);
+                    case Q6_K -> loadQ6_K(name, b, shape);
+                    default -> throw new UnsupportedOperationException(gt.type.name());
+                };
+
+        return offset.map(o -> t.sparsify(o.left, o.right)).orElse(t);
+    }
+
+    /**
+     * Undo the llama.cpp q/k permutation: row 2i + t of a head is row t * headSize / 2 + i in HF order
+     */
+    static ByteBuffer unpermuteRows(ByteBuffer src, int rows, int heads) {
+        int rowBytes = src.remaining() / rows;
+        int headSize = rows / heads;
+        ByteBuffer dst = allocate(src.remaining());
+        for (int h = 0; h < heads; h++) {
+            for (int t = 0; t < 2; t++) {
+                for (int i = 0; i < headSize / 2; i++) {
+                    int from = (h * headSize + 2 * i + t) * rowBytes;
+                    int to = (h * headSize + t * headSize / 2 + i) * rowBytes;
+                    dst.put(to, src, from, rowBytes);
+                }
+            }
+        }
+        return dst;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return (TensorOperationsProvider.get().requiresOffHeapTensor()
+                        ? ByteBuffer.allocateDirect(bytes)
+                        : ByteBuffer.allocate(bytes))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static FloatBufferTensor blockScales(FloatBuffer scales, TensorShape shape, int blockSize) {
+        int[] blockShape = new int[shape.dims()];
+        for (int i = 0; i < blockShape.length; i++) blockShape[i] = shape.dim(i);
+        blockShape[blockShape.length - 1] /= blockSize;
+        return new FloatBufferTensor(scales, TensorShape.of(blockShape), true);
+    }
+
+    /**
+     * Q8_0 blocks are an F16 scale then 32 signed bytes
+     */
+    private static AbstractTensor loadQ8_0(String name, ByteBuffer b, TensorShape shape) {
+        int blocks = Ints.checkedCast(shape.size() / Q8ByteBufferTensor.BLOCK_SIZE);
+        ByteBuffer quants = allocate(Ints.checkedCast(shape.size()));
+        FloatBuffer scales = FloatBuffer.allocate(blocks);
+        for (int i = 0; i < blocks; i++) {
+            int block = i * GGMLType.Q8_0.blockBytes;
+            scales.put(i, Float.float16ToFloat(b.getShort(block)));
+            quants.put(i * Q8ByteBufferTensor.BLOCK_SIZE, b, block + Short.BYTES, Q8ByteBufferTensor.BLOCK_SIZE);
+        }
+        return new Q8ByteBufferTensor(
+                name, quants, blockScales(scales, shape, Q8ByteBufferTensor.BLOCK_SIZE), shape, true);
+    }
+
+    /**
+     * Q4_0 blocks are an F16 scale then 16 bytes of nibbles, packed the same as Jlama Q4
+     */
+    private static AbstractTensor loadQ4_0(String name, ByteBuffer b, TensorShape shape) {
+        int half = Q4ByteBufferTensor.BLOCK_SIZE / 2;
+        int blocks = Ints.checkedCast(shape.size() / Q4ByteBufferTensor.BLOCK_SIZE);
+        ByteBuffer quants = allocate(blocks * half);
+        FloatBuffer scales = FloatBuffer.allocate(blocks);
+        for (int i = 0; i < blocks; i++) {
+            int block = i * GGMLType.Q4_0.blockBytes;
+            scales.put(i, Float.float16ToFloat(b.getShort(block)));
+            quants.put(i * half, b, block + Short.BYTES, half);
+        }
+        return new Q4ByteBufferTensor(
+                name, quants, blockScales(scales, shape, Q4ByteBufferTensor.BLOCK_SIZE), shape, true);
+    }
+
+    /**
+     * Q6_K has no Jlama layout so each super-block is decoded and requantized to I8
+     */
+    private static AbstractTensor loadQ6_K(String name, ByteBuffer b, TensorShape shape) {
+        final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+        int superBlocks = Ints.checkedCast(shape.size() / GGMLType.Q6_K.blockSize);
+        ByteBuffer quants = allocate(Ints.checkedCast(shape.size()));
+        FloatBuffer scales = FloatBuffer.allocate(Ints.checkedCast(shape.size() / blockSize));
+
+        float[] values = new float[GGMLType.Q6_K.blockSize];
+        for (int s = 0; s < superBlocks; s++) {
+            decodeQ6_K(b, s * GGMLType.Q6_K.blockBytes, values);
+
+            for (int j = 0; j < values.length; j += blockSize) {
+                float max = 0.0f;
+                for (int i = j; i < j + blockSize; i++) max = Math.max(max, Math.abs(values[i]));
+
+                float iscale = max != 0.0f ? 127f / max : 0.0f;
+                int block = s * values.length + j;
+                scales.put(block / blockSize, iscale != 0.0f ? 1.0f / iscale : 0.0f);
+                for (int i = 0; i < blockSize; i++) quants.put(block + i, (byte) Math.round(values[j + i] * iscale));
+            }
+        }
+        return new Q8ByteBufferTensor(
+                name, quants, blockScales(scales, shape, Q8ByteBufferTensor.BLOCK_SIZE), shape, true);
+    }
+
+    /**
+     * A Q6_K super-block is 128 bytes of low nibbles, 64 bytes of high 2 bits, 16 signed sub-block scales and an
+     * F16 scale.  Each half of 128 values uses 64 low bytes, 32 high bytes and 8 scales.
+     */
+    static void decodeQ6_K(ByteBuffer b, int base, float[] out) {
+        float d = Float.float16ToFloat(b.getShort(base + 208));
+        for (int n = 0; n < 2; n++) {
+            int ql = base + n * 64;
+            int qh = base + 128 + n * 32;
+            int sc = base + 192 + n * 8;
+            for (int l = 0; l < 32; l++) {
+                int is = l / 16;
+                int lo0 = b.get(ql + l) & 0xFF;
+                int lo1 = b.get(ql + l + 32) & 0xFF;
+                int hi = b.get(qh + l) & 0xFF;
+
+                int q1 = ((lo0 & 0x0F) | ((hi & 3) << 4)) - 32;
+                int q2 = ((lo1 & 0x0F) | (((hi >> 2) & 3) << 4)) - 32;
+                int q3 = ((lo0 >> 4) | (((hi >> 4) & 3) << 4)) - 32;
+                int q4 = ((lo1 >> 4) | (((hi >> 6) & 3) << 4)) - 32;
+
+                int o = n * 128 + l;
+                out[o] = d * b.get(sc + is) * q1;
+                out[o + 32] = d * b.get(sc + is + 2) * q2;
+                out[o + 64] = d * b.get(sc + is + 4) * q3;
+                out[o + 96] = d * b.get(sc + is + 6) * q4;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        raf.close();
+    }
+}
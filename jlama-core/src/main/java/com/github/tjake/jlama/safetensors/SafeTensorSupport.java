@@ -176,6 +176,7 @@ public class SafeTensorSupport {
                         case F32:
                         case BF16:
                         case F16:
+                        case Q4_K:
                             writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
                             break;
                         case Q4:
@@ -189,9 +190,7 @@ public class SafeTensorSupport {
                             writtenInfo.put(
                                     e.getKey() + ".qb",
                                     ((Q5ByteBufferTensor) t).getBlockF().save(raf.getChannel()));
-                            // FIXME: Need to add b5 bits
-                            throw new UnsupportedOperationException("TODO");
-                            // break;
+                            break;
                         case I8:
                             writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
                             writtenInfo.put(
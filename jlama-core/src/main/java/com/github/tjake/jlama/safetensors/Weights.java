@@ -64,8 +64,7 @@ public class Weights implements WeightLoader {
             }
         }
 
-        // FIXME don't really support B16 atm
-        return maxType == DType.BF16 || maxType == DType.F16 ? DType.F32 : maxType;
+        return maxType;
     }
 
     @Override
@@ -101,36 +100,40 @@ public class Weights implements WeightLoader {
                 t = new FloatBufferTensor(name, fb, TensorShape.of(info.shape), true);
                 break;
             case F16:
-                // If the majority of the weights are F32 then convert to F32
-                if (majorityDType == DType.F32) {
-                    len = b.remaining() / DType.F16.size();
-                    ByteBuffer bb = ByteBuffer.allocate(len * DType.F32.size()).order(ByteOrder.LITTLE_ENDIAN);
-                    for (int i = 0; i < len * DType.F32.size(); i += DType.F32.size()) {
-                        short s = b.getShort();
-                        float v = Float.float16ToFloat(s);
-                        bb.putFloat(i, v);
+            case BF16:
+                // Matrices are used as mapped, vectors (norms and biases) are small so they are widened to F32
+                sb = b.asShortBuffer().slice();
+                if (info.shape.length == 1) {
+                    len = sb.remaining();
+                    fb = FloatBuffer.allocate(len);
+                    for (int i = 0; i < len; i++) {
+                        short s = sb.get(i);
+                        fb.put(
+                                i,
+                                info.dType == DType.BF16
+                                        ? FloatConversions.bFloat16ToFloat32(s)
+                                        : Float.float16ToFloat(s));
                     }
-                    t = new FloatBufferTensor(bb.asFloatBuffer(), TensorShape.of(info.shape), true);
+                    t = new FloatBufferTensor(name, fb, TensorShape.of(info.shape), true);
+                } else if (info.dType == DType.BF16) {
+                    t = new BFloat16BufferTensor(name, sb, TensorShape.of(info.shape), true);
                 } else {
-                    sb = b.asShortBuffer().slice();
                     t = new Float16BufferTensor(name, sb, TensorShape.of(info.shape), true);
                 }
                 break;
-            case BF16:
-                // For now always convert to F32
-                len = b.remaining() / DType.F16.size();
-                fb = FloatBuffer.allocate(len);
-                for (int i = 0; i < len; i++) {
-                    short s = b.getShort();
-                    float v = FloatConversions.bFloat16ToFloat32(s);
-                    fb.put(i, v);
-                }
-                t = new FloatBufferTensor(name, fb, TensorShape.of(info.shape), true);
-                break;
             case Q4:
                 FloatBufferTensor qb = (FloatBufferTensor) parent.orElse(this).load(name + ".qb", offset);
                 t = new Q4ByteBufferTensor(name, b.slice(), qb, TensorShape.of(info.shape), true);
                 break;
+            case Q5:
+                // The fifth bits are stored inline with each block
+                FloatBufferTensor qb5 = (FloatBufferTensor) parent.orElse(this).load(name + ".qb", offset);
+                t = new Q5ByteBufferTensor(name, b.slice(), qb5, TensorShape.of(info.shape), true);
+                break;
+            case Q4_K:
+                // The scales are stored inline with each super-block
+                t = new Q4KByteBufferTensor(name, b.slice(), TensorShape.of(info.shape), true);
+                break;
             case I8:
                 FloatBufferTensor qb1 = (FloatBufferTensor) parent.orElse(this).load(name + ".qb", offset);
                 t = new Q8ByteBufferTensor(name, b.slice(), qb1, TensorShape.of(info.shape), true);
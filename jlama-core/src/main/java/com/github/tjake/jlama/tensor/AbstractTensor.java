@@ -184,6 +184,47 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number, A> i
         return chunks;
     }
 
+    /** A view of count rows of a 2D tensor starting at row first */
+    public AbstractTensor sliceRows(int first, int count) {
+        Preconditions.checkArgument(dims() == 2, "Only 2D tensors are supported");
+        Preconditions.checkArgument(first >= 0 && count > 0 && first + count <= shape.first(), "Rows out of range");
+
+        return this.make(first * shape.sparseLength(), count * shape.sparseLength(), rowsShape(count), false);
+    }
+
+    /**
+     * Concatenate 2D tensors of the same type and columns along their rows into a new tensor
+     */
+    public static AbstractTensor concat(AbstractTensor... tensors) {
+        Preconditions.checkArgument(tensors.length > 0);
+        AbstractTensor first = tensors[0];
+        int rows = 0;
+        for (AbstractTensor t : tensors) {
+            Preconditions.checkArgument(t.dims() == 2, "Only 2D tensors are supported");
+            Preconditions.checkArgument(t.dType() == first.dType(), "different types");
+            Preconditions.checkArgument(
+                    t.shape().last() == first.shape().last()
+                            && t.shape().sparseOffset() == first.shape().sparseOffset()
+                            && t.shape().sparseLength() == first.shape().sparseLength(),
+                    "different columns");
+            rows += t.shape().first();
+        }
+
+        AbstractTensor r = first.make(first.rowsShape(rows));
+        int offset = 0;
+        for (AbstractTensor t : tensors) {
+            r.copyFrom(t, 0, offset, Ints.checkedCast(t.size()));
+            offset += Ints.checkedCast(t.size());
+        }
+
+        return r;
+    }
+
+    private TensorShape rowsShape(int rows) {
+        TensorShape s = TensorShape.of(rows, shape.last());
+        return shape.isSparse() ? s.sparsify(shape.sparseOffset(), shape.sparseLength()) : s;
+    }
+
     /**
      * Does inplace iteration based on the current values from innermost to outermost offset
      * Meaning if I pass [0,0,99] for a tensor of shape (100,100,100).  It will alter values to be
@@ -275,7 +316,8 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number, A> i
 
     public AbstractTensor quantize(DType dType) {
 
-        if (this.shape().first() == 1 || this.dType == dType) return this;
+        // Norms and biases are left in the type they were loaded as
+        if (this.shape().first() == 1 || this.shape().dims() == 1 || this.dType == dType) return this;
 
         if (shape.isSparse()) {
             logger.info("Quantizing sparse tensor is not supported");
@@ -284,6 +326,11 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number, A> i
 
         return switch (dType) {
             case Q4 -> new Q4ByteBufferTensor(this);
+            case Q5 -> new Q5ByteBufferTensor(this);
+                // Rows that don't fill whole super-blocks fall back to Q4
+            case Q4_K -> shape.last() % Q4KByteBufferTensor.BLOCK_SIZE == 0
+                    ? new Q4KByteBufferTensor(this)
+                    : new Q4ByteBufferTensor(this);
             case I8 -> new Q8ByteBufferTensor(this);
             case F32 -> new FloatBufferTensor(this);
             case BF16 -> new BFloat16BufferTensor(this);
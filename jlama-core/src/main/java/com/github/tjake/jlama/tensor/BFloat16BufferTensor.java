@@ -65,7 +65,7 @@ public class BFloat16BufferTensor extends AbstractTensor<ShortVector, Short, sho
         this("none", b, shape, cacheSlices);
     }
 
-    private BFloat16BufferTensor(String name, ShortBuffer b, TensorShape shape, boolean cacheSlices) {
+    public BFloat16BufferTensor(String name, ShortBuffer b, TensorShape shape, boolean cacheSlices) {
         super(DType.BF16, shape, cacheSlices);
         this.name = name;
         this.b = b;
@@ -84,8 +84,8 @@ public class BFloat16BufferTensor extends AbstractTensor<ShortVector, Short, sho
 
     @Override
     public float get(int... dims) {
-        Preconditions.checkArgument(dims.length <= shape.size(), "Too many dimensions specified");
-        Preconditions.checkArgument(dims.length == shape.size(), "Must specify all dimensions");
+        Preconditions.checkArgument(dims.length <= shape.dims(), "Too many dimensions specified");
+        Preconditions.checkArgument(dims.length == shape.dims(), "Must specify all dimensions");
         return FloatConversions.bFloat16ToFloat32(b.get(getOffset(dims)));
     }
 
@@ -141,8 +141,8 @@ public class BFloat16BufferTensor extends AbstractTensor<ShortVector, Short, sho
     public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
         Preconditions.checkArgument(this.dType == src.dType, "different types");
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
-        segment.asSlice(getMemorySegmentOffset(destOffset), length)
-                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+        segment.asSlice(getMemorySegmentOffset(destOffset), length * dType.size())
+                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length * dType.size()));
     }
 
     @Override
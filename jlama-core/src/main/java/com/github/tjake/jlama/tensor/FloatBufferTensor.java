@@ -15,12 +15,14 @@
  */
 package com.github.tjake.jlama.tensor;
 
+import com.github.tjake.jlama.math.FloatConversions;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.UnsafeDirectByteBuffer;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.Arrays;
@@ -145,6 +147,17 @@ public final class FloatBufferTensor extends AbstractTensor<FloatVector, Float,
     public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
         // Preconditions.checkArgument(this.dType == src.dType, "Different types");
         // Preconditions.checkArgument(!b.isReadOnly());
+        if (src.dType() == DType.BF16 || src.dType() == DType.F16) {
+            // 16-bit float weights (e.g. embedding tables) are widened as they are copied
+            MemorySegment s = src.getMemorySegment();
+            for (int i = 0; i < length; i++) {
+                short v = s.get(ValueLayout.JAVA_SHORT_UNALIGNED, src.getMemorySegmentOffset(srcOffset + i));
+                b.put(
+                        destOffset + i,
+                        src.dType() == DType.BF16 ? FloatConversions.bFloat16ToFloat32(v) : Float.float16ToFloat(v));
+            }
+            return;
+        }
         segment.asSlice(getMemorySegmentOffset(destOffset), length * dType.size())
                 .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length * dType.size()));
     }
@@ -16,84 +16,623 @@
 package com.github.tjake.jlama.tensor;
 
 import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
+import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A cache for key-value buffers used in the model.
+ *
+ * The kv memory is paged: fixed-size blocks of {@link #BLOCK_SIZE} positions are taken from a pool shared by
+ * all sessions, and each session keeps a block table mapping its positions to blocks.  Blocks are only
+ * allocated as positions are written, so memory use tracks the tokens actually used.
+ *
+ * Blocks are stored in the {@link Config#kvDType()} of the model, attention reads them in that form.
+ *
+ * Sessions are evicted when the blocks in use would exceed {@link Config#kvCacheMaxBytes()} (least recently
+ * used first), once the cached prompt prefixes no session shares are dropped.  Sessions in use by a forward
+ * pass or generate call are pinned and never evicted.  An evicted session is either dropped or, with
+ * {@link Config#kvSpill()}, written to a file in the working directory and read back when next used.  Sessions left unused for {@link Config#kvSessionTimeoutMillis()} are dropped,
+ * spilled or not, by a sweep that runs at most every {@link #IDLE_SWEEP_INTERVAL_MILLIS}.
+ *
  * @see com.github.tjake.jlama.model.functions.Generator
  */
-public class KvBufferCache {
+public class KvBufferCache implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(KvBufferCache.class);
 
-    public static final String TOKEN_COUNT = "TOKEN_COUNT";
+    /** Number of positions held by each kv block */
+    public static final int BLOCK_SIZE = 64;
 
-    private final ConcurrentMap<UUID, Pair<RandomAccessFile, AbstractTensor>> kvBufferCache;
+    /** Number of blocks the pool file is extended by when it runs out */
+    private static final int FILE_GROWTH_BLOCKS = 16;
+
+    /** Number of blocks kept for the prompt prefix cache, 0 disables it */
+    public static final int PREFIX_CACHE_BLOCKS = Integer.getInteger("jlama.prefix_cache_blocks", 16);
+
+    /** Least time between sweeps for idle sessions, each one walks every session */
+    public static final long IDLE_SWEEP_INTERVAL_MILLIS = Long.getLong("jlama.kv_idle_sweep_millis", 1000);
+
+    private final ConcurrentMap<UUID, KvBuffer> kvBufferCache;
+    private final ConcurrentLinkedQueue<AbstractTensor> freeBlocks;
+    private final AtomicInteger allocatedBlocks;
+    private final Map<AbstractTensor, Integer> sharedBlockRefs;
+    private final KvPrefixCache prefixCache;
     private final AbstractModel model;
+    private final TensorShape blockShape;
+    private final Object evictionLock;
+    private final AtomicLong evictions;
+    private final AtomicLong lastIdleSweep;
+    private File blockFilePath;
+    private RandomAccessFile blockFile;
 
     public KvBufferCache(AbstractModel model) {
         this.kvBufferCache = new ConcurrentHashMap<>();
+        this.freeBlocks = new ConcurrentLinkedQueue<>();
+        this.allocatedBlocks = new AtomicInteger(0);
+        this.sharedBlockRefs = new IdentityHashMap<>();
+        this.prefixCache = new KvPrefixCache(BLOCK_SIZE, PREFIX_CACHE_BLOCKS, this::releaseBlock);
         this.model = model;
-    }
+        this.evictionLock = new Object();
+        this.evictions = new AtomicLong(0);
+        this.lastIdleSweep = new AtomicLong(System.currentTimeMillis());
 
-    public AbstractTensor getKvBuffer(UUID session) {
-        return kvBufferCache.computeIfAbsent(session, this::makeKvBuffer).right;
-    }
+        Config c = model.getConfig();
 
-    private Pair<RandomAccessFile, AbstractTensor> makeKvBuffer(UUID session) {
-        TensorShape s;
-        // FIXME: Max size should be configurable
-        int[] rawShape = new int[] {
-            model.getConfig().getNumberOfLayers(),
-            2,
-            Math.min(1024, model.getConfig().contextLength),
-            model.getConfig().kvLength
-        };
+        int[] rawShape = new int[] {c.getNumberOfLayers(), 2, BLOCK_SIZE, c.kvLength};
 
-        if (model.getConfig().offset().isPresent()) {
-            Pair<Integer, Integer> offset = model.getConfig().offset().get();
+        if (c.offset().isPresent()) {
+            Pair<Integer, Integer> offset = c.offset().get();
             // Adjust the shape to be relative to the kv cache size (in case of GQA)
-            Pair<Integer, Integer> kvOffset = Pair.create(
-                    offset.left / model.getConfig().headGroupSize, offset.right / model.getConfig().headGroupSize);
-            s = TensorShape.sparse(rawShape, kvOffset);
+            Pair<Integer, Integer> kvOffset =
+                    Pair.create(offset.left / c.headGroupSize, offset.right / c.headGroupSize);
+            this.blockShape = TensorShape.sparse(rawShape, kvOffset);
         } else {
-            s = TensorShape.of(rawShape);
+            this.blockShape = TensorShape.of(rawShape);
+        }
+    }
+
+    public KvBuffer getKvBuffer(UUID session) {
+        long now = System.currentTimeMillis();
+        long last = lastIdleSweep.get();
+        if (now - last >= IDLE_SWEEP_INTERVAL_MILLIS && lastIdleSweep.compareAndSet(last, now)) evictIdle();
+
+        return kvBufferCache.computeIfAbsent(session, KvBuffer::new);
+    }
+
+    /**
+     * Get the kv buffer for a session already pinned, so neither eviction nor the idle sweep can drop it before
+     * the caller unpins it.
+     */
+    public KvBuffer getPinnedKvBuffer(UUID session) {
+        while (true) {
+            KvBuffer kvBuffer = getKvBuffer(session);
+            synchronized (kvBuffer) {
+                // Closing removes a buffer under its lock, so one still cached here isn't closed once pinned
+                if (kvBufferCache.get(session) == kvBuffer) {
+                    kvBuffer.pin();
+                    return kvBuffer;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the kv buffer for a session, limiting how many positions it may hold.
+     * Blocks are still only allocated as positions are written.
+     */
+    public KvBuffer getKvBuffer(UUID session, int maxContextLength) {
+        KvBuffer kvBuffer = getKvBuffer(session);
+        kvBuffer.setMaxContextLength(maxContextLength);
+        return kvBuffer;
+    }
+
+    /** Number of blocks allocated from the pool, in use or free */
+    public int allocatedBlocks() {
+        return allocatedBlocks.get();
+    }
+
+    /** Number of blocks held by the prompt prefix cache */
+    public int prefixCachedBlocks() {
+        return prefixCache.cachedBlocks();
+    }
+
+    /** Number of sessions held, including spilled ones */
+    public int sessions() {
+        return kvBufferCache.size();
+    }
+
+    /** Number of sessions whose kv memory is spilled to the working directory */
+    public int spilledSessions() {
+        int spilled = 0;
+        for (KvBuffer b : kvBufferCache.values()) if (b.spillFile != null) spilled++;
+        return spilled;
+    }
+
+    /** Bytes of kv memory allocated from the pool, in use or free */
+    public long allocatedBytes() {
+        return allocatedBlocks.get() * blockBytes();
+    }
+
+    /** Bytes of kv memory held by sessions and the prefix cache */
+    public long usedBytes() {
+        return (allocatedBlocks.get() - freeBlocks.size()) * blockBytes();
+    }
+
+    /** Number of sessions evicted for the memory budget or timeout */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /** Drop the sessions left unused for longer than the session timeout, including spilled ones */
+    public void evictIdle() {
+        long timeout = model.getConfig().kvSessionTimeoutMillis();
+        if (timeout == 0) return;
+
+        long now = System.currentTimeMillis();
+        synchronized (evictionLock) {
+            for (KvBuffer b : kvBufferCache.values()) if (now - b.lastAccess > timeout) expire(b);
+        }
+    }
+
+    /**
+     * Drop cached prefixes no session uses, then evict unpinned sessions, least recently used first, until the
+     * given number of blocks can be taken within the memory budget or nothing more can be freed.
+     * Must not be called holding a session's lock.
+     */
+    private void makeRoom(int needed) {
+        long maxBytes = model.getConfig().kvCacheMaxBytes();
+        if (needed <= 0 || maxBytes == Long.MAX_VALUE) return;
+
+        long blockBytes = blockBytes();
+        synchronized (evictionLock) {
+            while ((allocatedBlocks.get() + Math.max(0, needed - freeBlocks.size())) * blockBytes > maxBytes) {
+                // Blocks shared with a session stay allocated when the cache drops them, so only the others count
+                if (prefixCache.evictUnshared(this::isUnshared)) continue;
+
+                // Evicting a session whose blocks the prefix cache shares frees nothing by itself, but leaves
+                // those blocks to the cache alone for the next round
+                KvBuffer lru = null;
+                for (KvBuffer b : kvBufferCache.values()) {
+                    if (b.pins == 0 && b.blocks.length > 0 && (lru == null || b.lastAccess < lru.lastAccess)) lru = b;
+                }
+
+                if (lru == null) {
+                    logger.warn(
+                            "Kv cache exceeds its budget of {} bytes, every session and cached prefix is in use",
+                            maxBytes);
+                    return;
+                }
+
+                evict(lru);
+            }
+        }
+    }
+
+    private void expire(KvBuffer b) {
+        synchronized (b) {
+            if (b.pins > 0) return;
+            b.close();
+        }
+
+        evictions.incrementAndGet();
+        logger.debug("Expired kv memory of session {}", b.session);
+    }
+
+    private boolean evict(KvBuffer b) {
+        synchronized (b) {
+            if (b.pins > 0 || b.blocks.length == 0) return false;
+
+            if (model.getConfig().kvSpill()) b.spill();
+            else b.close();
+        }
+
+        evictions.incrementAndGet();
+        logger.debug("Evicted kv memory of session {}", b.session);
+        return true;
+    }
+
+    /** Drop every session and delete the pool file */
+    @Override
+    public void close() {
+        for (KvBuffer b : kvBufferCache.values()) b.close();
+
+        synchronized (this) {
+            if (blockFile != null) {
+                try {
+                    blockFile.close();
+                } catch (IOException e) {
+                    throw new IOError(e);
+                } finally {
+                    blockFilePath.delete();
+                    blockFile = null;
+                }
+            }
+        }
+    }
+
+    private long blockBytes() {
+        DType dType = model.getConfig().kvDType();
+        long valueBytes = blockShape.size() * dType.size();
+        // I8 blocks carry a float scale for every Q8 block after the quantized values
+        return dType == DType.I8
+                ? valueBytes + (blockShape.size() / Q8ByteBufferTensor.BLOCK_SIZE) * Float.BYTES
+                : valueBytes;
+    }
+
+    /**
+     * Add a reference to a block shared by sessions and/or the prefix cache.
+     * Blocks that aren't tracked have a single owner, so sharing one starts at two references.
+     */
+    private synchronized void retainBlock(AbstractTensor block) {
+        sharedBlockRefs.merge(block, 2, (refs, ignored) -> refs + 1);
+    }
+
+    /** Whether at most one session or the prefix cache refers to a block */
+    private synchronized boolean isUnshared(AbstractTensor block) {
+        Integer refs = sharedBlockRefs.get(block);
+        return refs == null || refs == 1;
+    }
+
+    /** Drop a reference to a block, returning it to the pool once nothing refers to it */
+    private synchronized void releaseBlock(AbstractTensor block) {
+        Integer refs = sharedBlockRefs.get(block);
+        if (refs != null && refs > 1) {
+            sharedBlockRefs.put(block, refs - 1);
+            return;
+        }
+
+        sharedBlockRefs.remove(block);
+        freeBlocks.add(block);
+    }
+
+    private static void write(FileChannel ch, MemorySegment segment) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(Math.toIntExact(segment.byteSize()));
+        MemorySegment.ofBuffer(bb).copyFrom(segment);
+        while (bb.hasRemaining()) ch.write(bb);
+    }
+
+    private static void read(FileChannel ch, MemorySegment segment) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(Math.toIntExact(segment.byteSize()));
+        while (bb.hasRemaining()) {
+            if (ch.read(bb) < 0) throw new IOException("Spilled kv session file is truncated");
         }
+        segment.copyFrom(MemorySegment.ofBuffer(bb.flip()));
+    }
 
-        // If we don't have a working directory, just use a FloatBufferTensor
+    private AbstractTensor takeBlock() {
+        AbstractTensor block = freeBlocks.poll();
+        if (block != null) return block;
+
+        int blockId = allocatedBlocks.getAndIncrement();
+        DType dType = model.getConfig().kvDType();
+
+        // If we don't have a working directory, just keep the block on heap
         if (model.getConfig().workingDirectory().isEmpty()) {
-            return Pair.create(null, new FloatBufferTensor(s));
+            return switch (dType) {
+                case F32 -> new FloatBufferTensor(blockShape);
+                case BF16 -> new BFloat16BufferTensor(blockShape);
+                case F16 -> new Float16BufferTensor(blockShape);
+                case I8 -> new Q8ByteBufferTensor(blockShape);
+                default -> throw new UnsupportedOperationException("Unsupported kv cache type: " + dType);
+            };
         }
 
-        // Otherwise, create a file-backed tensor
+        // Otherwise, map the block from the pool file
         try {
-            RandomAccessFile raf = new RandomAccessFile(
-                    Paths.get(model.getConfig().workingDirectory().get().toString(), session.toString())
-                            .toFile(),
-                    "rw");
-            long bytes = s.size() * Float.BYTES;
-            raf.setLength(bytes);
+            long valueBytes = blockShape.size() * dType.size();
+            long bytes = blockBytes();
+            ByteBuffer bb;
+            synchronized (this) {
+                if (blockFile == null) {
+                    File workingDirectory = model.getConfig().workingDirectory().get();
+                    blockFilePath = new File(workingDirectory, "kvblocks-" + UUID.randomUUID());
+                    blockFilePath.deleteOnExit();
+                    blockFile = new RandomAccessFile(blockFilePath, "rw");
+                }
 
-            FloatBuffer fb = raf.getChannel()
-                    .map(FileChannel.MapMode.READ_WRITE, 0, bytes)
-                    .order(ByteOrder.LITTLE_ENDIAN)
-                    .asFloatBuffer();
+                long position = blockId * bytes;
+                // Grow the pool file a chunk of blocks at a time
+                if (blockFile.length() < position + bytes) blockFile.setLength(position + bytes * FILE_GROWTH_BLOCKS);
 
-            FloatBufferTensor fbt = new FloatBufferTensor(fb, s, true);
-
-            return Pair.create(raf, fbt);
+                bb = blockFile
+                        .getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, position, bytes)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
 
+            return switch (dType) {
+                case F32 -> new FloatBufferTensor(bb.asFloatBuffer(), blockShape, true);
+                case BF16 -> new BFloat16BufferTensor(bb.asShortBuffer(), blockShape, true, true);
+                case F16 -> new Float16BufferTensor(bb.asShortBuffer(), blockShape, true);
+                case I8 -> {
+                    TensorShape scaleShape = blockShape.scaleLastDim(Q8ByteBufferTensor.I_BLOCK_SIZE);
+                    FloatBufferTensor blockF = new FloatBufferTensor(
+                            bb.slice((int) valueBytes, (int) (bytes - valueBytes))
+                                    .order(ByteOrder.LITTLE_ENDIAN)
+                                    .asFloatBuffer(),
+                            scaleShape,
+                            true);
+                    yield new Q8ByteBufferTensor(
+                            "kvblock-" + blockId,
+                            bb.slice(0, (int) valueBytes).order(ByteOrder.LITTLE_ENDIAN),
+                            blockF,
+                            blockShape,
+                            true);
+                }
+                default -> throw new UnsupportedOperationException("Unsupported kv cache type: " + dType);
+            };
         } catch (IOException e) {
             throw new IOError(e);
         }
     }
+
+    /**
+     * The kv memory of a single session, a table of blocks taken from the shared pool.
+     */
+    public class KvBuffer implements AutoCloseable {
+        private final UUID session;
+        private final AtomicInteger currentContextPosition;
+        private final KvLayer[] layers;
+        private volatile AbstractTensor[] blocks;
+        private volatile int maxContextLength;
+        private volatile int pins;
+        private volatile long lastAccess;
+        private volatile File spillFile;
+        private int spilledBlocks;
+
+        private KvBuffer(UUID session) {
+            this.session = session;
+            this.currentContextPosition = new AtomicInteger(0);
+            this.maxContextLength = model.getConfig().maxContextLength();
+            this.layers = new KvLayer[model.getConfig().getNumberOfLayers()];
+            for (int i = 0; i < layers.length; i++) layers[i] = new KvLayer(i);
+            this.blocks = new AbstractTensor[0];
+            this.lastAccess = System.currentTimeMillis();
+        }
+
+        /** Keep this session from being evicted until unpinned, pins are counted */
+        public synchronized void pin() {
+            pins++;
+            lastAccess = System.currentTimeMillis();
+        }
+
+        public synchronized void unpin() {
+            Preconditions.checkState(pins > 0, "Session %s isn't pinned", session);
+            pins--;
+            lastAccess = System.currentTimeMillis();
+        }
+
+        /** Number of tokens held in the buffer */
+        public int getCurrentContextPosition() {
+            return currentContextPosition.get();
+        }
+
+        public void setCurrentContextPosition(int position) {
+            currentContextPosition.set(position);
+        }
+
+        public int maxContextLength() {
+            return maxContextLength;
+        }
+
+        /** Change the number of positions this session may hold, up to the context length of the model */
+        public void setMaxContextLength(int maxContextLength) {
+            Preconditions.checkArgument(
+                    maxContextLength > 0 && maxContextLength <= model.getConfig().contextLength,
+                    "Max context length %s must be between 1 and the model context length %s",
+                    maxContextLength,
+                    model.getConfig().contextLength);
+            Preconditions.checkArgument(
+                    maxContextLength >= currentContextPosition.get(),
+                    "Session already holds %s positions",
+                    currentContextPosition.get());
+            this.maxContextLength = maxContextLength;
+        }
+
+        public KvLayer getLayer(int layer) {
+            return layers[layer];
+        }
+
+        /** Get the block holding this position, adding blocks to the table as needed */
+        private AbstractTensor block(int position) {
+            Preconditions.checkArgument(
+                    position >= 0 && position < maxContextLength,
+                    "Position %s outside of kv buffer with max context length %s",
+                    position,
+                    maxContextLength);
+
+            int blockIdx = position / BLOCK_SIZE;
+            AbstractTensor[] table = blocks;
+            if (blockIdx < table.length) return table[blockIdx];
+
+            if (spillFile != null) restore();
+            makeRoom(blockIdx + 1 - blocks.length);
+
+            synchronized (this) {
+                table = blocks;
+                if (blockIdx >= table.length) {
+                    int length = table.length;
+                    table = Arrays.copyOf(table, blockIdx + 1);
+                    for (int i = length; i < table.length; i++) table[i] = takeBlock();
+                    blocks = table;
+                }
+                return table[blockIdx];
+            }
+        }
+
+        /**
+         * Start an empty buffer from the prefix cache, sharing the kv blocks of the longest cached prefix of
+         * the tokens.  At least the last token is left to be run so its logits are available.
+         * @return the number of positions restored
+         */
+        public synchronized int reusePrefix(int[] tokens) {
+            Preconditions.checkState(currentContextPosition.get() == 0, "Session already has positions");
+            if (PREFIX_CACHE_BLOCKS == 0) return 0;
+
+            int maxBlocks = Math.min(tokens.length - 1, maxContextLength) / BLOCK_SIZE;
+            List<AbstractTensor> prefix = prefixCache.lookup(tokens, maxBlocks, KvBufferCache.this::retainBlock);
+            if (prefix.isEmpty()) return 0;
+
+            // Any blocks already taken are replaced by the shared ones
+            AbstractTensor[] table = blocks;
+            for (AbstractTensor block : table) releaseBlock(block);
+            blocks = prefix.toArray(new AbstractTensor[0]);
+
+            int positions = prefix.size() * BLOCK_SIZE;
+            currentContextPosition.set(positions);
+            return positions;
+        }
+
+        /**
+         * Offer the full blocks holding the tokens, which start at position 0, to the prefix cache
+         */
+        public synchronized void cachePrefix(int[] tokens) {
+            int fullBlocks = Math.min(tokens.length, currentContextPosition.get()) / BLOCK_SIZE;
+            if (PREFIX_CACHE_BLOCKS == 0 || fullBlocks == 0 || fullBlocks > blocks.length) return;
+
+            prefixCache.insert(tokens, Arrays.copyOf(blocks, fullBlocks), KvBufferCache.this::retainBlock);
+        }
+
+        /**
+         * Write the blocks holding positions to a file in the working directory and return them to the pool
+         */
+        private synchronized void spill() {
+            int used = Math.min(blocks.length, (currentContextPosition.get() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            if (used > 0) {
+                File file = new File(model.getConfig().workingDirectory().get(), "kvsession-" + session);
+                file.deleteOnExit();
+                try (FileChannel ch = FileChannel.open(
+                        file.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (int i = 0; i < used; i++) {
+                        write(ch, blocks[i].getMemorySegment());
+                        if (blocks[i] instanceof Q8ByteBufferTensor q)
+                            write(ch, q.getBlockF().getMemorySegment());
+                    }
+                } catch (IOException e) {
+                    throw new IOError(e);
+                }
+                spillFile = file;
+                spilledBlocks = used;
+            }
+
+            AbstractTensor[] table = blocks;
+            blocks = new AbstractTensor[0];
+            for (AbstractTensor block : table) releaseBlock(block);
+        }
+
+        /** Read back the blocks of a spilled session */
+        private void restore() {
+            makeRoom(spilledBlocks);
+
+            synchronized (this) {
+                File file = spillFile;
+                if (file == null) return;
+
+                AbstractTensor[] table = new AbstractTensor[spilledBlocks];
+                try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    for (int i = 0; i < table.length; i++) {
+                        table[i] = takeBlock();
+                        read(ch, table[i].getMemorySegment());
+                        if (table[i] instanceof Q8ByteBufferTensor q)
+                            read(ch, q.getBlockF().getMemorySegment());
+                    }
+                } catch (IOException e) {
+                    throw new IOError(e);
+                }
+
+                blocks = table;
+                spillFile = null;
+                spilledBlocks = 0;
+                file.delete();
+            }
+        }
+
+        /** Return all blocks to the pool and drop this session */
+        @Override
+        public synchronized void close() {
+            kvBufferCache.remove(session, this);
+            AbstractTensor[] table = blocks;
+            blocks = new AbstractTensor[0];
+            currentContextPosition.set(0);
+            for (AbstractTensor block : table) releaseBlock(block);
+
+            if (spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+                spilledBlocks = 0;
+            }
+        }
+
+        /**
+         * A view of one layer of the session's kv memory
+         */
+        public class KvLayer {
+            private final int layer;
+
+            private KvLayer(int layer) {
+                this.layer = layer;
+            }
+
+            public int blockSize() {
+                return BLOCK_SIZE;
+            }
+
+            public AbstractTensor getKeyTensorForPosition(int position) {
+                return block(position).slice(true, layer).slice(true, 0).slice(position % BLOCK_SIZE);
+            }
+
+            public AbstractTensor getValTensorForPosition(int position) {
+                return block(position).slice(true, layer).slice(true, 1).slice(position % BLOCK_SIZE);
+            }
+
+            /**
+             * The key blocks covering positions 0 to position inclusive, each of shape [blockSize, kvLength]
+             */
+            public AbstractTensor[] getKeyTensors(int position) {
+                return getTensors(position, 0);
+            }
+
+            /**
+             * The value blocks covering positions 0 to position inclusive, each of shape [blockSize, kvLength]
+             */
+            public AbstractTensor[] getValTensors(int position) {
+                return getTensors(position, 1);
+            }
+
+            private AbstractTensor[] getTensors(int position, int kOrV) {
+                block(position); // Ensure the blocks exist
+                AbstractTensor[] table = blocks;
+                AbstractTensor[] r = new AbstractTensor[position / BLOCK_SIZE + 1];
+                for (int i = 0; i < r.length; i++)
+                    r[i] = table[i].slice(true, layer).slice(true, kOrV);
+
+                return r;
+            }
+        }
+    }
 }
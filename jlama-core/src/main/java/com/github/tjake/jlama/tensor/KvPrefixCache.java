@@ -0,0 +1,178 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.tensor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Caches the kv blocks of prompt prefixes so sessions sharing a prefix (e.g. the same system prompt)
+ * can skip prefilling it.
+ *
+ * This is a radix tree over token ids where every edge is one full kv block worth of tokens, so each node
+ * points at the kv block holding those positions.  Because a block depends on every token before it,
+ * blocks are only shared along the same path from the root.
+ *
+ * Nodes are evicted least recently used first, leaves before their parents.
+ */
+class KvPrefixCache {
+
+    private final int blockSize;
+    private final int maxBlocks;
+    private final Consumer<AbstractTensor> release;
+    private final Node root;
+    private int cachedBlocks;
+    private long clock;
+
+    /**
+     * @param release called when the cache drops its reference to a block
+     */
+    KvPrefixCache(int blockSize, int maxBlocks, Consumer<AbstractTensor> release) {
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBlocks;
+        this.release = release;
+        this.root = new Node(null, null, null);
+        this.cachedBlocks = 0;
+        this.clock = 0;
+    }
+
+    /**
+     * Find the cached blocks for the longest prefix of the tokens, up to maxBlocks blocks.
+     * @param retain called for every block found, before it can be evicted
+     */
+    synchronized List<AbstractTensor> lookup(int[] tokens, int maxBlocks, Consumer<AbstractTensor> retain) {
+        List<AbstractTensor> found = new ArrayList<>();
+        Node node = root;
+        for (int b = 0; b < maxBlocks; b++) {
+            node = node.children.get(new Chunk(tokens, b * blockSize, blockSize));
+            if (node == null) break;
+
+            node.lastAccess = ++clock;
+            retain.accept(node.block);
+            found.add(node.block);
+        }
+
+        return found;
+    }
+
+    /**
+     * Offer the blocks holding the first blocks.length * blockSize tokens.
+     * @param retain called for every block the cache takes a reference to
+     */
+    synchronized void insert(int[] tokens, AbstractTensor[] blocks, Consumer<AbstractTensor> retain) {
+        if (maxBlocks == 0) return;
+
+        Node node = root;
+        for (int b = 0; b < blocks.length; b++) {
+            Chunk chunk = new Chunk(tokens, b * blockSize, blockSize);
+            Node child = node.children.get(chunk);
+            if (child == null) {
+                Node inserting = node;
+                if (cachedBlocks >= maxBlocks && !evict(n -> !isOnPath(n, inserting))) return;
+
+                retain.accept(blocks[b]);
+                child = new Node(node, chunk, blocks[b]);
+                node.children.put(chunk, child);
+                cachedBlocks++;
+            }
+
+            child.lastAccess = ++clock;
+            node = child;
+        }
+    }
+
+    /** Number of blocks held by the cache */
+    synchronized int cachedBlocks() {
+        return cachedBlocks;
+    }
+
+    /**
+     * Drop the least recently used leaf whose block only the cache refers to, so the block is freed
+     * @param unshared whether nothing but the cache refers to a block
+     */
+    synchronized boolean evictUnshared(Predicate<AbstractTensor> unshared) {
+        return evict(n -> unshared.test(n.block));
+    }
+
+    /**
+     * Drop the least recently used leaf that can be dropped
+     */
+    private boolean evict(Predicate<Node> droppable) {
+        Node lru = null;
+        List<Node> stack = new ArrayList<>(root.children.values());
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            if (n.children.isEmpty()) {
+                if (droppable.test(n) && (lru == null || n.lastAccess < lru.lastAccess)) lru = n;
+            } else {
+                stack.addAll(n.children.values());
+            }
+        }
+
+        if (lru == null) return false;
+
+        lru.parent.children.remove(lru.chunk);
+        cachedBlocks--;
+        release.accept(lru.block);
+        return true;
+    }
+
+    private static boolean isOnPath(Node n, Node leaf) {
+        for (Node p = leaf; p != null; p = p.parent) if (p == n) return true;
+        return false;
+    }
+
+    private static final class Node {
+        final Node parent;
+        final Chunk chunk;
+        final AbstractTensor block;
+        final Map<Chunk, Node> children;
+        long lastAccess;
+
+        Node(Node parent, Chunk chunk, AbstractTensor block) {
+            this.parent = parent;
+            this.chunk = chunk;
+            this.block = block;
+            this.children = new HashMap<>();
+        }
+    }
+
+    /** The token ids of one block */
+    private static final class Chunk {
+        final int[] tokens;
+        final int hash;
+
+        Chunk(int[] tokens, int offset, int length) {
+            this.tokens = Arrays.copyOfRange(tokens, offset, offset + length);
+            this.hash = Arrays.hashCode(this.tokens);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Chunk c && hash == c.hash && Arrays.equals(tokens, c.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.util.UnsafeDirectByteBuffer;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 4-bit super-block quantized tensor, laid out like the ggml Q4_K format.  Each super-block of 256 values is
+ * 144 bytes: an F16 scale, an F16 min, 12 bytes holding a 6-bit scale and 6-bit min for each of the 8 sub-blocks
+ * of 32 values, then 128 bytes of nibbles.  Every 64 values share 32 bytes, byte j holds value j in the low nibble
+ * and value j + 32 in the high nibble.  A value is {@code d * scale * q - dmin * min} for q in [0, 15].
+ */
+public class Q4KByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
+    private static final Logger logger = LoggerFactory.getLogger(Q4KByteBufferTensor.class);
+    public static final int BLOCK_SIZE = 256;
+    public static final int SUB_BLOCK_SIZE = 32;
+    public static final int SUB_BLOCKS = BLOCK_SIZE / SUB_BLOCK_SIZE;
+    public static final int SCALE_BYTES = 12;
+    // d + dmin + scales + nibbles
+    public static final int HEADER_BYTES = 2 * Short.BYTES + SCALE_BYTES;
+    public static final int BLOCK_BYTES = HEADER_BYTES + BLOCK_SIZE / 2;
+
+    final ByteBuffer b;
+    private final String name;
+    private final MemorySegment segment;
+
+    public Q4KByteBufferTensor(AbstractTensor ft) {
+        this(ft.shape);
+        Preconditions.checkArgument(ft.dType != DType.Q4_K, "This should never happen, likely a bug");
+        Preconditions.checkArgument(ft.shape.last() % BLOCK_SIZE == 0, "Q4_K rows must be a multiple of BLOCK_SIZE");
+
+        List<int[]> startBlockCursors = new ArrayList<>();
+        int[] cursor = new int[ft.shape.dims()];
+        int c = 0;
+        do {
+            if (c++ % BLOCK_SIZE == 0) {
+                startBlockCursors.add(Arrays.copyOf(cursor, cursor.length));
+            }
+        } while (ft.iterate(cursor));
+
+        // Process each super-block in parallel
+        VectorMath.pfor(0, startBlockCursors.size(), (i) -> {
+            int[] blockStartCursor = startBlockCursors.get(i);
+            processBlock(ft, blockStartCursor);
+        });
+    }
+
+    void processBlock(AbstractTensor ft, int[] blockStartCursor) {
+        int[] cursor = Arrays.copyOf(blockStartCursor, blockStartCursor.length);
+        float[] values = new float[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            values[i] = ft.get(cursor);
+            ft.iterate(cursor);
+        }
+
+        // Each sub-block is mapped onto [min, max] with the min kept at or below zero
+        float[] scales = new float[SUB_BLOCKS];
+        float[] mins = new float[SUB_BLOCKS];
+        float maxScale = 0.0f;
+        float maxMin = 0.0f;
+        for (int s = 0; s < SUB_BLOCKS; s++) {
+            float min = 0.0f;
+            float max = 0.0f;
+            for (int i = s * SUB_BLOCK_SIZE; i < (s + 1) * SUB_BLOCK_SIZE; i++) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+            scales[s] = (max - min) / 15f;
+            mins[s] = -min;
+            maxScale = Math.max(maxScale, scales[s]);
+            maxMin = Math.max(maxMin, mins[s]);
+        }
+
+        // The sub-block scales and mins are quantized to 6 bits against the super-block scale and min
+        float iscale = maxScale > 0 ? 63f / maxScale : 0.0f;
+        float imin = maxMin > 0 ? 63f / maxMin : 0.0f;
+        byte[] packed = new byte[SCALE_BYTES];
+        for (int s = 0; s < SUB_BLOCKS; s++) {
+            int ls = Math.min(63, Math.round(iscale * scales[s]));
+            int lm = Math.min(63, Math.round(imin * mins[s]));
+            if (s < 4) {
+                packed[s] = (byte) ls;
+                packed[s + 4] = (byte) lm;
+            } else {
+                packed[s + 4] = (byte) ((ls & 0x0F) | ((lm & 0x0F) << 4));
+                packed[s - 4] |= (byte) ((ls >> 4) << 6);
+                packed[s] |= (byte) ((lm >> 4) << 6);
+            }
+        }
+
+        short d = Float.floatToFloat16(maxScale / 63f);
+        short dmin = Float.floatToFloat16(maxMin / 63f);
+
+        int base = getMemorySegmentOffset(getOffset(blockStartCursor));
+        this.b.putShort(base, d);
+        this.b.putShort(base + Short.BYTES, dmin);
+        this.b.put(base + 2 * Short.BYTES, packed);
+
+        // Quantize against the rounded scales so the error is not doubled
+        int[] q = new int[BLOCK_SIZE];
+        for (int s = 0; s < SUB_BLOCKS; s++) {
+            float scale = Float.float16ToFloat(d) * scaleBits(packed, s);
+            float min = Float.float16ToFloat(dmin) * minBits(packed, s);
+            if (scale == 0.0f) continue;
+            for (int i = s * SUB_BLOCK_SIZE; i < (s + 1) * SUB_BLOCK_SIZE; i++) {
+                q[i] = Math.max(0, Math.min(15, Math.round((values[i] + min) / scale)));
+            }
+        }
+
+        for (int i = 0; i < BLOCK_SIZE / 2; i++) {
+            int chunk = i / SUB_BLOCK_SIZE * 2 * SUB_BLOCK_SIZE;
+            int j = i % SUB_BLOCK_SIZE;
+            this.b.put(base + HEADER_BYTES + i, (byte) (q[chunk + j] | (q[chunk + j + SUB_BLOCK_SIZE] << 4)));
+        }
+    }
+
+    protected Q4KByteBufferTensor(TensorShape shape) {
+        super(DType.Q4_K, shape, true);
+        Preconditions.checkArgument(this.size() % BLOCK_SIZE == 0, "Tensor must be a multiple of BLOCK_SIZE");
+        this.name = "tmp";
+
+        int bytes = Ints.checkedCast(this.size() / BLOCK_SIZE * BLOCK_BYTES);
+        if (requiresOffHeapTensor) {
+            this.b = UnsafeDirectByteBuffer.allocateAlignedByteBuffer(bytes, UnsafeDirectByteBuffer.CACHE_LINE_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            this.b = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    public Q4KByteBufferTensor(String name, ByteBuffer b, TensorShape shape, boolean cacheSlices) {
+        super(DType.Q4_K, shape, cacheSlices);
+        this.name = name;
+        if (requiresOffHeapTensor) {
+            if (b.isDirect()) {
+                this.b = b.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                this.b = ByteBuffer.allocateDirect(b.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+                this.b.duplicate().put(b);
+            }
+        } else {
+            if (!b.isDirect()) {
+                this.b = b.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                this.b = ByteBuffer.allocate(b.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+                this.b.duplicate().put(b);
+            }
+        }
+
+        this.segment = MemorySegment.ofBuffer(this.b);
+    }
+
+    @Override
+    protected AbstractTensor make(TensorShape shape) {
+        return new Q4KByteBufferTensor(shape);
+    }
+
+    @Override
+    protected AbstractTensor make(int offset, int length, TensorShape shape, boolean cacheSlices) {
+        Preconditions.checkArgument(offset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Unaligned Q4_K slice");
+        return new Q4KByteBufferTensor(
+                name, b.slice(getMemorySegmentOffset(offset), getMemorySegmentOffset(length)), shape, cacheSlices);
+    }
+
+    private static int scaleBits(byte[] packed, int s) {
+        return s < 4 ? packed[s] & 63 : (packed[s + 4] & 0x0F) | (((packed[s - 4] & 0xFF) >> 6) << 4);
+    }
+
+    private static int minBits(byte[] packed, int s) {
+        return s < 4 ? packed[s + 4] & 63 : ((packed[s + 4] & 0xFF) >> 4) | (((packed[s] & 0xFF) >> 6) << 4);
+    }
+
+    private int scaleBits(int base, int s) {
+        int p = base + 2 * Short.BYTES;
+        return s < 4 ? b.get(p + s) & 63 : (b.get(p + s + 4) & 0x0F) | (((b.get(p + s - 4) & 0xFF) >> 6) << 4);
+    }
+
+    private int minBits(int base, int s) {
+        int p = base + 2 * Short.BYTES;
+        return s < 4 ? b.get(p + s + 4) & 63 : ((b.get(p + s + 4) & 0xFF) >> 4) | (((b.get(p + s) & 0xFF) >> 6) << 4);
+    }
+
+    @Override
+    public float get(int... dims) {
+        Preconditions.checkArgument(dims.length <= shape.dims(), "Too many dimensions specified");
+        Preconditions.checkArgument(dims.length == shape.dims(), "Must specify all dimensions");
+        int i = getOffset(dims);
+        int base = getMemorySegmentOffset(i);
+        int w = i % BLOCK_SIZE;
+        int s = w / SUB_BLOCK_SIZE;
+
+        byte b0 = this.b.get(nibbleOffset(i));
+        int q = (s & 1) == 0 ? b0 & 0x0F : (b0 >> 4) & 0x0F;
+        float d = Float.float16ToFloat(this.b.getShort(base));
+        float dmin = Float.float16ToFloat(this.b.getShort(base + Short.BYTES));
+        return d * scaleBits(base, s) * q - dmin * minBits(base, s);
+    }
+
+    /**
+     * The scale of the sub-block holding the given row and column
+     */
+    public float getScaleForIndex(int d, int i) {
+        int offset = getOffset(d, i);
+        int base = getMemorySegmentOffset(offset);
+        return Float.float16ToFloat(b.getShort(base)) * scaleBits(base, offset % BLOCK_SIZE / SUB_BLOCK_SIZE);
+    }
+
+    /**
+     * The min of the sub-block holding the given row and column, it is subtracted from every value
+     */
+    public float getMinForIndex(int d, int i) {
+        int offset = getOffset(d, i);
+        int base = getMemorySegmentOffset(offset);
+        return Float.float16ToFloat(b.getShort(base + Short.BYTES))
+                * minBits(base, offset % BLOCK_SIZE / SUB_BLOCK_SIZE);
+    }
+
+    @Override
+    public void set(float v, int... dims) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getArray() {
+        if (b.hasArray()) return b.array();
+        else throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getArrayOffset(int i) {
+        return b.arrayOffset() + getMemorySegmentOffset(i);
+    }
+
+    @Override
+    public MemorySegment getMemorySegment() {
+        return segment;
+    }
+
+    /**
+     * Byte offset of the super-block holding the given element
+     */
+    @Override
+    public int getMemorySegmentOffset(int offset) {
+        return offset / BLOCK_SIZE * BLOCK_BYTES;
+    }
+
+    /**
+     * Byte offset of the nibble holding the given element
+     */
+    private int nibbleOffset(int offset) {
+        int w = offset % BLOCK_SIZE;
+        return getMemorySegmentOffset(offset)
+                + HEADER_BYTES
+                + w / (2 * SUB_BLOCK_SIZE) * SUB_BLOCK_SIZE
+                + w % SUB_BLOCK_SIZE;
+    }
+
+    /**
+     * Loads the quants starting at the given element as unsigned bytes in [0, 15].  The vector must not cross a
+     * sub-block.
+     */
+    @Override
+    public ByteVector getVector(VectorSpecies<Byte> species, int... voffset) {
+        int offset = getOffset(voffset);
+        int nibbles = nibbleOffset(offset);
+        ByteVector v = !requiresOffHeapTensor
+                ? ByteVector.fromArray(species, getArray(), b.arrayOffset() + nibbles)
+                : ByteVector.fromMemorySegment(species, segment, nibbles, ByteOrder.LITTLE_ENDIAN);
+
+        boolean high = (offset % BLOCK_SIZE / SUB_BLOCK_SIZE & 1) == 1;
+        return high ? v.lanewise(VectorOperators.LSHR, 4) : v.and((byte) 0x0F);
+    }
+
+    @Override
+    public void intoTensor(ByteVector vector, int... aoffset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
+        Preconditions.checkArgument(this.dType == src.dType, "different types");
+        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        Preconditions.checkArgument(
+                srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0,
+                "Q4_K copies must be aligned to BLOCK_SIZE");
+        segment.asSlice(getMemorySegmentOffset(destOffset), getMemorySegmentOffset(length))
+                .copyFrom(src.getMemorySegment()
+                        .asSlice(src.getMemorySegmentOffset(srcOffset), getMemorySegmentOffset(length)));
+    }
+
+    @Override
+    public void clear() {
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
+        segment.fill((byte) 0);
+    }
+
+    @Override
+    public String toString() {
+        byte[] sample = new byte[Math.min(HEADER_BYTES, b.remaining())];
+        b.duplicate().get(sample);
+        return "Q4KBufferTensor{" + "name='"
+                + name + '\'' + "shape="
+                + shape + ", b="
+                + Arrays.toString(sample) + "...}";
+    }
+}
@@ -19,7 +19,6 @@ import static com.github.tjake.jlama.tensor.Q4ByteBufferTensor.makeBlockShape;
 
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.safetensors.DType;
-import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.UnsafeDirectByteBuffer;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
@@ -34,21 +33,29 @@ import jdk.incubator.vector.VectorSpecies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * 5-bit quantized tensor.  Each block of 32 values is stored as a little endian int holding the fifth bit
+ * of every value (bit i is value i) followed by 16 bytes of low nibbles packed like {@link Q4ByteBufferTensor},
+ * byte j holds value j in the low nibble and value j + 16 in the high nibble.  The block scales are kept in a
+ * separate F32 tensor.
+ */
 public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
     private static final Logger logger = LoggerFactory.getLogger(Q5ByteBufferTensor.class);
     public static final int BLOCK_SIZE = 32;
+    public static final int HALF_BLOCK = (BLOCK_SIZE / 2);
+    // 4 bytes of high bits + 16 bytes of nibbles
+    public static final int BLOCK_BYTES = Integer.BYTES + HALF_BLOCK;
     private static final float I_BLOCK_SIZE = 1.0f / BLOCK_SIZE;
 
     final ByteBuffer b;
     final FloatBufferTensor blockF; // Deltas
-    final int[] b5; // Fith bit of quants
     private final String name;
     private final MemorySegment segment;
 
     public Q5ByteBufferTensor(AbstractTensor ft) {
         this(ft.shape);
         Preconditions.checkArgument(ft.dType != DType.Q5, "This should never happen, likely a bug");
-        Preconditions.checkArgument(ft.size() % BLOCK_SIZE == 0, "I8 buffer must be a multiple of BLOCK_SIZE");
+        Preconditions.checkArgument(ft.size() % BLOCK_SIZE == 0, "Q5 buffer must be a multiple of BLOCK_SIZE");
 
         List<int[]> startBlockCursors = new ArrayList<>();
         int[] cursor = new int[ft.shape.dims()];
@@ -68,10 +75,11 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
 
     void processBlock(AbstractTensor ft, int[] blockStartCursor) {
         int[] cursor = Arrays.copyOf(blockStartCursor, blockStartCursor.length);
-        float max = Float.MIN_VALUE;
-        float amax = Float.MIN_VALUE;
+        float max = 0.0f;
+        float amax = 0.0f;
 
-        // Accumulate the max value for this block
+        // Accumulate the max value for this block, keeping its sign
+        float[] values = new float[BLOCK_SIZE];
         for (int i = 0; i < BLOCK_SIZE; i++) {
             float v = ft.get(cursor);
             float absv = v < 0 ? -v : v;
@@ -79,6 +87,7 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
                 max = v;
                 amax = absv;
             }
+            values[i] = v;
             ft.iterate(cursor);
         }
 
@@ -86,57 +95,61 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         float scale = max / -16f;
         float iscale = scale != 0.0f ? 1.0f / scale : 0.0f;
         this.blockF.set(scale, makeBlockShape(blockStartCursor));
-        int i = ft.getOffset(blockStartCursor);
-        int q = 0;
 
-        // Reset the cursor
-        cursor = Arrays.copyOf(blockStartCursor, blockStartCursor.length);
-        for (int j = 0; j < BLOCK_SIZE / 2; j++, i += 2) {
-            float f0 = ft.get(cursor) * iscale;
-            ft.iterate(cursor);
-            float f1 = ft.get(cursor) * iscale;
-            ft.iterate(cursor);
+        int base = getMemorySegmentOffset(ft.getOffset(blockStartCursor));
+        int qh = 0;
+        for (int j = 0; j < HALF_BLOCK; j++) {
+            int q0 = Math.min(31, (int) (values[j] * iscale + 16.5f));
+            int q1 = Math.min(31, (int) (values[j + HALF_BLOCK] * iscale + 16.5f));
 
-            short fb0 = (byte) Math.min(31, (byte) (f0 + 16.5f));
-            short fb1 = (byte) Math.min(31, (byte) (f1 + 16.5f));
+            this.b.put(base + Integer.BYTES + j, (byte) ((q0 & 0x0F) | ((q1 & 0x0F) << 4)));
 
-            this.b.put(i / 2, (byte) ((fb0 & 0x0F) | ((fb1 & 0x0F) << 4)));
-
-            // 5th bit of each quant placed deterministically
-            q |= ((fb0 & 0x10) >>> 4) << (j + 0);
-            q |= ((fb1 & 0x10) >>> 4) << (j + BLOCK_SIZE / 2);
+            qh |= ((q0 >>> 4) & 1) << j;
+            qh |= ((q1 >>> 4) & 1) << (j + HALF_BLOCK);
         }
 
-        this.b5[getOffset(makeBlockShape(blockStartCursor))] = q;
+        this.b.putInt(base, qh);
     }
 
     protected Q5ByteBufferTensor(TensorShape shape) {
         super(DType.Q5, shape, true);
         Preconditions.checkArgument(this.size() % BLOCK_SIZE == 0, "Tensor must be a multiple of BLOCK_SIZE");
         this.blockF = new FloatBufferTensor(makeBlockShape(shape));
-        this.b5 = new int[Ints.checkedCast(makeBlockShape(shape).size())];
         this.name = "tmp";
 
-        if (TensorOperationsProvider.get().requiresOffHeapTensor()) {
-            this.b = UnsafeDirectByteBuffer.allocateAlignedByteBuffer(
-                            Ints.checkedCast(size() / 2), UnsafeDirectByteBuffer.CACHE_LINE_SIZE)
+        int bytes = Ints.checkedCast(this.size() / BLOCK_SIZE * BLOCK_BYTES);
+        if (requiresOffHeapTensor) {
+            this.b = UnsafeDirectByteBuffer.allocateAlignedByteBuffer(bytes, UnsafeDirectByteBuffer.CACHE_LINE_SIZE)
                     .order(ByteOrder.LITTLE_ENDIAN);
         } else {
-            this.b = ByteBuffer.allocate(Ints.checkedCast(this.size() / 2)).order(ByteOrder.LITTLE_ENDIAN);
+            this.b = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
         }
 
         this.segment = MemorySegment.ofBuffer(b);
     }
 
     public Q5ByteBufferTensor(
-            String name, ByteBuffer b, FloatBufferTensor blockF, int[] b5, TensorShape shape, boolean cacheSlices) {
+            String name, ByteBuffer b, FloatBufferTensor blockF, TensorShape shape, boolean cacheSlices) {
         super(DType.Q5, shape, cacheSlices);
-        Preconditions.checkArgument(b.isDirect(), "Must use direct buffers");
-        this.name = name;
-        this.b = b;
         this.blockF = blockF;
-        this.b5 = b5;
-        this.segment = MemorySegment.ofBuffer(b);
+        this.name = name;
+        if (requiresOffHeapTensor) {
+            if (b.isDirect()) {
+                this.b = b.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                this.b = ByteBuffer.allocateDirect(b.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+                this.b.duplicate().put(b);
+            }
+        } else {
+            if (!b.isDirect()) {
+                this.b = b.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                this.b = ByteBuffer.allocate(b.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+                this.b.duplicate().put(b);
+            }
+        }
+
+        this.segment = MemorySegment.ofBuffer(this.b);
     }
 
     @Override
@@ -144,15 +157,16 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         return new Q5ByteBufferTensor(shape);
     }
 
-    public FloatBufferTensor getBlockF() {
-        return blockF;
-    }
-
     @Override
     protected AbstractTensor make(int offset, int length, TensorShape shape, boolean cacheSlices) {
         FloatBufferTensor newBlockF = (FloatBufferTensor) this.blockF.make(
                 (int) (offset * I_BLOCK_SIZE), (int) (length * I_BLOCK_SIZE), makeBlockShape(shape), cacheSlices);
-        return new Q5ByteBufferTensor(name, b.slice(offset, length), newBlockF, b5, shape, cacheSlices);
+        return new Q5ByteBufferTensor(
+                name,
+                b.slice(getMemorySegmentOffset(offset), getMemorySegmentOffset(length)),
+                newBlockF,
+                shape,
+                cacheSlices);
     }
 
     @Override
@@ -161,27 +175,31 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         Preconditions.checkArgument(dims.length == shape.dims(), "Must specify all dimensions");
         int i = getOffset(dims);
         float scale = blockF.get(makeBlockShape(dims));
-        int q = b5[getOffset(makeBlockShape(dims))];
-        byte b0 = this.b.get(i / 2);
-        int j = i % BLOCK_SIZE / 2;
-
-        byte xh;
-        int x;
-        if (i % 2 == 0) {
-            xh = (byte) (((q >> (j + 0)) << 4) & 0x10);
-            x = ((b0 & 0x0F) | xh) - 16;
-        } else {
-            xh = (byte) (((q >> (j + 12))) & 0x10); // j + 12 == j + BLOCK_SIZE/2 << 4
-            x = ((b0 >> 4 & 0x0F) | xh) - 16;
-        }
 
-        return x * scale;
+        int base = getMemorySegmentOffset(i);
+        int j = i % BLOCK_SIZE;
+        int qh = this.b.getInt(base);
+        byte b0 = this.b.get(base + Integer.BYTES + (j % HALF_BLOCK));
+
+        int x = j < HALF_BLOCK ? b0 & 0x0F : (b0 >> 4) & 0x0F;
+        x |= ((qh >>> j) & 1) << 4;
+        return (x - 16) * scale;
     }
 
-    public final float getFactorForIndex(int i) {
+    public float getFactorForIndex(int d, int i) {
         int ix = (int) (i * I_BLOCK_SIZE);
-        if (ix >= blockF.size()) throw new RuntimeException();
-        return blockF.get(ix);
+        return blockF.get(d, ix);
+    }
+
+    /**
+     * The fifth bits of the block holding the given row and column
+     */
+    public int getHighBitsForIndex(int d, int i) {
+        return b.getInt(getMemorySegmentOffset(getOffset(d, i)));
+    }
+
+    public FloatBufferTensor getBlockF() {
+        return blockF;
     }
 
     @Override
@@ -197,7 +215,7 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
 
     @Override
     public int getArrayOffset(int i) {
-        return b.arrayOffset() + i;
+        return b.arrayOffset() + getMemorySegmentOffset(i);
     }
 
     @Override
@@ -205,36 +223,42 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         return segment;
     }
 
+    /**
+     * Byte offset of the block holding the given element
+     */
     @Override
     public int getMemorySegmentOffset(int offset) {
-        return offset * dType.size();
-    }
-
-    @Override
-    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
-        Preconditions.checkArgument(this.dType == src.dType, "different types");
-        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
-        segment.asSlice(getMemorySegmentOffset(destOffset), length)
-                .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+        return offset / BLOCK_SIZE * BLOCK_BYTES;
     }
 
+    /**
+     * Loads the 16 nibble bytes of the block holding the given element
+     */
     @Override
     public ByteVector getVector(VectorSpecies<Byte> species, int... voffset) {
         int offset = getOffset(voffset);
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
-            return ByteVector.fromArray(species, getArray(), getArrayOffset(offset));
+        if (!requiresOffHeapTensor)
+            return ByteVector.fromArray(species, getArray(), getArrayOffset(offset) + Integer.BYTES);
         else
             return ByteVector.fromMemorySegment(
-                    species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+                    species, segment, getMemorySegmentOffset(offset) + Integer.BYTES, ByteOrder.LITTLE_ENDIAN);
     }
 
     @Override
     public void intoTensor(ByteVector vector, int... aoffset) {
-        Preconditions.checkArgument(!b.isReadOnly());
-        int offset = getOffset(aoffset);
-        if (!TensorOperationsProvider.get().requiresOffHeapTensor())
-            vector.intoArray(getArray(), getArrayOffset(offset));
-        else vector.intoMemorySegment(segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
+        Preconditions.checkArgument(this.dType == src.dType, "different types");
+        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        segment.asSlice(getMemorySegmentOffset(destOffset), getMemorySegmentOffset(length))
+                .copyFrom(src.getMemorySegment()
+                        .asSlice(src.getMemorySegmentOffset(srcOffset), getMemorySegmentOffset(length)));
+
+        Q5ByteBufferTensor srcQ5 = (Q5ByteBufferTensor) src;
+        blockF.copyFrom(srcQ5.blockF, srcOffset / BLOCK_SIZE, destOffset / BLOCK_SIZE, length / BLOCK_SIZE);
     }
 
     @Override
@@ -245,7 +269,7 @@ public class Q5ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
 
     @Override
     public String toString() {
-        byte[] sample = new byte[Math.min(10, b.remaining())];
+        byte[] sample = new byte[Math.min(BLOCK_BYTES, b.remaining())];
         b.duplicate().get(sample);
         return "Q5BufferTensor{" + "name='"
                 + name + '\'' + "shape="
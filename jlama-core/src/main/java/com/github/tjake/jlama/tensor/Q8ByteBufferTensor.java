@@ -234,6 +234,13 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
         segment.asSlice(getMemorySegmentOffset(destOffset), length)
                 .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+
+        // Bring the block scales along when whole blocks are copied
+        if (srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0) {
+            Q8ByteBufferTensor q = (Q8ByteBufferTensor) src;
+            blockF.copyFrom(q.blockF, (int) (srcOffset * I_BLOCK_SIZE), (int) (destOffset * I_BLOCK_SIZE), (int)
+                    (length * I_BLOCK_SIZE));
+        }
     }
 
     @Override
@@ -15,17 +15,25 @@
  */
 package com.github.tjake.jlama.tensor.operations;
 
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.RopeFreqs;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.github.tjake.jlama.util.BiIntConsumer;
 import com.github.tjake.jlama.util.MachineSpec;
+import com.github.tjake.jlama.util.Pair;
 import com.github.tjake.jlama.util.PhysicalCoreExecutor;
 import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.BiFunction;
 import jdk.incubator.vector.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,9 +56,21 @@ public final class PanamaTensorOperations implements TensorOperations {
 
     static final FloatVector F32_ROUND_UP_128 = FloatVector.broadcast(FloatVector.SPECIES_128, 0.5f);
 
+    static final float GELU_SQRT_2_PI = (float) Math.sqrt(2 / Math.PI);
+
     static final VectorMask<Byte> BYTE_MASK_32 =
             VectorMask.fromValues(ByteVector.SPECIES_64, true, true, true, true, false, false, false, false);
 
+    // Species for the kv cache kernels, F32 lanes paired with the BF16/F16 and I8 lanes they widen from
+    static final VectorSpecies<Float> KV_F32 =
+            MachineSpec.VECTOR_TYPE == MachineSpec.Type.AVX_512 ? FloatVector.SPECIES_512 : FloatVector.SPECIES_256;
+    static final VectorSpecies<Integer> KV_I32 =
+            MachineSpec.VECTOR_TYPE == MachineSpec.Type.AVX_512 ? IntVector.SPECIES_512 : IntVector.SPECIES_256;
+    static final VectorSpecies<Short> KV_I16 =
+            MachineSpec.VECTOR_TYPE == MachineSpec.Type.AVX_512 ? ShortVector.SPECIES_256 : ShortVector.SPECIES_128;
+    static final VectorSpecies<Byte> KV_I8 =
+            MachineSpec.VECTOR_TYPE == MachineSpec.Type.AVX_512 ? ByteVector.SPECIES_128 : ByteVector.SPECIES_64;
+
     private final MachineSpec.Type vectorType;
 
     public PanamaTensorOperations(MachineSpec.Type vectorType) {
@@ -112,6 +132,70 @@ public final class PanamaTensorOperations implements TensorOperations {
                             case AVX_512 -> new GemmerF32Q4_512(K, a, b, result, aColumnOffset, bColumnOffset);
                             default -> throw new UnsupportedOperationException(vectorType.name());
                         };
+                        case I8 -> switch (vectorType) {
+                            case AVX_256 -> new GemmerF32Q8_256(K, a, b, result, aColumnOffset, bColumnOffset);
+                            case AVX_512 -> new GemmerF32Q8_512(K, a, b, result, aColumnOffset, bColumnOffset);
+                            default -> throw new UnsupportedOperationException(vectorType.name());
+                        };
+                        case Q5 -> new GemmerF32Q5(
+                                K,
+                                a,
+                                b,
+                                result,
+                                aColumnOffset,
+                                bColumnOffset,
+                                switch (vectorType) {
+                                    case AVX_512 -> FloatVector.SPECIES_512;
+                                    case AVX_256 -> FloatVector.SPECIES_256;
+                                    case ARM_128 -> FloatVector.SPECIES_128;
+                                    default -> throw new UnsupportedOperationException(vectorType.name());
+                                });
+                        case Q4_K -> new GemmerF32Q4K(
+                                K,
+                                a,
+                                b,
+                                result,
+                                aColumnOffset,
+                                bColumnOffset,
+                                switch (vectorType) {
+                                    case AVX_512 -> FloatVector.SPECIES_512;
+                                    case AVX_256 -> FloatVector.SPECIES_256;
+                                    case ARM_128 -> FloatVector.SPECIES_128;
+                                    default -> throw new UnsupportedOperationException(vectorType.name());
+                                });
+                        case BF16, F16 -> switch (vectorType) {
+                            case AVX_512 -> new GemmerF32Half(
+                                    K,
+                                    a,
+                                    b,
+                                    result,
+                                    aColumnOffset,
+                                    bColumnOffset,
+                                    FloatVector.SPECIES_512,
+                                    ShortVector.SPECIES_256,
+                                    IntVector.SPECIES_512);
+                            case AVX_256 -> new GemmerF32Half(
+                                    K,
+                                    a,
+                                    b,
+                                    result,
+                                    aColumnOffset,
+                                    bColumnOffset,
+                                    FloatVector.SPECIES_256,
+                                    ShortVector.SPECIES_128,
+                                    IntVector.SPECIES_256);
+                            case ARM_128 -> new GemmerF32Half(
+                                    K,
+                                    a,
+                                    b,
+                                    result,
+                                    aColumnOffset,
+                                    bColumnOffset,
+                                    FloatVector.SPECIES_128,
+                                    ShortVector.SPECIES_64,
+                                    IntVector.SPECIES_128);
+                            default -> throw new UnsupportedOperationException(vectorType.name());
+                        };
                         default -> throw new UnsupportedOperationException(
                                 b.dType().name());
                     };
@@ -122,6 +206,54 @@ public final class PanamaTensorOperations implements TensorOperations {
                             case ARM_128 -> new GemmerI8Q4_arm(K, a, b, result, aColumnOffset, bColumnOffset);
                             default -> throw new UnsupportedOperationException(vectorType.name());
                         };
+                        case Q5 -> switch (vectorType) {
+                            case AVX_256, AVX_512 -> new GemmerI8Q5(
+                                    K,
+                                    a,
+                                    b,
+                                    result,
+                                    aColumnOffset,
+                                    bColumnOffset,
+                                    ShortVector.SPECIES_256,
+                                    IntVector.SPECIES_256);
+                            case ARM_128 -> new GemmerI8Q5(
+                                    K,
+                                    a,
+                                    b,
+                                    result,
+                                    aColumnOffset,
+                                    bColumnOffset,
+                                    ShortVector.SPECIES_128,
+                                    IntVector.SPECIES_128);
+                            default -> throw new UnsupportedOperationException(vectorType.name());
+                        };
+                        case Q4_K -> switch (vectorType) {
+                            case AVX_256, AVX_512 -> new GemmerI8Q4K(
+                                    K,
+                                    a,
+                                    b,
+                                    result,
+                                    aColumnOffset,
+                                    bColumnOffset,
+                                    ShortVector.SPECIES_256,
+                                    IntVector.SPECIES_256);
+                            case ARM_128 -> new GemmerI8Q4K(
+                                    K,
+                                    a,
+                                    b,
+                                    result,
+                                    aColumnOffset,
+                                    bColumnOffset,
+                                    ShortVector.SPECIES_128,
+                                    IntVector.SPECIES_128);
+                            default -> throw new UnsupportedOperationException(vectorType.name());
+                        };
+                        case I8 -> switch (vectorType) {
+                            case AVX_256 -> new GemmerI8Q8_256(K, a, b, result, aColumnOffset, bColumnOffset);
+                            case AVX_512 -> new GemmerI8Q8_512(K, a, b, result, aColumnOffset, bColumnOffset);
+                            case ARM_128 -> new GemmerI8Q8_arm(K, a, b, result, aColumnOffset, bColumnOffset);
+                            default -> throw new UnsupportedOperationException(vectorType.name());
+                        };
                         default -> throw new UnsupportedOperationException(
                                 b.dType().name());
                     };
@@ -752,8 +884,8 @@ public final class PanamaTensorOperations implements TensorOperations {
                     final var scales = ablock.mul(bblock);
                     // Now for each scalar fetch the corresponding block of data and dot product them
                     for (int k = 0;
-                         k < FloatVector.SPECIES_128.length();
-                         k++, aoffset += blockSize, boffset += blockSize) {
+                            k < FloatVector.SPECIES_128.length();
+                            k++, aoffset += blockSize, boffset += blockSize) {
                         var scale = FloatVector.broadcast(FloatVector.SPECIES_128, scales.lane(k));
 
                         var ab0 = a.getVector(ByteVector.SPECIES_128, i, aoffset);
@@ -769,7 +901,8 @@ public final class PanamaTensorOperations implements TensorOperations {
                         var bf1 = b.getVector(ByteVector.SPECIES_64, j, boffset + 16);
 
                         // Convert the first 4 bits into bytes
-                        var low = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64);
+                        var low = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
+                                .sub(Q4_BYTE_SUB_64);
                         var high = bf0.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_64)
                                 .lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
                                 .sub(Q4_BYTE_SUB_64);
@@ -777,7 +910,8 @@ public final class PanamaTensorOperations implements TensorOperations {
                         var low0 = low.castShape(ShortVector.SPECIES_128, 0);
                         var high0 = high.castShape(ShortVector.SPECIES_128, 0);
 
-                        var nlow = bf1.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64);
+                        var nlow = bf1.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
+                                .sub(Q4_BYTE_SUB_64);
                         var nhigh = bf1.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_64)
                                 .lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
                                 .sub(Q4_BYTE_SUB_64);
@@ -792,8 +926,10 @@ public final class PanamaTensorOperations implements TensorOperations {
                         tacc = tacc.add(af2.mul(high0));
                         tacc = tacc.add(af3.mul(high2));
 
-                        acc = acc.add(tacc.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 0).mul(scale));
-                        acc = acc.add(tacc.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 1).mul(scale));
+                        acc = acc.add(tacc.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 0)
+                                .mul(scale));
+                        acc = acc.add(tacc.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 1)
+                                .mul(scale));
                     }
                 }
 
@@ -802,7 +938,6 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
-
     private class GemmerI8Q4_256 extends Gemmer {
         final BiIntConsumer matmul1x1;
         final BiIntConsumer matmul1x4;
@@ -1202,34 +1337,28 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
-    private class GemmerF32 extends Gemmer {
-
+    private class GemmerI8Q8_256 extends Gemmer {
         final BiIntConsumer matmul1x1;
         final BiIntConsumer matmul1x4;
-        final BiIntConsumer matmul3x4;
-        final BiIntConsumer matmul4x1;
 
-        GemmerF32(int k, AbstractTensor a, AbstractTensor b, AbstractTensor c, int ith, int nth) {
-            super(k, a, b, c, ith, nth);
+        final Q8ByteBufferTensor a;
+        final Q8ByteBufferTensor b;
+
+        GemmerI8Q8_256(
+                int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (Q8ByteBufferTensor) ta;
+            this.b = (Q8ByteBufferTensor) tb;
 
             this.matmul1x1 = initMatmul1x1();
             this.matmul1x4 = initMatmul1x4();
-            this.matmul3x4 = initMatmul3x4();
-            this.matmul4x1 = initMatmul4x1();
         }
 
         @Override
         protected int pickKernel(int m0, int m, int n0, int n) {
             short mc, nc;
-            if (m - m0 >= 3 && n - n0 >= 4) {
-                mc = 3;
-                nc = 4;
-                kernel(m0, m, 3, n0, n, 4, matmul3x4);
-            } else if (m - m0 >= 4 && n - n0 >= 1) {
-                mc = 4;
-                nc = 1;
-                kernel(m0, m, 4, n0, n, 1, matmul4x1);
-            } else if (m - m0 >= 1 && n - n0 >= 4) {
+            if (m - m0 >= 1 && n - n0 >= 4) {
                 mc = 1;
                 nc = 4;
                 kernel(m0, m, 1, n0, n, 4, matmul1x4);
@@ -1244,207 +1373,1480 @@ public final class PanamaTensorOperations implements TensorOperations {
 
         protected BiIntConsumer initMatmul1x1() {
             return (i, j) -> {
-                FloatVector vc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+
                 int aoffset = aColumnOffset;
                 int boffset = bColumnOffset;
-                int alim = aColumnOffset + k;
-                int blim = bColumnOffset + k;
 
-                for (;
-                        aoffset < alim || boffset < blim;
-                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
-                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
-                    FloatVector va = a.getVector(FloatVector.SPECIES_PREFERRED, i, aoffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb = b.getVector(FloatVector.SPECIES_PREFERRED, j, boffset)
-                            .reinterpretAsFloats();
-                    vc = va.fma(vb, vc);
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final var af0 = widen(a, i, aoffset);
+                    final var af1 = widen(a, i, aoffset + 16);
+
+                    acc = blockDot(af0, af1, a.getFactorForIndex(i, aoffset), j, boffset, acc);
                 }
-                c.set(vc.reduceLanes(VectorOperators.ADD), i, j);
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
             };
         }
 
         protected BiIntConsumer initMatmul1x4() {
             return (i, j) -> {
-                FloatVector vc0 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc1 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc2 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc3 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
 
                 int aoffset = aColumnOffset;
                 int boffset = bColumnOffset;
-                int alim = aColumnOffset + k;
-                int blim = bColumnOffset + k;
 
-                for (;
-                        aoffset < alim || boffset < blim;
-                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
-                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
-                    FloatVector va = a.getVector(FloatVector.SPECIES_PREFERRED, i, aoffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb0 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 0, boffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb1 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 1, boffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb2 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 2, boffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb3 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 3, boffset)
-                            .reinterpretAsFloats();
-                    vc0 = va.fma(vb0, vc0);
-                    vc1 = va.fma(vb1, vc1);
-                    vc2 = va.fma(vb2, vc2);
-                    vc3 = va.fma(vb3, vc3);
+                FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_256);
+
+                // The activation block is widened once and shared by the four weight rows
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final float as = a.getFactorForIndex(i, aoffset);
+                    final var af0 = widen(a, i, aoffset);
+                    final var af1 = widen(a, i, aoffset + 16);
+
+                    acc0 = blockDot(af0, af1, as, j + 0, boffset, acc0);
+                    acc1 = blockDot(af0, af1, as, j + 1, boffset, acc1);
+                    acc2 = blockDot(af0, af1, as, j + 2, boffset, acc2);
+                    acc3 = blockDot(af0, af1, as, j + 3, boffset, acc3);
                 }
 
-                c.set(vc0.reduceLanes(VectorOperators.ADD), i, j + 0);
-                c.set(vc1.reduceLanes(VectorOperators.ADD), i, j + 1);
-                c.set(vc2.reduceLanes(VectorOperators.ADD), i, j + 2);
-                c.set(vc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
             };
         }
 
-        protected BiIntConsumer initMatmul3x4() {
-            return (i, j) -> {
-                FloatVector vc00 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc01 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc02 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc03 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc10 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc11 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc12 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc13 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc20 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc21 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc22 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc23 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        private ShortVector widen(Q8ByteBufferTensor t, int row, int offset) {
+            return (ShortVector) t.getVector(ByteVector.SPECIES_128, row, offset)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+        }
 
-                int aoffset = aColumnOffset;
-                int boffset = bColumnOffset;
-                int alim = aColumnOffset + k;
-                int blim = bColumnOffset + k;
+        private FloatVector blockDot(ShortVector af0, ShortVector af1, float as, int j, int boffset, FloatVector acc) {
+            final var scale = FloatVector.broadcast(FloatVector.SPECIES_256, as * b.getFactorForIndex(j, boffset));
 
-                for (;
-                        aoffset < alim || boffset < blim;
-                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
-                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
-                    FloatVector vb0 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 0, boffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb1 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 1, boffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb2 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 2, boffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb3 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 3, boffset)
-                            .reinterpretAsFloats();
+            // Values are within ±127 so the sum of two products still fits in a short
+            final var isum = af0.mul(widen(b, j, boffset)).add(af1.mul(widen(b, j, boffset + 16)));
 
-                    FloatVector va = a.getVector(FloatVector.SPECIES_PREFERRED, i + 0, aoffset)
-                            .reinterpretAsFloats();
-                    vc00 = va.fma(vb0, vc00);
-                    vc01 = va.fma(vb1, vc01);
-                    vc02 = va.fma(vb2, vc02);
-                    vc03 = va.fma(vb3, vc03);
+            acc = scale.fma((FloatVector) isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 0), acc);
+            return scale.fma((FloatVector) isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 1), acc);
+        }
+    }
 
-                    FloatVector va1 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 1, aoffset)
-                            .reinterpretAsFloats();
-                    vc10 = va1.fma(vb0, vc10);
-                    vc11 = va1.fma(vb1, vc11);
-                    vc12 = va1.fma(vb2, vc12);
-                    vc13 = va1.fma(vb3, vc13);
+    private class GemmerI8Q8_512 extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
 
-                    FloatVector va2 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 2, aoffset)
-                            .reinterpretAsFloats();
-                    vc20 = va2.fma(vb0, vc20);
-                    vc21 = va2.fma(vb1, vc21);
-                    vc22 = va2.fma(vb2, vc22);
-                    vc23 = va2.fma(vb3, vc23);
-                }
+        final Q8ByteBufferTensor a;
+        final Q8ByteBufferTensor b;
 
-                c.set(vc00.reduceLanes(VectorOperators.ADD), i + 0, j + 0);
-                c.set(vc01.reduceLanes(VectorOperators.ADD), i + 0, j + 1);
-                c.set(vc02.reduceLanes(VectorOperators.ADD), i + 0, j + 2);
-                c.set(vc03.reduceLanes(VectorOperators.ADD), i + 0, j + 3);
+        GemmerI8Q8_512(
+                int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
 
-                c.set(vc10.reduceLanes(VectorOperators.ADD), i + 1, j + 0);
-                c.set(vc11.reduceLanes(VectorOperators.ADD), i + 1, j + 1);
-                c.set(vc12.reduceLanes(VectorOperators.ADD), i + 1, j + 2);
-                c.set(vc13.reduceLanes(VectorOperators.ADD), i + 1, j + 3);
+            this.a = (Q8ByteBufferTensor) ta;
+            this.b = (Q8ByteBufferTensor) tb;
 
-                c.set(vc20.reduceLanes(VectorOperators.ADD), i + 2, j + 0);
-                c.set(vc21.reduceLanes(VectorOperators.ADD), i + 2, j + 1);
-                c.set(vc22.reduceLanes(VectorOperators.ADD), i + 2, j + 2);
-                c.set(vc23.reduceLanes(VectorOperators.ADD), i + 2, j + 3);
-            };
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
         }
 
-        protected BiIntConsumer initMatmul4x1() {
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
             return (i, j) -> {
-                FloatVector vc0 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc1 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc2 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
-                FloatVector vc3 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
 
                 int aoffset = aColumnOffset;
                 int boffset = bColumnOffset;
-                int alim = aColumnOffset + k;
-                int blim = bColumnOffset + k;
 
-                for (;
-                        aoffset < alim || boffset < blim;
-                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
-                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
-                    FloatVector va0 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 0, aoffset)
-                            .reinterpretAsFloats();
-                    FloatVector va1 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 1, aoffset)
-                            .reinterpretAsFloats();
-                    FloatVector va2 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 2, aoffset)
-                            .reinterpretAsFloats();
-                    FloatVector va3 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 3, aoffset)
-                            .reinterpretAsFloats();
-                    FloatVector vb0 = b.getVector(FloatVector.SPECIES_PREFERRED, j, boffset)
-                            .reinterpretAsFloats();
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_512);
 
-                    vc0 = va0.fma(vb0, vc0);
-                    vc1 = va1.fma(vb0, vc1);
-                    vc2 = va2.fma(vb0, vc2);
-                    vc3 = va3.fma(vb0, vc3);
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    acc = blockDot(widen(a, i, aoffset), a.getFactorForIndex(i, aoffset), j, boffset, acc);
                 }
 
-                c.set(vc0.reduceLanes(VectorOperators.ADD), i + 0, j);
-                c.set(vc1.reduceLanes(VectorOperators.ADD), i + 1, j);
-                c.set(vc2.reduceLanes(VectorOperators.ADD), i + 2, j);
-                c.set(vc3.reduceLanes(VectorOperators.ADD), i + 3, j);
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
             };
         }
-    }
 
-    private abstract class Gemmer {
-        final int k;
-        final AbstractTensor a;
-        final AbstractTensor b;
-        final AbstractTensor c;
-        final int aColumnOffset;
-        final int bColumnOffset;
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
 
-        // The id of each thread is called ith and the number of threads is called nth.
-        Gemmer(int k, AbstractTensor a, AbstractTensor b, AbstractTensor c, int aColumnOffset, int bColumnOffset) {
-            this.k = k;
-            this.a = a;
-            this.b = b;
-            this.c = c;
-            this.aColumnOffset = aColumnOffset;
-            this.bColumnOffset = bColumnOffset;
-        }
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
 
-        void matmul(int m0, int m, int n0, int n) {
-            mnpack(m0, m, n0, n);
-        }
+                FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512);
+                FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_512);
+                FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_512);
+                FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_512);
 
-        private void mnpack(int m0, int m, int n0, int n) {
-            if (m - m0 <= 0 || n - n0 <= 0) return;
+                // The activation block is widened once and shared by the four weight rows
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final float as = a.getFactorForIndex(i, aoffset);
+                    final var af = widen(a, i, aoffset);
 
-            int r = pickKernel(m0, m, n0, n);
-            int mc, nc, mp, np;
-            mc = r >> 4;
-            nc = r & 0xF;
+                    acc0 = blockDot(af, as, j + 0, boffset, acc0);
+                    acc1 = blockDot(af, as, j + 1, boffset, acc1);
+                    acc2 = blockDot(af, as, j + 2, boffset, acc2);
+                    acc3 = blockDot(af, as, j + 3, boffset, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        private ShortVector widen(Q8ByteBufferTensor t, int row, int offset) {
+            return (ShortVector) t.getVector(ByteVector.SPECIES_256, row, offset)
+                    .convertShape(VectorOperators.B2S, ShortVector.SPECIES_512, 0);
+        }
+
+        private FloatVector blockDot(ShortVector af, float as, int j, int boffset, FloatVector acc) {
+            final var scale = FloatVector.broadcast(FloatVector.SPECIES_512, as * b.getFactorForIndex(j, boffset));
+            final var isum = af.mul(widen(b, j, boffset));
+
+            acc = scale.fma((FloatVector) isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 0), acc);
+            return scale.fma((FloatVector) isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 1), acc);
+        }
+    }
+
+    private class GemmerI8Q8_arm extends Gemmer {
+        final BiIntConsumer matmul1x1;
+
+        final Q8ByteBufferTensor a;
+        final Q8ByteBufferTensor b;
+
+        GemmerI8Q8_arm(
+                int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (Q8ByteBufferTensor) ta;
+            this.b = (Q8ByteBufferTensor) tb;
+
+            this.matmul1x1 = initMatmul1x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            return (1 << 4) | 1;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_128);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final var scale = FloatVector.broadcast(
+                            FloatVector.SPECIES_128, a.getFactorForIndex(i, aoffset) * b.getFactorForIndex(j, boffset));
+
+                    var ab0 = a.getVector(ByteVector.SPECIES_128, i, aoffset);
+                    var ab1 = a.getVector(ByteVector.SPECIES_128, i, aoffset + 16);
+                    var bb0 = b.getVector(ByteVector.SPECIES_128, j, boffset);
+                    var bb1 = b.getVector(ByteVector.SPECIES_128, j, boffset + 16);
+
+                    // Only two products are summed per short lane so they can't overflow
+                    ShortVector tacc0 = ((ShortVector)
+                                    ab0.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 0))
+                            .mul((ShortVector) bb0.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 0))
+                            .add(((ShortVector) ab1.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 0))
+                                    .mul((ShortVector)
+                                            bb1.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 0)));
+                    ShortVector tacc1 = ((ShortVector)
+                                    ab0.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 1))
+                            .mul((ShortVector) bb0.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 1))
+                            .add(((ShortVector) ab1.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 1))
+                                    .mul((ShortVector)
+                                            bb1.convertShape(VectorOperators.B2S, ShortVector.SPECIES_128, 1)));
+
+                    var isum = tacc0.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 0)
+                            .add(tacc0.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 1))
+                            .add(tacc1.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 0))
+                            .add(tacc1.convertShape(VectorOperators.S2F, FloatVector.SPECIES_128, 1));
+
+                    acc = scale.fma((FloatVector) isum, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+    }
+
+    private class GemmerF32Q8_256 extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+
+        final FloatBufferTensor a;
+        final Q8ByteBufferTensor b;
+
+        GemmerF32Q8_256(
+                int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q8ByteBufferTensor) tb;
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final var af0 = a.getVector(FloatVector.SPECIES_256, i, aoffset);
+                    final var af1 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 8);
+                    final var af2 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 16);
+                    final var af3 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 24);
+
+                    acc = blockDot(af0, af1, af2, af3, j, boffset, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_256);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final var af0 = a.getVector(FloatVector.SPECIES_256, i, aoffset);
+                    final var af1 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 8);
+                    final var af2 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 16);
+                    final var af3 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 24);
+
+                    acc0 = blockDot(af0, af1, af2, af3, j + 0, boffset, acc0);
+                    acc1 = blockDot(af0, af1, af2, af3, j + 1, boffset, acc1);
+                    acc2 = blockDot(af0, af1, af2, af3, j + 2, boffset, acc2);
+                    acc3 = blockDot(af0, af1, af2, af3, j + 3, boffset, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        private FloatVector widen(int j, int boffset) {
+            return (FloatVector) b.getVector(ByteVector.SPECIES_64, j, boffset)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+        }
+
+        private FloatVector blockDot(
+                FloatVector af0,
+                FloatVector af1,
+                FloatVector af2,
+                FloatVector af3,
+                int j,
+                int boffset,
+                FloatVector acc) {
+            // Sum the block then apply its scale once
+            var blockAcc = af0.mul(widen(j, boffset));
+            blockAcc = af1.fma(widen(j, boffset + 8), blockAcc);
+            blockAcc = af2.fma(widen(j, boffset + 16), blockAcc);
+            blockAcc = af3.fma(widen(j, boffset + 24), blockAcc);
+
+            return blockAcc.fma(FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(j, boffset)), acc);
+        }
+    }
+
+    private class GemmerF32Q8_512 extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+
+        final FloatBufferTensor a;
+        final Q8ByteBufferTensor b;
+
+        GemmerF32Q8_512(
+                int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q8ByteBufferTensor) tb;
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_512);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final var af0 = a.getVector(FloatVector.SPECIES_512, i, aoffset);
+                    final var af1 = a.getVector(FloatVector.SPECIES_512, i, aoffset + 16);
+
+                    acc = blockDot(af0, af1, j, boffset, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                final int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512);
+                FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_512);
+                FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_512);
+                FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_512);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    final var af0 = a.getVector(FloatVector.SPECIES_512, i, aoffset);
+                    final var af1 = a.getVector(FloatVector.SPECIES_512, i, aoffset + 16);
+
+                    acc0 = blockDot(af0, af1, j + 0, boffset, acc0);
+                    acc1 = blockDot(af0, af1, j + 1, boffset, acc1);
+                    acc2 = blockDot(af0, af1, j + 2, boffset, acc2);
+                    acc3 = blockDot(af0, af1, j + 3, boffset, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        private FloatVector widen(int j, int boffset) {
+            return (FloatVector) b.getVector(ByteVector.SPECIES_128, j, boffset)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0);
+        }
+
+        private FloatVector blockDot(FloatVector af0, FloatVector af1, int j, int boffset, FloatVector acc) {
+            // Sum the block then apply its scale once
+            var blockAcc = af0.mul(widen(j, boffset));
+            blockAcc = af1.fma(widen(j, boffset + 16), blockAcc);
+
+            return blockAcc.fma(FloatVector.broadcast(FloatVector.SPECIES_512, b.getFactorForIndex(j, boffset)), acc);
+        }
+    }
+
+    /**
+     * F32 activations against Q5 weights, each block is decoded to signed bytes then widened to floats
+     */
+    private class GemmerF32Q5 extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+        final BiIntConsumer matmul4x1;
+
+        final FloatBufferTensor a;
+        final Q5ByteBufferTensor b;
+        final VectorSpecies<Float> fs;
+
+        GemmerF32Q5(
+                int k,
+                AbstractTensor ta,
+                AbstractTensor tb,
+                AbstractTensor c,
+                int aColumnOffset,
+                int bColumnOffset,
+                VectorSpecies<Float> fs) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q5ByteBufferTensor) tb;
+            this.fs = fs;
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+            this.matmul4x1 = initMatmul4x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 4 && n - n0 >= 1) {
+                mc = 4;
+                nc = 1;
+                kernel(m0, m, 4, n0, n, 1, matmul4x1);
+            } else if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc = FloatVector.zero(fs);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    ByteVector nibbles = b.getVector(ByteVector.SPECIES_128, j, boffset);
+                    int qh = b.getHighBitsForIndex(j, boffset);
+                    float scale = b.getFactorForIndex(j, boffset);
+
+                    acc = blockDot(i, aoffset, q5Low(nibbles, qh), q5High(nibbles, qh), scale, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(fs);
+                FloatVector acc1 = FloatVector.zero(fs);
+                FloatVector acc2 = FloatVector.zero(fs);
+                FloatVector acc3 = FloatVector.zero(fs);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    acc0 = blockDot(i, aoffset, j + 0, boffset, acc0);
+                    acc1 = blockDot(i, aoffset, j + 1, boffset, acc1);
+                    acc2 = blockDot(i, aoffset, j + 2, boffset, acc2);
+                    acc3 = blockDot(i, aoffset, j + 3, boffset, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        protected BiIntConsumer initMatmul4x1() {
+            return (i, j) -> {
+                final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(fs);
+                FloatVector acc1 = FloatVector.zero(fs);
+                FloatVector acc2 = FloatVector.zero(fs);
+                FloatVector acc3 = FloatVector.zero(fs);
+
+                // Decode each weight block once for the four rows of a
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    ByteVector nibbles = b.getVector(ByteVector.SPECIES_128, j, boffset);
+                    int qh = b.getHighBitsForIndex(j, boffset);
+                    float scale = b.getFactorForIndex(j, boffset);
+                    ByteVector lo = q5Low(nibbles, qh);
+                    ByteVector hi = q5High(nibbles, qh);
+
+                    acc0 = blockDot(i + 0, aoffset, lo, hi, scale, acc0);
+                    acc1 = blockDot(i + 1, aoffset, lo, hi, scale, acc1);
+                    acc2 = blockDot(i + 2, aoffset, lo, hi, scale, acc2);
+                    acc3 = blockDot(i + 3, aoffset, lo, hi, scale, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i + 0, j);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i + 1, j);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i + 2, j);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i + 3, j);
+            };
+        }
+
+        private FloatVector blockDot(int i, int aoffset, int j, int boffset, FloatVector acc) {
+            ByteVector nibbles = b.getVector(ByteVector.SPECIES_128, j, boffset);
+            int qh = b.getHighBitsForIndex(j, boffset);
+            return blockDot(i, aoffset, q5Low(nibbles, qh), q5High(nibbles, qh), b.getFactorForIndex(j, boffset), acc);
+        }
+
+        private FloatVector blockDot(int i, int aoffset, ByteVector lo, ByteVector hi, float scale, FloatVector acc) {
+            // Sum the block then apply its scale once
+            int len = fs.length();
+            FloatVector blockAcc = FloatVector.zero(fs);
+            for (int p = 0; p < Q5ByteBufferTensor.HALF_BLOCK / len; p++) {
+                blockAcc = a.getVector(fs, i, aoffset + p * len)
+                        .fma((FloatVector) lo.convertShape(VectorOperators.B2F, fs, p), blockAcc);
+                blockAcc = a.getVector(fs, i, aoffset + Q5ByteBufferTensor.HALF_BLOCK + p * len)
+                        .fma((FloatVector) hi.convertShape(VectorOperators.B2F, fs, p), blockAcc);
+            }
+
+            return blockAcc.fma(FloatVector.broadcast(fs, scale), acc);
+        }
+    }
+
+    /**
+     * I8 activations against Q5 weights, products of a block are summed as ints before scaling
+     */
+    private class GemmerI8Q5 extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+        final BiIntConsumer matmul4x1;
+
+        final Q8ByteBufferTensor a;
+        final Q5ByteBufferTensor b;
+        final VectorSpecies<Short> ss;
+        final VectorSpecies<Integer> is;
+
+        GemmerI8Q5(
+                int k,
+                AbstractTensor ta,
+                AbstractTensor tb,
+                AbstractTensor c,
+                int aColumnOffset,
+                int bColumnOffset,
+                VectorSpecies<Short> ss,
+                VectorSpecies<Integer> is) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (Q8ByteBufferTensor) ta;
+            this.b = (Q5ByteBufferTensor) tb;
+            this.ss = ss;
+            this.is = is;
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+            this.matmul4x1 = initMatmul4x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 4 && n - n0 >= 1) {
+                mc = 4;
+                nc = 1;
+                kernel(m0, m, 4, n0, n, 1, matmul4x1);
+            } else if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc = FloatVector.zero(is.withLanes(float.class));
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    ByteVector nibbles = b.getVector(ByteVector.SPECIES_128, j, boffset);
+                    int qh = b.getHighBitsForIndex(j, boffset);
+                    float scale = b.getFactorForIndex(j, boffset);
+
+                    acc = blockDot(i, aoffset, q5Low(nibbles, qh), q5High(nibbles, qh), scale, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc1 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc2 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc3 = FloatVector.zero(is.withLanes(float.class));
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    acc0 = blockDot(i, aoffset, j + 0, boffset, acc0);
+                    acc1 = blockDot(i, aoffset, j + 1, boffset, acc1);
+                    acc2 = blockDot(i, aoffset, j + 2, boffset, acc2);
+                    acc3 = blockDot(i, aoffset, j + 3, boffset, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        protected BiIntConsumer initMatmul4x1() {
+            return (i, j) -> {
+                final int blockSize = Q5ByteBufferTensor.BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc1 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc2 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc3 = FloatVector.zero(is.withLanes(float.class));
+
+                // Decode each weight block once for the four rows of a
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    ByteVector nibbles = b.getVector(ByteVector.SPECIES_128, j, boffset);
+                    int qh = b.getHighBitsForIndex(j, boffset);
+                    float scale = b.getFactorForIndex(j, boffset);
+                    ByteVector lo = q5Low(nibbles, qh);
+                    ByteVector hi = q5High(nibbles, qh);
+
+                    acc0 = blockDot(i + 0, aoffset, lo, hi, scale, acc0);
+                    acc1 = blockDot(i + 1, aoffset, lo, hi, scale, acc1);
+                    acc2 = blockDot(i + 2, aoffset, lo, hi, scale, acc2);
+                    acc3 = blockDot(i + 3, aoffset, lo, hi, scale, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i + 0, j);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i + 1, j);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i + 2, j);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i + 3, j);
+            };
+        }
+
+        private FloatVector blockDot(int i, int aoffset, int j, int boffset, FloatVector acc) {
+            ByteVector nibbles = b.getVector(ByteVector.SPECIES_128, j, boffset);
+            int qh = b.getHighBitsForIndex(j, boffset);
+            return blockDot(i, aoffset, q5Low(nibbles, qh), q5High(nibbles, qh), b.getFactorForIndex(j, boffset), acc);
+        }
+
+        private FloatVector blockDot(int i, int aoffset, ByteVector lo, ByteVector hi, float scale, FloatVector acc) {
+            IntVector isum = IntVector.zero(is);
+            isum = dot(a.getVector(ByteVector.SPECIES_128, i, aoffset), lo, isum);
+            isum = dot(a.getVector(ByteVector.SPECIES_128, i, aoffset + Q5ByteBufferTensor.HALF_BLOCK), hi, isum);
+
+            float ab = a.getFactorForIndex(i, aoffset) * scale;
+            return ((FloatVector) isum.convert(VectorOperators.I2F, 0))
+                    .fma(FloatVector.broadcast(is.withLanes(float.class), ab), acc);
+        }
+
+        private IntVector dot(ByteVector x, ByteVector y, IntVector acc) {
+            // |127 * 16| fits in a short so the products are summed as ints
+            for (int p = 0; p < Q5ByteBufferTensor.HALF_BLOCK / ss.length(); p++) {
+                ShortVector prod = ((ShortVector) x.convertShape(VectorOperators.B2S, ss, p))
+                        .mul((ShortVector) y.convertShape(VectorOperators.B2S, ss, p));
+                acc = acc.add(prod.convertShape(VectorOperators.S2I, is, 0))
+                        .add(prod.convertShape(VectorOperators.S2I, is, 1));
+            }
+            return acc;
+        }
+    }
+
+    /**
+     * Values 0-15 of a Q5 block as signed bytes in [-16, 15]
+     */
+    static ByteVector q5Low(ByteVector nibbles, int qh) {
+        VectorMask<Byte> fifth = VectorMask.fromLong(ByteVector.SPECIES_128, qh & 0xFFFF);
+        return nibbles.and((byte) 0x0F)
+                .lanewise(VectorOperators.OR, 0x10, fifth)
+                .sub((byte) 16);
+    }
+
+    /**
+     * Values 16-31 of a Q5 block as signed bytes in [-16, 15]
+     */
+    static ByteVector q5High(ByteVector nibbles, int qh) {
+        VectorMask<Byte> fifth = VectorMask.fromLong(ByteVector.SPECIES_128, (qh >>> 16) & 0xFFFF);
+        return nibbles.lanewise(VectorOperators.LSHR, 4)
+                .lanewise(VectorOperators.OR, 0x10, fifth)
+                .sub((byte) 16);
+    }
+
+    /**
+     * F32 activations against Q4_K weights, each sub-block is summed once against its quants and once on its own
+     * so the scale and min are applied after the loop
+     */
+    private class GemmerF32Q4K extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+        final BiIntConsumer matmul4x1;
+
+        final FloatBufferTensor a;
+        final Q4KByteBufferTensor b;
+        final VectorSpecies<Float> fs;
+
+        GemmerF32Q4K(
+                int k,
+                AbstractTensor ta,
+                AbstractTensor tb,
+                AbstractTensor c,
+                int aColumnOffset,
+                int bColumnOffset,
+                VectorSpecies<Float> fs) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q4KByteBufferTensor) tb;
+            this.fs = fs;
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+            this.matmul4x1 = initMatmul4x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 4 && n - n0 >= 1) {
+                mc = 4;
+                nc = 1;
+                kernel(m0, m, 4, n0, n, 1, matmul4x1);
+            } else if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                final int blockSize = Q4KByteBufferTensor.SUB_BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc = FloatVector.zero(fs);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    acc = blockDot(i, aoffset, j, boffset, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                final int blockSize = Q4KByteBufferTensor.SUB_BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(fs);
+                FloatVector acc1 = FloatVector.zero(fs);
+                FloatVector acc2 = FloatVector.zero(fs);
+                FloatVector acc3 = FloatVector.zero(fs);
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    acc0 = blockDot(i, aoffset, j + 0, boffset, acc0);
+                    acc1 = blockDot(i, aoffset, j + 1, boffset, acc1);
+                    acc2 = blockDot(i, aoffset, j + 2, boffset, acc2);
+                    acc3 = blockDot(i, aoffset, j + 3, boffset, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        protected BiIntConsumer initMatmul4x1() {
+            return (i, j) -> {
+                final int blockSize = Q4KByteBufferTensor.SUB_BLOCK_SIZE;
+                final int half = blockSize / 2;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(fs);
+                FloatVector acc1 = FloatVector.zero(fs);
+                FloatVector acc2 = FloatVector.zero(fs);
+                FloatVector acc3 = FloatVector.zero(fs);
+
+                // Decode each weight sub-block once for the four rows of a
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    ByteVector lo = b.getVector(ByteVector.SPECIES_128, j, boffset);
+                    ByteVector hi = b.getVector(ByteVector.SPECIES_128, j, boffset + half);
+                    float scale = b.getScaleForIndex(j, boffset);
+                    float min = b.getMinForIndex(j, boffset);
+
+                    acc0 = blockDot(i + 0, aoffset, lo, hi, scale, min, acc0);
+                    acc1 = blockDot(i + 1, aoffset, lo, hi, scale, min, acc1);
+                    acc2 = blockDot(i + 2, aoffset, lo, hi, scale, min, acc2);
+                    acc3 = blockDot(i + 3, aoffset, lo, hi, scale, min, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i + 0, j);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i + 1, j);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i + 2, j);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i + 3, j);
+            };
+        }
+
+        private FloatVector blockDot(int i, int aoffset, int j, int boffset, FloatVector acc) {
+            return blockDot(
+                    i,
+                    aoffset,
+                    b.getVector(ByteVector.SPECIES_128, j, boffset),
+                    b.getVector(ByteVector.SPECIES_128, j, boffset + Q4KByteBufferTensor.SUB_BLOCK_SIZE / 2),
+                    b.getScaleForIndex(j, boffset),
+                    b.getMinForIndex(j, boffset),
+                    acc);
+        }
+
+        private FloatVector blockDot(
+                int i, int aoffset, ByteVector lo, ByteVector hi, float scale, float min, FloatVector acc) {
+            final int half = Q4KByteBufferTensor.SUB_BLOCK_SIZE / 2;
+            int len = fs.length();
+            FloatVector blockAcc = FloatVector.zero(fs);
+            FloatVector sumA = FloatVector.zero(fs);
+            for (int p = 0; p < half / len; p++) {
+                FloatVector a0 = a.getVector(fs, i, aoffset + p * len);
+                FloatVector a1 = a.getVector(fs, i, aoffset + half + p * len);
+                blockAcc = a0.fma((FloatVector) lo.convertShape(VectorOperators.B2F, fs, p), blockAcc);
+                blockAcc = a1.fma((FloatVector) hi.convertShape(VectorOperators.B2F, fs, p), blockAcc);
+                sumA = sumA.add(a0).add(a1);
+            }
+
+            acc = blockAcc.fma(FloatVector.broadcast(fs, scale), acc);
+            return sumA.fma(FloatVector.broadcast(fs, -min), acc);
+        }
+    }
+
+    /**
+     * I8 activations against Q4_K weights.  The quants are unsigned so the min of each sub-block is applied
+     * against the sum of the activations
+     */
+    private class GemmerI8Q4K extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+        final BiIntConsumer matmul4x1;
+
+        final Q8ByteBufferTensor a;
+        final Q4KByteBufferTensor b;
+        final VectorSpecies<Short> ss;
+        final VectorSpecies<Integer> is;
+        final ByteVector ones;
+
+        GemmerI8Q4K(
+                int k,
+                AbstractTensor ta,
+                AbstractTensor tb,
+                AbstractTensor c,
+                int aColumnOffset,
+                int bColumnOffset,
+                VectorSpecies<Short> ss,
+                VectorSpecies<Integer> is) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (Q8ByteBufferTensor) ta;
+            this.b = (Q4KByteBufferTensor) tb;
+            this.ss = ss;
+            this.is = is;
+            this.ones = ByteVector.broadcast(ByteVector.SPECIES_128, (byte) 1);
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+            this.matmul4x1 = initMatmul4x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 4 && n - n0 >= 1) {
+                mc = 4;
+                nc = 1;
+                kernel(m0, m, 4, n0, n, 1, matmul4x1);
+            } else if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                final int blockSize = Q4KByteBufferTensor.SUB_BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc = FloatVector.zero(is.withLanes(float.class));
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    acc = blockDot(i, aoffset, j, boffset, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                final int blockSize = Q4KByteBufferTensor.SUB_BLOCK_SIZE;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc1 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc2 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc3 = FloatVector.zero(is.withLanes(float.class));
+
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    acc0 = blockDot(i, aoffset, j + 0, boffset, acc0);
+                    acc1 = blockDot(i, aoffset, j + 1, boffset, acc1);
+                    acc2 = blockDot(i, aoffset, j + 2, boffset, acc2);
+                    acc3 = blockDot(i, aoffset, j + 3, boffset, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        protected BiIntConsumer initMatmul4x1() {
+            return (i, j) -> {
+                final int blockSize = Q4KByteBufferTensor.SUB_BLOCK_SIZE;
+                final int half = blockSize / 2;
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+
+                FloatVector acc0 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc1 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc2 = FloatVector.zero(is.withLanes(float.class));
+                FloatVector acc3 = FloatVector.zero(is.withLanes(float.class));
+
+                // Decode each weight sub-block once for the four rows of a
+                for (int l = 0; l < k; l += blockSize, aoffset += blockSize, boffset += blockSize) {
+                    ByteVector lo = b.getVector(ByteVector.SPECIES_128, j, boffset);
+                    ByteVector hi = b.getVector(ByteVector.SPECIES_128, j, boffset + half);
+                    float scale = b.getScaleForIndex(j, boffset);
+                    float min = b.getMinForIndex(j, boffset);
+
+                    acc0 = blockDot(i + 0, aoffset, lo, hi, scale, min, acc0);
+                    acc1 = blockDot(i + 1, aoffset, lo, hi, scale, min, acc1);
+                    acc2 = blockDot(i + 2, aoffset, lo, hi, scale, min, acc2);
+                    acc3 = blockDot(i + 3, aoffset, lo, hi, scale, min, acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i + 0, j);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i + 1, j);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i + 2, j);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i + 3, j);
+            };
+        }
+
+        private FloatVector blockDot(int i, int aoffset, int j, int boffset, FloatVector acc) {
+            return blockDot(
+                    i,
+                    aoffset,
+                    b.getVector(ByteVector.SPECIES_128, j, boffset),
+                    b.getVector(ByteVector.SPECIES_128, j, boffset + Q4KByteBufferTensor.SUB_BLOCK_SIZE / 2),
+                    b.getScaleForIndex(j, boffset),
+                    b.getMinForIndex(j, boffset),
+                    acc);
+        }
+
+        private FloatVector blockDot(
+                int i, int aoffset, ByteVector lo, ByteVector hi, float scale, float min, FloatVector acc) {
+            ByteVector a0 = a.getVector(ByteVector.SPECIES_128, i, aoffset);
+            ByteVector a1 = a.getVector(ByteVector.SPECIES_128, i, aoffset + Q4KByteBufferTensor.SUB_BLOCK_SIZE / 2);
+
+            IntVector isum = dot(a1, hi, dot(a0, lo, IntVector.zero(is)));
+            IntVector asum = dot(a1, ones, dot(a0, ones, IntVector.zero(is)));
+
+            float ascale = a.getFactorForIndex(i, aoffset);
+            VectorSpecies<Float> fs = is.withLanes(float.class);
+            acc = ((FloatVector) isum.convert(VectorOperators.I2F, 0))
+                    .fma(FloatVector.broadcast(fs, ascale * scale), acc);
+            return ((FloatVector) asum.convert(VectorOperators.I2F, 0))
+                    .fma(FloatVector.broadcast(fs, -ascale * min), acc);
+        }
+
+        private IntVector dot(ByteVector x, ByteVector y, IntVector acc) {
+            // |127 * 15| fits in a short so the products are summed as ints
+            for (int p = 0; p < x.length() / ss.length(); p++) {
+                ShortVector prod = ((ShortVector) x.convertShape(VectorOperators.B2S, ss, p))
+                        .mul((ShortVector) y.convertShape(VectorOperators.B2S, ss, p));
+                acc = acc.add(prod.convertShape(VectorOperators.S2I, is, 0))
+                        .add(prod.convertShape(VectorOperators.S2I, is, 1));
+            }
+            return acc;
+        }
+    }
+
+    /**
+     * F32 activations against BF16 or F16 weights, the weights are widened a vector at a time
+     */
+    private class GemmerF32Half extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+        final BiIntConsumer matmul4x1;
+
+        final FloatBufferTensor a;
+        final AbstractTensor<ShortVector, Short, short[]> b;
+        final VectorSpecies<Float> fs;
+        final VectorSpecies<Short> ss;
+        final VectorSpecies<Integer> is;
+        final boolean isBF16;
+
+        GemmerF32Half(
+                int k,
+                AbstractTensor ta,
+                AbstractTensor tb,
+                AbstractTensor c,
+                int aColumnOffset,
+                int bColumnOffset,
+                VectorSpecies<Float> fs,
+                VectorSpecies<Short> ss,
+                VectorSpecies<Integer> is) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset);
+
+            this.a = (FloatBufferTensor) ta;
+            this.b = (AbstractTensor<ShortVector, Short, short[]>) tb;
+            this.fs = fs;
+            this.ss = ss;
+            this.is = is;
+            this.isBF16 = tb.dType() == DType.BF16;
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+            this.matmul4x1 = initMatmul4x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 4 && n - n0 >= 1) {
+                mc = 4;
+                nc = 1;
+                kernel(m0, m, 4, n0, n, 1, matmul4x1);
+            } else if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        private FloatVector widen(int j, int boffset) {
+            ShortVector vs = b.getVector(ss, j, boffset);
+            return isBF16 ? bf16ToF32(vs, is) : f16ToF32(vs, is);
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                FloatVector vc = FloatVector.zero(fs);
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+
+                for (; aoffset < alim; aoffset += fs.length(), boffset += fs.length()) {
+                    FloatVector va = a.getVector(fs, i, aoffset);
+                    vc = va.fma(widen(j, boffset), vc);
+                }
+                c.set(vc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                FloatVector vc0 = FloatVector.zero(fs);
+                FloatVector vc1 = FloatVector.zero(fs);
+                FloatVector vc2 = FloatVector.zero(fs);
+                FloatVector vc3 = FloatVector.zero(fs);
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+
+                for (; aoffset < alim; aoffset += fs.length(), boffset += fs.length()) {
+                    FloatVector va = a.getVector(fs, i, aoffset);
+                    vc0 = va.fma(widen(j + 0, boffset), vc0);
+                    vc1 = va.fma(widen(j + 1, boffset), vc1);
+                    vc2 = va.fma(widen(j + 2, boffset), vc2);
+                    vc3 = va.fma(widen(j + 3, boffset), vc3);
+                }
+
+                c.set(vc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(vc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(vc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(vc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        protected BiIntConsumer initMatmul4x1() {
+            return (i, j) -> {
+                FloatVector vc0 = FloatVector.zero(fs);
+                FloatVector vc1 = FloatVector.zero(fs);
+                FloatVector vc2 = FloatVector.zero(fs);
+                FloatVector vc3 = FloatVector.zero(fs);
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+
+                // Widen each weight vector once for the four rows of a
+                for (; aoffset < alim; aoffset += fs.length(), boffset += fs.length()) {
+                    FloatVector vb = widen(j, boffset);
+                    vc0 = a.getVector(fs, i + 0, aoffset).fma(vb, vc0);
+                    vc1 = a.getVector(fs, i + 1, aoffset).fma(vb, vc1);
+                    vc2 = a.getVector(fs, i + 2, aoffset).fma(vb, vc2);
+                    vc3 = a.getVector(fs, i + 3, aoffset).fma(vb, vc3);
+                }
+
+                c.set(vc0.reduceLanes(VectorOperators.ADD), i + 0, j);
+                c.set(vc1.reduceLanes(VectorOperators.ADD), i + 1, j);
+                c.set(vc2.reduceLanes(VectorOperators.ADD), i + 2, j);
+                c.set(vc3.reduceLanes(VectorOperators.ADD), i + 3, j);
+            };
+        }
+    }
+
+    private class GemmerF32 extends Gemmer {
+
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+        final BiIntConsumer matmul3x4;
+        final BiIntConsumer matmul4x1;
+
+        GemmerF32(int k, AbstractTensor a, AbstractTensor b, AbstractTensor c, int ith, int nth) {
+            super(k, a, b, c, ith, nth);
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+            this.matmul3x4 = initMatmul3x4();
+            this.matmul4x1 = initMatmul4x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (m - m0 >= 3 && n - n0 >= 4) {
+                mc = 3;
+                nc = 4;
+                kernel(m0, m, 3, n0, n, 4, matmul3x4);
+            } else if (m - m0 >= 4 && n - n0 >= 1) {
+                mc = 4;
+                nc = 1;
+                kernel(m0, m, 4, n0, n, 1, matmul4x1);
+            } else if (m - m0 >= 1 && n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                FloatVector vc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+                int blim = bColumnOffset + k;
+
+                for (;
+                        aoffset < alim || boffset < blim;
+                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
+                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
+                    FloatVector va = a.getVector(FloatVector.SPECIES_PREFERRED, i, aoffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb = b.getVector(FloatVector.SPECIES_PREFERRED, j, boffset)
+                            .reinterpretAsFloats();
+                    vc = va.fma(vb, vc);
+                }
+                c.set(vc.reduceLanes(VectorOperators.ADD), i, j);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                FloatVector vc0 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc1 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc2 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc3 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+                int blim = bColumnOffset + k;
+
+                for (;
+                        aoffset < alim || boffset < blim;
+                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
+                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
+                    FloatVector va = a.getVector(FloatVector.SPECIES_PREFERRED, i, aoffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb0 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 0, boffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb1 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 1, boffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb2 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 2, boffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb3 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 3, boffset)
+                            .reinterpretAsFloats();
+                    vc0 = va.fma(vb0, vc0);
+                    vc1 = va.fma(vb1, vc1);
+                    vc2 = va.fma(vb2, vc2);
+                    vc3 = va.fma(vb3, vc3);
+                }
+
+                c.set(vc0.reduceLanes(VectorOperators.ADD), i, j + 0);
+                c.set(vc1.reduceLanes(VectorOperators.ADD), i, j + 1);
+                c.set(vc2.reduceLanes(VectorOperators.ADD), i, j + 2);
+                c.set(vc3.reduceLanes(VectorOperators.ADD), i, j + 3);
+            };
+        }
+
+        protected BiIntConsumer initMatmul3x4() {
+            return (i, j) -> {
+                FloatVector vc00 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc01 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc02 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc03 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc10 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc11 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc12 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc13 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc20 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc21 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc22 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc23 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+                int blim = bColumnOffset + k;
+
+                for (;
+                        aoffset < alim || boffset < blim;
+                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
+                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
+                    FloatVector vb0 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 0, boffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb1 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 1, boffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb2 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 2, boffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb3 = b.getVector(FloatVector.SPECIES_PREFERRED, j + 3, boffset)
+                            .reinterpretAsFloats();
+
+                    FloatVector va = a.getVector(FloatVector.SPECIES_PREFERRED, i + 0, aoffset)
+                            .reinterpretAsFloats();
+                    vc00 = va.fma(vb0, vc00);
+                    vc01 = va.fma(vb1, vc01);
+                    vc02 = va.fma(vb2, vc02);
+                    vc03 = va.fma(vb3, vc03);
+
+                    FloatVector va1 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 1, aoffset)
+                            .reinterpretAsFloats();
+                    vc10 = va1.fma(vb0, vc10);
+                    vc11 = va1.fma(vb1, vc11);
+                    vc12 = va1.fma(vb2, vc12);
+                    vc13 = va1.fma(vb3, vc13);
+
+                    FloatVector va2 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 2, aoffset)
+                            .reinterpretAsFloats();
+                    vc20 = va2.fma(vb0, vc20);
+                    vc21 = va2.fma(vb1, vc21);
+                    vc22 = va2.fma(vb2, vc22);
+                    vc23 = va2.fma(vb3, vc23);
+                }
+
+                c.set(vc00.reduceLanes(VectorOperators.ADD), i + 0, j + 0);
+                c.set(vc01.reduceLanes(VectorOperators.ADD), i + 0, j + 1);
+                c.set(vc02.reduceLanes(VectorOperators.ADD), i + 0, j + 2);
+                c.set(vc03.reduceLanes(VectorOperators.ADD), i + 0, j + 3);
+
+                c.set(vc10.reduceLanes(VectorOperators.ADD), i + 1, j + 0);
+                c.set(vc11.reduceLanes(VectorOperators.ADD), i + 1, j + 1);
+                c.set(vc12.reduceLanes(VectorOperators.ADD), i + 1, j + 2);
+                c.set(vc13.reduceLanes(VectorOperators.ADD), i + 1, j + 3);
+
+                c.set(vc20.reduceLanes(VectorOperators.ADD), i + 2, j + 0);
+                c.set(vc21.reduceLanes(VectorOperators.ADD), i + 2, j + 1);
+                c.set(vc22.reduceLanes(VectorOperators.ADD), i + 2, j + 2);
+                c.set(vc23.reduceLanes(VectorOperators.ADD), i + 2, j + 3);
+            };
+        }
+
+        protected BiIntConsumer initMatmul4x1() {
+            return (i, j) -> {
+                FloatVector vc0 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc1 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc2 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector vc3 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+                int blim = bColumnOffset + k;
+
+                for (;
+                        aoffset < alim || boffset < blim;
+                        aoffset += FloatVector.SPECIES_PREFERRED.length(),
+                                boffset += FloatVector.SPECIES_PREFERRED.length()) {
+                    FloatVector va0 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 0, aoffset)
+                            .reinterpretAsFloats();
+                    FloatVector va1 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 1, aoffset)
+                            .reinterpretAsFloats();
+                    FloatVector va2 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 2, aoffset)
+                            .reinterpretAsFloats();
+                    FloatVector va3 = a.getVector(FloatVector.SPECIES_PREFERRED, i + 3, aoffset)
+                            .reinterpretAsFloats();
+                    FloatVector vb0 = b.getVector(FloatVector.SPECIES_PREFERRED, j, boffset)
+                            .reinterpretAsFloats();
+
+                    vc0 = va0.fma(vb0, vc0);
+                    vc1 = va1.fma(vb0, vc1);
+                    vc2 = va2.fma(vb0, vc2);
+                    vc3 = va3.fma(vb0, vc3);
+                }
+
+                c.set(vc0.reduceLanes(VectorOperators.ADD), i + 0, j);
+                c.set(vc1.reduceLanes(VectorOperators.ADD), i + 1, j);
+                c.set(vc2.reduceLanes(VectorOperators.ADD), i + 2, j);
+                c.set(vc3.reduceLanes(VectorOperators.ADD), i + 3, j);
+            };
+        }
+    }
+
+    private abstract class Gemmer {
+        final int k;
+        final AbstractTensor a;
+        final AbstractTensor b;
+        final AbstractTensor c;
+        final int aColumnOffset;
+        final int bColumnOffset;
+
+        // The id of each thread is called ith and the number of threads is called nth.
+        Gemmer(int k, AbstractTensor a, AbstractTensor b, AbstractTensor c, int aColumnOffset, int bColumnOffset) {
+            this.k = k;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.aColumnOffset = aColumnOffset;
+            this.bColumnOffset = bColumnOffset;
+        }
+
+        void matmul(int m0, int m, int n0, int n) {
+            mnpack(m0, m, n0, n);
+        }
+
+        private void mnpack(int m0, int m, int n0, int n) {
+            if (m - m0 <= 0 || n - n0 <= 0) return;
+
+            int r = pickKernel(m0, m, n0, n);
+            int mc, nc, mp, np;
+            mc = r >> 4;
+            nc = r & 0xF;
 
             mp = m0 + (m - m0) / mc * mc;
             np = n0 + (n - n0) / nc * nc;
@@ -1486,10 +2888,431 @@ public final class PanamaTensorOperations implements TensorOperations {
         };
     }
 
-    public Q8ByteBufferTensor quantizeQ8_512(FloatBufferTensor ft, final int offset, int length) {
+    @Override
+    public void gatedActivation(
+            ActivationFunction.Type type,
+            AbstractTensor x,
+            Optional<AbstractTensor> up,
+            Optional<AbstractTensor> qx,
+            int offset,
+            int length) {
+        Preconditions.checkArgument(x.dType() == DType.F32);
+        Preconditions.checkArgument(up.isEmpty() || up.get().dType() == DType.F32);
+        if (qx.isPresent() && qx.get().dType() != DType.I8) throw new UnsupportedOperationException();
+
+        // Quantize each row while it is still in cache
+        for (int b = 0; b < x.shape().first(); b++) {
+            FloatBufferTensor xb = (FloatBufferTensor) x.slice(b);
+            Optional<FloatBufferTensor> ub =
+                    up.isPresent() ? Optional.of((FloatBufferTensor) up.get().slice(b)) : Optional.empty();
+            gatedActivationF32(type, xb, ub, offset, length);
+            if (qx.isPresent()) quantizeQ8(xb, (Q8ByteBufferTensor) qx.get().slice(b), offset, length);
+        }
+    }
+
+    void gatedActivationF32(
+            ActivationFunction.Type type, FloatBufferTensor x, Optional<FloatBufferTensor> up, int offset, int length) {
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+        int i = offset;
+
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+            FloatVector v = x.getVector(FloatVector.SPECIES_PREFERRED, 0, i);
+            FloatVector a =
+                    switch (type) {
+                        case SILU -> v.div(v.neg().lanewise(VectorOperators.EXP).add(1.0f));
+                        case GELU -> v.mul(v)
+                                .mul(v)
+                                .mul(0.044715f)
+                                .add(v)
+                                .mul(GELU_SQRT_2_PI)
+                                .lanewise(VectorOperators.TANH)
+                                .add(1.0f)
+                                .mul(v)
+                                .mul(0.5f);
+                    };
+
+            if (up.isPresent()) a = a.mul(up.get().getVector(FloatVector.SPECIES_PREFERRED, 0, i));
+            x.intoTensor(a, 0, i);
+        }
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = ActivationFunction.eval(type, x.get(0, i));
+            x.set(up.isPresent() ? v * up.get().get(0, i) : v, 0, i);
+        }
+    }
+
+    @Override
+    public void rmsNorm(
+            AbstractTensor out,
+            AbstractTensor x,
+            AbstractTensor weights,
+            float weightAdjustment,
+            float eps,
+            int normLength,
+            int offset,
+            int length,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        if (!normTypes(out, x, weights, weights, offset, length)) {
+            TensorOperations.super.rmsNorm(out, x, weights, weightAdjustment, eps, normLength, offset, length, reducer);
+            return;
+        }
+
+        for (int b = 0; b < x.shape().first(); b++) {
+            FloatBufferTensor xb = (FloatBufferTensor) x.slice(b);
+            float ss = sumOfSquaresF32(xb, offset, length);
+            if (reducer.isPresent()) ss = reducer.get().apply(ss, 0f).left;
+
+            float scale = TensorOperations.rmsScale(ss, normLength, eps);
+            norm(out.slice(b), xb, (FloatBufferTensor) weights, null, weightAdjustment, 0.0f, scale, offset, length);
+        }
+    }
+
+    @Override
+    public void layerNorm(
+            AbstractTensor out,
+            AbstractTensor x,
+            AbstractTensor weights,
+            AbstractTensor bias,
+            float eps,
+            int normLength,
+            int offset,
+            int length,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        if (!normTypes(out, x, weights, bias, offset, length)) {
+            TensorOperations.super.layerNorm(out, x, weights, bias, eps, normLength, offset, length, reducer);
+            return;
+        }
+
+        for (int b = 0; b < x.shape().first(); b++) {
+            FloatBufferTensor xb = (FloatBufferTensor) x.slice(b);
+            float sum = sumF32(xb, offset, length);
+            float sumSq = sumOfSquaresF32(xb, offset, length);
+            if (reducer.isPresent()) {
+                Pair<Float, Float> p = reducer.get().apply(sumSq, sum);
+                sumSq = p.left;
+                sum = p.right;
+            }
+
+            float scale = TensorOperations.layerNormScale(sum, sumSq, normLength, eps);
+            norm(
+                    out.slice(b),
+                    xb,
+                    (FloatBufferTensor) weights,
+                    (FloatBufferTensor) bias,
+                    0.0f,
+                    sum / normLength,
+                    scale,
+                    offset,
+                    length);
+        }
+    }
+
+    /**
+     * The norms are vectorized for F32 inputs written to F32, or to I8 when the range is whole blocks
+     */
+    private boolean normTypes(
+            AbstractTensor out, AbstractTensor x, AbstractTensor weights, AbstractTensor bias, int offset, int length) {
+        if (x.dType() != DType.F32 || weights.dType() != DType.F32 || bias.dType() != DType.F32) return false;
+
+        return switch (out.dType()) {
+            case F32 -> true;
+            case I8 -> offset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0;
+            default -> false;
+        };
+    }
+
+    private void norm(
+            AbstractTensor out,
+            FloatBufferTensor x,
+            FloatBufferTensor weights,
+            FloatBufferTensor bias,
+            float weightAdjustment,
+            float mean,
+            float scale,
+            int offset,
+            int length) {
+        if (out.dType() == DType.F32) {
+            normF32((FloatBufferTensor) out, x, weights, bias, weightAdjustment, mean, scale, offset, length);
+            return;
+        }
+
+        Q8ByteBufferTensor q = (Q8ByteBufferTensor) out;
+        switch (vectorType) {
+            case AVX_512 -> normQ8(
+                    FloatVector.SPECIES_512,
+                    ByteVector.SPECIES_128,
+                    F32_ROUND_UP_512,
+                    q,
+                    x,
+                    weights,
+                    bias,
+                    weightAdjustment,
+                    mean,
+                    scale,
+                    offset,
+                    length);
+            case AVX_256 -> normQ8(
+                    FloatVector.SPECIES_256,
+                    ByteVector.SPECIES_64,
+                    F32_ROUND_UP_256,
+                    q,
+                    x,
+                    weights,
+                    bias,
+                    weightAdjustment,
+                    mean,
+                    scale,
+                    offset,
+                    length);
+            case ARM_128 -> normQ8(
+                    FloatVector.SPECIES_128,
+                    ByteVector.SPECIES_64,
+                    F32_ROUND_UP_128,
+                    q,
+                    x,
+                    weights,
+                    bias,
+                    weightAdjustment,
+                    mean,
+                    scale,
+                    offset,
+                    length);
+            default -> throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The norm of normF32 quantized into the Q8 blocks of out as it's computed.  Each block is normalized
+     * twice, once for its max and once to quantize, rather than being written out and read back as F32.
+     */
+    private void normQ8(
+            VectorSpecies<Float> fs,
+            VectorSpecies<Byte> bs,
+            FloatVector roundUp,
+            Q8ByteBufferTensor out,
+            FloatBufferTensor x,
+            FloatBufferTensor weights,
+            FloatBufferTensor bias,
+            float weightAdjustment,
+            float mean,
+            float scale,
+            int offset,
+            int length) {
+        FloatVector vmean = FloatVector.broadcast(fs, mean);
+        FloatVector vscale = FloatVector.broadcast(fs, scale);
+        // The narrowest byte vector can be wider than a float vector's lanes, only store the ones we filled
+        VectorMask<Byte> bmask = bs.indexInRange(0, fs.length());
+        for (int i = offset; i < offset + length; i += Q8ByteBufferTensor.BLOCK_SIZE) {
+            FloatVector maxAbs = FloatVector.zero(fs);
+            for (int j = i; j < i + Q8ByteBufferTensor.BLOCK_SIZE; j += fs.length())
+                maxAbs = maxAbs.max(normVector(fs, x, weights, bias, weightAdjustment, vmean, vscale, j)
+                        .abs());
+
+            float maxScalar = maxAbs.reduceLanes(VectorOperators.MAX);
+            float d = maxScalar / 127f;
+            float id = (maxScalar != 0.0f) ? 127.f / maxScalar : 0.0f;
+
+            FloatVector vid = FloatVector.broadcast(fs, id);
+            for (int j = i; j < i + Q8ByteBufferTensor.BLOCK_SIZE; j += fs.length()) {
+                FloatVector v = normVector(fs, x, weights, bias, weightAdjustment, vmean, vscale, j);
+                ByteVector bv = roundHalfAway(v.mul(vid), roundUp)
+                        .convertShape(VectorOperators.F2B, bs, 0)
+                        .reinterpretAsBytes();
+                if (bs.length() == fs.length()) out.intoTensor(bv, 0, j);
+                else out.intoTensor(bv, bmask, 0, j);
+            }
+
+            out.getBlockF().set(d, 0, (int) (i * Q8ByteBufferTensor.I_BLOCK_SIZE));
+        }
+    }
+
+    private static FloatVector normVector(
+            VectorSpecies<Float> fs,
+            FloatBufferTensor x,
+            FloatBufferTensor weights,
+            FloatBufferTensor bias,
+            float weightAdjustment,
+            FloatVector vmean,
+            FloatVector vscale,
+            int i) {
+        FloatVector v = x.getVector(fs, 0, i).sub(vmean).mul(vscale);
+        FloatVector w = weights.getVector(fs, 0, i);
+        if (weightAdjustment != 0.0f) w = w.add(weightAdjustment);
+
+        return bias == null ? v.mul(w) : v.fma(w, bias.getVector(fs, 0, i));
+    }
+
+    float sumF32(FloatBufferTensor x, int offset, int length) {
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+        int i = offset;
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length())
+            acc = acc.add(x.getVector(FloatVector.SPECIES_PREFERRED, 0, i));
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < offset + length; i++) sum += x.get(0, i);
+
+        return sum;
+    }
+
+    float sumOfSquaresF32(FloatBufferTensor x, int offset, int length) {
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+        int i = offset;
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+            FloatVector v = x.getVector(FloatVector.SPECIES_PREFERRED, 0, i);
+            acc = v.fma(v, acc);
+        }
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = x.get(0, i);
+            sum += v * v;
+        }
+
+        return sum;
+    }
+
+    /**
+     * out = (x - mean) * scale * (weightAdjustment + weights) + bias, bias may be null
+     */
+    void normF32(
+            FloatBufferTensor out,
+            FloatBufferTensor x,
+            FloatBufferTensor weights,
+            FloatBufferTensor bias,
+            float weightAdjustment,
+            float mean,
+            float scale,
+            int offset,
+            int length) {
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+        int i = offset;
+
+        FloatVector vmean = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, mean);
+        FloatVector vscale = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, scale);
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+            FloatVector v =
+                    x.getVector(FloatVector.SPECIES_PREFERRED, 0, i).sub(vmean).mul(vscale);
+            FloatVector w = weights.getVector(FloatVector.SPECIES_PREFERRED, 0, i);
+            if (weightAdjustment != 0.0f) w = w.add(weightAdjustment);
+
+            v = bias == null ? v.mul(w) : v.fma(w, bias.getVector(FloatVector.SPECIES_PREFERRED, 0, i));
+            out.intoTensor(v, 0, i);
+        }
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = (x.get(0, i) - mean) * scale * (weightAdjustment + weights.get(0, i));
+            out.set(bias == null ? v : v + bias.get(0, i), 0, i);
+        }
+    }
+
+    @Override
+    public void softmax(AbstractTensor x, int offset, int length) {
+        if (x.dType() != DType.F32) {
+            TensorOperations.super.softmax(x, offset, length);
+            return;
+        }
+
+        for (int b = 0; b < x.shape().first(); b++) {
+            FloatBufferTensor row = (FloatBufferTensor) x.slice(b);
+            float sum = expSumF32(row, maxF32(row, offset, length), offset, length);
+            scaleF32(1.0f / sum, row, offset, length);
+        }
+    }
+
+    @Override
+    public float max(AbstractTensor x, int offset, int length) {
+        return x.dType() == DType.F32
+                ? maxF32((FloatBufferTensor) x, offset, length)
+                : TensorOperations.super.max(x, offset, length);
+    }
+
+    @Override
+    public float expSum(AbstractTensor x, float max, int offset, int length) {
+        return x.dType() == DType.F32
+                ? expSumF32((FloatBufferTensor) x, max, offset, length)
+                : TensorOperations.super.expSum(x, max, offset, length);
+    }
+
+    float maxF32(FloatBufferTensor x, int offset, int length) {
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+        int i = offset;
+
+        FloatVector acc = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, Float.NEGATIVE_INFINITY);
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length())
+            acc = acc.max(x.getVector(FloatVector.SPECIES_PREFERRED, 0, i));
+
+        float max = acc.reduceLanes(VectorOperators.MAX);
+
+        // tail
+        for (; i < offset + length; i++) max = Math.max(max, x.get(0, i));
+
+        return max;
+    }
+
+    float expSumF32(FloatBufferTensor x, float max, int offset, int length) {
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+        int i = offset;
+
+        FloatVector vmax = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, max);
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+            FloatVector v =
+                    x.getVector(FloatVector.SPECIES_PREFERRED, 0, i).sub(vmax).lanewise(VectorOperators.EXP);
+            x.intoTensor(v, 0, i);
+            acc = acc.add(v);
+        }
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = (float) Math.exp(x.get(0, i) - max);
+            x.set(v, 0, i);
+            sum += v;
+        }
+
+        return sum;
+    }
+
+    /**
+     * Quantize the blocks in [offset, offset + length) of every row of ft into qft
+     */
+    void quantizeQ8(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
+        Preconditions.checkArgument(
+                offset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+        switch (vectorType) {
+            case AVX_512 -> quantizeQ8_512(ft, qft, offset, length);
+            case AVX_256 -> quantizeQ8_256(ft, qft, offset, length);
+            case ARM_128 -> quantizeQ8_arm(ft, qft, offset, length);
+            default -> throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * F2B truncates toward zero, so push each lane half a step away from zero first
+     */
+    static FloatVector roundHalfAway(FloatVector v, FloatVector half) {
+        return v.add(half.lanewise(VectorOperators.NEG, v.lt(0f)));
+    }
 
+    public Q8ByteBufferTensor quantizeQ8_512(FloatBufferTensor ft, int offset, int length) {
         // Up to caller to release
         Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, ft.shape());
+        quantizeQ8_512(ft, qft, offset, length);
+        return qft;
+    }
+
+    void quantizeQ8_512(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
         int batchSize = ft.shape().first();
         for (int b = 0; b < batchSize; b++) {
             for (int i = offset; i < offset + length; i += Q8ByteBufferTensor.BLOCK_SIZE) {
@@ -1507,10 +3330,10 @@ public final class PanamaTensorOperations implements TensorOperations {
                 float id = (maxScalar != 0.0f) ? 127.f / maxScalar : 0.0f;
 
                 var vid = FloatVector.broadcast(FloatVector.SPECIES_512, id);
-                var fvq0 = fv0.mul(vid).add(F32_ROUND_UP_512); // rounding
-                var fvq1 = fv1.mul(vid).add(F32_ROUND_UP_512); // rounding
+                var fvq0 = roundHalfAway(fv0.mul(vid), F32_ROUND_UP_512);
+                var fvq1 = roundHalfAway(fv1.mul(vid), F32_ROUND_UP_512);
 
-                // Squash to bytes (rounds internally)
+                // Squash to bytes
                 var bvq0 = fvq0.convertShape(VectorOperators.F2B, ByteVector.SPECIES_128, 0)
                         .reinterpretAsBytes();
                 var bvq1 = fvq1.convertShape(VectorOperators.F2B, ByteVector.SPECIES_128, 0)
@@ -1525,14 +3348,16 @@ public final class PanamaTensorOperations implements TensorOperations {
                 }
             }
         }
-
-        return qft;
     }
 
     public Q8ByteBufferTensor quantizeQ8_256(FloatBufferTensor ft, int offset, int length) {
-
         // Up to caller to release
         Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, ft.shape());
+        quantizeQ8_256(ft, qft, offset, length);
+        return qft;
+    }
+
+    void quantizeQ8_256(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
 
         int batchSize = ft.shape().first();
         for (int b = 0; b < batchSize; b++) {
@@ -1557,12 +3382,12 @@ public final class PanamaTensorOperations implements TensorOperations {
                 float id = (maxScalar != 0.0f) ? 127.f / maxScalar : 0.0f;
 
                 var vid = FloatVector.broadcast(FloatVector.SPECIES_256, id);
-                var fvq0 = fv0.mul(vid).add(F32_ROUND_UP_256); // rounding
-                var fvq1 = fv1.mul(vid).add(F32_ROUND_UP_256); // rounding
-                var fvq2 = fv2.mul(vid).add(F32_ROUND_UP_256); // rounding
-                var fvq3 = fv3.mul(vid).add(F32_ROUND_UP_256); // rounding
+                var fvq0 = roundHalfAway(fv0.mul(vid), F32_ROUND_UP_256);
+                var fvq1 = roundHalfAway(fv1.mul(vid), F32_ROUND_UP_256);
+                var fvq2 = roundHalfAway(fv2.mul(vid), F32_ROUND_UP_256);
+                var fvq3 = roundHalfAway(fv3.mul(vid), F32_ROUND_UP_256);
 
-                // Squash to bytes (rounds internally)
+                // Squash to bytes
                 var bvq0 = fvq0.convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
                         .reinterpretAsBytes();
                 var bvq1 = fvq1.convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
@@ -1580,14 +3405,16 @@ public final class PanamaTensorOperations implements TensorOperations {
                 qft.getBlockF().set(d, b, (int) (i * Q8ByteBufferTensor.I_BLOCK_SIZE));
             }
         }
-
-        return qft;
     }
 
     public Q8ByteBufferTensor quantizeQ8_arm(FloatBufferTensor ft, int offset, int length) {
-
         // Up to caller to release
         Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, ft.shape());
+        quantizeQ8_arm(ft, qft, offset, length);
+        return qft;
+    }
+
+    void quantizeQ8_arm(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
 
         int batchSize = ft.shape().first();
         for (int b = 0; b < batchSize; b++) {
@@ -1626,16 +3453,16 @@ public final class PanamaTensorOperations implements TensorOperations {
                 float id = (maxScalar != 0.0f) ? 127.f / maxScalar : 0.0f;
 
                 var vid = FloatVector.broadcast(FloatVector.SPECIES_128, id);
-                var fvq0 = fv0.mul(vid).add(F32_ROUND_UP_128); // rounding
-                var fvq1 = fv1.mul(vid).add(F32_ROUND_UP_128); // rounding
-                var fvq2 = fv2.mul(vid).add(F32_ROUND_UP_128); // rounding
-                var fvq3 = fv3.mul(vid).add(F32_ROUND_UP_128); // rounding
-                var fvq4 = fv4.mul(vid).add(F32_ROUND_UP_128); // rounding
-                var fvq5 = fv5.mul(vid).add(F32_ROUND_UP_128); // rounding
-                var fvq6 = fv6.mul(vid).add(F32_ROUND_UP_128); // rounding
-                var fvq7 = fv7.mul(vid).add(F32_ROUND_UP_128); // rounding
-
-                // Squash to bytes (rounds internally)
+                var fvq0 = roundHalfAway(fv0.mul(vid), F32_ROUND_UP_128);
+                var fvq1 = roundHalfAway(fv1.mul(vid), F32_ROUND_UP_128);
+                var fvq2 = roundHalfAway(fv2.mul(vid), F32_ROUND_UP_128);
+                var fvq3 = roundHalfAway(fv3.mul(vid), F32_ROUND_UP_128);
+                var fvq4 = roundHalfAway(fv4.mul(vid), F32_ROUND_UP_128);
+                var fvq5 = roundHalfAway(fv5.mul(vid), F32_ROUND_UP_128);
+                var fvq6 = roundHalfAway(fv6.mul(vid), F32_ROUND_UP_128);
+                var fvq7 = roundHalfAway(fv7.mul(vid), F32_ROUND_UP_128);
+
+                // Squash to bytes
                 var bvq0 = fvq0.convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
                         .reinterpretAsBytes();
                 var bvq1 = fvq1.convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
@@ -1665,8 +3492,6 @@ public final class PanamaTensorOperations implements TensorOperations {
                 qft.getBlockF().set(d, b, (int) (i * Q8ByteBufferTensor.I_BLOCK_SIZE));
             }
         }
-
-        return qft;
     }
 
     @Override
@@ -2009,6 +3834,426 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    @Override
+    public void kvDotProduct(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows) {
+        Preconditions.checkArgument(a.dType() == DType.F32 && result.dType() == DType.F32);
+        boolean vectorized = vectorType == MachineSpec.Type.AVX_512 || vectorType == MachineSpec.Type.AVX_256;
+
+        switch (kv.dType()) {
+            case F32 -> batchDotProduct(result, a, kv, aoffset, kvoffset, length, 0, rows);
+            case BF16, F16 -> {
+                if (vectorized)
+                    kvDotProduct16(
+                            (FloatBufferTensor) result,
+                            (FloatBufferTensor) a,
+                            (AbstractTensor<ShortVector, Short, short[]>) kv,
+                            kv.dType() == DType.BF16,
+                            aoffset,
+                            kvoffset,
+                            length,
+                            rows);
+                else TensorOperations.super.kvDotProduct(result, a, kv, aoffset, kvoffset, length, rows);
+            }
+            case I8 -> {
+                if (vectorized)
+                    kvDotProductQ8(
+                            (FloatBufferTensor) result,
+                            (FloatBufferTensor) a,
+                            (Q8ByteBufferTensor) kv,
+                            aoffset,
+                            kvoffset,
+                            length,
+                            rows);
+                else TensorOperations.super.kvDotProduct(result, a, kv, aoffset, kvoffset, length, rows);
+            }
+            default -> throw new UnsupportedOperationException(kv.dType().name());
+        }
+    }
+
+    void kvDotProduct16(
+            FloatBufferTensor result,
+            FloatBufferTensor a,
+            AbstractTensor<ShortVector, Short, short[]> kv,
+            boolean isBF16,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows) {
+        int upperBound = KV_F32.loopBound(length);
+
+        for (int j = 0; j < rows; j++) {
+            FloatVector acc = FloatVector.zero(KV_F32);
+            int i = 0;
+            for (; i < upperBound; i += KV_F32.length()) {
+                FloatVector va = a.getVector(KV_F32, 0, aoffset + i);
+                ShortVector vs = kv.getVector(KV_I16, j, kvoffset + i);
+                acc = va.fma(isBF16 ? bf16ToF32(vs) : f16ToF32(vs), acc);
+            }
+
+            float sum = acc.reduceLanes(VectorOperators.ADD);
+
+            // tail
+            for (; i < length; i++) {
+                sum += a.get(0, aoffset + i) * kv.get(j, kvoffset + i);
+            }
+
+            result.set(sum, 0, j);
+        }
+    }
+
+    void kvDotProductQ8(
+            FloatBufferTensor result,
+            FloatBufferTensor a,
+            Q8ByteBufferTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows) {
+        Preconditions.checkArgument(
+                kvoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+        FloatBufferTensor scales = kv.getBlockF();
+        int blockOffset = (int) (kvoffset * Q8ByteBufferTensor.I_BLOCK_SIZE);
+
+        for (int j = 0; j < rows; j++) {
+            FloatVector acc = FloatVector.zero(KV_F32);
+            for (int i = 0, block = blockOffset; i < length; i += Q8ByteBufferTensor.BLOCK_SIZE, block++) {
+                // Sum the block then apply its scale once
+                FloatVector blockAcc = FloatVector.zero(KV_F32);
+                for (int k = i; k < i + Q8ByteBufferTensor.BLOCK_SIZE; k += KV_F32.length()) {
+                    FloatVector va = a.getVector(KV_F32, 0, aoffset + k);
+                    FloatVector vk = (FloatVector)
+                            kv.getVector(KV_I8, j, kvoffset + k).convertShape(VectorOperators.B2F, KV_F32, 0);
+                    blockAcc = va.fma(vk, blockAcc);
+                }
+                acc = blockAcc.fma(FloatVector.broadcast(KV_F32, scales.get(j, block)), acc);
+            }
+
+            result.set(acc.reduceLanes(VectorOperators.ADD), 0, j);
+        }
+    }
+
+    @Override
+    public void kvSaxpy(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows) {
+        Preconditions.checkArgument(y.dType() == DType.F32);
+        boolean vectorized = vectorType == MachineSpec.Type.AVX_512 || vectorType == MachineSpec.Type.AVX_256;
+
+        switch (kv.dType()) {
+            case F32 -> saxpy(alpha, kv, y, kvoffset, yoffset, length, rows);
+            case BF16, F16 -> {
+                if (vectorized)
+                    kvSaxpy16(
+                            alpha,
+                            (AbstractTensor<ShortVector, Short, short[]>) kv,
+                            (FloatBufferTensor) y,
+                            kv.dType() == DType.BF16,
+                            kvoffset,
+                            yoffset,
+                            length,
+                            rows);
+                else TensorOperations.super.kvSaxpy(alpha, kv, y, kvoffset, yoffset, length, rows);
+            }
+            case I8 -> {
+                if (vectorized)
+                    kvSaxpyQ8(alpha, (Q8ByteBufferTensor) kv, (FloatBufferTensor) y, kvoffset, yoffset, length, rows);
+                else TensorOperations.super.kvSaxpy(alpha, kv, y, kvoffset, yoffset, length, rows);
+            }
+            default -> throw new UnsupportedOperationException(kv.dType().name());
+        }
+    }
+
+    void kvSaxpy16(
+            AbstractTensor alpha,
+            AbstractTensor<ShortVector, Short, short[]> kv,
+            FloatBufferTensor y,
+            boolean isBF16,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows) {
+        int upperBound = KV_F32.loopBound(length);
+
+        for (int j = 0; j < rows; j++) {
+            float aj = alpha.get(0, j);
+            FloatVector va = FloatVector.broadcast(KV_F32, aj);
+            int i = 0;
+            for (; i < upperBound; i += KV_F32.length()) {
+                ShortVector vs = kv.getVector(KV_I16, j, kvoffset + i);
+                FloatVector vy = y.getVector(KV_F32, 0, yoffset + i);
+                y.intoTensor((isBF16 ? bf16ToF32(vs) : f16ToF32(vs)).fma(va, vy), 0, yoffset + i);
+            }
+
+            // tail
+            for (; i < length; i++) {
+                y.set(y.get(0, yoffset + i) + aj * kv.get(j, kvoffset + i), 0, yoffset + i);
+            }
+        }
+    }
+
+    void kvSaxpyQ8(
+            AbstractTensor alpha,
+            Q8ByteBufferTensor kv,
+            FloatBufferTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows) {
+        Preconditions.checkArgument(
+                kvoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+        FloatBufferTensor scales = kv.getBlockF();
+        int blockOffset = (int) (kvoffset * Q8ByteBufferTensor.I_BLOCK_SIZE);
+
+        for (int j = 0; j < rows; j++) {
+            float aj = alpha.get(0, j);
+            for (int i = 0, block = blockOffset; i < length; i += Q8ByteBufferTensor.BLOCK_SIZE, block++) {
+                // Fold the block scale into the weight
+                FloatVector va = FloatVector.broadcast(KV_F32, aj * scales.get(j, block));
+                for (int k = i; k < i + Q8ByteBufferTensor.BLOCK_SIZE; k += KV_F32.length()) {
+                    FloatVector vk = (FloatVector)
+                            kv.getVector(KV_I8, j, kvoffset + k).convertShape(VectorOperators.B2F, KV_F32, 0);
+                    FloatVector vy = y.getVector(KV_F32, 0, yoffset + k);
+                    y.intoTensor(vk.fma(va, vy), 0, yoffset + k);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void kvDotProductGroup(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows,
+            int heads) {
+        Preconditions.checkArgument(a.dType() == DType.F32 && result.dType() == DType.F32);
+
+        if (isKvVectorized(kv, kvoffset, length)) {
+            FloatBufferTensor fr = (FloatBufferTensor) result;
+            FloatBufferTensor fa = (FloatBufferTensor) a;
+            FloatVector[] acc = new FloatVector[heads];
+
+            for (int j = 0; j < rows; j++) {
+                Arrays.fill(acc, FloatVector.zero(KV_F32));
+                for (int i = 0; i < length; i += KV_F32.length()) {
+                    // Widen the kv vector once and score every head of the group against it
+                    FloatVector vk = kvVector(kv, j, kvoffset + i);
+                    for (int g = 0; g < heads; g++)
+                        acc[g] = fa.getVector(KV_F32, 0, aoffset + g * length + i)
+                                .fma(vk, acc[g]);
+                }
+
+                for (int g = 0; g < heads; g++) fr.set(acc[g].reduceLanes(VectorOperators.ADD), g, j);
+            }
+        } else {
+            TensorOperations.super.kvDotProductGroup(result, a, kv, aoffset, kvoffset, length, rows, heads);
+        }
+    }
+
+    @Override
+    public void kvSaxpyGroup(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows,
+            int heads) {
+        Preconditions.checkArgument(y.dType() == DType.F32);
+
+        if (isKvVectorized(kv, kvoffset, length)) {
+            FloatBufferTensor fy = (FloatBufferTensor) y;
+            for (int j = 0; j < rows; j++) {
+                for (int i = 0; i < length; i += KV_F32.length()) {
+                    // Widen the kv vector once and accumulate it into every head of the group
+                    FloatVector vk = kvVector(kv, j, kvoffset + i);
+                    for (int g = 0; g < heads; g++) {
+                        int offset = yoffset + g * length + i;
+                        FloatVector va = FloatVector.broadcast(KV_F32, alpha.get(g, j));
+                        fy.intoTensor(vk.fma(va, fy.getVector(KV_F32, 0, offset)), 0, offset);
+                    }
+                }
+            }
+        } else {
+            TensorOperations.super.kvSaxpyGroup(alpha, kv, y, kvoffset, yoffset, length, rows, heads);
+        }
+    }
+
+    @Override
+    public void kvDotProductTile(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows,
+            int heads,
+            int queries) {
+        Preconditions.checkArgument(a.dType() == DType.F32 && result.dType() == DType.F32);
+
+        if (isKvVectorized(kv, kvoffset, length)) {
+            FloatBufferTensor fr = (FloatBufferTensor) result;
+            FloatBufferTensor fa = (FloatBufferTensor) a;
+            FloatVector[] acc = new FloatVector[heads];
+
+            // Each kv row is scored by every query of the tile while it is in cache
+            for (int j = 0; j < rows; j++) {
+                for (int q = 0; q < queries; q++) {
+                    Arrays.fill(acc, FloatVector.zero(KV_F32));
+                    for (int i = 0; i < length; i += KV_F32.length()) {
+                        FloatVector vk = kvVector(kv, j, kvoffset + i);
+                        for (int g = 0; g < heads; g++)
+                            acc[g] = fa.getVector(KV_F32, q, aoffset + g * length + i)
+                                    .fma(vk, acc[g]);
+                    }
+
+                    for (int g = 0; g < heads; g++) fr.set(acc[g].reduceLanes(VectorOperators.ADD), q * heads + g, j);
+                }
+            }
+        } else {
+            TensorOperations.super.kvDotProductTile(result, a, kv, aoffset, kvoffset, length, rows, heads, queries);
+        }
+    }
+
+    @Override
+    public void kvSaxpyTile(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows,
+            int heads,
+            int queries) {
+        Preconditions.checkArgument(y.dType() == DType.F32);
+
+        if (isKvVectorized(kv, kvoffset, length)) {
+            FloatBufferTensor fy = (FloatBufferTensor) y;
+            // Each kv row is accumulated into every query of the tile while it is in cache
+            for (int j = 0; j < rows; j++) {
+                for (int i = 0; i < length; i += KV_F32.length()) {
+                    FloatVector vk = kvVector(kv, j, kvoffset + i);
+                    for (int q = 0; q < queries; q++) {
+                        for (int g = 0; g < heads; g++) {
+                            int offset = yoffset + g * length + i;
+                            FloatVector va = FloatVector.broadcast(KV_F32, alpha.get(q * heads + g, j));
+                            fy.intoTensor(vk.fma(va, fy.getVector(KV_F32, q, offset)), q, offset);
+                        }
+                    }
+                }
+            }
+        } else {
+            TensorOperations.super.kvSaxpyTile(alpha, kv, y, kvoffset, yoffset, length, rows, heads, queries);
+        }
+    }
+
+    private boolean isKvVectorized(AbstractTensor kv, int kvoffset, int length) {
+        if (vectorType != MachineSpec.Type.AVX_512 && vectorType != MachineSpec.Type.AVX_256) return false;
+
+        return switch (kv.dType()) {
+            case F32, BF16, F16 -> length % KV_F32.length() == 0;
+            case I8 -> kvoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0;
+            default -> false;
+        };
+    }
+
+    /**
+     * Read KV_F32.length() values of a kv cache row widened to F32, I8 rows are scaled by their block
+     */
+    private static FloatVector kvVector(AbstractTensor kv, int row, int offset) {
+        return switch (kv.dType()) {
+            case F32 -> ((FloatBufferTensor) kv).getVector(KV_F32, row, offset);
+            case BF16 -> bf16ToF32(((AbstractTensor<ShortVector, Short, short[]>) kv).getVector(KV_I16, row, offset));
+            case F16 -> f16ToF32(((AbstractTensor<ShortVector, Short, short[]>) kv).getVector(KV_I16, row, offset));
+            case I8 -> {
+                Q8ByteBufferTensor q = (Q8ByteBufferTensor) kv;
+                FloatVector vk =
+                        (FloatVector) q.getVector(KV_I8, row, offset).convertShape(VectorOperators.B2F, KV_F32, 0);
+                yield vk.mul(q.getBlockF().get(row, offset / Q8ByteBufferTensor.BLOCK_SIZE));
+            }
+            default -> throw new UnsupportedOperationException(kv.dType().name());
+        };
+    }
+
+    @Override
+    public void rope(AbstractTensor x, RopeFreqs freqs, int[] positions, int offset, int length) {
+        Preconditions.checkArgument(
+                x.dType() == DType.F32 && positions.length == x.shape().first());
+        FloatBufferTensor fx = (FloatBufferTensor) x;
+        int headSize = freqs.headSize();
+        int half = headSize / 2;
+        int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(half);
+
+        for (int b = 0; b < positions.length; b++) {
+            FloatBufferTensor f = (FloatBufferTensor) freqs.row(positions[b]);
+            for (int h = offset; h < offset + length; h += headSize) {
+                int i = 0;
+                for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+                    FloatVector x0 = fx.getVector(FloatVector.SPECIES_PREFERRED, b, h + i);
+                    FloatVector x1 = fx.getVector(FloatVector.SPECIES_PREFERRED, b, h + half + i);
+                    FloatVector fcr = f.getVector(FloatVector.SPECIES_PREFERRED, 0, i);
+                    FloatVector fci = f.getVector(FloatVector.SPECIES_PREFERRED, 0, half + i);
+                    fx.intoTensor(x0.mul(fcr).sub(x1.mul(fci)), b, h + i);
+                    fx.intoTensor(x0.fma(fci, x1.mul(fcr)), b, h + half + i);
+                }
+
+                // tail
+                for (; i < half; i++) {
+                    float x0 = fx.get(b, h + i);
+                    float x1 = fx.get(b, h + half + i);
+                    float fcr = f.get(0, i);
+                    float fci = f.get(0, half + i);
+                    fx.set(x0 * fcr - x1 * fci, b, h + i);
+                    fx.set(x0 * fci + x1 * fcr, b, h + half + i);
+                }
+            }
+        }
+    }
+
+    static FloatVector bf16ToF32(ShortVector vs) {
+        return bf16ToF32(vs, KV_I32);
+    }
+
+    static FloatVector bf16ToF32(ShortVector vs, VectorSpecies<Integer> is) {
+        return ((IntVector) vs.convertShape(VectorOperators.S2I, is, 0))
+                .lanewise(VectorOperators.LSHL, 16)
+                .reinterpretAsFloats();
+    }
+
+    static FloatVector f16ToF32(ShortVector vs) {
+        return f16ToF32(vs, KV_I32);
+    }
+
+    static FloatVector f16ToF32(ShortVector vs, VectorSpecies<Integer> is) {
+        IntVector bits = (IntVector) vs.convertShape(VectorOperators.S2I, is, 0);
+        IntVector sign = bits.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        // Move exponent and mantissa into place then rebias the exponent by scaling with 2^112,
+        // which also takes care of subnormals.  Inf and NaN are not preserved.
+        FloatVector magnitude = bits.and(0x7fff)
+                .lanewise(VectorOperators.LSHL, 13)
+                .reinterpretAsFloats()
+                .mul(0x1p112f);
+        return magnitude.reinterpretAsInts().or(sign).reinterpretAsFloats();
+    }
+
     void saxpyBF16_256(
             float alpha, BFloat16BufferTensor a, BFloat16BufferTensor b, int aoffset, int boffset, int limit) {
         int upperBound = FloatVector.SPECIES_256.loopBound(limit);
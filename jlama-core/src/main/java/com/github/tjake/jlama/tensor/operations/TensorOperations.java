@@ -15,12 +15,18 @@
  */
 package com.github.tjake.jlama.tensor.operations;
 
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.RopeFreqs;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.github.tjake.jlama.tensor.TensorShape;
+import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
+import java.util.Optional;
+import java.util.function.BiFunction;
 
 public interface TensorOperations {
     ThreadLocal<FloatBufferTensor> scratch = ThreadLocal.withInitial(() -> new FloatBufferTensor(TensorShape.one));
@@ -129,6 +135,143 @@ public interface TensorOperations {
         }
     }
 
+    /**
+     * Stores a F32 row into a row of the kv cache, converting to the type of the cache (F32, BF16, F16 or I8)
+     */
+    default void kvStore(AbstractTensor x, AbstractTensor kv, int offset, int length) {
+        Preconditions.checkArgument(
+                x.dType() == DType.F32 && x.shape().first() == 1 && kv.shape().first() == 1);
+
+        switch (kv.dType()) {
+            case F32 -> kv.copyFrom(x, x.getOffset(0, offset), kv.getOffset(0, offset), length);
+            case I8 -> {
+                try (AbstractTensor q = quantize(x, DType.I8, offset, length)) {
+                    Preconditions.checkState(q.dType() == DType.I8, "%s can't quantize to I8", name());
+                    kv.copyFrom(q, q.getOffset(0, offset), kv.getOffset(0, offset), length);
+                }
+            }
+            default -> {
+                for (int i = offset; i < offset + length; i++) kv.set(x.get(0, i), 0, i);
+            }
+        }
+    }
+
+    /**
+     * Attention scores against a block of the kv cache, read in the type it is stored in.
+     * The value computed is R[j] = A[aoffset:aoffset+length] · KV[j, kvoffset:kvoffset+length] for j < rows
+     */
+    default void kvDotProduct(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows) {
+        for (int j = 0; j < rows; j++) {
+            float s = 0;
+            for (int i = 0; i < length; i++) s += a.get(0, aoffset + i) * kv.get(j, kvoffset + i);
+            result.set(s, 0, j);
+        }
+    }
+
+    /**
+     * Attention weighted values from a block of the kv cache, read in the type it is stored in.
+     * The value computed is Y[i] = (alpha[j] * KV[j, i]) + Y[i] for j < rows
+     */
+    default void kvSaxpy(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows) {
+        for (int j = 0; j < rows; j++) {
+            float a = alpha.get(0, j);
+            for (int i = 0; i < length; i++) y.set(y.get(0, yoffset + i) + a * kv.get(j, kvoffset + i), 0, yoffset + i);
+        }
+    }
+
+    /**
+     * Attention scores of a group of query heads sharing one kv head, as in grouped query attention.
+     * Query head g is at aoffset + g * length.  Implementations read each kv row once for the whole group.
+     * The value computed is R[g, j] = A[aoffset+g*length:aoffset+(g+1)*length] · KV[j, kvoffset:kvoffset+length]
+     * for g < heads and j < rows
+     */
+    default void kvDotProductGroup(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows,
+            int heads) {
+        for (int g = 0; g < heads; g++)
+            kvDotProduct(result.slice(g), a, kv, aoffset + g * length, kvoffset, length, rows);
+    }
+
+    /**
+     * Attention weighted values of a group of query heads sharing one kv head, as in grouped query attention.
+     * Query head g is at yoffset + g * length.  Implementations read each kv row once for the whole group.
+     * The value computed is Y[g*length+i] = (alpha[g, j] * KV[j, i]) + Y[g*length+i] for g < heads and j < rows
+     */
+    default void kvSaxpyGroup(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows,
+            int heads) {
+        for (int g = 0; g < heads; g++) kvSaxpy(alpha.slice(g), kv, y, kvoffset, yoffset + g * length, length, rows);
+    }
+
+    /**
+     * Attention scores of a tile of query rows against a block of the kv cache, for a group of query heads
+     * sharing one kv head.  Row q of A holds query head g at aoffset + g * length.  Implementations score each
+     * kv row against the whole tile while it is in cache.
+     * The value computed is R[q*heads+g, j] = A[q, aoffset+g*length:aoffset+(g+1)*length] · KV[j, kvoffset:kvoffset+length]
+     * for q < queries, g < heads and j < rows
+     */
+    default void kvDotProductTile(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows,
+            int heads,
+            int queries) {
+        for (int q = 0; q < queries; q++)
+            kvDotProductGroup(
+                    result.sliceRows(q * heads, heads), a.slice(q), kv, aoffset, kvoffset, length, rows, heads);
+    }
+
+    /**
+     * Attention weighted values of a tile of query rows from a block of the kv cache, for a group of query heads
+     * sharing one kv head.  Row q of Y holds query head g at yoffset + g * length.  Implementations accumulate
+     * each kv row into the whole tile while it is in cache.
+     * The value computed is Y[q, yoffset+g*length+i] = (alpha[q*heads+g, j] * KV[j, kvoffset+i]) + Y[q, yoffset+g*length+i]
+     * for q < queries, g < heads and j < rows
+     */
+    default void kvSaxpyTile(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows,
+            int heads,
+            int queries) {
+        for (int q = 0; q < queries; q++)
+            kvSaxpyGroup(alpha.sliceRows(q * heads, heads), kv, y.slice(q), kvoffset, yoffset, length, rows, heads);
+    }
+
     /**
      * The value computed is Y[i] = X[i] + (beta * Y[i])
      */
@@ -139,6 +282,219 @@ public interface TensorOperations {
      */
     void scale(float factor, AbstractTensor x, int offset, int length);
 
+    /**
+     * Rotary position embedding of the heads in [offset, offset + length) of every row, row b is rotated by the
+     * angles of positions[b].  Element i of a head is paired with element i + headSize / 2 (the huggingface
+     * permutation).
+     */
+    default void rope(AbstractTensor x, RopeFreqs freqs, int[] positions, int offset, int length) {
+        Preconditions.checkArgument(
+                x.dType() == DType.F32 && positions.length == x.shape().first());
+        int headSize = freqs.headSize();
+        int half = headSize / 2;
+
+        for (int b = 0; b < positions.length; b++) {
+            AbstractTensor f = freqs.row(positions[b]);
+            for (int h = offset; h < offset + length; h += headSize) {
+                for (int i = 0; i < half; i++) {
+                    float x0 = x.get(b, h + i);
+                    float x1 = x.get(b, h + half + i);
+                    float fcr = f.get(0, i);
+                    float fci = f.get(0, half + i);
+                    x.set(x0 * fcr - x1 * fci, b, h + i);
+                    x.set(x0 * fci + x1 * fcr, b, h + half + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * RMS normalization of [offset, offset + length) of every row of x into out,
+     * out = x / sqrt(sum(x^2) / normLength + eps) * (weightAdjustment + weights).
+     *
+     * When a row is split across workers the reducer sums the partial sum of squares of the row (left) with theirs.
+     * An I8 out is quantized as it's written, offset and length must then be multiples of its block size.
+     */
+    default void rmsNorm(
+            AbstractTensor out,
+            AbstractTensor x,
+            AbstractTensor weights,
+            float weightAdjustment,
+            float eps,
+            int normLength,
+            int offset,
+            int length,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        Preconditions.checkArgument(
+                x.dims() == 2 && out.shape().first() == x.shape().first());
+        if (out.dType() == DType.I8) {
+            try (AbstractTensor tmp = TensorCache.instance.get(DType.F32, x.shape())) {
+                rmsNorm(tmp, x, weights, weightAdjustment, eps, normLength, offset, length, reducer);
+                quantizeBlocks(tmp, out, offset, length);
+            }
+            return;
+        }
+
+        int limit = offset + length;
+        for (int b = 0; b < x.shape().first(); b++) {
+            float ss = 0.0f;
+            for (int j = offset; j < limit; j++) {
+                float v = x.get(b, j);
+                ss += v * v;
+            }
+
+            if (reducer.isPresent()) ss = reducer.get().apply(ss, 0f).left;
+
+            float scale = rmsScale(ss, normLength, eps);
+            for (int j = offset; j < limit; j++)
+                out.set((weightAdjustment + weights.get(0, j)) * (scale * x.get(b, j)), b, j);
+        }
+    }
+
+    /**
+     * Layer normalization of [offset, offset + length) of every row of x into out,
+     * out = (x - mean) / sqrt(variance + eps) * weights + bias over normLength elements.
+     *
+     * When a row is split across workers the reducer sums the partial sum of squares (left) and sum (right) of the
+     * row with theirs.  An I8 out is quantized as it's written, offset and length must then be multiples of its
+     * block size.
+     */
+    default void layerNorm(
+            AbstractTensor out,
+            AbstractTensor x,
+            AbstractTensor weights,
+            AbstractTensor bias,
+            float eps,
+            int normLength,
+            int offset,
+            int length,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        Preconditions.checkArgument(
+                x.dims() == 2 && out.shape().first() == x.shape().first());
+        if (out.dType() == DType.I8) {
+            try (AbstractTensor tmp = TensorCache.instance.get(DType.F32, x.shape())) {
+                layerNorm(tmp, x, weights, bias, eps, normLength, offset, length, reducer);
+                quantizeBlocks(tmp, out, offset, length);
+            }
+            return;
+        }
+
+        int limit = offset + length;
+        for (int b = 0; b < x.shape().first(); b++) {
+            float sum = 0;
+            float sumSq = 0;
+            for (int i = offset; i < limit; i++) {
+                float v = x.get(b, i);
+                sum += v;
+                sumSq += v * v;
+            }
+
+            if (reducer.isPresent()) {
+                Pair<Float, Float> p = reducer.get().apply(sumSq, sum);
+                sumSq = p.left;
+                sum = p.right;
+            }
+
+            float mean = sum / normLength;
+            float invStddev = layerNormScale(sum, sumSq, normLength, eps);
+            for (int i = offset; i < limit; i++)
+                out.set((x.get(b, i) - mean) * invStddev * weights.get(0, i) + bias.get(0, i), b, i);
+        }
+    }
+
+    static float rmsScale(float sumSq, int normLength, float eps) {
+        return (float) (1.0 / StrictMath.sqrt(sumSq / normLength + eps));
+    }
+
+    static float layerNormScale(float sum, float sumSq, int normLength, float eps) {
+        float mean = sum / normLength;
+        float variance = sumSq / normLength - mean * mean;
+        return 1.0f / (float) Math.sqrt(variance + eps);
+    }
+
+    /**
+     * Softmax over [offset, offset + length) of every row of x, in place
+     */
+    default void softmax(AbstractTensor x, int offset, int length) {
+        for (int b = 0; b < x.shape().first(); b++) {
+            AbstractTensor row = x.slice(b);
+            float sum = expSum(row, max(row, offset, length), offset, length);
+            scale(1.0f / sum, row, offset, length);
+        }
+    }
+
+    /**
+     * The max over [offset, offset + length) of a single row
+     */
+    default float max(AbstractTensor x, int offset, int length) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = offset; i < offset + length; i++) max = Math.max(max, x.get(0, i));
+        return max;
+    }
+
+    /**
+     * x = exp(x - max) over [offset, offset + length) of a single row, returning the sum.  This is the
+     * exponentiation step of a softmax whose max is already known, like the running max of an online softmax.
+     */
+    default float expSum(AbstractTensor x, float max, int offset, int length) {
+        float sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            float v = (float) Math.exp(x.get(0, i) - max);
+            x.set(v, 0, i);
+            sum += v;
+        }
+        return sum;
+    }
+
+    /**
+     * The gated activation of a feed-forward over [offset, offset + length) of every row, x = act(x) * up
+     * or just act(x) without an up projection.
+     *
+     * When qx is present the result is also quantized into it for the down projection, offset and length
+     * must then be multiples of its block size.
+     */
+    default void gatedActivation(
+            ActivationFunction.Type type,
+            AbstractTensor x,
+            Optional<AbstractTensor> up,
+            Optional<AbstractTensor> qx,
+            int offset,
+            int length) {
+        Preconditions.checkArgument(x.dType() == DType.F32);
+        for (int b = 0; b < x.shape().first(); b++) {
+            for (int i = offset; i < offset + length; i++) {
+                float v = ActivationFunction.eval(type, x.get(b, i));
+                x.set(up.isPresent() ? v * up.get().get(b, i) : v, b, i);
+            }
+        }
+
+        qx.ifPresent(q -> quantizeBlocks(x, q, offset, length));
+    }
+
+    /**
+     * Quantizes the blocks in [offset, offset + length) of every row of x into the I8 tensor q
+     */
+    private static void quantizeBlocks(AbstractTensor x, AbstractTensor q, int offset, int length) {
+        if (q.dType() != DType.I8) throw new UnsupportedOperationException();
+        Preconditions.checkArgument(
+                offset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+
+        Q8ByteBufferTensor q8 = (Q8ByteBufferTensor) q;
+        for (int b = 0; b < x.shape().first(); b++) {
+            for (int i = offset; i < offset + length; i += Q8ByteBufferTensor.BLOCK_SIZE) {
+                float max = 0;
+                for (int j = i; j < i + Q8ByteBufferTensor.BLOCK_SIZE; j++) max = Math.max(max, Math.abs(x.get(b, j)));
+
+                // The largest value must stay within the block's range after rounding
+                float d = max / 127f;
+                if (d * 127f < max) d = Math.nextUp(d);
+
+                q8.getBlockF().set(d, b, (int) (i * Q8ByteBufferTensor.I_BLOCK_SIZE));
+                for (int j = i; j < i + Q8ByteBufferTensor.BLOCK_SIZE; j++) q8.set(x.get(b, j), b, j);
+            }
+        }
+    }
+
     /**
      * Quantizes the tensor to the specified type (if supported)
      */
@@ -6,6 +6,7 @@
 #endif
 #include <inttypes.h>
 #include <math.h>
+#include <string.h>
 #include "vector_simd.h"
 
 #define MIN(a,b) (((a)<(b))?(a):(b))
@@ -376,7 +377,7 @@ void __attribute__((noinline)) gemm_q8_q4_256(int m0, int m, int n0, int n, int
     int numBlocks = params.k / Q4_BLOCK_SIZE;
 
     // This fits on the stack (max of 5x5)
-    __attribute__((aligned(16))) float scalef[8];
+    __attribute__((aligned(32))) float scalef[8];
     for (int job = 0; job < tiles; ++job) {
 
         int ii = m0 + job / xtiles * RM;
@@ -437,7 +438,7 @@ void __attribute__((noinline)) gemm_q8_q4_256(int m0, int m, int n0, int n, int
 
         for (int mi = 0; mi < RM; ++mi) {
             for (int ni = 0; ni < RN; ++ni) {
-                __attribute__((aligned(16))) float result[8];
+                __attribute__((aligned(32))) float result[8];
                 _mm256_store_ps(result, sums[mi][ni]);
 
                 float dot = 0.0;
@@ -465,7 +466,7 @@ void __attribute__((noinline)) gemm_q8_q4_512(int m0, int m, int n0, int n, int
     int numBlocks = params.k / Q4_BLOCK_SIZE;
 
     // This fits on the stack (max of 5x5)
-    __attribute__((aligned(16))) float scalef[8];
+    __attribute__((aligned(32))) float scalef[8];
     for (int job = 0; job < tiles; ++job) {
         int ii = m0 + job / xtiles * RM;
         int jj = n0 + job % xtiles * RN;
@@ -584,6 +585,213 @@ void gemm_q8_q4_batch(int flags, int batch_num, const float *af, const char *a,
     }
 }
 
+#if defined(__ARM_NEON__)
+void __attribute__((noinline)) gemm_q8_q8_128_arm(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    int numBlocks = params.k / Q8_BLOCK_SIZE;
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        float32x4_t sums[RM][RN] __attribute__((aligned(32)));
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = vdupq_n_f32(0.0f);
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            int bo = params.boffset;
+
+            for (int i = 0; i < numBlocks; i++, ao += Q8_BLOCK_SIZE, bo += Q8_BLOCK_SIZE) {
+                int8x16_t int_vb0 = vld1q_s8((const signed char *)(params.b + params.ldb * (jj + ni) + bo));
+                int8x16_t int_vb1 = vld1q_s8((const signed char *)(params.b + params.ldb * (jj + ni) + bo + 16));
+                float bscale = params.bf[params.ldbf * (jj + ni) + (bo / Q8_BLOCK_SIZE)];
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    int8x16_t int_va0 = vld1q_s8((const signed char *)(params.a + params.lda * (ii + mi) + ao));
+                    int8x16_t int_va1 = vld1q_s8((const signed char *)(params.a + params.lda * (ii + mi) + ao + 16));
+                    float scale = params.af[params.ldaf * (ii + mi) + (ao / Q8_BLOCK_SIZE)] * bscale;
+
+                    sums[mi][ni] = vmlaq_n_f32(sums[mi][ni],
+                        vcvtq_f32_s32(
+                            vdotq_s32(
+                                vdotq_s32(vdupq_n_s32(0), int_va0, int_vb0),
+                                int_va1, int_vb1)), scale);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = vaddvq_f32(sums[mi][ni]);
+            }
+        }
+    }
+}
+#else
+void __attribute__((noinline)) gemm_q8_q8_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    int numBlocks = params.k / Q8_BLOCK_SIZE;
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        __m256 sums[RM][RN] __attribute__((aligned(32)));
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = _mm256_setzero_ps();
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            int bo = params.boffset;
+
+            for (int i = 0; i < numBlocks; i++, ao += Q8_BLOCK_SIZE, bo += Q8_BLOCK_SIZE) {
+                // One block of weights is shared by every row of the tile
+                __m256i int_vb = _mm256_loadu_si256((__m256i const*)(params.b + params.ldb * (jj + ni) + bo));
+                float bscale = params.bf[params.ldbf * (jj + ni) + (bo / Q8_BLOCK_SIZE)];
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    __m256i int_va = _mm256_loadu_si256((__m256i const*)(params.a + params.lda * (ii + mi) + ao));
+
+                    // maddubs needs one unsigned side, so move the sign of a onto b
+                    __m256i res = _mm256_madd_epi16(_mm256_set1_epi16(1),
+                                                    _mm256_maddubs_epi16(_mm256_sign_epi8(int_va, int_va),
+                                                                         _mm256_sign_epi8(int_vb, int_va)));
+
+                    __m256 scale_f32 = _mm256_set1_ps(params.af[params.ldaf * (ii + mi) + (ao / Q8_BLOCK_SIZE)] * bscale);
+                    sums[mi][ni] = _mm256_fmadd_ps(scale_f32, _mm256_cvtepi32_ps(res), sums[mi][ni]);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                __attribute__((aligned(32))) float result[8];
+                _mm256_store_ps(result, sums[mi][ni]);
+
+                float dot = 0.0;
+                for(int i = 0; i < 8; ++i) {
+                    dot += result[i];
+                }
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = dot;
+            }
+        }
+    }
+}
+
+void __attribute__((noinline)) gemm_q8_q8_512(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+#if defined(__AVX512F__)
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    int numBlocks = params.k / Q8_BLOCK_SIZE;
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        __m256 sums[RM][RN] __attribute__((aligned(32)));
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = _mm256_setzero_ps();
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            int bo = params.boffset;
+
+            for (int i = 0; i < numBlocks; i++, ao += Q8_BLOCK_SIZE, bo += Q8_BLOCK_SIZE) {
+                // One block of weights is shared by every row of the tile
+                __m256i int_vb = _mm256_loadu_si256((__m256i const*)(params.b + params.ldb * (jj + ni) + bo));
+                float bscale = params.bf[params.ldbf * (jj + ni) + (bo / Q8_BLOCK_SIZE)];
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    __m256i int_va = _mm256_loadu_si256((__m256i const*)(params.a + params.lda * (ii + mi) + ao));
+                    __m256i int_va0 = _mm256_sign_epi8(int_va, int_va);
+                    __m256i vb0 = _mm256_sign_epi8(int_vb, int_va);
+
+                    __m256i res;
+                    #if defined(__AVXVNNI__) || (defined(__AVX512VNNI__) && defined(__AVX512VL__))
+                            res = _mm256_dpbusd_epi32(_mm256_setzero_si256(), int_va0, vb0);
+                    #else
+                            res = _mm256_madd_epi16(_mm256_set1_epi16(1), _mm256_maddubs_epi16(int_va0, vb0));
+                    #endif
+
+                    __m256 scale_f32 = _mm256_set1_ps(params.af[params.ldaf * (ii + mi) + (ao / Q8_BLOCK_SIZE)] * bscale);
+                    sums[mi][ni] = _mm256_fmadd_ps(scale_f32, _mm256_cvtepi32_ps(res), sums[mi][ni]);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                // Horizontal sum of the vector to get dot product
+                float dot = _mm512_reduce_add_ps(_mm512_castps256_ps512(sums[mi][ni]));
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = dot;
+            }
+        }
+    }
+#else
+    gemm_q8_q8_256(m0, m, n0, n, RM, RN, params);
+#endif
+}
+#endif //!ARM_NEON
+
+void gemm_q8_q8(int flags, const float * restrict af, const char * restrict a, int aoffset, const float * restrict bf, const char* restrict b, int boffset, float * restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc) {
+
+    struct gemm_params p = {
+                        .flags = flags,
+                        .af = af,
+                        .a = a,
+                        .aoffset = aoffset,
+                        .bf = bf,
+                        .b = b,
+                        .boffset = boffset,
+                        .r = r,
+                        .roffset = roffset,
+                        .m = m,
+                        .n = n,
+                        .k = k,
+                        .ldaf = ldaf,
+                        .ldbf = ldbf,
+                        .lda = lda,
+                        .ldb = ldb,
+                        .ldc = ldc
+    };
+
+#if !defined(__ARM_NEON__)
+    ((flags & HAS_AVX2) != 0)
+           ? gemm(0, m, n0, n0 + n, gemm_q8_q8_512, p)
+           : gemm(0, m, n0, n0 + n, gemm_q8_q8_256, p);
+#else
+    gemm(0, m, n0, n0 + n, gemm_q8_q8_128_arm, p);
+#endif
+}
+
+void gemm_q8_q8_batch(int flags, int batch_num, const float *af, const char *a, int aoffset, const float **bf, const char **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc)
+{
+    for (int i = 0; i < batch_num; i++) {
+        gemm_q8_q8(flags, af, a, aoffset, bf[i], b[i], boffset, r[i], roffset, m, n0, n, k, lda, ldaf, ldb, ldbf, ldc);
+    }
+}
+
 #if defined(__ARM_NEON__)
 void gemm_f32_128_arm(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
     int ytiles = (m - m0) / RM;
@@ -668,7 +876,7 @@ void gemm_f32_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_para
         for (int mi = 0; mi < RM; ++mi) {
             for (int ni = 0; ni < RN; ++ni) {
                 // Horizontal sum of the vector to get dot product
-                __attribute__((aligned(16))) float result[8];
+                __attribute__((aligned(32))) float result[8];
                 _mm256_store_ps(result, sums[mi][ni]);
 
                 float dot = 0.0;
@@ -688,7 +896,7 @@ void gemm_f32_512(int m0, int m, int n0, int n, int RM, int RN, struct gemm_para
     int tiles = xtiles * ytiles;
 
     // This fits on the stack (max of 5x5)
-    __m512 sums[RM][RN] __attribute__((aligned(32)));
+    __m512 sums[RM][RN] __attribute__((aligned(64)));
 
     for (int job = 0; job < tiles; ++job) {
         int ii = m0 + job / xtiles * RM;
@@ -866,7 +1074,7 @@ void gemm_f32_q4_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_p
         for (int mi = 0; mi < RM; ++mi) {
             for (int ni = 0; ni < RN; ++ni) {
                 // Horizontal sum of the vector to get dot product
-                __attribute__((aligned(16))) float result[8];
+                __attribute__((aligned(32))) float result[8];
                 _mm256_store_ps(result, sums[mi][ni]);
 
                 float dot = 0.0;
@@ -1005,4 +1213,829 @@ void gemm_f32_q4_batch(int flags, int batch_num, const float *a, int aoffset, co
     }
 }
 
+#if !defined(__ARM_NEON__)
+// Widen 8 BF16 values, they are the top half of an F32
+static inline __m256 bf16_to_f32_256(const uint16_t *p) {
+    return _mm256_castsi256_ps(_mm256_slli_epi32(_mm256_cvtepu16_epi32(_mm_loadu_si128((const __m128i *)p)), 16));
+}
+
+// Widen 8 F16 values, without F16C the exponent is rebiased by scaling with 2^112 (Inf and NaN are not preserved)
+static inline __m256 f16_to_f32_256(const uint16_t *p) {
+#if defined(__F16C__)
+    return _mm256_cvtph_ps(_mm_loadu_si128((const __m128i *)p));
+#else
+    __m256i bits = _mm256_cvtepu16_epi32(_mm_loadu_si128((const __m128i *)p));
+    __m256i sign = _mm256_slli_epi32(_mm256_and_si256(bits, _mm256_set1_epi32(0x8000)), 16);
+    __m256 magnitude = _mm256_mul_ps(
+            _mm256_castsi256_ps(_mm256_slli_epi32(_mm256_and_si256(bits, _mm256_set1_epi32(0x7fff)), 13)),
+            _mm256_set1_ps(0x1p112f));
+    return _mm256_or_ps(magnitude, _mm256_castsi256_ps(sign));
+#endif
+}
+
+static inline void gemm_f32_half_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params, int isBF16) {
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    const uint16_t *b = (const uint16_t *) params.b;
+
+    // This fits on the stack (max of 5x5)
+    __m256 sums[RM][RN] __attribute__((aligned(32)));
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = _mm256_setzero_ps();
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            int bo = params.boffset;
+            for(int j = 0; j < params.k; j += 8, ao += 8, bo += 8) { // 256bits == 8floats
+                // Widen the weights once for every row of a
+                const uint16_t *bp = b + params.ldb * (jj + ni) + bo;
+                __m256 vb = isBF16 ? bf16_to_f32_256(bp) : f16_to_f32_256(bp);
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    __m256 va = _mm256_loadu_ps(params.af + params.lda * (ii + mi) + ao);
+
+                    // Multiply and accumulate
+                    sums[mi][ni] = _mm256_fmadd_ps(va, vb, sums[mi][ni]);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                // Horizontal sum of the vector to get dot product
+                __attribute__((aligned(32))) float result[8];
+                _mm256_store_ps(result, sums[mi][ni]);
+
+                float dot = 0.0;
+                for(int i = 0; i < 8; ++i) {
+                    dot += result[i];
+                }
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = dot;
+            }
+        }
+    }
+}
+
+void gemm_f32_bf16_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+    gemm_f32_half_256(m0, m, n0, n, RM, RN, params, 1);
+}
+
+void gemm_f32_f16_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+    gemm_f32_half_256(m0, m, n0, n, RM, RN, params, 0);
+}
+
+#if defined(__AVX512F__)
+static inline void gemm_f32_half_512(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params, int isBF16) {
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    const uint16_t *b = (const uint16_t *) params.b;
+
+    // This fits on the stack (max of 5x5)
+    __m512 sums[RM][RN] __attribute__((aligned(64)));
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = _mm512_setzero_ps();
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            int bo = params.boffset;
+            for(int j = 0; j < params.k; j += 16, ao += 16, bo += 16) { // 512bits == 16floats
+                // Widen the weights once for every row of a
+                __m256i vs = _mm256_loadu_si256((const __m256i *)(b + params.ldb * (jj + ni) + bo));
+                __m512 vb = isBF16
+                        ? _mm512_castsi512_ps(_mm512_slli_epi32(_mm512_cvtepu16_epi32(vs), 16))
+                        : _mm512_cvtph_ps(vs);
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    __m512 va = _mm512_loadu_ps(params.af + params.lda * (ii + mi) + ao);
+
+                    // Multiply and accumulate
+                    sums[mi][ni] = _mm512_fmadd_ps(va, vb, sums[mi][ni]);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                // Horizontal sum of the vector to get dot product
+                float r = _mm512_reduce_add_ps(sums[mi][ni]);
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = r;
+            }
+        }
+    }
+}
+#endif
 
+void gemm_f32_bf16_512(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+#if defined(__AVX512F__)
+    gemm_f32_half_512(m0, m, n0, n, RM, RN, params, 1);
+#else
+    gemm_f32_bf16_256(m0, m, n0, n, RM, RN, params);
+#endif
+}
+
+void gemm_f32_f16_512(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+#if defined(__AVX512F__)
+    gemm_f32_half_512(m0, m, n0, n, RM, RN, params, 0);
+#else
+    gemm_f32_f16_256(m0, m, n0, n, RM, RN, params);
+#endif
+}
+#endif //!ARM_NEON
+
+void gemm_f32_bf16(int flags, const float *a, int aoffset, const uint16_t *b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc)
+{
+#if !defined(__ARM_NEON__)
+    struct gemm_params p = {
+                        .flags = flags,
+                        .af = a,
+                        .a = NULL,
+                        .aoffset = aoffset,
+                        .bf = NULL,
+                        .b = (const char *) b,
+                        .boffset = boffset,
+                        .r = r,
+                        .roffset = roffset,
+                        .m = m,
+                        .n = n,
+                        .k = k,
+                        .ldaf = 0,
+                        .ldbf = 0,
+                        .lda = lda,
+                        .ldb = ldb,
+                        .ldc = ldc
+    };
+
+    ((flags & HAS_AVX2) != 0)
+           ? gemm(0, m, n0, n0 + n, gemm_f32_bf16_512, p)
+           : gemm(0, m, n0, n0 + n, gemm_f32_bf16_256, p);
+#endif
+}
+
+void gemm_f32_bf16_batch(int flags, int batch_num, const float *a, int aoffset, const uint16_t **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc)
+{
+    for (int i = 0; i < batch_num; i++) {
+        gemm_f32_bf16(flags, a, aoffset, b[i], boffset, r[i], roffset, m, n0, n, k, lda, ldb, ldc);
+    }
+}
+
+void gemm_f32_f16(int flags, const float *a, int aoffset, const uint16_t *b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc)
+{
+#if !defined(__ARM_NEON__)
+    struct gemm_params p = {
+                        .flags = flags,
+                        .af = a,
+                        .a = NULL,
+                        .aoffset = aoffset,
+                        .bf = NULL,
+                        .b = (const char *) b,
+                        .boffset = boffset,
+                        .r = r,
+                        .roffset = roffset,
+                        .m = m,
+                        .n = n,
+                        .k = k,
+                        .ldaf = 0,
+                        .ldbf = 0,
+                        .lda = lda,
+                        .ldb = ldb,
+                        .ldc = ldc
+    };
+
+    ((flags & HAS_AVX2) != 0)
+           ? gemm(0, m, n0, n0 + n, gemm_f32_f16_512, p)
+           : gemm(0, m, n0, n0 + n, gemm_f32_f16_256, p);
+#endif
+}
+
+void gemm_f32_f16_batch(int flags, int batch_num, const float *a, int aoffset, const uint16_t **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc)
+{
+    for (int i = 0; i < batch_num; i++) {
+        gemm_f32_f16(flags, a, aoffset, b[i], boffset, r[i], roffset, m, n0, n, k, lda, ldb, ldc);
+    }
+}
+
+#if !defined(__ARM_NEON__)
+// Decode a Q5 block (4 bytes of fifth bits then 16 bytes of nibbles) into 32 signed bytes in [-16, 15]
+static inline __m256i q5_block_to_bytes_256(const char *block) {
+    uint32_t qh;
+    memcpy(&qh, block, sizeof(uint32_t));
+
+    // Spread the bits so byte i holds bit i of qh
+    const __m256i shuf_mask = _mm256_set_epi64x(0x0303030303030303, 0x0202020202020202, 0x0101010101010101, 0x0000000000000000);
+    __m256i bits = _mm256_shuffle_epi8(_mm256_set1_epi32(qh), shuf_mask);
+    bits = _mm256_or_si256(bits, _mm256_set1_epi64x(0x7fbfdfeff7fbfdfe));
+    bits = _mm256_cmpeq_epi8(bits, _mm256_set1_epi64x(-1));
+
+    // Values 0-15 are the low nibbles and 16-31 the high nibbles
+    __m128i nibbles = _mm_loadu_si128((__m128i const*)(block + 4));
+    __m256i q = _mm256_set_m128i(_mm_srli_epi16(nibbles, 4), nibbles);
+    q = _mm256_and_si256(q, _mm256_set1_epi8(0x0F));
+
+    // Without the fifth bit the value is below 16, so setting the top nibble subtracts 16
+    return _mm256_or_si256(q, _mm256_andnot_si256(bits, _mm256_set1_epi8((char) 0xF0)));
+}
+
+void gemm_f32_q5_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    int numBlocks = params.k / Q5_BLOCK_SIZE;
+
+    // This fits on the stack (max of 5x5)
+    __m256 sums[RM][RN] __attribute__((aligned(32)));
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = _mm256_setzero_ps();
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            int bo = params.boffset;
+
+            for (int i = 0; i < numBlocks; i++, ao += Q5_BLOCK_SIZE, bo += Q5_BLOCK_BYTES) {
+                // One block of weights is decoded once for every row of the tile
+                __m256i int_vb = q5_block_to_bytes_256(params.b + params.ldb * (jj + ni) + bo);
+                __m128i int_vb_lo = _mm256_castsi256_si128(int_vb);
+                __m128i int_vb_hi = _mm256_extracti128_si256(int_vb, 1);
+                __m256 vb0 = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(int_vb_lo));
+                __m256 vb1 = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(int_vb_lo, 8)));
+                __m256 vb2 = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(int_vb_hi));
+                __m256 vb3 = _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(_mm_srli_si128(int_vb_hi, 8)));
+                __m256 bscale = _mm256_set1_ps(params.bf[params.ldbf * (jj + ni) + (bo / Q5_BLOCK_BYTES)]);
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    const float *ap = params.af + params.lda * (ii + mi) + ao;
+                    __m256 block = _mm256_mul_ps(_mm256_loadu_ps(ap), vb0);
+                    block = _mm256_fmadd_ps(_mm256_loadu_ps(ap + 8), vb1, block);
+                    block = _mm256_fmadd_ps(_mm256_loadu_ps(ap + 16), vb2, block);
+                    block = _mm256_fmadd_ps(_mm256_loadu_ps(ap + 24), vb3, block);
+
+                    // Apply the block scale once
+                    sums[mi][ni] = _mm256_fmadd_ps(block, bscale, sums[mi][ni]);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                // Horizontal sum of the vector to get dot product
+                __attribute__((aligned(32))) float result[8];
+                _mm256_store_ps(result, sums[mi][ni]);
+
+                float dot = 0.0;
+                for(int i = 0; i < 8; ++i) {
+                    dot += result[i];
+                }
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = dot;
+            }
+        }
+    }
+}
+
+void gemm_q8_q5_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    int numBlocks = params.k / Q5_BLOCK_SIZE;
+
+    // This fits on the stack (max of 5x5)
+    __m256 sums[RM][RN] __attribute__((aligned(32)));
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = _mm256_setzero_ps();
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            int bo = params.boffset;
+
+            for (int i = 0; i < numBlocks; i++, ao += Q8_BLOCK_SIZE, bo += Q5_BLOCK_BYTES) {
+                // One block of weights is decoded once for every row of the tile
+                __m256i int_vb = q5_block_to_bytes_256(params.b + params.ldb * (jj + ni) + bo);
+                float bscale = params.bf[params.ldbf * (jj + ni) + (bo / Q5_BLOCK_BYTES)];
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    __m256i int_va = _mm256_loadu_si256((__m256i const*)(params.a + params.lda * (ii + mi) + ao));
+
+                    // maddubs needs one unsigned side, so move the sign of a onto b
+                    __m256i res = _mm256_madd_epi16(_mm256_set1_epi16(1),
+                                                    _mm256_maddubs_epi16(_mm256_sign_epi8(int_va, int_va),
+                                                                         _mm256_sign_epi8(int_vb, int_va)));
+
+                    __m256 scale_f32 = _mm256_set1_ps(params.af[params.ldaf * (ii + mi) + (ao / Q8_BLOCK_SIZE)] * bscale);
+                    sums[mi][ni] = _mm256_fmadd_ps(scale_f32, _mm256_cvtepi32_ps(res), sums[mi][ni]);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                __attribute__((aligned(32))) float result[8];
+                _mm256_store_ps(result, sums[mi][ni]);
+
+                float dot = 0.0;
+                for(int i = 0; i < 8; ++i) {
+                    dot += result[i];
+                }
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = dot;
+            }
+        }
+    }
+}
+#endif //!ARM_NEON
+
+void gemm_f32_q5(int flags, const float *a, int aoffset, const float *bf, const char* b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc)
+{
+#if !defined(__ARM_NEON__)
+    struct gemm_params p = {
+                        .flags = flags,
+                        .af = a,
+                        .a = NULL,
+                        .aoffset = aoffset,
+                        .bf = bf,
+                        .b = b,
+                        .boffset = boffset,
+                        .r = r,
+                        .roffset = roffset,
+                        .m = m,
+                        .n = n,
+                        .k = k,
+                        .ldaf = 0,
+                        .ldbf = ldbf,
+                        .lda = lda,
+                        .ldb = ldb,
+                        .ldc = ldc
+    };
+
+    gemm(0, m, n0, n0 + n, gemm_f32_q5_256, p);
+#endif
+}
+
+void gemm_f32_q5_batch(int flags, int batch_num, const float *a, int aoffset, const float **bf, const char **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc)
+{
+    for (int i = 0; i < batch_num; i++) {
+        gemm_f32_q5(flags, a, aoffset, bf[i], b[i], boffset, r[i], roffset, m, n0, n, k, lda, ldb, ldbf, ldc);
+    }
+}
+
+void gemm_q8_q5(int flags, const float * restrict af, const char * restrict a, int aoffset, const float * restrict bf, const char* restrict b, int boffset, float * restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc)
+{
+#if !defined(__ARM_NEON__)
+    struct gemm_params p = {
+                        .flags = flags,
+                        .af = af,
+                        .a = a,
+                        .aoffset = aoffset,
+                        .bf = bf,
+                        .b = b,
+                        .boffset = boffset,
+                        .r = r,
+                        .roffset = roffset,
+                        .m = m,
+                        .n = n,
+                        .k = k,
+                        .ldaf = ldaf,
+                        .ldbf = ldbf,
+                        .lda = lda,
+                        .ldb = ldb,
+                        .ldc = ldc
+    };
+
+    gemm(0, m, n0, n0 + n, gemm_q8_q5_256, p);
+#endif
+}
+
+void gemm_q8_q5_batch(int flags, int batch_num, const float *af, const char *a, int aoffset, const float **bf, const char **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc)
+{
+    for (int i = 0; i < batch_num; i++) {
+        gemm_q8_q5(flags, af, a, aoffset, bf[i], b[i], boffset, r[i], roffset, m, n0, n, k, lda, ldaf, ldb, ldbf, ldc);
+    }
+}
+
+
+#if !defined(__ARM_NEON__)
+static inline float f16_to_f32(uint16_t h) {
+#if defined(__F16C__)
+    return _cvtsh_ss(h);
+#else
+    uint32_t bits = ((uint32_t)(h & 0x7fff)) << 13;
+    float magnitude;
+    memcpy(&magnitude, &bits, sizeof(float));
+    magnitude *= 0x1p112f;
+    return (h & 0x8000) ? -magnitude : magnitude;
+#endif
+}
+
+// Unpack the 6-bit scale and min of sub-block s from the 12 packed bytes of a Q4_K super-block
+static inline void q4k_scale_min(int s, const uint8_t *q, int *scale, int *min) {
+    if (s < 4) {
+        *scale = q[s] & 63;
+        *min = q[s + 4] & 63;
+    } else {
+        *scale = (q[s + 4] & 0xF) | ((q[s - 4] >> 6) << 4);
+        *min = (q[s + 4] >> 4) | ((q[s] >> 6) << 4);
+    }
+}
+
+void gemm_q8_q4k_256(int m0, int m, int n0, int n, int RM, int RN, struct gemm_params params) {
+    int ytiles = (m - m0) / RM;
+    int xtiles = (n - n0) / RN;
+    int tiles = xtiles * ytiles;
+    int numBlocks = params.k / Q4K_SUB_BLOCK_SIZE;
+
+    const __m256i ones8 = _mm256_set1_epi8(1);
+    const __m256i ones16 = _mm256_set1_epi16(1);
+    const __m256i mask = _mm256_set1_epi8(0x0F);
+
+    // This fits on the stack (max of 5x5)
+    __m256 sums[RM][RN] __attribute__((aligned(32)));
+
+    for (int job = 0; job < tiles; ++job) {
+        int ii = m0 + job / xtiles * RM;
+        int jj = n0 + job % xtiles * RN;
+
+        //Reset the sums to zero for this tile
+        for (int i = 0; i < RM; i++) {
+            for (int j = 0; j < RN; j++) {
+                sums[i][j] = _mm256_setzero_ps();
+            }
+        }
+
+        for (int ni = 0; ni < RN; ++ni) {
+            int ao = params.aoffset;
+            // boffset and ldb are in elements, a sub-block has no byte offset of its own
+            int bo = params.ldb * (jj + ni) + params.boffset;
+
+            for (int i = 0; i < numBlocks; i++, ao += Q8_BLOCK_SIZE, bo += Q4K_SUB_BLOCK_SIZE) {
+                const uint8_t *sb = (const uint8_t *)params.b + (bo / Q4K_BLOCK_SIZE) * Q4K_BLOCK_BYTES;
+                int s = (bo % Q4K_BLOCK_SIZE) / Q4K_SUB_BLOCK_SIZE;
+
+                uint16_t d, dmin;
+                memcpy(&d, sb, sizeof(uint16_t));
+                memcpy(&dmin, sb + 2, sizeof(uint16_t));
+                int sc, mn;
+                q4k_scale_min(s, sb + 4, &sc, &mn);
+                float bscale = f16_to_f32(d) * sc;
+                float bmin = f16_to_f32(dmin) * mn;
+
+                // Sub-blocks 2n and 2n + 1 share 32 bytes as low and high nibbles
+                __m256i int_vb = _mm256_loadu_si256((__m256i const*)(sb + 16 + (s / 2) * Q4K_SUB_BLOCK_SIZE));
+                if (s & 1) int_vb = _mm256_srli_epi16(int_vb, 4);
+                int_vb = _mm256_and_si256(int_vb, mask);
+
+                for (int mi = 0; mi < RM; ++mi) {
+                    __m256i int_va = _mm256_loadu_si256((__m256i const*)(params.a + params.lda * (ii + mi) + ao));
+
+                    // The quants are unsigned so maddubs can take them as is
+                    __m256i dot = _mm256_madd_epi16(ones16, _mm256_maddubs_epi16(int_vb, int_va));
+                    __m256i asum = _mm256_madd_epi16(ones16, _mm256_maddubs_epi16(ones8, int_va));
+
+                    float ascale = params.af[params.ldaf * (ii + mi) + (ao / Q8_BLOCK_SIZE)];
+                    sums[mi][ni] = _mm256_fmadd_ps(_mm256_set1_ps(ascale * bscale), _mm256_cvtepi32_ps(dot), sums[mi][ni]);
+                    sums[mi][ni] = _mm256_fmadd_ps(_mm256_set1_ps(-ascale * bmin), _mm256_cvtepi32_ps(asum), sums[mi][ni]);
+                }
+            }
+        }
+
+        for (int mi = 0; mi < RM; ++mi) {
+            for (int ni = 0; ni < RN; ++ni) {
+                __attribute__((aligned(32))) float result[8];
+                _mm256_store_ps(result, sums[mi][ni]);
+
+                float dot = 0.0;
+                for(int i = 0; i < 8; ++i) {
+                    dot += result[i];
+                }
+                params.r[(params.ldc * (ii + mi)) + (jj + ni) - params.roffset] = dot;
+            }
+        }
+    }
+}
+#endif //!ARM_NEON
+
+void gemm_q8_q4k(int flags, const float * restrict af, const char * restrict a, int aoffset, const char* restrict b, int boffset, float * restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldc)
+{
+#if !defined(__ARM_NEON__)
+    struct gemm_params p = {
+                        .flags = flags,
+                        .af = af,
+                        .a = a,
+                        .aoffset = aoffset,
+                        .bf = NULL,
+                        .b = b,
+                        .boffset = boffset,
+                        .r = r,
+                        .roffset = roffset,
+                        .m = m,
+                        .n = n,
+                        .k = k,
+                        .ldaf = ldaf,
+                        .ldbf = 0,
+                        .lda = lda,
+                        .ldb = ldb,
+                        .ldc = ldc
+    };
+
+    gemm(0, m, n0, n0 + n, gemm_q8_q4k_256, p);
+#endif
+}
+
+void gemm_q8_q4k_batch(int flags, int batch_num, const float *af, const char *a, int aoffset, const char **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldc)
+{
+    for (int i = 0; i < batch_num; i++) {
+        gemm_q8_q4k(flags, af, a, aoffset, b[i], boffset, r[i], roffset, m, n0, n, k, lda, ldaf, ldb, ldc);
+    }
+}
+
+// Rotates the pairs (i, i + headSize / 2) of every head in x[xoffset, xoffset + length)
+// cs holds the cos of the headSize / 2 angles followed by their sin
+void rope_f32(int flags, float * restrict x, int xoffset, const float * restrict cs, int csoffset, int length, int headSize)
+{
+    int half = headSize / 2;
+    const float *fcr = cs + csoffset;
+    const float *fci = fcr + half;
+
+    for (int h = xoffset; h < xoffset + length; h += headSize) {
+        float *x0 = x + h;
+        float *x1 = x0 + half;
+        int i = 0;
+#if !defined(__ARM_NEON__)
+#if defined(__AVX512F__)
+        if ((flags & HAS_AVX2) != 0) {
+            for (; i + 16 <= half; i += 16) {
+                __m512 v0 = _mm512_loadu_ps(x0 + i);
+                __m512 v1 = _mm512_loadu_ps(x1 + i);
+                __m512 c = _mm512_loadu_ps(fcr + i);
+                __m512 s = _mm512_loadu_ps(fci + i);
+                _mm512_storeu_ps(x0 + i, _mm512_fmsub_ps(v0, c, _mm512_mul_ps(v1, s)));
+                _mm512_storeu_ps(x1 + i, _mm512_fmadd_ps(v0, s, _mm512_mul_ps(v1, c)));
+            }
+        }
+#endif
+        for (; i + 8 <= half; i += 8) {
+            __m256 v0 = _mm256_loadu_ps(x0 + i);
+            __m256 v1 = _mm256_loadu_ps(x1 + i);
+            __m256 c = _mm256_loadu_ps(fcr + i);
+            __m256 s = _mm256_loadu_ps(fci + i);
+            _mm256_storeu_ps(x0 + i, _mm256_fmsub_ps(v0, c, _mm256_mul_ps(v1, s)));
+            _mm256_storeu_ps(x1 + i, _mm256_fmadd_ps(v0, s, _mm256_mul_ps(v1, c)));
+        }
+#endif
+        for (; i < half; i++) {
+            float v0 = x0[i];
+            float v1 = x1[i];
+            x0[i] = v0 * fcr[i] - v1 * fci[i];
+            x1[i] = v0 * fci[i] + v1 * fcr[i];
+        }
+    }
+}
+
+#if !defined(__ARM_NEON__)
+static inline float hsum_256(__m256 v)
+{
+    __m128 s = _mm_add_ps(_mm256_castps256_ps128(v), _mm256_extractf128_ps(v, 1));
+    s = _mm_add_ps(s, _mm_movehl_ps(s, s));
+    s = _mm_add_ss(s, _mm_movehdup_ps(s));
+    return _mm_cvtss_f32(s);
+}
+
+static inline float hmax_256(__m256 v)
+{
+    __m128 s = _mm_max_ps(_mm256_castps256_ps128(v), _mm256_extractf128_ps(v, 1));
+    s = _mm_max_ps(s, _mm_movehl_ps(s, s));
+    s = _mm_max_ss(s, _mm_movehdup_ps(s));
+    return _mm_cvtss_f32(s);
+}
+
+// exp of 8 floats, the cephes polynomial with a 2^n scale, good to about 1e-7 relative error
+static inline __m256 exp_256(__m256 x)
+{
+    x = _mm256_min_ps(_mm256_max_ps(x, _mm256_set1_ps(-87.0f)), _mm256_set1_ps(88.0f));
+
+    // x = n * ln2 + r
+    __m256 n = _mm256_floor_ps(_mm256_fmadd_ps(x, _mm256_set1_ps(1.44269504088896341f), _mm256_set1_ps(0.5f)));
+    x = _mm256_fnmadd_ps(n, _mm256_set1_ps(0.693359375f), x);
+    x = _mm256_fnmadd_ps(n, _mm256_set1_ps(-2.12194440e-4f), x);
+
+    __m256 y = _mm256_set1_ps(1.9875691500e-4f);
+    y = _mm256_fmadd_ps(y, x, _mm256_set1_ps(1.3981999507e-3f));
+    y = _mm256_fmadd_ps(y, x, _mm256_set1_ps(8.3334519073e-3f));
+    y = _mm256_fmadd_ps(y, x, _mm256_set1_ps(4.1665795894e-2f));
+    y = _mm256_fmadd_ps(y, x, _mm256_set1_ps(1.6666665459e-1f));
+    y = _mm256_fmadd_ps(y, x, _mm256_set1_ps(5.0000001201e-1f));
+    y = _mm256_fmadd_ps(y, _mm256_mul_ps(x, x), x);
+    y = _mm256_add_ps(y, _mm256_set1_ps(1.0f));
+
+    __m256i e = _mm256_slli_epi32(_mm256_add_epi32(_mm256_cvttps_epi32(n), _mm256_set1_epi32(127)), 23);
+    return _mm256_mul_ps(y, _mm256_castsi256_ps(e));
+}
+
+#if defined(__AVX512F__)
+// exp_256 over 16 floats
+static inline __m512 exp_512(__m512 x)
+{
+    x = _mm512_min_ps(_mm512_max_ps(x, _mm512_set1_ps(-87.0f)), _mm512_set1_ps(88.0f));
+
+    __m512 n = _mm512_roundscale_ps(_mm512_fmadd_ps(x, _mm512_set1_ps(1.44269504088896341f), _mm512_set1_ps(0.5f)), _MM_FROUND_TO_NEG_INF | _MM_FROUND_NO_EXC);
+    x = _mm512_fnmadd_ps(n, _mm512_set1_ps(0.693359375f), x);
+    x = _mm512_fnmadd_ps(n, _mm512_set1_ps(-2.12194440e-4f), x);
+
+    __m512 y = _mm512_set1_ps(1.9875691500e-4f);
+    y = _mm512_fmadd_ps(y, x, _mm512_set1_ps(1.3981999507e-3f));
+    y = _mm512_fmadd_ps(y, x, _mm512_set1_ps(8.3334519073e-3f));
+    y = _mm512_fmadd_ps(y, x, _mm512_set1_ps(4.1665795894e-2f));
+    y = _mm512_fmadd_ps(y, x, _mm512_set1_ps(1.6666665459e-1f));
+    y = _mm512_fmadd_ps(y, x, _mm512_set1_ps(5.0000001201e-1f));
+    y = _mm512_fmadd_ps(y, _mm512_mul_ps(x, x), x);
+    y = _mm512_add_ps(y, _mm512_set1_ps(1.0f));
+
+    __m512i e = _mm512_slli_epi32(_mm512_add_epi32(_mm512_cvttps_epi32(n), _mm512_set1_epi32(127)), 23);
+    return _mm512_mul_ps(y, _mm512_castsi512_ps(e));
+}
+#endif
+#endif
+
+float sum_f32(int flags, const float * restrict x, int offset, int length)
+{
+    const float *p = x + offset;
+    float sum = 0.0f;
+    int i = 0;
+#if !defined(__ARM_NEON__)
+#if defined(__AVX512F__)
+    if ((flags & HAS_AVX2) != 0) {
+        __m512 acc = _mm512_setzero_ps();
+        for (; i + 16 <= length; i += 16)
+            acc = _mm512_add_ps(acc, _mm512_loadu_ps(p + i));
+        sum += _mm512_reduce_add_ps(acc);
+    }
+#endif
+    __m256 acc8 = _mm256_setzero_ps();
+    for (; i + 8 <= length; i += 8)
+        acc8 = _mm256_add_ps(acc8, _mm256_loadu_ps(p + i));
+    sum += hsum_256(acc8);
+#endif
+    for (; i < length; i++)
+        sum += p[i];
+
+    return sum;
+}
+
+float sum_sq_f32(int flags, const float * restrict x, int offset, int length)
+{
+    const float *p = x + offset;
+    float sum = 0.0f;
+    int i = 0;
+#if !defined(__ARM_NEON__)
+#if defined(__AVX512F__)
+    if ((flags & HAS_AVX2) != 0) {
+        __m512 acc = _mm512_setzero_ps();
+        for (; i + 16 <= length; i += 16) {
+            __m512 v = _mm512_loadu_ps(p + i);
+            acc = _mm512_fmadd_ps(v, v, acc);
+        }
+        sum += _mm512_reduce_add_ps(acc);
+    }
+#endif
+    __m256 acc8 = _mm256_setzero_ps();
+    for (; i + 8 <= length; i += 8) {
+        __m256 v = _mm256_loadu_ps(p + i);
+        acc8 = _mm256_fmadd_ps(v, v, acc8);
+    }
+    sum += hsum_256(acc8);
+#endif
+    for (; i < length; i++)
+        sum += p[i] * p[i];
+
+    return sum;
+}
+
+void norm_f32(int flags, float * restrict r, int roffset, const float * restrict x, int xoffset, const float * restrict w, int woffset, const float * restrict bias, int boffset, float weightAdjustment, float mean, float scale, int length)
+{
+    float *rp = r + roffset;
+    const float *xp = x + xoffset;
+    const float *wp = w + woffset;
+    const float *bp = bias != NULL ? bias + boffset : NULL;
+    int i = 0;
+#if !defined(__ARM_NEON__)
+#if defined(__AVX512F__)
+    if ((flags & HAS_AVX2) != 0) {
+        __m512 vmean = _mm512_set1_ps(mean);
+        __m512 vscale = _mm512_set1_ps(scale);
+        __m512 vadj = _mm512_set1_ps(weightAdjustment);
+        for (; i + 16 <= length; i += 16) {
+            __m512 v = _mm512_mul_ps(_mm512_sub_ps(_mm512_loadu_ps(xp + i), vmean), vscale);
+            __m512 wv = _mm512_add_ps(_mm512_loadu_ps(wp + i), vadj);
+            v = bp != NULL ? _mm512_fmadd_ps(v, wv, _mm512_loadu_ps(bp + i)) : _mm512_mul_ps(v, wv);
+            _mm512_storeu_ps(rp + i, v);
+        }
+    }
+#endif
+    __m256 vmean8 = _mm256_set1_ps(mean);
+    __m256 vscale8 = _mm256_set1_ps(scale);
+    __m256 vadj8 = _mm256_set1_ps(weightAdjustment);
+    for (; i + 8 <= length; i += 8) {
+        __m256 v = _mm256_mul_ps(_mm256_sub_ps(_mm256_loadu_ps(xp + i), vmean8), vscale8);
+        __m256 wv = _mm256_add_ps(_mm256_loadu_ps(wp + i), vadj8);
+        v = bp != NULL ? _mm256_fmadd_ps(v, wv, _mm256_loadu_ps(bp + i)) : _mm256_mul_ps(v, wv);
+        _mm256_storeu_ps(rp + i, v);
+    }
+#endif
+    for (; i < length; i++) {
+        float v = (xp[i] - mean) * scale * (weightAdjustment + wp[i]);
+        rp[i] = bp != NULL ? v + bp[i] : v;
+    }
+}
+
+float max_f32(int flags, const float * restrict x, int offset, int length)
+{
+    const float *p = x + offset;
+    float max = -INFINITY;
+    int i = 0;
+#if !defined(__ARM_NEON__)
+#if defined(__AVX512F__)
+    if ((flags & HAS_AVX2) != 0) {
+        __m512 acc = _mm512_set1_ps(-INFINITY);
+        for (; i + 16 <= length; i += 16)
+            acc = _mm512_max_ps(acc, _mm512_loadu_ps(p + i));
+        max = _mm512_reduce_max_ps(acc);
+    }
+#endif
+    __m256 acc8 = _mm256_set1_ps(max);
+    for (; i + 8 <= length; i += 8)
+        acc8 = _mm256_max_ps(acc8, _mm256_loadu_ps(p + i));
+    max = hmax_256(acc8);
+#endif
+    for (; i < length; i++)
+        max = p[i] > max ? p[i] : max;
+
+    return max;
+}
+
+float exp_sum_f32(int flags, float * restrict x, int offset, int length, float max)
+{
+    float *p = x + offset;
+    float sum = 0.0f;
+    int i = 0;
+#if !defined(__ARM_NEON__)
+#if defined(__AVX512F__)
+    if ((flags & HAS_AVX2) != 0) {
+        __m512 vmax = _mm512_set1_ps(max);
+        __m512 acc = _mm512_setzero_ps();
+        for (; i + 16 <= length; i += 16) {
+            __m512 v = exp_512(_mm512_sub_ps(_mm512_loadu_ps(p + i), vmax));
+            _mm512_storeu_ps(p + i, v);
+            acc = _mm512_add_ps(acc, v);
+        }
+        sum += _mm512_reduce_add_ps(acc);
+    }
+#endif
+    __m256 vmax8 = _mm256_set1_ps(max);
+    __m256 acc8 = _mm256_setzero_ps();
+    for (; i + 8 <= length; i += 8) {
+        __m256 v = exp_256(_mm256_sub_ps(_mm256_loadu_ps(p + i), vmax8));
+        _mm256_storeu_ps(p + i, v);
+        acc8 = _mm256_add_ps(acc8, v);
+    }
+    sum += hsum_256(acc8);
+#endif
+    for (; i < length; i++) {
+        p[i] = expf(p[i] - max);
+        sum += p[i];
+    }
+
+    return sum;
+}
@@ -1,6 +1,8 @@
 #ifndef DOT_H
 #define DOT_H
 
+#include <stdint.h>
+
 //Flags passes in at runtime
 #define HAS_F16C 2
 #define HAS_AVX2 4
@@ -9,12 +11,23 @@
 // Info for quantization
 #define Q8_BLOCK_SIZE 32
 #define Q4_BLOCK_SIZE 32
+#define Q5_BLOCK_SIZE 32
+// 4 bytes of fifth bits + 16 bytes of nibbles
+#define Q5_BLOCK_BYTES 20
+#define Q4K_BLOCK_SIZE 256
+#define Q4K_SUB_BLOCK_SIZE 32
+// F16 scale + F16 min + 12 bytes of sub-block scales and mins + 128 bytes of nibbles
+#define Q4K_BLOCK_BYTES 144
 
 
 //GEMM I8 Q4
 void gemm_q8_q4(int flags, const float * restrict af, const char* restrict a, int aoffset, const float * restrict bf, const char* restrict b, int boffset, float * restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
 void gemm_q8_q4_batch(int flags, int batch_num, const float * restrict af, const char * restrict a, int aoffset, const float ** restrict bf, const char ** restrict b, int boffset, float ** restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
 
+//GEMM I8 I8
+void gemm_q8_q8(int flags, const float * restrict af, const char* restrict a, int aoffset, const float * restrict bf, const char* restrict b, int boffset, float * restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+void gemm_q8_q8_batch(int flags, int batch_num, const float * restrict af, const char * restrict a, int aoffset, const float ** restrict bf, const char ** restrict b, int boffset, float ** restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+
 //GEMM F32
 void gemm_f32(int flags, const float *a, int aoffset, const float *b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
 void gemm_f32_batch(int flags, int batch_num, const float *a, int aoffset, const float **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
@@ -22,4 +35,34 @@ void gemm_f32_batch(int flags, int batch_num, const float *a, int aoffset, const
 //GEMM F32 Q4
 void gemm_f32_q4(int flags, const float *a, int aoffset, const float *bf, const char* b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc);
 void gemm_f32_q4_batch(int flags, int batch_num, const float *a, int aoffset, const float **bf, const char **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc);
+
+//GEMM F32 BF16
+void gemm_f32_bf16(int flags, const float *a, int aoffset, const uint16_t *b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+void gemm_f32_bf16_batch(int flags, int batch_num, const float *a, int aoffset, const uint16_t **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+
+//GEMM F32 F16
+void gemm_f32_f16(int flags, const float *a, int aoffset, const uint16_t *b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+void gemm_f32_f16_batch(int flags, int batch_num, const float *a, int aoffset, const uint16_t **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+
+//GEMM I8 Q5
+void gemm_q8_q5(int flags, const float * restrict af, const char* restrict a, int aoffset, const float * restrict bf, const char* restrict b, int boffset, float * restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+void gemm_q8_q5_batch(int flags, int batch_num, const float * restrict af, const char * restrict a, int aoffset, const float ** restrict bf, const char ** restrict b, int boffset, float ** restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+
+//GEMM F32 Q5
+void gemm_f32_q5(int flags, const float *a, int aoffset, const float *bf, const char* b, int boffset, float *r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc);
+void gemm_f32_q5_batch(int flags, int batch_num, const float *a, int aoffset, const float **bf, const char **b, int boffset, float **r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc);
+
+//GEMM I8 Q4_K
+void gemm_q8_q4k(int flags, const float * restrict af, const char* restrict a, int aoffset, const char* restrict b, int boffset, float * restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldc);
+void gemm_q8_q4k_batch(int flags, int batch_num, const float * restrict af, const char * restrict a, int aoffset, const char ** restrict b, int boffset, float ** restrict r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldc);
+
+//RoPE F32
+void rope_f32(int flags, float * restrict x, int xoffset, const float * restrict cs, int csoffset, int length, int headSize);
+
+//Norms and softmax F32
+float sum_f32(int flags, const float * restrict x, int offset, int length);
+float sum_sq_f32(int flags, const float * restrict x, int offset, int length);
+void norm_f32(int flags, float * restrict r, int roffset, const float * restrict x, int xoffset, const float * restrict w, int woffset, const float * restrict bias, int boffset, float weightAdjustment, float mean, float scale, int length);
+float max_f32(int flags, const float * restrict x, int offset, int length);
+float exp_sum_f32(int flags, float * restrict x, int offset, int length, float max);
 #endif
\ No newline at end of file
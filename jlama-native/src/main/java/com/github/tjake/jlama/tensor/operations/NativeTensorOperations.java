@@ -15,16 +15,23 @@
  */
 package com.github.tjake.jlama.tensor.operations;
 
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.RopeFreqs;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.operations.cnative.NativeSimd;
 import com.github.tjake.jlama.util.MachineSpec;
+import com.github.tjake.jlama.util.Pair;
 import com.github.tjake.jlama.util.RuntimeSupport;
+import com.google.common.base.Preconditions;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.util.Optional;
+import java.util.function.BiFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -148,6 +155,94 @@ public class NativeTensorOperations implements TensorOperations {
                                         result.getStride());
                         }
                         break;
+                    case Q5:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.batchDotProduct(
+                                        result,
+                                        at,
+                                        bt,
+                                        aColumnOffset,
+                                        bColumnOffset,
+                                        columnLength,
+                                        bRowOffset,
+                                        rowChunkSize);
+                                break;
+                            default:
+                                Q5ByteBufferTensor b = (Q5ByteBufferTensor) bt;
+                                NativeSimd.gemm_f32_q5(
+                                        flags,
+                                        at.getMemorySegment(),
+                                        at.getOffset(0, aColumnOffset),
+                                        b.getBlockF().getMemorySegment(),
+                                        b.getMemorySegment(),
+                                        b.getMemorySegmentOffset(b.getOffset(0, bColumnOffset)),
+                                        result.getMemorySegment(),
+                                        result.shape().sparseOffset(),
+                                        M,
+                                        bRowOffset,
+                                        N,
+                                        K,
+                                        at.getStride(),
+                                        b.getMemorySegmentOffset(b.getStride()),
+                                        b.getBlockF().getStride(),
+                                        result.getStride());
+                        }
+                        break;
+                    case I8:
+                    case Q4_K:
+                        delegate.batchDotProduct(
+                                result, at, bt, aColumnOffset, bColumnOffset, columnLength, bRowOffset, rowChunkSize);
+                        break;
+                    case BF16:
+                    case F16:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.batchDotProduct(
+                                        result,
+                                        at,
+                                        bt,
+                                        aColumnOffset,
+                                        bColumnOffset,
+                                        columnLength,
+                                        bRowOffset,
+                                        rowChunkSize);
+                                break;
+                            default:
+                                if (bt.dType() == DType.BF16)
+                                    NativeSimd.gemm_f32_bf16(
+                                            flags,
+                                            at.getMemorySegment(),
+                                            at.getOffset(0, aColumnOffset),
+                                            bt.getMemorySegment(),
+                                            bt.getOffset(0, bColumnOffset),
+                                            result.getMemorySegment(),
+                                            result.shape().sparseOffset(),
+                                            M,
+                                            bRowOffset,
+                                            N,
+                                            K,
+                                            at.getStride(),
+                                            bt.getStride(),
+                                            result.getStride());
+                                else
+                                    NativeSimd.gemm_f32_f16(
+                                            flags,
+                                            at.getMemorySegment(),
+                                            at.getOffset(0, aColumnOffset),
+                                            bt.getMemorySegment(),
+                                            bt.getOffset(0, bColumnOffset),
+                                            result.getMemorySegment(),
+                                            result.shape().sparseOffset(),
+                                            M,
+                                            bRowOffset,
+                                            N,
+                                            K,
+                                            at.getStride(),
+                                            bt.getStride(),
+                                            result.getStride());
+                        }
+                        break;
                     default:
                         throw new UnsupportedOperationException(
                                 at.dType().name() + " " + bt.dType().name());
@@ -178,6 +273,101 @@ public class NativeTensorOperations implements TensorOperations {
                                 b.getBlockF().getStride(),
                                 result.getStride());
                         break;
+                    case Q5:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.batchDotProduct(
+                                        result,
+                                        at,
+                                        bt,
+                                        aColumnOffset,
+                                        bColumnOffset,
+                                        columnLength,
+                                        bRowOffset,
+                                        rowChunkSize);
+                                break;
+                            default:
+                                Q8ByteBufferTensor qa = (Q8ByteBufferTensor) at;
+                                Q5ByteBufferTensor qb = (Q5ByteBufferTensor) bt;
+                                NativeSimd.gemm_q8_q5(
+                                        flags,
+                                        qa.getBlockF().getMemorySegment(),
+                                        qa.getMemorySegment(),
+                                        qa.getOffset(0, aColumnOffset),
+                                        qb.getBlockF().getMemorySegment(),
+                                        qb.getMemorySegment(),
+                                        qb.getMemorySegmentOffset(qb.getOffset(0, bColumnOffset)),
+                                        result.getMemorySegment(),
+                                        result.shape().sparseOffset(),
+                                        M,
+                                        bRowOffset,
+                                        N,
+                                        K,
+                                        qa.getStride(),
+                                        qa.getBlockF().getStride(),
+                                        qb.getMemorySegmentOffset(qb.getStride()),
+                                        qb.getBlockF().getStride(),
+                                        result.getStride());
+                        }
+                        break;
+                    case Q4_K:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.batchDotProduct(
+                                        result,
+                                        at,
+                                        bt,
+                                        aColumnOffset,
+                                        bColumnOffset,
+                                        columnLength,
+                                        bRowOffset,
+                                        rowChunkSize);
+                                break;
+                            default:
+                                Q8ByteBufferTensor ka = (Q8ByteBufferTensor) at;
+                                // Offsets and strides are in elements so the kernel can find each sub-block
+                                NativeSimd.gemm_q8_q4k(
+                                        flags,
+                                        ka.getBlockF().getMemorySegment(),
+                                        ka.getMemorySegment(),
+                                        ka.getOffset(0, aColumnOffset),
+                                        bt.getMemorySegment(),
+                                        bt.getOffset(0, bColumnOffset),
+                                        result.getMemorySegment(),
+                                        result.shape().sparseOffset(),
+                                        M,
+                                        bRowOffset,
+                                        N,
+                                        K,
+                                        ka.getStride(),
+                                        ka.getBlockF().getStride(),
+                                        bt.getStride(),
+                                        result.getStride());
+                        }
+                        break;
+                    case I8:
+                        Q8ByteBufferTensor qa = (Q8ByteBufferTensor) at;
+                        Q8ByteBufferTensor qb = (Q8ByteBufferTensor) bt;
+                        NativeSimd.gemm_q8_q8(
+                                flags,
+                                qa.getBlockF().getMemorySegment(),
+                                qa.getMemorySegment(),
+                                qa.getOffset(0, aColumnOffset),
+                                qb.getBlockF().getMemorySegment(),
+                                qb.getMemorySegment(),
+                                qb.getOffset(0, bColumnOffset),
+                                result.getMemorySegment(),
+                                result.shape().sparseOffset(),
+                                M,
+                                bRowOffset,
+                                N,
+                                K,
+                                qa.getStride(),
+                                qa.getBlockF().getStride(),
+                                qb.getStride(),
+                                qb.getBlockF().getStride(),
+                                result.getStride());
+                        break;
                     default:
                         throw new UnsupportedOperationException(
                                 at.dType().name() + " " + bt.dType().name());
@@ -198,6 +388,15 @@ public class NativeTensorOperations implements TensorOperations {
             int bRowOffset,
             int rowChunkSize) {
 
+        // The batch kernels take a single weight type, so mixed weights (as GGUF files hold) go one at a time
+        for (int i = 1; i < b.length; i++) {
+            if (b[i].dType() != b[0].dType()) {
+                TensorOperations.super.dotProductBatchChunk(
+                        r, a, b, columnOffset, columnLength, bRowOffset, rowChunkSize);
+                return;
+            }
+        }
+
         MemorySegment[] tmp = tmpArr.get();
         MemorySegment ra = tmp[0];
         MemorySegment rb = tmp[1];
@@ -243,7 +442,9 @@ public class NativeTensorOperations implements TensorOperations {
                                     rc.setAtIndex(
                                             ValueLayout.ADDRESS,
                                             i,
-                                            ((Q4ByteBufferTensor) b[i]).getBlockF().getMemorySegment());
+                                            ((Q4ByteBufferTensor) b[i])
+                                                    .getBlockF()
+                                                    .getMemorySegment());
                                 NativeSimd.gemm_f32_q4_batch(
                                         flags,
                                         r.length,
@@ -264,6 +465,89 @@ public class NativeTensorOperations implements TensorOperations {
                                         r[0].getStride());
                         }
                         break;
+                    case Q5:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.dotProductBatchChunk(
+                                        r, a, b, columnOffset, columnLength, bRowOffset, rowChunkSize);
+                                break;
+                            default:
+                                Q5ByteBufferTensor bt = (Q5ByteBufferTensor) b[0];
+                                for (int i = 0; i < r.length; i++)
+                                    rc.setAtIndex(
+                                            ValueLayout.ADDRESS,
+                                            i,
+                                            ((Q5ByteBufferTensor) b[i])
+                                                    .getBlockF()
+                                                    .getMemorySegment());
+                                NativeSimd.gemm_f32_q5_batch(
+                                        flags,
+                                        r.length,
+                                        a.getMemorySegment(),
+                                        a.getOffset(0, columnOffset),
+                                        rc,
+                                        rb,
+                                        bt.getMemorySegmentOffset(bt.getOffset(0, columnOffset)),
+                                        ra,
+                                        r[0].shape().sparseOffset(),
+                                        M,
+                                        bRowOffset,
+                                        N,
+                                        K,
+                                        a.getStride(),
+                                        bt.getMemorySegmentOffset(bt.getStride()),
+                                        bt.getBlockF().getStride(),
+                                        r[0].getStride());
+                        }
+                        break;
+                    case I8:
+                    case Q4_K:
+                        delegate.dotProductBatchChunk(r, a, b, columnOffset, columnLength, bRowOffset, rowChunkSize);
+                        break;
+                    case BF16:
+                    case F16:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.dotProductBatchChunk(
+                                        r, a, b, columnOffset, columnLength, bRowOffset, rowChunkSize);
+                                break;
+                            default:
+                                if (b[0].dType() == DType.BF16)
+                                    NativeSimd.gemm_f32_bf16_batch(
+                                            flags,
+                                            r.length,
+                                            a.getMemorySegment(),
+                                            a.getOffset(0, columnOffset),
+                                            rb,
+                                            b[0].getOffset(0, columnOffset),
+                                            ra,
+                                            r[0].shape().sparseOffset(),
+                                            M,
+                                            bRowOffset,
+                                            N,
+                                            K,
+                                            a.getStride(),
+                                            b[0].getStride(),
+                                            r[0].getStride());
+                                else
+                                    NativeSimd.gemm_f32_f16_batch(
+                                            flags,
+                                            r.length,
+                                            a.getMemorySegment(),
+                                            a.getOffset(0, columnOffset),
+                                            rb,
+                                            b[0].getOffset(0, columnOffset),
+                                            ra,
+                                            r[0].shape().sparseOffset(),
+                                            M,
+                                            bRowOffset,
+                                            N,
+                                            K,
+                                            a.getStride(),
+                                            b[0].getStride(),
+                                            r[0].getStride());
+                        }
+                        break;
                     default:
                         throw new UnsupportedOperationException(
                                 a.dType().name() + " " + b[0].dType().name());
@@ -301,6 +585,103 @@ public class NativeTensorOperations implements TensorOperations {
                                 bt.getBlockF().getStride(),
                                 r[0].getStride());
                         break;
+                    case Q5:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.dotProductBatchChunk(
+                                        r, a, b, columnOffset, columnLength, bRowOffset, rowChunkSize);
+                                break;
+                            default:
+                                for (int i = 0; i < r.length; i++)
+                                    rc.setAtIndex(
+                                            ValueLayout.ADDRESS,
+                                            i,
+                                            ((Q5ByteBufferTensor) b[i])
+                                                    .getBlockF()
+                                                    .getMemorySegment());
+
+                                Q8ByteBufferTensor qa = (Q8ByteBufferTensor) a;
+                                Q5ByteBufferTensor qb = (Q5ByteBufferTensor) b[0];
+                                NativeSimd.gemm_q8_q5_batch(
+                                        flags,
+                                        r.length,
+                                        qa.getBlockF().getMemorySegment(),
+                                        a.getMemorySegment(),
+                                        a.getOffset(0, columnOffset),
+                                        rc,
+                                        rb,
+                                        qb.getMemorySegmentOffset(qb.getOffset(0, columnOffset)),
+                                        ra,
+                                        r[0].shape().sparseOffset(),
+                                        M,
+                                        bRowOffset,
+                                        N,
+                                        K,
+                                        a.getStride(),
+                                        qa.getBlockF().getStride(),
+                                        qb.getMemorySegmentOffset(qb.getStride()),
+                                        qb.getBlockF().getStride(),
+                                        r[0].getStride());
+                        }
+                        break;
+                    case Q4_K:
+                        switch (MachineSpec.VECTOR_TYPE) {
+                            case ARM_128:
+                                delegate.dotProductBatchChunk(
+                                        r, a, b, columnOffset, columnLength, bRowOffset, rowChunkSize);
+                                break;
+                            default:
+                                Q8ByteBufferTensor ka = (Q8ByteBufferTensor) a;
+                                NativeSimd.gemm_q8_q4k_batch(
+                                        flags,
+                                        r.length,
+                                        ka.getBlockF().getMemorySegment(),
+                                        a.getMemorySegment(),
+                                        a.getOffset(0, columnOffset),
+                                        rb,
+                                        b[0].getOffset(0, columnOffset),
+                                        ra,
+                                        r[0].shape().sparseOffset(),
+                                        M,
+                                        bRowOffset,
+                                        N,
+                                        K,
+                                        a.getStride(),
+                                        ka.getBlockF().getStride(),
+                                        b[0].getStride(),
+                                        r[0].getStride());
+                        }
+                        break;
+                    case I8:
+                        for (int i = 0; i < r.length; i++)
+                            rc.setAtIndex(
+                                    ValueLayout.ADDRESS,
+                                    i,
+                                    ((Q8ByteBufferTensor) b[i]).getBlockF().getMemorySegment());
+
+                        Q8ByteBufferTensor qa = (Q8ByteBufferTensor) a;
+                        Q8ByteBufferTensor qb = (Q8ByteBufferTensor) b[0];
+                        NativeSimd.gemm_q8_q8_batch(
+                                flags,
+                                r.length,
+                                qa.getBlockF().getMemorySegment(),
+                                qa.getMemorySegment(),
+                                qa.getOffset(0, columnOffset),
+                                rc,
+                                rb,
+                                qb.getOffset(0, columnOffset),
+                                ra,
+                                r[0].shape().sparseOffset(),
+                                M,
+                                bRowOffset,
+                                N,
+                                K,
+                                qa.getStride(),
+                                qa.getBlockF().getStride(),
+                                qb.getStride(),
+                                qb.getBlockF().getStride(),
+                                r[0].getStride());
+                        break;
                     default:
                         throw new UnsupportedOperationException(
                                 a.dType().name() + " " + b[0].dType().name());
@@ -338,6 +719,90 @@ public class NativeTensorOperations implements TensorOperations {
         delegate.saxpy(alpha, x, y, xoffset, yoffset, limit, batchSize);
     }
 
+    @Override
+    public void kvStore(AbstractTensor x, AbstractTensor kv, int offset, int length) {
+        delegate.kvStore(x, kv, offset, length);
+    }
+
+    @Override
+    public void kvDotProduct(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows) {
+        if (kv.dType() == DType.F32) batchDotProduct(result, a, kv, aoffset, kvoffset, length, 0, rows);
+        else delegate.kvDotProduct(result, a, kv, aoffset, kvoffset, length, rows);
+    }
+
+    @Override
+    public void kvSaxpy(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows) {
+        delegate.kvSaxpy(alpha, kv, y, kvoffset, yoffset, length, rows);
+    }
+
+    @Override
+    public void kvDotProductGroup(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows,
+            int heads) {
+        delegate.kvDotProductGroup(result, a, kv, aoffset, kvoffset, length, rows, heads);
+    }
+
+    @Override
+    public void kvSaxpyGroup(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows,
+            int heads) {
+        delegate.kvSaxpyGroup(alpha, kv, y, kvoffset, yoffset, length, rows, heads);
+    }
+
+    @Override
+    public void kvDotProductTile(
+            AbstractTensor result,
+            AbstractTensor a,
+            AbstractTensor kv,
+            int aoffset,
+            int kvoffset,
+            int length,
+            int rows,
+            int heads,
+            int queries) {
+        delegate.kvDotProductTile(result, a, kv, aoffset, kvoffset, length, rows, heads, queries);
+    }
+
+    @Override
+    public void kvSaxpyTile(
+            AbstractTensor alpha,
+            AbstractTensor kv,
+            AbstractTensor y,
+            int kvoffset,
+            int yoffset,
+            int length,
+            int rows,
+            int heads,
+            int queries) {
+        delegate.kvSaxpyTile(alpha, kv, y, kvoffset, yoffset, length, rows, heads, queries);
+    }
+
     @Override
     public void sxpby(float beta, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit) {
         delegate.sxpby(beta, x, y, xoffset, yoffset, limit);
@@ -348,6 +813,145 @@ public class NativeTensorOperations implements TensorOperations {
         delegate.scale(factor, x, offset, length);
     }
 
+    @Override
+    public void rope(AbstractTensor x, RopeFreqs freqs, int[] positions, int offset, int length) {
+        Preconditions.checkArgument(
+                x.dType() == DType.F32 && positions.length == x.shape().first());
+        for (int b = 0; b < positions.length; b++) {
+            AbstractTensor f = freqs.row(positions[b]);
+            NativeSimd.rope_f32(
+                    flags,
+                    x.getMemorySegment(),
+                    x.getOffset(b, offset),
+                    f.getMemorySegment(),
+                    f.getOffset(0, 0),
+                    length,
+                    freqs.headSize());
+        }
+    }
+
+    @Override
+    public void rmsNorm(
+            AbstractTensor out,
+            AbstractTensor x,
+            AbstractTensor weights,
+            float weightAdjustment,
+            float eps,
+            int normLength,
+            int offset,
+            int length,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        if (out.dType() != DType.F32 || x.dType() != DType.F32 || weights.dType() != DType.F32) {
+            delegate.rmsNorm(out, x, weights, weightAdjustment, eps, normLength, offset, length, reducer);
+            return;
+        }
+
+        for (int b = 0; b < x.shape().first(); b++) {
+            float ss = NativeSimd.sum_sq_f32(flags, x.getMemorySegment(), x.getOffset(b, offset), length);
+            if (reducer.isPresent()) ss = reducer.get().apply(ss, 0f).left;
+
+            NativeSimd.norm_f32(
+                    flags,
+                    out.getMemorySegment(),
+                    out.getOffset(b, offset),
+                    x.getMemorySegment(),
+                    x.getOffset(b, offset),
+                    weights.getMemorySegment(),
+                    weights.getOffset(0, offset),
+                    MemorySegment.NULL,
+                    0,
+                    weightAdjustment,
+                    0.0f,
+                    TensorOperations.rmsScale(ss, normLength, eps),
+                    length);
+        }
+    }
+
+    @Override
+    public void layerNorm(
+            AbstractTensor out,
+            AbstractTensor x,
+            AbstractTensor weights,
+            AbstractTensor bias,
+            float eps,
+            int normLength,
+            int offset,
+            int length,
+            Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+        if (out.dType() != DType.F32
+                || x.dType() != DType.F32
+                || weights.dType() != DType.F32
+                || bias.dType() != DType.F32) {
+            delegate.layerNorm(out, x, weights, bias, eps, normLength, offset, length, reducer);
+            return;
+        }
+
+        for (int b = 0; b < x.shape().first(); b++) {
+            float sum = NativeSimd.sum_f32(flags, x.getMemorySegment(), x.getOffset(b, offset), length);
+            float sumSq = NativeSimd.sum_sq_f32(flags, x.getMemorySegment(), x.getOffset(b, offset), length);
+            if (reducer.isPresent()) {
+                Pair<Float, Float> p = reducer.get().apply(sumSq, sum);
+                sumSq = p.left;
+                sum = p.right;
+            }
+
+            NativeSimd.norm_f32(
+                    flags,
+                    out.getMemorySegment(),
+                    out.getOffset(b, offset),
+                    x.getMemorySegment(),
+                    x.getOffset(b, offset),
+                    weights.getMemorySegment(),
+                    weights.getOffset(0, offset),
+                    bias.getMemorySegment(),
+                    bias.getOffset(0, offset),
+                    0.0f,
+                    sum / normLength,
+                    TensorOperations.layerNormScale(sum, sumSq, normLength, eps),
+                    length);
+        }
+    }
+
+    @Override
+    public void softmax(AbstractTensor x, int offset, int length) {
+        if (x.dType() != DType.F32) {
+            delegate.softmax(x, offset, length);
+            return;
+        }
+
+        for (int b = 0; b < x.shape().first(); b++) {
+            int xoffset = x.getOffset(b, offset);
+            float max = NativeSimd.max_f32(flags, x.getMemorySegment(), xoffset, length);
+            float sum = NativeSimd.exp_sum_f32(flags, x.getMemorySegment(), xoffset, length, max);
+            delegate.scale(1.0f / sum, x.slice(b), offset, length);
+        }
+    }
+
+    @Override
+    public float max(AbstractTensor x, int offset, int length) {
+        if (x.dType() != DType.F32) return delegate.max(x, offset, length);
+
+        return NativeSimd.max_f32(flags, x.getMemorySegment(), x.getOffset(0, offset), length);
+    }
+
+    @Override
+    public float expSum(AbstractTensor x, float max, int offset, int length) {
+        if (x.dType() != DType.F32) return delegate.expSum(x, max, offset, length);
+
+        return NativeSimd.exp_sum_f32(flags, x.getMemorySegment(), x.getOffset(0, offset), length, max);
+    }
+
+    @Override
+    public void gatedActivation(
+            ActivationFunction.Type type,
+            AbstractTensor x,
+            Optional<AbstractTensor> up,
+            Optional<AbstractTensor> qx,
+            int offset,
+            int length) {
+        delegate.gatedActivation(type, x, up, qx, offset, length);
+    }
+
     @Override
     public AbstractTensor quantize(AbstractTensor t, DType qtype, int offset, int length) {
         return delegate.quantize(t, qtype, offset, length);
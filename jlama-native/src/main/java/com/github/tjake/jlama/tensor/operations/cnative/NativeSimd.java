@@ -144,6 +144,219 @@ public class NativeSimd {
         }
     }
 
+    public static MethodHandle gemm_q8_q5$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.const$4, "gemm_q8_q5");
+    }
+    /**
+     * {@snippet :
+     * void gemm_q8_q5(int flags, float* af, char* a, int aoffset, float* bf, char* b, int boffset, float* r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+     * }
+     */
+    public static void gemm_q8_q5(
+            int flags,
+            MemorySegment af,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment bf,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldaf,
+            int ldb,
+            int ldbf,
+            int ldc) {
+        var mh$ = gemm_q8_q5$MH();
+        try {
+            mh$.invokeExact(flags, af, a, aoffset, bf, b, boffset, r, roffset, m, n0, n, k, lda, ldaf, ldb, ldbf, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_q8_q5_batch$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.const$5, "gemm_q8_q5_batch");
+    }
+    /**
+     * {@snippet :
+     * void gemm_q8_q5_batch(int flags, int batch_num, float* af, char* a, int aoffset, float** bf, char** b, int boffset, float** r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+     * }
+     */
+    public static void gemm_q8_q5_batch(
+            int flags,
+            int batch_num,
+            MemorySegment af,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment bf,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldaf,
+            int ldb,
+            int ldbf,
+            int ldc) {
+        var mh$ = gemm_q8_q5_batch$MH();
+        try {
+            mh$.invokeExact(
+                    flags, batch_num, af, a, aoffset, bf, b, boffset, r, roffset, m, n0, n, k, lda, ldaf, ldb, ldbf,
+                    ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_q8_q4k$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.const$3, "gemm_q8_q4k");
+    }
+    /**
+     * {@snippet :
+     * void gemm_q8_q4k(int flags, float* af, char* a, int aoffset, char* b, int boffset, float* r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldc);
+     * }
+     */
+    public static void gemm_q8_q4k(
+            int flags,
+            MemorySegment af,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldaf,
+            int ldb,
+            int ldc) {
+        var mh$ = gemm_q8_q4k$MH();
+        try {
+            mh$.invokeExact(flags, af, a, aoffset, b, boffset, r, roffset, m, n0, n, k, lda, ldaf, ldb, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_q8_q4k_batch$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.const$5, "gemm_q8_q4k_batch");
+    }
+    /**
+     * {@snippet :
+     * void gemm_q8_q4k_batch(int flags, int batch_num, float* af, char* a, int aoffset, char** b, int boffset, float** r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldc);
+     * }
+     */
+    public static void gemm_q8_q4k_batch(
+            int flags,
+            int batch_num,
+            MemorySegment af,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldaf,
+            int ldb,
+            int ldc) {
+        var mh$ = gemm_q8_q4k_batch$MH();
+        try {
+            mh$.invokeExact(flags, batch_num, af, a, aoffset, b, boffset, r, roffset, m, n0, n, k, lda, ldaf, ldb, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_q8_q8$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.const$4, "gemm_q8_q8");
+    }
+    /**
+     * {@snippet :
+     * void gemm_q8_q8(int flags, float* af, char* a, int aoffset, float* bf, char* b, int boffset, float* r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+     * }
+     */
+    public static void gemm_q8_q8(
+            int flags,
+            MemorySegment af,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment bf,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldaf,
+            int ldb,
+            int ldbf,
+            int ldc) {
+        var mh$ = gemm_q8_q8$MH();
+        try {
+            mh$.invokeExact(flags, af, a, aoffset, bf, b, boffset, r, roffset, m, n0, n, k, lda, ldaf, ldb, ldbf, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_q8_q8_batch$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.const$5, "gemm_q8_q8_batch");
+    }
+    /**
+     * {@snippet :
+     * void gemm_q8_q8_batch(int flags, int batch_num, float* af, char* a, int aoffset, float** bf, char** b, int boffset, float** r, int roffset, int m, int n0, int n, int k, int lda, int ldaf, int ldb, int ldbf, int ldc);
+     * }
+     */
+    public static void gemm_q8_q8_batch(
+            int flags,
+            int batch_num,
+            MemorySegment af,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment bf,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldaf,
+            int ldb,
+            int ldbf,
+            int ldc) {
+        var mh$ = gemm_q8_q8_batch$MH();
+        try {
+            mh$.invokeExact(
+                    flags, batch_num, af, a, aoffset, bf, b, boffset, r, roffset, m, n0, n, k, lda, ldaf, ldb, ldbf,
+                    ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
     public static MethodHandle gemm_f32$MH() {
         return RuntimeHelper.requireNonNull(constants$0.const$5, "gemm_f32");
     }
@@ -207,6 +420,132 @@ public class NativeSimd {
         }
     }
 
+    public static MethodHandle gemm_f32_bf16$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.const$0, "gemm_f32_bf16");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32_bf16(int flags, float* a, int aoffset, unsigned short* b, int boffset, float* r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+     * }
+     */
+    public static void gemm_f32_bf16(
+            int flags,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldb,
+            int ldc) {
+        var mh$ = gemm_f32_bf16$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, b, boffset, r, roffset, m, n0, n, k, lda, ldb, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_f32_bf16_batch$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.const$1, "gemm_f32_bf16_batch");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32_bf16_batch(int flags, int batch_num, float* a, int aoffset, unsigned short** b, int boffset, float** r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+     * }
+     */
+    public static void gemm_f32_bf16_batch(
+            int flags,
+            int batch_num,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldb,
+            int ldc) {
+        var mh$ = gemm_f32_bf16_batch$MH();
+        try {
+            mh$.invokeExact(flags, batch_num, a, aoffset, b, boffset, r, roffset, m, n0, n, k, lda, ldb, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_f32_f16$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.const$2, "gemm_f32_f16");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32_f16(int flags, float* a, int aoffset, unsigned short* b, int boffset, float* r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+     * }
+     */
+    public static void gemm_f32_f16(
+            int flags,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldb,
+            int ldc) {
+        var mh$ = gemm_f32_f16$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, b, boffset, r, roffset, m, n0, n, k, lda, ldb, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_f32_f16_batch$MH() {
+        return RuntimeHelper.requireNonNull(constants$4.const$3, "gemm_f32_f16_batch");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32_f16_batch(int flags, int batch_num, float* a, int aoffset, unsigned short** b, int boffset, float** r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldc);
+     * }
+     */
+    public static void gemm_f32_f16_batch(
+            int flags,
+            int batch_num,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldb,
+            int ldc) {
+        var mh$ = gemm_f32_f16_batch$MH();
+        try {
+            mh$.invokeExact(flags, batch_num, a, aoffset, b, boffset, r, roffset, m, n0, n, k, lda, ldb, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
     public static MethodHandle gemm_f32_q4$MH() {
         return RuntimeHelper.requireNonNull(constants$1.const$3, "gemm_f32_q4");
     }
@@ -273,4 +612,188 @@ public class NativeSimd {
             throw new AssertionError("should not reach here", ex$);
         }
     }
+
+    public static MethodHandle gemm_f32_q5$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.const$0, "gemm_f32_q5");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32_q5(int flags, float* a, int aoffset, float* bf, char* b, int boffset, float* r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc);
+     * }
+     */
+    public static void gemm_f32_q5(
+            int flags,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment bf,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldb,
+            int ldbf,
+            int ldc) {
+        var mh$ = gemm_f32_q5$MH();
+        try {
+            mh$.invokeExact(flags, a, aoffset, bf, b, boffset, r, roffset, m, n0, n, k, lda, ldb, ldbf, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle gemm_f32_q5_batch$MH() {
+        return RuntimeHelper.requireNonNull(constants$5.const$1, "gemm_f32_q5_batch");
+    }
+    /**
+     * {@snippet :
+     * void gemm_f32_q5_batch(int flags, int batch_num, float* a, int aoffset, float** bf, char** b, int boffset, float** r, int roffset, int m, int n0, int n, int k, int lda, int ldb, int ldbf, int ldc);
+     * }
+     */
+    public static void gemm_f32_q5_batch(
+            int flags,
+            int batch_num,
+            MemorySegment a,
+            int aoffset,
+            MemorySegment bf,
+            MemorySegment b,
+            int boffset,
+            MemorySegment r,
+            int roffset,
+            int m,
+            int n0,
+            int n,
+            int k,
+            int lda,
+            int ldb,
+            int ldbf,
+            int ldc) {
+        var mh$ = gemm_f32_q5_batch$MH();
+        try {
+            mh$.invokeExact(flags, batch_num, a, aoffset, bf, b, boffset, r, roffset, m, n0, n, k, lda, ldb, ldbf, ldc);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle rope_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.const$1, "rope_f32");
+    }
+    /**
+     * {@snippet :
+     * void rope_f32(int flags, float* x, int xoffset, float* cs, int csoffset, int length, int headSize);
+     * }
+     */
+    public static void rope_f32(
+            int flags, MemorySegment x, int xoffset, MemorySegment cs, int csoffset, int length, int headSize) {
+        var mh$ = rope_f32$MH();
+        try {
+            mh$.invokeExact(flags, x, xoffset, cs, csoffset, length, headSize);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle sum_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.const$3, "sum_f32");
+    }
+    /**
+     * {@snippet :
+     * float sum_f32(int flags, float* x, int offset, int length);
+     * }
+     */
+    public static float sum_f32(int flags, MemorySegment x, int offset, int length) {
+        var mh$ = sum_f32$MH();
+        try {
+            return (float) mh$.invokeExact(flags, x, offset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle sum_sq_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.const$4, "sum_sq_f32");
+    }
+    /**
+     * {@snippet :
+     * float sum_sq_f32(int flags, float* x, int offset, int length);
+     * }
+     */
+    public static float sum_sq_f32(int flags, MemorySegment x, int offset, int length) {
+        var mh$ = sum_sq_f32$MH();
+        try {
+            return (float) mh$.invokeExact(flags, x, offset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle max_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$2.const$5, "max_f32");
+    }
+    /**
+     * {@snippet :
+     * float max_f32(int flags, float* x, int offset, int length);
+     * }
+     */
+    public static float max_f32(int flags, MemorySegment x, int offset, int length) {
+        var mh$ = max_f32$MH();
+        try {
+            return (float) mh$.invokeExact(flags, x, offset, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle norm_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.const$1, "norm_f32");
+    }
+    /**
+     * {@snippet :
+     * void norm_f32(int flags, float* r, int roffset, float* x, int xoffset, float* w, int woffset, float* bias, int boffset, float weightAdjustment, float mean, float scale, int length);
+     * }
+     */
+    public static void norm_f32(
+            int flags,
+            MemorySegment r,
+            int roffset,
+            MemorySegment x,
+            int xoffset,
+            MemorySegment w,
+            int woffset,
+            MemorySegment bias,
+            int boffset,
+            float weightAdjustment,
+            float mean,
+            float scale,
+            int length) {
+        var mh$ = norm_f32$MH();
+        try {
+            mh$.invokeExact(
+                    flags, r, roffset, x, xoffset, w, woffset, bias, boffset, weightAdjustment, mean, scale, length);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
+
+    public static MethodHandle exp_sum_f32$MH() {
+        return RuntimeHelper.requireNonNull(constants$3.const$3, "exp_sum_f32");
+    }
+    /**
+     * {@snippet :
+     * float exp_sum_f32(int flags, float* x, int offset, int length, float max);
+     * }
+     */
+    public static float exp_sum_f32(int flags, MemorySegment x, int offset, int length, float max) {
+        var mh$ = exp_sum_f32$MH();
+        try {
+            return (float) mh$.invokeExact(flags, x, offset, length, max);
+        } catch (Throwable ex$) {
+            throw new AssertionError("should not reach here", ex$);
+        }
+    }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.tensor.operations.cnative;
+
+import java.lang.invoke.MethodHandle;
+
+final class constants$4 {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private constants$4() {}
+
+    static final MethodHandle const$0 = RuntimeHelper.downcallHandle("gemm_f32_bf16", constants$0.const$4);
+    static final MethodHandle const$1 = RuntimeHelper.downcallHandle("gemm_f32_bf16_batch", constants$1.const$0);
+    static final MethodHandle const$2 = RuntimeHelper.downcallHandle("gemm_f32_f16", constants$0.const$4);
+    static final MethodHandle const$3 = RuntimeHelper.downcallHandle("gemm_f32_f16_batch", constants$1.const$0);
+    static final MethodHandle const$4 = RuntimeHelper.downcallHandle("gemm_q8_q5", constants$0.const$0);
+    static final MethodHandle const$5 = RuntimeHelper.downcallHandle("gemm_q8_q5_batch", constants$0.const$2);
+}
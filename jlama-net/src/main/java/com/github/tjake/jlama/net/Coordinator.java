@@ -19,6 +19,7 @@ import static com.github.tjake.jlama.model.ModelSupport.loadModel;
 
 import com.github.tjake.jlama.model.AbstractModel;
 import com.github.tjake.jlama.model.functions.Generator;
+import com.github.tjake.jlama.model.functions.Sampler;
 import com.github.tjake.jlama.net.grpc.JlamaService;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
@@ -30,7 +31,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -89,7 +89,7 @@ public class Coordinator implements Generator {
             UUID session,
             String prompt,
             String cleanPrompt,
-            float temperature,
+            Sampler sampler,
             int ntokens,
             boolean useEOS,
             BiConsumer<String, Float> onTokenWithTimings) {
@@ -117,6 +117,8 @@ public class Coordinator implements Generator {
             onTokenWithTimings.accept(clientPrompt, 0f);
             long start = System.currentTimeMillis();
 
+            for (int i = 0; i < promptLength; i++) sampler.accept(promptTokens[i]);
+
             AbstractTensor output = null;
             for (int i = 0; i < promptLength; i++) {
                 if (output != null) output.close();
@@ -125,8 +127,8 @@ public class Coordinator implements Generator {
             }
 
             for (int i = promptLength; i < ntokens; i++) {
-                int next = model.sample(
-                        output, temperature, ThreadLocalRandom.current().nextFloat(), logits);
+                int next = model.sample(output, sampler, logits);
+                sampler.accept(next);
                 output.close();
 
                 // Model may tell us it's done
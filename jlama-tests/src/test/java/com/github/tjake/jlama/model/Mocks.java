@@ -18,17 +18,26 @@ package com.github.tjake.jlama.model;
 import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.model.functions.EmbedInput;
 import com.github.tjake.jlama.model.functions.SampleOutput;
+import com.github.tjake.jlama.model.llama.LlamaModel;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.TensorInfo;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.util.Pair;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Mocks {
 
@@ -38,6 +47,73 @@ public class Mocks {
                 new MockConfig(contextLength, embeddingLength, hiddenLength, numberOfHeads, numberOfLayers, 1e5f));
     }
 
+    /**
+     * A randomly weighted llama model, small enough to check the inference paths against each other
+     */
+    public static LlamaModel tinyModel(int contextLength) {
+        return tinyModel(tinyConfig(contextLength));
+    }
+
+    public static LlamaModel tinyModel(Config c) {
+        return tinyModel(c, new MockTokenizer(), Optional.empty());
+    }
+
+    public static LlamaModel tinyModel(Config c, Tokenizer tokenizer, Optional<DType> modelQType) {
+        return new LlamaModel(c, new RandomWeightLoader(c), tokenizer, DType.F32, DType.F32, modelQType);
+    }
+
+    public static Config tinyConfig(int contextLength) {
+        return tinyConfig(contextLength, 64, 2, 256);
+    }
+
+    /**
+     * Four query heads sharing two kv heads, with the hidden layer twice the embedding
+     */
+    public static Config tinyConfig(int contextLength, int embeddingLength, int numberOfLayers, int vocabularySize) {
+        return new Config(
+                contextLength,
+                embeddingLength,
+                embeddingLength * 2,
+                4,
+                2,
+                numberOfLayers,
+                1e-5f,
+                vocabularySize,
+                1,
+                2,
+                ActivationFunction.Type.SILU,
+                10000.0,
+                1.0);
+    }
+
+    /** Writes a GGUF file, the header holding its metadata and tensor infos then the tensor data 32 byte aligned */
+    public static void writeGGUF(File file, ByteBuffer header, ByteBuffer... data) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            int dataOffset = (header.position() + 31) / 32 * 32;
+            raf.getChannel().write(header.flip(), 0);
+            raf.getChannel().position(dataOffset);
+            for (ByteBuffer b : data) {
+                raf.getChannel().write(b.rewind());
+                long pos = raf.getChannel().position();
+                raf.getChannel().position((pos + 31) / 32 * 32);
+            }
+        }
+    }
+
+    public static void putGGUFString(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.putLong(bytes.length).put(bytes);
+    }
+
+    /** Adds a tensor info to the header, returning the aligned offset of the next tensor's data */
+    public static long putGGUFTensor(ByteBuffer b, String name, int type, long offset, ByteBuffer data, int... dims) {
+        putGGUFString(b, name);
+        b.putInt(dims.length);
+        for (int d : dims) b.putLong(d);
+        b.putInt(type).putLong(offset);
+        return (offset + data.capacity() + 31) / 32 * 32;
+    }
+
     public static class MockConfig extends Config {
         public MockConfig(
                 int contextLength,
@@ -88,6 +164,63 @@ public class Mocks {
         public void close() throws Exception {}
     }
 
+    /**
+     * Loads small random weights for a llama shaped model, so model code paths can be
+     * exercised without downloading a real model.
+     */
+    public static class RandomWeightLoader implements WeightLoader {
+        private final Config c;
+        private final Map<String, AbstractTensor> weights = new ConcurrentHashMap<>();
+
+        public RandomWeightLoader(Config c) {
+            this.c = c;
+        }
+
+        @Override
+        public Map<String, String> metadata() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, TensorInfo> tensorInfoMap() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public AbstractTensor load(String name, Optional<Pair<Integer, Integer>> offset) {
+            return weights.computeIfAbsent(name, this::makeWeight);
+        }
+
+        private AbstractTensor makeWeight(String name) {
+            int rows;
+            int cols = c.embeddingLength;
+            if (name.contains("embed_tokens") || name.contains("lm_head")) rows = c.vocabularySize;
+            else if (name.contains("norm")) rows = 1;
+            else if (name.contains("k_proj") || name.contains("v_proj")) rows = c.kvLength;
+            else if (name.contains("gate_proj") || name.contains("up_proj")) rows = c.hiddenLength;
+            else if (name.contains("down_proj")) {
+                rows = c.embeddingLength;
+                cols = c.hiddenLength;
+            } else rows = c.embeddingLength;
+
+            Random r = new Random(name.hashCode());
+            FloatBufferTensor t = new FloatBufferTensor(rows, cols);
+            for (int i = 0; i < rows; i++)
+                for (int j = 0; j < cols; j++)
+                    t.set(name.contains("norm") ? 1.0f : (float) r.nextGaussian() * 0.1f, i, j);
+
+            return t;
+        }
+
+        @Override
+        public DType getModelDType() {
+            return DType.F32;
+        }
+
+        @Override
+        public void close() throws Exception {}
+    }
+
     public static class MockTokenizer implements Tokenizer {
 
         @Override
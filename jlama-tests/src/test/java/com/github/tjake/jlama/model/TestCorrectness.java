@@ -19,19 +19,28 @@ import static com.github.tjake.jlama.util.JsonSupport.om;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.github.tjake.jlama.math.FloatConversions;
+import com.github.tjake.jlama.math.RopeFreqs;
 import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.model.functions.Sampler;
 import com.github.tjake.jlama.model.gemma.GemmaTokenizer;
 import com.github.tjake.jlama.model.gpt2.GPT2Tokenizer;
 import com.github.tjake.jlama.model.llama.LlamaTokenizer;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.safetensors.tokenizer.WordPieceTokenizer;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.google.common.io.Resources;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
@@ -158,9 +167,9 @@ public class TestCorrectness {
             1.1548e-04
         };
 
-        float[][] ropeFreqs = VectorMath.precomputeFreqsCis(128, 4096 * 2, 10000.0, 1.0);
+        RopeFreqs ropeFreqs = VectorMath.precomputeFreqsCis(128, 4096 * 2, 10000.0, 1.0);
 
-        for (int i = 0; i < 64; i++) Assert.assertEquals(expected[i], ropeFreqs[i + 64][1], 0.0001);
+        for (int i = 0; i < 64; i++) Assert.assertEquals(expected[i], ropeFreqs.sin(1, i), 0.0001);
 
         expected = new double[] {
             0.9200, -0.9031, -0.7639, -0.6592, -0.9904, -0.2474, 0.9597, -0.9819, 0.9835, -0.9696, 0.5065, 0.5448,
@@ -171,7 +180,7 @@ public class TestCorrectness {
             0.0074
         };
 
-        for (int i = 0; i < 64; i++) Assert.assertEquals(expected[i], ropeFreqs[i + (64 * 64)][1], 0.0001);
+        for (int i = 0; i < 64; i++) Assert.assertEquals(expected[i], ropeFreqs.sin(64, i), 0.0001);
     }
 
     @Test
@@ -181,15 +190,15 @@ public class TestCorrectness {
         List<List<Float>> imag = om.readerFor(new TypeReference<ArrayList<ArrayList<Float>>>() {})
                 .readValue(Resources.getResource("imag.json"));
 
-        float[][] ropeFreqs = VectorMath.precomputeFreqsCis(128, 2048, 10000.0, 1.0);
+        RopeFreqs ropeFreqs = VectorMath.precomputeFreqsCis(128, 2048, 10000.0, 1.0);
 
         Assert.assertEquals(imag.size(), real.size());
-        Assert.assertEquals(ropeFreqs.length, real.size() * 64);
+        Assert.assertEquals(ropeFreqs.contextLength(), real.size());
 
         for (int i = 0; i < real.size(); i++) {
             for (int j = 0; j < 64; j++) {
-                Assert.assertEquals(real.get(i).get(j), ropeFreqs[i * 64 + j][0], 0.0001);
-                Assert.assertEquals(imag.get(i).get(j), ropeFreqs[i * 64 + j][1], 0.0001);
+                Assert.assertEquals(real.get(i).get(j), ropeFreqs.cos(i, j), 0.0001);
+                Assert.assertEquals(imag.get(i).get(j), ropeFreqs.sin(i, j), 0.0001);
             }
         }
     }
@@ -283,4 +292,87 @@ public class TestCorrectness {
         Assert.assertArrayEquals(expected, actual);
         Assert.assertEquals(p, d);
     }
+
+    @Test
+    public void testLogitsSampler() {
+        int vocab = 50_000;
+        Random r = new Random(42);
+        float[] values = new float[vocab];
+        for (int i = 0; i < vocab; i++) values[i] = r.nextFloat() * 10 - 5;
+
+        // Tied maxima keep the lower index
+        values[123] = 6.0f;
+        values[40_000] = 6.0f;
+        Integer[] order = new Integer[vocab];
+        for (int i = 0; i < vocab; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> values[a] != values[b] ? Float.compare(values[b], values[a]) : a - b);
+
+        Assert.assertEquals(123, new LogitsSampler(0.0f).sample(logits(values), vocab));
+
+        int[] idx = new int[50];
+        float[] val = new float[50];
+        Assert.assertEquals(50, LogitsSampler.select(logits(values), vocab, 50, Float.NEGATIVE_INFINITY, idx, val));
+        for (int i = 0; i < 50; i++) Assert.assertEquals(order[i].intValue(), idx[i]);
+
+        // Only as many as are over the floor
+        Assert.assertEquals(2, LogitsSampler.select(logits(values), vocab, 50, 5.5f, idx, val));
+
+        // Without filters this is the softmax's cumulative distribution
+        float[] small = {1.0f, 3.0f, 0.5f, 2.0f};
+        double[] cdf = new double[small.length];
+        double total = 0;
+        for (int i = 0; i < small.length; i++) cdf[i] = total += Math.exp((small[i] - 3.0f) / 0.8f);
+        for (float u = 0.05f; u < 1.0f; u += 0.1f) {
+            int expected = 0;
+            while (cdf[expected] < u * total) expected++;
+            Assert.assertEquals(expected, new LogitsSampler(0.8f).sample(logits(small), small.length, u));
+        }
+
+        // Top-k, top-p and min-p only pick from the most likely tokens
+        double sum = 0;
+        for (int i = 0; i < vocab; i++) sum += Math.exp(values[i] - 6.0f);
+        int nucleus = 0;
+        for (double acc = 0; acc < 0.5 * sum; ) acc += Math.exp(values[order[nucleus++]] - 6.0f);
+        Set<Integer> top5 = Set.of(order).stream()
+                .filter(i -> values[i] >= values[order[4]])
+                .collect(Collectors.toSet());
+        Set<Integer> topHalf = Set.of(Arrays.copyOf(order, nucleus));
+
+        LogitsSampler topK = new LogitsSampler(1.0f, 5, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f, Optional.of(1L));
+        LogitsSampler topP = new LogitsSampler(1.0f, 0, 0.5f, 0.0f, 1.0f, 0.0f, 0.0f, Optional.of(1L));
+        LogitsSampler minP = new LogitsSampler(1.0f, 0, 1.0f, 0.3f, 1.0f, 0.0f, 0.0f, Optional.of(1L));
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(top5.contains(topK.sample(logits(values), vocab)));
+            Assert.assertTrue(topHalf.contains(topP.sample(logits(values), vocab)));
+            Assert.assertTrue(values[minP.sample(logits(values), vocab)] >= 6.0f + Math.log(0.3f));
+        }
+
+        // The same seed samples the same tokens
+        LogitsSampler a = new LogitsSampler(1.0f, 0, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f, Optional.of(7L));
+        LogitsSampler b = new LogitsSampler(1.0f, 0, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f, Optional.of(7L));
+        for (int i = 0; i < 20; i++)
+            Assert.assertEquals(a.sample(logits(values), vocab), b.sample(logits(values), vocab));
+
+        // Seen tokens are penalized
+        LogitsSampler penalized = new LogitsSampler(0.0f, 0, 1.0f, 0.0f, 2.0f, 0.0f, 0.0f, Optional.empty());
+        penalized.accept(123);
+        Assert.assertEquals(40_000, penalized.sample(logits(values), vocab));
+        penalized.accept(40_000);
+        Assert.assertEquals(order[2].intValue(), penalized.sample(logits(values), vocab));
+
+        LogitsSampler presence = new LogitsSampler(0.0f, 0, 1.0f, 0.0f, 1.0f, 0.0f, 20.0f, Optional.empty());
+        presence.accept(123);
+        Assert.assertEquals(40_000, presence.sample(logits(values), vocab));
+
+        // Samplers without their own candidate path sample from the candidates laid out as logits
+        Sampler greedy = (l, length) -> new LogitsSampler(0.0f).sample(l, length);
+        Assert.assertEquals(42, greedy.sample(new int[] {42, 7, 99}, new float[] {3.0f, 2.0f, -1.0f}, 3));
+        Assert.assertEquals(99, greedy.sample(new int[] {99, 42}, new float[] {-1.0f, -2.0f}, 2));
+    }
+
+    private static AbstractTensor logits(float[] values) {
+        FloatBufferTensor t = new FloatBufferTensor(1, values.length);
+        for (int i = 0; i < values.length; i++) t.set(values[i], 0, i);
+        return t;
+    }
 }
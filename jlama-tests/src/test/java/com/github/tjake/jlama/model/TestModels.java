@@ -35,6 +35,11 @@ import com.github.tjake.jlama.model.mixtral.MixtralModel;
 import com.github.tjake.jlama.safetensors.*;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.TensorShape;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.primitives.Ints;
@@ -42,16 +47,21 @@ import com.google.common.util.concurrent.AtomicDouble;
 import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
@@ -70,6 +80,693 @@ public class TestModels {
 
     private static final Logger logger = LoggerFactory.getLogger(TestModels.class);
 
+    @Test
+    public void testMultiSequenceBatchForward() {
+        Config c = Mocks.tinyConfig(128);
+        LlamaModel model = Mocks.tinyModel(c);
+
+        // Sequence A crosses a kv block boundary while decoding
+        int[] tokensA = new int[KvBufferCache.BLOCK_SIZE + 2];
+        for (int i = 0; i < tokensA.length; i++) tokensA[i] = (i * 7) % c.vocabularySize;
+        int[] tokensB = new int[] {1, 50, 60, 70, 80};
+        int steps = 3;
+
+        // Run each sequence one token at a time
+        KvBufferCache.KvBuffer kvA = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        KvBufferCache.KvBuffer kvB = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        AbstractTensor[] expectedA = new AbstractTensor[tokensA.length];
+        AbstractTensor[] expectedB = new AbstractTensor[tokensB.length];
+        for (int i = 0; i < tokensA.length; i++) expectedA[i] = model.forward(tokensA[i], i, kvA);
+        for (int i = 0; i < tokensB.length; i++) expectedB[i] = model.forward(tokensB[i], i, kvB);
+
+        // Prefill both sequences, then decode them together in one batch
+        int prefillA = tokensA.length - steps;
+        int prefillB = tokensB.length - steps;
+        KvBufferCache.KvBuffer kvA2 = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        KvBufferCache.KvBuffer kvB2 = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        model.batchForward(Arrays.copyOf(tokensA, prefillA), 0, kvA2).close();
+        model.batchForward(Arrays.copyOf(tokensB, prefillB), 0, kvB2).close();
+
+        for (int step = 0; step < steps; step++) {
+            int posA = prefillA + step;
+            int posB = prefillB + step;
+            AbstractTensor out = model.batchForward(
+                    new int[] {tokensA[posA], tokensB[posB]},
+                    new int[] {posA, posB},
+                    new KvBufferCache.KvBuffer[] {kvA2, kvB2});
+
+            for (int i = 0; i < c.embeddingLength; i++) {
+                Assert.assertEquals(expectedA[posA].get(0, i), out.get(0, i), 1e-4f);
+                Assert.assertEquals(expectedB[posB].get(0, i), out.get(1, i), 1e-4f);
+            }
+            out.close();
+        }
+
+        // Closing a session returns its blocks to the pool for reuse
+        int allocated = model.getKvBufferCache().allocatedBlocks();
+        kvA.close();
+        KvBufferCache.KvBuffer kvC = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        model.forward(tokensA[0], 0, kvC).close();
+        Assert.assertEquals(allocated, model.getKvBufferCache().allocatedBlocks());
+    }
+
+    @Test
+    public void testTiledPromptAttention() {
+        Config c = Mocks.tinyConfig(512);
+        LlamaModel model = Mocks.tinyModel(c);
+
+        // Several query tiles over several kv blocks, starting part way into a block
+        int startPos = 10;
+        int[] tokens = new int[2 * KvBufferCache.BLOCK_SIZE + 21];
+        for (int i = 0; i < tokens.length; i++) tokens[i] = (i * 7) % c.vocabularySize;
+
+        KvBufferCache.KvBuffer kv = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        KvBufferCache.KvBuffer kvRef = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        for (int i = 0; i < startPos; i++) {
+            model.forward(i + 1, i, kv).close();
+            model.forward(i + 1, i, kvRef).close();
+        }
+
+        AbstractTensor out = model.batchForward(tokens, startPos, kv);
+        for (int i = 0; i < tokens.length; i++) {
+            try (AbstractTensor expected = model.forward(tokens[i], startPos + i, kvRef)) {
+                for (int j = 0; j < c.embeddingLength; j++)
+                    Assert.assertEquals(expected.get(0, j), out.get(i, j), 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void testSplitDecodeAttention() {
+        Config c = Mocks.tinyConfig(1024);
+        LlamaModel model = Mocks.tinyModel(c);
+
+        // Long enough for three segments, ending part way into a block
+        int[] tokens = new int[12 * KvBufferCache.BLOCK_SIZE + 5];
+        for (int i = 0; i < tokens.length; i++) tokens[i] = (i * 7) % c.vocabularySize;
+
+        KvBufferCache.KvBuffer kv = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        model.batchForward(tokens, 0, kv).close();
+
+        int position = tokens.length;
+        int saved = CausalSelfAttention.decodeSegments;
+        try (AbstractTensor expected = model.forward(3, position, kv)) {
+            CausalSelfAttention.decodeSegments = 3;
+            try (AbstractTensor out = model.forward(3, position, kv)) {
+                for (int j = 0; j < c.embeddingLength; j++)
+                    Assert.assertEquals(expected.get(0, j), out.get(0, j), 1e-4f);
+            }
+        } finally {
+            CausalSelfAttention.decodeSegments = saved;
+        }
+    }
+
+    @Test
+    public void testFusedQkvProjection() {
+        Assume.assumeTrue(CausalSelfAttention.FUSE_QKV);
+        for (DType qType : List.of(DType.F32, DType.Q4, DType.Q5)) {
+            Config c = Mocks.tinyConfig(128);
+            LlamaModel model = Mocks.tinyModel(c, new Mocks.MockTokenizer(), Optional.of(qType));
+
+            // The same weights through the separate projections
+            CausalSelfAttention fused = model.transformerBlocks[0].attention;
+            CausalSelfAttention separate = new CausalSelfAttention(
+                    model,
+                    fused.queryAttnWeights,
+                    fused.keyAttnWeights,
+                    fused.valueAttnWeights,
+                    fused.outputProjectionWeights);
+
+            AbstractTensor input = model.makeFullTensor(5, c.embeddingLength);
+            for (int i = 0; i < 5; i++)
+                for (int j = 0; j < c.embeddingLength; j++) input.set((float) Math.sin(i * 31 + j), i, j);
+
+            KvBufferCache.KvBuffer kv = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+            KvBufferCache.KvBuffer kvRef = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+            try (AbstractTensor out = fused.forward(input, 0, kv.getLayer(0), Optional.empty());
+                    AbstractTensor expected = separate.forward(input, 0, kvRef.getLayer(0), Optional.empty())) {
+                for (int i = 0; i < 5; i++)
+                    for (int j = 0; j < c.embeddingLength; j++)
+                        Assert.assertEquals("Weights " + qType, expected.get(i, j), out.get(i, j), 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void testFusedQkvSkipsMappedWeights() throws IOException {
+        Assume.assumeTrue(CausalSelfAttention.FUSE_QKV);
+        AbstractTensor heap = new FloatBufferTensor(4, 64);
+        Assert.assertTrue(CausalSelfAttention.fuseQkv(heap, heap, heap));
+
+        // Weights of different types can't share one tensor
+        Assert.assertFalse(CausalSelfAttention.fuseQkv(heap, heap, new Q8ByteBufferTensor(heap)));
+
+        // Weights still mapped from the model file are left for the separate projections
+        File f = File.createTempFile("jlama-mapped", ".bin");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(4 * 64 * Float.BYTES);
+            AbstractTensor mapped = new FloatBufferTensor(
+                    raf.getChannel()
+                            .map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                            .asFloatBuffer(),
+                    TensorShape.of(4, 64),
+                    true);
+            Assert.assertFalse(CausalSelfAttention.fuseQkv(heap, mapped, heap));
+        }
+    }
+
+    @Test
+    public void testMixedGGUF() throws IOException {
+        File dir = Files.createTempDirectory("jlama-gguf").toFile();
+        dir.deleteOnExit();
+        File tokenizer = new File(dir, "tokenizer.json");
+        tokenizer.deleteOnExit();
+        Files.writeString(
+                tokenizer.toPath(),
+                "{\"model\": {\"type\": \"BPE\", \"vocab\": {\"t0\": 0, \"t1\": 1, \"t2\": 2, \"t3\": 3, \"t4\": 4}}}");
+
+        // A Q4_K_M style mix, mostly Q4_K with a few Q6_K and Q8_0 tensors that load as I8
+        int dim = 256;
+        ByteBuffer norm = ByteBuffer.allocate(dim * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < dim; i++) norm.putFloat(1.0f);
+        ByteBuffer embed = ggufQ4K(5, dim);
+        ByteBuffer output = ggufQ8(5, dim);
+        ByteBuffer q4k = ggufQ4K(dim, dim);
+        ByteBuffer q8 = ggufQ8(dim, dim);
+        ByteBuffer q6k = ggufQ6K(dim, dim);
+
+        ByteBuffer header = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46554747).putInt(3).putLong(12).putLong(10);
+        Mocks.putGGUFString(header, "general.architecture");
+        header.putInt(8);
+        Mocks.putGGUFString(header, "llama");
+        for (String[] kv : new String[][] {
+            {"context_length", "64"},
+            {"embedding_length", "" + dim},
+            {"feed_forward_length", "" + dim},
+            {"attention.head_count", "2"},
+            {"block_count", "1"}
+        }) {
+            Mocks.putGGUFString(header, "llama." + kv[0]);
+            header.putInt(4).putInt(Integer.parseInt(kv[1]));
+        }
+        Mocks.putGGUFString(header, "llama.attention.layer_norm_rms_epsilon");
+        header.putInt(6).putFloat(1e-5f);
+        Mocks.putGGUFString(header, "llama.rope.freq_base");
+        header.putInt(6).putFloat(10000f);
+        Mocks.putGGUFString(header, "tokenizer.ggml.bos_token_id");
+        header.putInt(4).putInt(1);
+        Mocks.putGGUFString(header, "tokenizer.ggml.tokens");
+        header.putInt(9).putInt(8).putLong(5);
+        for (int i = 0; i < 5; i++) Mocks.putGGUFString(header, "t" + i);
+
+        long offset = 0;
+        offset = Mocks.putGGUFTensor(header, "token_embd.weight", 12, offset, embed, dim, 5);
+        offset = Mocks.putGGUFTensor(header, "blk.0.attn_norm.weight", 0, offset, norm, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.attn_q.weight", 12, offset, q4k, dim, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.attn_k.weight", 12, offset, q4k, dim, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.attn_v.weight", 8, offset, q8, dim, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.attn_output.weight", 14, offset, q6k, dim, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.ffn_norm.weight", 0, offset, norm, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.ffn_gate.weight", 12, offset, q4k, dim, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.ffn_up.weight", 12, offset, q4k, dim, dim);
+        offset = Mocks.putGGUFTensor(header, "blk.0.ffn_down.weight", 14, offset, q6k, dim, dim);
+        offset = Mocks.putGGUFTensor(header, "output_norm.weight", 0, offset, norm, dim);
+        Mocks.putGGUFTensor(header, "output.weight", 8, offset, output, dim, 5);
+
+        File gguf = new File(dir, "model" + GGUFIndex.FILE_EXTENSION);
+        gguf.deleteOnExit();
+        Mocks.writeGGUF(gguf, header, embed, norm, q4k, q4k, q8, q6k, norm, q4k, q4k, q6k, norm, output);
+
+        // The weights keep the types they were stored as
+        AbstractModel model =
+                ModelSupport.loadModel(gguf, dir, DType.F32, DType.I8, Optional.empty(), Optional.empty());
+        CausalSelfAttention attention = model.transformerBlocks[0].attention;
+        Assert.assertEquals(DType.Q4_K, attention.queryAttnWeights.dType());
+        Assert.assertEquals(DType.I8, attention.valueAttnWeights.dType());
+        Assert.assertEquals(DType.I8, attention.outputProjectionWeights.dType());
+
+        // The batched q/k/v projection takes each weight in its own type
+        AbstractModel reference =
+                ModelSupport.loadModel(gguf, dir, DType.F32, DType.F32, Optional.of(DType.F32), Optional.empty());
+        try (AbstractTensor out = model.forward(1, 0, model.getKvBufferCache().getKvBuffer(UUID.randomUUID()));
+                AbstractTensor expected =
+                        reference.forward(1, 0, reference.getKvBufferCache().getKvBuffer(UUID.randomUUID()))) {
+            for (int i = 0; i < dim; i++)
+                Assert.assertEquals(expected.get(0, i), out.get(0, i), Math.abs(expected.get(0, i)) * 0.01f);
+        }
+
+        // Asking for a model quantization still requantizes them
+        model = ModelSupport.loadModel(gguf, dir, DType.F32, DType.I8, Optional.of(DType.Q4_K), Optional.empty());
+        attention = model.transformerBlocks[0].attention;
+        Assert.assertEquals(DType.Q4_K, attention.valueAttnWeights.dType());
+        Assert.assertEquals(DType.Q4_K, attention.outputProjectionWeights.dType());
+    }
+
+    /** Q4_K super-blocks are stored as Jlama keeps them */
+    private static ByteBuffer ggufQ4K(int rows, int columns) {
+        FloatBufferTensor f = new FloatBufferTensor(rows, columns);
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++) f.set(0.05f * (float) Math.sin(i * columns + j), i, j);
+
+        return new Q4KByteBufferTensor(f).getMemorySegment().asByteBuffer();
+    }
+
+    /** Q8_0: f16 scale then 32 quants */
+    private static ByteBuffer ggufQ8(int rows, int columns) {
+        ByteBuffer b = ByteBuffer.allocate(rows * columns / 32 * 34).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < rows * columns / 32; i++) {
+            b.putShort(Float.floatToFloat16(0.001f));
+            for (int j = 0; j < 32; j++) b.put((byte) ((i + j * 7) % 64 - 32));
+        }
+
+        return b;
+    }
+
+    /** Q6_K: 128 low nibble bytes, 64 high bit bytes, 16 sub-block scales and an f16 scale */
+    private static ByteBuffer ggufQ6K(int rows, int columns) {
+        ByteBuffer b = ByteBuffer.allocate(rows * columns / 256 * 210).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < rows * columns / 256; i++) {
+            for (int j = 0; j < 128; j++) b.put((byte) (i + j));
+            for (int j = 0; j < 64; j++) b.put((byte) 0xE4);
+            for (int j = 0; j < 16; j++) b.put((byte) (j - 8));
+            b.putShort(Float.floatToFloat16(0.0001f));
+        }
+
+        return b;
+    }
+
+    @Test
+    public void testPrefixCache() {
+        Config c = Mocks.tinyConfig(512);
+        LlamaModel model = Mocks.tinyModel(c);
+        KvBufferCache cache = model.getKvBufferCache();
+
+        // Two prompts sharing a prefix of two full blocks and a bit
+        int shared = 2 * KvBufferCache.BLOCK_SIZE + 10;
+        int[] promptA = new int[shared + 20];
+        int[] promptB = new int[shared + 30];
+        for (int i = 0; i < promptA.length; i++) promptA[i] = (i * 7) % c.vocabularySize;
+        for (int i = 0; i < promptB.length; i++) promptB[i] = i < shared ? promptA[i] : (i * 13) % c.vocabularySize;
+
+        KvBufferCache.KvBuffer kvA = cache.getKvBuffer(UUID.randomUUID());
+        Assert.assertEquals(0, kvA.reusePrefix(promptA));
+        model.batchForward(promptA, 0, kvA).close();
+        kvA.setCurrentContextPosition(promptA.length);
+        kvA.cachePrefix(promptA);
+        Assert.assertEquals(2, cache.prefixCachedBlocks());
+
+        // Run B without the cache for reference
+        KvBufferCache.KvBuffer kvRef = cache.getKvBuffer(UUID.randomUUID());
+        AbstractTensor expected = model.batchForward(promptB, 0, kvRef);
+
+        KvBufferCache.KvBuffer kvB = cache.getKvBuffer(UUID.randomUUID());
+        int cached = kvB.reusePrefix(promptB);
+        Assert.assertEquals(2 * KvBufferCache.BLOCK_SIZE, cached);
+        AbstractTensor out = model.batchForward(Arrays.copyOfRange(promptB, cached, promptB.length), cached, kvB);
+
+        int last = promptB.length - 1;
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals(expected.get(last, i), out.get(last - cached, i), 1e-4f);
+
+        // Shared blocks outlive the session that made them, even as freed blocks are reused
+        kvA.close();
+        KvBufferCache.KvBuffer kvC = cache.getKvBuffer(UUID.randomUUID());
+        model.batchForward(new int[KvBufferCache.BLOCK_SIZE * 3], 0, kvC).close();
+
+        AbstractTensor expectedNext = model.forward(5, promptB.length, kvRef);
+        AbstractTensor next = model.forward(5, promptB.length, kvB);
+        for (int i = 0; i < c.embeddingLength; i++) Assert.assertEquals(expectedNext.get(0, i), next.get(0, i), 1e-4f);
+    }
+
+    @Test
+    public void testKvCacheEviction() {
+        Config c = Mocks.tinyConfig(512);
+        c.setWorkingDirectory(null);
+        c.setKvSpill(true);
+        LlamaModel model = Mocks.tinyModel(c);
+        KvBufferCache cache = model.getKvBufferCache();
+
+        int[] prompt = new int[KvBufferCache.BLOCK_SIZE + 36];
+        for (int i = 0; i < prompt.length; i++) prompt[i] = (i * 7) % c.vocabularySize;
+
+        KvBufferCache.KvBuffer ref = cache.getKvBuffer(UUID.randomUUID());
+        model.batchForward(prompt, 0, ref).close();
+        AbstractTensor expected = model.forward(5, prompt.length, ref);
+        long blockBytes = cache.allocatedBytes() / cache.allocatedBlocks();
+        ref.close();
+
+        // Room for three blocks, each session needs two
+        c.setKvCacheMaxBytes(3 * blockBytes);
+        KvBufferCache.KvBuffer kvA = cache.getKvBuffer(UUID.randomUUID());
+        model.batchForward(prompt, 0, kvA).close();
+        kvA.setCurrentContextPosition(prompt.length);
+
+        KvBufferCache.KvBuffer kvB = cache.getKvBuffer(UUID.randomUUID());
+        model.batchForward(prompt, 0, kvB).close();
+        kvB.setCurrentContextPosition(prompt.length);
+        Assert.assertEquals(1, cache.evictions());
+        Assert.assertEquals(1, cache.spilledSessions());
+        Assert.assertTrue(cache.usedBytes() <= 3 * blockBytes);
+
+        // A is read back on demand, spilling B to make room
+        AbstractTensor out = model.forward(5, prompt.length, kvA);
+        for (int i = 0; i < c.embeddingLength; i++) Assert.assertEquals(expected.get(0, i), out.get(0, i), 1e-5f);
+        Assert.assertEquals(2, cache.evictions());
+        Assert.assertEquals(1, cache.spilledSessions());
+        Assert.assertEquals(2, cache.sessions());
+
+        // Idle sessions are dropped, spilled ones along with their files, leaving only the pool file
+        c.setKvSessionTimeoutMillis(1);
+        Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        cache.evictIdle();
+        Assert.assertEquals(0, cache.sessions());
+        Assert.assertEquals(1, Objects.requireNonNull(c.workingDirectory().get().listFiles()).length);
+
+        // Closing the cache removes its files
+        cache.close();
+        Assert.assertEquals(0, cache.sessions());
+        Assert.assertEquals(0, Objects.requireNonNull(c.workingDirectory().get().listFiles()).length);
+    }
+
+    @Test
+    public void testKvCacheEvictsPrefixes() {
+        Config c = Mocks.tinyConfig(512);
+        LlamaModel model = Mocks.tinyModel(c);
+        KvBufferCache cache = model.getKvBufferCache();
+
+        // A holds three blocks, sharing the two full ones with the prefix cache
+        int[] promptA = new int[2 * KvBufferCache.BLOCK_SIZE + 10];
+        for (int i = 0; i < promptA.length; i++) promptA[i] = (i * 7) % c.vocabularySize;
+        KvBufferCache.KvBuffer kvA = cache.getKvBuffer(UUID.randomUUID());
+        model.batchForward(promptA, 0, kvA).close();
+        kvA.setCurrentContextPosition(promptA.length);
+        kvA.cachePrefix(promptA);
+        Assert.assertEquals(2, cache.prefixCachedBlocks());
+        Assert.assertEquals(3, cache.allocatedBlocks());
+
+        // Evicting A alone only frees its last block, the cached prefix has to go too
+        c.setKvCacheMaxBytes(cache.allocatedBytes());
+        int[] promptB = new int[promptA.length];
+        for (int i = 0; i < promptB.length; i++) promptB[i] = (i * 13 + 1) % c.vocabularySize;
+        KvBufferCache.KvBuffer kvB = cache.getKvBuffer(UUID.randomUUID());
+        model.batchForward(promptB, 0, kvB).close();
+
+        Assert.assertEquals(1, cache.evictions());
+        Assert.assertEquals(0, cache.prefixCachedBlocks());
+        Assert.assertEquals(3, cache.allocatedBlocks());
+    }
+
+    @Test
+    public void testPinnedKvBufferSurvivesIdleSweep() {
+        Config c = Mocks.tinyConfig(512);
+        LlamaModel model = Mocks.tinyModel(c);
+        KvBufferCache cache = model.getKvBufferCache();
+        c.setKvSessionTimeoutMillis(1);
+
+        // Already idle past the timeout when it's handed out, but pinned before a sweep can see it
+        UUID session = UUID.randomUUID();
+        cache.getKvBuffer(session);
+        Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        KvBufferCache.KvBuffer kv = cache.getPinnedKvBuffer(session);
+        Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        cache.evictIdle();
+        Assert.assertEquals(1, cache.sessions());
+        Assert.assertSame(kv, cache.getKvBuffer(session));
+
+        kv.unpin();
+        Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        cache.evictIdle();
+        Assert.assertEquals(0, cache.sessions());
+    }
+
+    @Test
+    public void testKvBufferGrowsPastOldLimit() {
+        Config c = Mocks.tinyConfig(4096);
+        LlamaModel model = Mocks.tinyModel(c);
+
+        // Blocks are only taken as positions are written
+        KvBufferCache.KvBuffer kv = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        Assert.assertEquals(c.contextLength, kv.maxContextLength());
+        model.forward(1, 0, kv).close();
+        Assert.assertEquals(1, model.getKvBufferCache().allocatedBlocks());
+
+        int position = 3000;
+        model.forward(1, position, kv).close();
+        Assert.assertEquals(
+                position / KvBufferCache.BLOCK_SIZE + 1,
+                model.getKvBufferCache().allocatedBlocks());
+
+        // A session can be limited to fewer positions than the model supports
+        KvBufferCache.KvBuffer small = model.getKvBufferCache().getKvBuffer(UUID.randomUUID(), 100);
+        model.forward(1, 99, small).close();
+        Assert.assertThrows(IllegalArgumentException.class, () -> model.forward(1, 100, small));
+        Assert.assertThrows(IllegalArgumentException.class, () -> small.setMaxContextLength(c.contextLength + 1));
+    }
+
+    @Test
+    public void testChunkedPrefill() {
+        Config c = Mocks.tinyConfig(256);
+        Tokenizer tokenizer = new Mocks.MockTokenizer() {
+            @Override
+            public String decode(long id) {
+                return id + " ";
+            }
+        };
+        LlamaModel model = Mocks.tinyModel(c, tokenizer, Optional.empty());
+
+        int[] longPrompt = new int[100];
+        for (int i = 0; i < longPrompt.length; i++) longPrompt[i] = (i * 7) % c.vocabularySize;
+        int[] shortPrompt = new int[] {1, 50, 60, 70, 80};
+
+        // The long prompt is run in chunks while the short session decodes, which must not change either output
+        String[] expected = new String[2];
+        String[] generated = new String[2];
+        for (int chunkSize : new int[] {longPrompt.length, 16}) {
+            String[] out = chunkSize == longPrompt.length ? expected : generated;
+            try (BatchScheduler scheduler = new BatchScheduler(model, 4, chunkSize)) {
+                StringBuilder a = new StringBuilder();
+                StringBuilder b = new StringBuilder();
+                CompletableFuture<Void> fa =
+                        scheduler.submit(UUID.randomUUID(), shortPrompt, 0f, 40, (t, f) -> a.append(t));
+                CompletableFuture<Void> fb =
+                        scheduler.submit(UUID.randomUUID(), longPrompt, 0f, 120, (t, f) -> b.append(t));
+                CompletableFuture.allOf(fa, fb).join();
+                out[0] = a.toString();
+                out[1] = b.toString();
+            }
+        }
+
+        Assert.assertEquals(expected[0], generated[0]);
+        Assert.assertEquals(expected[1], generated[1]);
+    }
+
+    @Test
+    public void testBatchInterleaving() {
+        Config c = Mocks.tinyConfig(256);
+        Tokenizer tokenizer = new Mocks.MockTokenizer() {
+            @Override
+            public String decode(long id) {
+                return id + " ";
+            }
+        };
+        LlamaModel model = Mocks.tinyModel(c, tokenizer, Optional.empty());
+
+        int[][] prompts = new int[][] {{1, 50, 60, 70, 80}, {2, 9, 33, 41}, {3, 100, 7, 18, 90, 12}};
+
+        // Each session alone for reference
+        String[] expected = new String[prompts.length];
+        for (int i = 0; i < prompts.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            try (BatchScheduler scheduler = new BatchScheduler(model, 4, 16)) {
+                scheduler
+                        .submit(UUID.randomUUID(), prompts[i], 0f, 40, (t, f) -> sb.append(t))
+                        .join();
+            }
+            expected[i] = sb.toString();
+        }
+
+        // All at once, the tokens of each session are emitted between those of the others
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        StringBuilder[] generated = new StringBuilder[prompts.length];
+        try (BatchScheduler scheduler = new BatchScheduler(model, 4, 16)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < prompts.length; i++) {
+                int session = i;
+                generated[i] = new StringBuilder();
+                futures.add(scheduler.submit(UUID.randomUUID(), prompts[i], 0f, 40, (t, f) -> {
+                    generated[session].append(t);
+                    order.add(session);
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        }
+
+        for (int i = 0; i < prompts.length; i++) Assert.assertEquals(expected[i], generated[i].toString());
+
+        int switches = 0;
+        for (int i = 1; i < order.size(); i++) if (!order.get(i).equals(order.get(i - 1))) switches++;
+        Assert.assertTrue("sessions ran one after another: " + order, switches > prompts.length - 1);
+    }
+
+    @Test
+    public void testSpeculativeDecoding() {
+        Config c = Mocks.tinyConfig(256);
+        Tokenizer tokenizer = new Mocks.MockTokenizer() {
+            @Override
+            public String decode(long id) {
+                return id + " ";
+            }
+        };
+        LlamaModel model = Mocks.tinyModel(c, tokenizer, Optional.empty());
+
+        int[] prompt = new int[20];
+        for (int i = 0; i < prompt.length; i++) prompt[i] = (i * 7) % 10;
+        int ntokens = prompt.length + 40;
+
+        // Plain greedy decoding for reference
+        StringBuilder expected = new StringBuilder();
+        KvBufferCache.KvBuffer kv = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        AbstractTensor logits = model.makeTensor(c.vocabularySize);
+        AbstractTensor out = model.batchForward(prompt, 0, kv);
+        int next = model.sample(out.slice(prompt.length - 1), 0f, 0f, logits);
+        expected.append(tokenizer.decode(next));
+        for (int position = prompt.length; position < ntokens; position++) {
+            out = model.forward(next, position, kv);
+            next = model.sample(out, 0f, 0f, logits);
+            if (next == c.eosToken) break;
+            expected.append(tokenizer.decode(next));
+        }
+
+        // A draft identical to the target is always accepted, a truncated one only some of the time
+        Config truncated = Mocks.tinyConfig(256, 64, 1, 256);
+        List<SpeculativeDecoder> decoders = new ArrayList<>();
+        for (Config dc : List.of(c, truncated)) {
+            LlamaModel draft = Mocks.tinyModel(dc, tokenizer, Optional.empty());
+            decoders.add(new SpeculativeDecoder(model, draft, 4));
+        }
+
+        // Prompt lookup proposes the tokens that followed the last match in the history
+        decoders.add(new SpeculativeDecoder(model, 4));
+
+        for (SpeculativeDecoder decoder : decoders) {
+            UUID session = UUID.randomUUID();
+            StringBuilder generated = new StringBuilder();
+            decoder.generate(session, prompt, 0f, ntokens, (t, f) -> generated.append(t));
+            Assert.assertEquals(expected.toString(), generated.toString());
+
+            // Both caches are rolled back to the same position
+            decoder.draftModel()
+                    .ifPresent(draft -> Assert.assertEquals(
+                            model.getKvBufferCache().getKvBuffer(session).getCurrentContextPosition(),
+                            draft.getKvBufferCache().getKvBuffer(session).getCurrentContextPosition()));
+
+            // Sampling follows the same path
+            AtomicInteger count = new AtomicInteger();
+            decoder.generate(UUID.randomUUID(), prompt, 0.8f, ntokens, (t, f) -> count.incrementAndGet());
+            Assert.assertTrue(count.get() > 0 && count.get() <= ntokens - prompt.length + 1);
+        }
+    }
+
+    @Test
+    public void testSpeculativeAlongsideBatch() {
+        Config c = Mocks.tinyConfig(256);
+        Tokenizer tokenizer = new Mocks.MockTokenizer() {
+            @Override
+            public String decode(long id) {
+                return id + " ";
+            }
+        };
+        LlamaModel model = Mocks.tinyModel(c, tokenizer, Optional.empty());
+        Config dc = Mocks.tinyConfig(256, 64, 1, 256);
+        SpeculativeDecoder decoder = new SpeculativeDecoder(model, Mocks.tinyModel(dc, tokenizer, Optional.empty()), 4);
+
+        int[] promptA = new int[20];
+        for (int i = 0; i < promptA.length; i++) promptA[i] = (i * 7) % 10;
+        int[] promptB = new int[] {1, 50, 60, 70, 80};
+
+        // Each session alone for reference
+        StringBuilder expectedA = new StringBuilder();
+        StringBuilder expectedB = new StringBuilder();
+        decoder.generate(UUID.randomUUID(), promptA, 0f, 60, (t, f) -> expectedA.append(t));
+        try (BatchScheduler scheduler = new BatchScheduler(model, 4, 16)) {
+            scheduler
+                    .submit(UUID.randomUUID(), promptB, 0f, 60, (t, f) -> expectedB.append(t))
+                    .join();
+        }
+
+        // Both at once, the speculative rounds are interleaved with the batched steps on one thread
+        StringBuilder a = new StringBuilder();
+        StringBuilder b = new StringBuilder();
+        try (BatchScheduler scheduler = new BatchScheduler(model, 4, 16)) {
+            CompletableFuture<Void> fa =
+                    scheduler.submit(decoder, UUID.randomUUID(), promptA, 0f, 60, (t, f) -> a.append(t));
+            CompletableFuture<Void> fb = scheduler.submit(UUID.randomUUID(), promptB, 0f, 60, (t, f) -> b.append(t));
+            CompletableFuture.allOf(fa, fb).join();
+        }
+
+        Assert.assertEquals(expectedA.toString(), a.toString());
+        Assert.assertEquals(expectedB.toString(), b.toString());
+    }
+
+    @Test
+    public void testTopLogits() {
+        // A vocabulary that doesn't fill the last tile
+        Config c = Mocks.tinyConfig(256, 64, 2, 1000);
+        AbstractModel model = Mocks.tinyModel(c);
+
+        KvBufferCache.KvBuffer kv = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+        AbstractTensor out = model.forward(3, 0, kv);
+        AbstractTensor logits = model.makeTensor(c.vocabularySize);
+        model.computeLogits(out, logits);
+
+        int k = 40;
+        int[] idx = new int[k];
+        float[] val = new float[k];
+        LogitsSampler.select(logits, c.vocabularySize, k, Float.NEGATIVE_INFINITY, idx, val);
+
+        int[] tokens = new int[k];
+        float[] topLogits = new float[k];
+        Assert.assertEquals(k, model.computeTopLogits(out, k, tokens, topLogits));
+        Assert.assertArrayEquals(idx, tokens);
+        Assert.assertArrayEquals(val, topLogits, 1e-4f);
+
+        // Greedy and top-k decoding only look at the candidates
+        Assert.assertEquals(idx[0], model.sample(out, new LogitsSampler(0f), logits));
+        Assert.assertEquals(idx[0], model.sample(out, 0f, 0.5f, logits));
+        LogitsSampler topK = new LogitsSampler(0.8f, 5, 1f, 0f, 1f, 0f, 0f, Optional.of(42L));
+        for (int i = 0; i < 20; i++) {
+            int next = model.sample(out, topK, logits);
+            Assert.assertTrue(Ints.contains(Arrays.copyOf(idx, 5), next));
+        }
+    }
+
+    @Test
+    public void testQuantizedKvCache() {
+        int[] tokens = new int[KvBufferCache.BLOCK_SIZE + 8];
+        for (int i = 0; i < tokens.length; i++) tokens[i] = (i * 7) % 256;
+
+        AbstractTensor expected = null;
+        for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+            Config c = Mocks.tinyConfig(128, 128, 2, 256);
+            c.setKvDType(kvType);
+            LlamaModel model = Mocks.tinyModel(c);
+
+            KvBufferCache.KvBuffer kv = model.getKvBufferCache().getKvBuffer(UUID.randomUUID());
+            model.batchForward(Arrays.copyOf(tokens, tokens.length - 1), 0, kv).close();
+            AbstractTensor out = model.forward(tokens[tokens.length - 1], tokens.length - 1, kv);
+
+            if (expected == null) {
+                expected = out;
+                continue;
+            }
+
+            for (int i = 0; i < c.embeddingLength; i++)
+                Assert.assertEquals("KV type " + kvType, expected.get(0, i), out.get(0, i), 0.1f);
+        }
+    }
+
     @Test
     public void GPT2Run() throws IOException {
         String modelPrefix = "../models/gpt2-medium";
@@ -326,8 +1023,7 @@ public class TestModels {
         int embLen = mFull.c.embeddingLength;
 
         // Main one
-        AbstractTensor kvmem0 = mFull.makeTensor(
-                mFull.c.getNumberOfLayers(), 10, 2, mFull.c.embeddingLength); // k and v are last 2 dims
+        KvBufferCache.KvBuffer kvmem0 = mFull.getKvBufferCache().getKvBuffer(UUID.randomUUID());
         AbstractTensor t0 = mFull.embedInput.inputTokenToEmbedding(mFull.c.bosToken, 0);
         AbstractTensor f0 = mFull.transformerBlocks[0].preAttentionNorm.get().forward(t0);
 
@@ -358,7 +1054,7 @@ public class TestModels {
                             chunkLength);
         });
 
-        AbstractTensor a0 = mFull.transformerBlocks[0].attention.forward(f0, 0, kvmem0.slice(0), Optional.empty());
+        AbstractTensor a0 = mFull.transformerBlocks[0].attention.forward(f0, 0, kvmem0.getLayer(0), Optional.empty());
 
         // Two halves
         AtomicDouble sum0 = new AtomicDouble(0);
@@ -388,12 +1084,10 @@ public class TestModels {
             return null;
         };
 
-        AbstractTensor kvmem1 = mFirstHalf.makeTensor(
-                mFull.c.getNumberOfLayers(), 10, 2, mFull.c.embeddingLength); // k and v are last 2 dims
+        KvBufferCache.KvBuffer kvmem1 = mFirstHalf.getKvBufferCache().getKvBuffer(UUID.randomUUID());
         AbstractTensor t1 = mFirstHalf.embedInput.inputTokenToEmbedding(mFull.c.bosToken, 0);
 
-        AbstractTensor kvmem2 = mSecondHalf.makeTensor(
-                mFull.c.getNumberOfLayers(), 10, 2, mFull.c.embeddingLength); // k and v are last 2 dims
+        KvBufferCache.KvBuffer kvmem2 = mSecondHalf.getKvBufferCache().getKvBuffer(UUID.randomUUID());
         AbstractTensor t2 = mSecondHalf.embedInput.inputTokenToEmbedding(mFull.c.bosToken, 0);
 
         CompletableFuture<AbstractTensor> f1c = CompletableFuture.supplyAsync(
@@ -464,9 +1158,10 @@ public class TestModels {
                             chunkLength);
         });
 
-        AbstractTensor a1 = mFirstHalf.transformerBlocks[0].attention.forward(f1, 0, kvmem1.slice(0), Optional.empty());
+        AbstractTensor a1 =
+                mFirstHalf.transformerBlocks[0].attention.forward(f1, 0, kvmem1.getLayer(0), Optional.empty());
         AbstractTensor a2 =
-                mSecondHalf.transformerBlocks[0].attention.forward(f2, 0, kvmem2.slice(0), Optional.empty());
+                mSecondHalf.transformerBlocks[0].attention.forward(f2, 0, kvmem2.getLayer(0), Optional.empty());
 
         AbstractTensor tc = mFull.makeTensor(mFull.c.embeddingLength);
         tc.copyFrom(t1, 0, 0, (int) t1.size());
@@ -15,10 +15,15 @@
  */
 package com.github.tjake.jlama.safetensors;
 
+import com.github.tjake.jlama.model.Mocks;
+import com.github.tjake.jlama.model.ModelSupport;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
 import com.github.tjake.jlama.tensor.TensorShape;
 import com.google.common.io.BaseEncoding;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -28,6 +33,9 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
@@ -189,4 +197,197 @@ public class TestParser {
             Assert.assertEquals(-0.027689, slice.get(1), 0.00001f);
         }
     }
+
+    @Test
+    public void testQ5RoundTrip() throws IOException {
+        FloatBufferTensor f = new FloatBufferTensor(4, 64);
+        for (int i = 0; i < 4; i++) for (int j = 0; j < 64; j++) f.set((float) Math.sin(i * 64 + j), i, j);
+        Q5ByteBufferTensor q5 = new Q5ByteBufferTensor(f);
+
+        File tmp = File.createTempFile("q5tensor", ".safetensors");
+        tmp.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            // The fifth bits are stored inline so only the block scales are written alongside
+            Map<String, TensorInfo> info = new HashMap<>();
+            info.put("w", q5.save(raf.getChannel()));
+            info.put("w.qb", q5.getBlockF().save(raf.getChannel()));
+
+            ByteBuffer bb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            Weights v = new Weights(Map.of(), info, bb, Optional.empty());
+            Assert.assertEquals(DType.Q5, v.getModelDType());
+
+            AbstractTensor t = v.load("w");
+            AbstractTensor rows = t.sliceRows(2, 2);
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 64; j++) {
+                    Assert.assertEquals(q5.get(i, j), t.get(i, j), 0.0f);
+                    if (i >= 2) Assert.assertEquals(q5.get(i, j), rows.get(i - 2, j), 0.0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQ4KRoundTrip() throws IOException {
+        FloatBufferTensor f = new FloatBufferTensor(4, 512);
+        for (int i = 0; i < 4; i++) for (int j = 0; j < 512; j++) f.set((float) Math.sin(i * 512 + j), i, j);
+        Q4KByteBufferTensor q4k = new Q4KByteBufferTensor(f);
+
+        File tmp = File.createTempFile("q4ktensor", ".safetensors");
+        tmp.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            // The scales live in each super-block so there is no .qb tensor
+            Map<String, TensorInfo> info = new HashMap<>();
+            info.put("w", q4k.save(raf.getChannel()));
+
+            ByteBuffer bb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            Weights v = new Weights(Map.of(), info, bb, Optional.empty());
+            Assert.assertEquals(DType.Q4_K, v.getModelDType());
+
+            AbstractTensor t = v.load("w");
+            AbstractTensor rows = t.sliceRows(2, 2);
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 512; j++) {
+                    Assert.assertEquals(q4k.get(i, j), t.get(i, j), 0.0f);
+                    if (i >= 2) Assert.assertEquals(q4k.get(i, j), rows.get(i - 2, j), 0.0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGGUF() throws Exception {
+        File tmp = File.createTempFile("tensors", GGUFIndex.FILE_EXTENSION);
+        tmp.deleteOnExit();
+
+        // An 8 wide llama layer with two heads, the q rows are in llama.cpp's interleaved rotary order
+        ByteBuffer q = ByteBuffer.allocate(8 * 8 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 64; i++) q.putFloat(i);
+
+        // Q8_0: f16 scale then 32 quants
+        ByteBuffer q8 = ByteBuffer.allocate(2 * 34).order(ByteOrder.LITTLE_ENDIAN);
+        for (int b = 0; b < 2; b++) {
+            q8.putShort(Float.floatToFloat16(0.5f * (b + 1)));
+            for (int i = 0; i < 32; i++) q8.put((byte) (i - 16));
+        }
+
+        // Q4_0: f16 scale then 16 bytes, value j in the low nibble and j + 16 in the high
+        ByteBuffer q4 = ByteBuffer.allocate(2 * 18).order(ByteOrder.LITTLE_ENDIAN);
+        for (int b = 0; b < 2; b++) {
+            q4.putShort(Float.floatToFloat16(0.25f * (b + 1)));
+            for (int j = 0; j < 16; j++) q4.put((byte) (j | ((15 - j) << 4)));
+        }
+
+        // Q4_K super-blocks are the same bytes Jlama keeps
+        FloatBufferTensor f = new FloatBufferTensor(2, 256);
+        for (int i = 0; i < 2; i++) for (int j = 0; j < 256; j++) f.set((float) Math.sin(i * 256 + j), i, j);
+        Q4KByteBufferTensor q4k = new Q4KByteBufferTensor(f);
+        ByteBuffer q4kBytes = q4k.getMemorySegment().asByteBuffer();
+
+        // Q6_K: 128 low nibble bytes, 64 high bit bytes, 16 sub-block scales and an f16 scale
+        ByteBuffer q6k = ByteBuffer.allocate(210).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 128; i++) q6k.put((byte) 0x21);
+        for (int i = 0; i < 64; i++) q6k.put((byte) 0xE4);
+        for (int i = 0; i < 16; i++) q6k.put((byte) (i - 8));
+        q6k.putShort(Float.floatToFloat16(0.125f));
+
+        ByteBuffer header = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46554747).putInt(3).putLong(6).putLong(10);
+        Mocks.putGGUFString(header, "general.architecture");
+        header.putInt(8);
+        Mocks.putGGUFString(header, "llama");
+        for (String[] kv : new String[][] {
+            {"context_length", "64"},
+            {"embedding_length", "8"},
+            {"feed_forward_length", "32"},
+            {"attention.head_count", "2"},
+            {"block_count", "1"}
+        }) {
+            Mocks.putGGUFString(header, "llama." + kv[0]);
+            header.putInt(4).putInt(Integer.parseInt(kv[1]));
+        }
+        Mocks.putGGUFString(header, "llama.attention.layer_norm_rms_epsilon");
+        header.putInt(6).putFloat(1e-5f);
+        Mocks.putGGUFString(header, "llama.rope.freq_base");
+        header.putInt(6).putFloat(500000f);
+        Mocks.putGGUFString(header, "tokenizer.ggml.bos_token_id");
+        header.putInt(4).putInt(3);
+        Mocks.putGGUFString(header, "tokenizer.ggml.tokens");
+        header.putInt(9).putInt(8).putLong(5);
+        for (int i = 0; i < 5; i++) Mocks.putGGUFString(header, "t" + i);
+
+        long offset = 0;
+        offset = Mocks.putGGUFTensor(header, "blk.0.attn_q.weight", 0, offset, q, 8, 8);
+        offset = Mocks.putGGUFTensor(header, "blk.0.ffn_up.weight", 8, offset, q8, 32, 2);
+        offset = Mocks.putGGUFTensor(header, "blk.0.ffn_down.weight", 2, offset, q4, 32, 2);
+        offset = Mocks.putGGUFTensor(header, "blk.0.ffn_gate.weight", 12, offset, q4kBytes, 256, 2);
+        offset = Mocks.putGGUFTensor(header, "output.weight", 14, offset, q6k, 256, 1);
+        Mocks.putGGUFTensor(header, "token_embd.weight", 0, offset, q, 8, 8);
+
+        Mocks.writeGGUF(tmp, header, q, q8, q4, q4kBytes, q6k, q);
+
+        try (GGUFIndex gguf = GGUFIndex.load(tmp.toPath())) {
+            Assert.assertEquals(ModelSupport.ModelType.LLAMA, gguf.modelType());
+            Assert.assertEquals("llama", gguf.metadata().get("general.architecture"));
+
+            Config c = gguf.config();
+            Assert.assertEquals(64, c.contextLength);
+            Assert.assertEquals(8, c.embeddingLength);
+            Assert.assertEquals(32, c.hiddenLength);
+            Assert.assertEquals(2, c.numberOfHeads);
+            Assert.assertEquals(2, c.numberOfKeyValueHeads);
+            Assert.assertEquals(1, c.numberOfLayers);
+            Assert.assertEquals(5, c.vocabularySize);
+            Assert.assertEquals(3, c.bosToken);
+            Assert.assertEquals(2, c.eosToken);
+            Assert.assertEquals(1e-5f, c.layerNormEps, 0.0f);
+
+            // Row 2i + t of each head goes back to row t * headSize / 2 + i
+            AbstractTensor wq = gguf.load("model.layers.0.self_attn.q_proj.weight");
+            Assert.assertEquals(DType.F32, wq.dType());
+            for (int h = 0; h < 2; h++)
+                for (int t = 0; t < 2; t++)
+                    for (int i = 0; i < 2; i++)
+                        for (int j = 0; j < 8; j++)
+                            Assert.assertEquals((h * 4 + 2 * i + t) * 8 + j, wq.get(h * 4 + t * 2 + i, j), 0.0f);
+
+            // Embeddings are not permuted
+            AbstractTensor embed = gguf.load("model.embed_tokens.weight");
+            Assert.assertEquals(17, embed.get(2, 1), 0.0f);
+            Assert.assertFalse(gguf.tensorInfoMap().containsKey("model.norm.weight"));
+
+            AbstractTensor up = gguf.load("model.layers.0.mlp.up_proj.weight");
+            Assert.assertEquals(DType.I8, up.dType());
+            for (int b = 0; b < 2; b++)
+                for (int i = 0; i < 32; i++) Assert.assertEquals(0.5f * (b + 1) * (i - 16), up.get(b, i), 0.0f);
+
+            AbstractTensor down = gguf.load("model.layers.0.mlp.down_proj.weight");
+            Assert.assertEquals(DType.Q4, down.dType());
+            for (int b = 0; b < 2; b++) {
+                for (int j = 0; j < 16; j++) {
+                    Assert.assertEquals(0.25f * (b + 1) * (j - 8), down.get(b, j), 0.0f);
+                    Assert.assertEquals(0.25f * (b + 1) * (7 - j), down.get(b, j + 16), 0.0f);
+                }
+            }
+
+            AbstractTensor gate = gguf.load("model.layers.0.mlp.gate_proj.weight");
+            Assert.assertEquals(DType.Q4_K, gate.dType());
+            for (int i = 0; i < 2; i++)
+                for (int j = 0; j < 256; j++) Assert.assertEquals(q4k.get(i, j), gate.get(i, j), 0.0f);
+
+            // Q6_K is requantized to I8 so values are within half a quant step
+            AbstractTensor head = gguf.load("lm_head.weight");
+            Assert.assertEquals(DType.I8, head.dType());
+            int[] quants = {-31, -15, 2, 18};
+            for (int n = 0; n < 2; n++) {
+                for (int g = 0; g < 4; g++) {
+                    for (int l = 0; l < 32; l++) {
+                        int scale = n * 8 + l / 16 + 2 * g - 8;
+                        float expected = 0.125f * scale * quants[g];
+                        Assert.assertEquals(expected, head.get(0, n * 128 + g * 32 + l), 0.125f * 8 * 31 / 127f);
+                    }
+                }
+            }
+        }
+    }
 }
@@ -17,6 +17,8 @@ package com.github.tjake.jlama.tensor.operations;
 
 import static com.github.tjake.jlama.tensor.operations.NativeTensorOperations.*;
 
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.RopeFreqs;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
@@ -24,8 +26,11 @@ import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
 import com.github.tjake.jlama.tensor.Float16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.util.MachineSpec;
+import com.github.tjake.jlama.util.Pair;
 import com.github.tjake.jlama.util.RuntimeSupport;
 import java.util.*;
 import java.util.function.Function;
@@ -44,6 +49,9 @@ public class TestOperations {
     private static final int ROWS = 128;
     private static final List<TensorOperations> opTypes = new ArrayList<>();
 
+    // The kernels each op picks, the native ops fall back to Panama ones for the machine
+    private static final Map<TensorOperations, MachineSpec.Type> vectorTypes = new HashMap<>();
+
     private static final Map<DType, Function<AbstractTensor, AbstractTensor>> aTypes = new TreeMap<>();
 
     private static final Map<DType, Function<AbstractTensor, AbstractTensor>> bTypes = new TreeMap<>();
@@ -56,9 +64,12 @@ public class TestOperations {
     public static void init() {
         logger.info("Globally using {}", globalOps.name());
         //  opTypes.add(new NaiveTensorOperations());
-        opTypes.add(new PanamaTensorOperations(MachineSpec.Type.AVX_512));
-        opTypes.add(new PanamaTensorOperations(MachineSpec.Type.AVX_256));
-        opTypes.add(new PanamaTensorOperations(MachineSpec.Type.ARM_128));
+        for (MachineSpec.Type type :
+                List.of(MachineSpec.Type.AVX_512, MachineSpec.Type.AVX_256, MachineSpec.Type.ARM_128)) {
+            PanamaTensorOperations ops = new PanamaTensorOperations(type);
+            opTypes.add(ops);
+            vectorTypes.put(ops, type);
+        }
 
         if (globalOps instanceof NativeTensorOperations) {
             opTypes.add(new NativeTensorOperations());
@@ -346,6 +357,451 @@ public class TestOperations {
         }
     }
 
+    @Test
+    public void testKvDotProduct() {
+        int rows = 64;
+        int offset = 64;
+        int length = 128;
+        AbstractTensor a = makeTensor(SIZE);
+        AbstractTensor kv = makeWeights(rows, SIZE);
+
+        // This is what we compare others to
+        FloatBufferTensor control = new FloatBufferTensor(1, rows);
+        controlOps.kvDotProduct(control, a, kv, offset, offset, length, rows);
+
+        for (TensorOperations t : opTypes) {
+            for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+                AbstractTensor kvhat = bTypes.get(kvType).apply(kv);
+                FloatBufferTensor result = new FloatBufferTensor(1, rows);
+                t.kvDotProduct(result, a, kvhat, offset, offset, length, rows);
+
+                for (int j = 0; j < rows; j++) {
+                    Assert.assertEquals(
+                            t.name() + " KVType " + kvType + " is outside of 1% error limit",
+                            control.get(0, j),
+                            result.get(0, j),
+                            control.get(0, j) * .01f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKvSaxpy() {
+        int rows = 64;
+        int offset = 64;
+        int length = 128;
+        AbstractTensor alpha = makeTensor(rows);
+        AbstractTensor kv = makeWeights(rows, SIZE);
+
+        // This is what we compare others to
+        AbstractTensor control = makeTensor(SIZE);
+        AbstractTensor y = new FloatBufferTensor(control);
+        controlOps.kvSaxpy(alpha, kv, control, offset, 0, length, rows);
+        float controlSum = controlOps.sum(control);
+
+        for (TensorOperations t : opTypes) {
+            for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+                AbstractTensor kvhat = bTypes.get(kvType).apply(kv);
+                AbstractTensor yhat = new FloatBufferTensor(y);
+                t.kvSaxpy(alpha, kvhat, yhat, offset, 0, length, rows);
+
+                Assert.assertEquals(
+                        t.name() + " KVType " + kvType + " is outside of 1% error limit",
+                        controlSum,
+                        t.sum(yhat),
+                        controlSum * .01f);
+            }
+        }
+    }
+
+    @Test
+    public void testKvDotProductGroup() {
+        int rows = 64;
+        int heads = 4;
+        int offset = 64;
+        int length = 128;
+        AbstractTensor a = makeTensor(SIZE);
+        AbstractTensor kv = makeWeights(rows, SIZE);
+
+        // Each head of the group scored on its own is what we compare to
+        FloatBufferTensor control = new FloatBufferTensor(heads, rows);
+        for (int g = 0; g < heads; g++)
+            controlOps.kvDotProduct(control.slice(g), a, kv, g * length, offset, length, rows);
+
+        for (TensorOperations t : opTypes) {
+            for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+                AbstractTensor kvhat = bTypes.get(kvType).apply(kv);
+                FloatBufferTensor result = new FloatBufferTensor(heads, rows);
+                t.kvDotProductGroup(result, a, kvhat, 0, offset, length, rows, heads);
+
+                for (int g = 0; g < heads; g++) {
+                    for (int j = 0; j < rows; j++) {
+                        Assert.assertEquals(
+                                t.name() + " KVType " + kvType + " is outside of 1% error limit",
+                                control.get(g, j),
+                                result.get(g, j),
+                                control.get(g, j) * .01f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKvSaxpyGroup() {
+        int rows = 64;
+        int heads = 4;
+        int offset = 64;
+        int length = 128;
+        AbstractTensor alpha = makeWeights(heads, rows);
+        AbstractTensor kv = makeWeights(rows, SIZE);
+
+        // Each head of the group accumulated on its own is what we compare to
+        AbstractTensor y = makeTensor(SIZE);
+        AbstractTensor control = new FloatBufferTensor(y);
+        for (int g = 0; g < heads; g++)
+            controlOps.kvSaxpy(alpha.slice(g), kv, control, offset, g * length, length, rows);
+
+        for (TensorOperations t : opTypes) {
+            for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+                AbstractTensor kvhat = bTypes.get(kvType).apply(kv);
+                AbstractTensor yhat = new FloatBufferTensor(y);
+                t.kvSaxpyGroup(alpha, kvhat, yhat, offset, 0, length, rows, heads);
+
+                for (int i = 0; i < heads * length; i++) {
+                    Assert.assertEquals(
+                            t.name() + " KVType " + kvType + " is outside of 1% error limit",
+                            control.get(0, i),
+                            yhat.get(0, i),
+                            control.get(0, i) * .01f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKvDotProductTile() {
+        int rows = 64;
+        int heads = 4;
+        int queries = 3;
+        int offset = 64;
+        int length = 128;
+        AbstractTensor a = makeWeights(queries, SIZE);
+        AbstractTensor kv = makeWeights(rows, SIZE);
+
+        // Each query of the tile scored on its own is what we compare to
+        FloatBufferTensor control = new FloatBufferTensor(queries * heads, rows);
+        for (int q = 0; q < queries; q++)
+            controlOps.kvDotProductGroup(
+                    control.sliceRows(q * heads, heads), a.slice(q), kv, 0, offset, length, rows, heads);
+
+        for (TensorOperations t : opTypes) {
+            for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+                AbstractTensor kvhat = bTypes.get(kvType).apply(kv);
+                FloatBufferTensor result = new FloatBufferTensor(queries * heads, rows);
+                t.kvDotProductTile(result, a, kvhat, 0, offset, length, rows, heads, queries);
+
+                for (int r = 0; r < queries * heads; r++) {
+                    for (int j = 0; j < rows; j++) {
+                        Assert.assertEquals(
+                                t.name() + " KVType " + kvType + " is outside of 1% error limit",
+                                control.get(r, j),
+                                result.get(r, j),
+                                control.get(r, j) * .01f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKvSaxpyTile() {
+        int rows = 64;
+        int heads = 4;
+        int queries = 3;
+        int offset = 64;
+        int length = 128;
+        AbstractTensor alpha = makeWeights(queries * heads, rows);
+        AbstractTensor kv = makeWeights(rows, SIZE);
+
+        // Each query of the tile accumulated on its own is what we compare to
+        AbstractTensor y = makeWeights(queries, SIZE);
+        AbstractTensor control = new FloatBufferTensor(y);
+        for (int q = 0; q < queries; q++)
+            controlOps.kvSaxpyGroup(
+                    alpha.sliceRows(q * heads, heads), kv, control.slice(q), offset, 0, length, rows, heads);
+
+        for (TensorOperations t : opTypes) {
+            for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+                AbstractTensor kvhat = bTypes.get(kvType).apply(kv);
+                AbstractTensor yhat = new FloatBufferTensor(y);
+                t.kvSaxpyTile(alpha, kvhat, yhat, offset, 0, length, rows, heads, queries);
+
+                for (int q = 0; q < queries; q++) {
+                    for (int i = 0; i < heads * length; i++) {
+                        Assert.assertEquals(
+                                t.name() + " KVType " + kvType + " is outside of 1% error limit",
+                                control.get(q, i),
+                                yhat.get(q, i),
+                                control.get(q, i) * .01f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRope() {
+        // A head size that leaves a tail for the vector loops, and positions in different chunks of the table
+        int headSize = 72;
+        int offset = 2 * headSize;
+        int length = 4 * headSize;
+        int[] positions = {0, 5, RopeFreqs.CHUNK_SIZE + 3};
+        RopeFreqs freqs = new RopeFreqs(headSize, 2 * RopeFreqs.CHUNK_SIZE, 10000.0, 1.0);
+        AbstractTensor x = makeWeights(positions.length, SIZE);
+
+        // This is what we compare others to
+        AbstractTensor control = new FloatBufferTensor(x);
+        controlOps.rope(control, freqs, positions, offset, length);
+
+        int half = headSize / 2;
+        for (int b = 0; b < positions.length; b++) {
+            for (int i = 0; i < half; i++) {
+                double angle = positions[b] * (1.0 / Math.pow(10000.0, 2.0 * i / headSize));
+                float expected = (float)
+                        (x.get(b, offset + i) * Math.cos(angle) - x.get(b, offset + half + i) * Math.sin(angle));
+                Assert.assertEquals(expected, control.get(b, offset + i), 1e-3f);
+            }
+        }
+
+        for (TensorOperations t : opTypes) {
+            AbstractTensor xhat = new FloatBufferTensor(x);
+            t.rope(xhat, freqs, positions, offset, length);
+
+            for (int b = 0; b < positions.length; b++) {
+                for (int i = 0; i < SIZE; i++) {
+                    Assert.assertEquals(t.name() + " rope differs", control.get(b, i), xhat.get(b, i), 1e-5f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGatedActivation() {
+        // A range that leaves a tail for the vector loops
+        int offset = 64;
+        int length = 8 * Q8ByteBufferTensor.BLOCK_SIZE + 3;
+        AbstractTensor x = makeWeights(3, SIZE);
+        AbstractTensor up = makeWeights(3, SIZE);
+
+        // Both signs over the curved part of the activations
+        for (int b = 0; b < 3; b++) for (int i = 0; i < SIZE; i++) x.set(8 * (x.get(b, i) - 0.5f), b, i);
+
+        for (ActivationFunction.Type type : ActivationFunction.Type.values()) {
+            // This is what we compare others to
+            AbstractTensor control = new FloatBufferTensor(x);
+            controlOps.gatedActivation(type, control, Optional.of(up), Optional.empty(), offset, length);
+
+            for (int b = 0; b < 3; b++) {
+                for (int i = offset; i < offset + length; i++) {
+                    float expected = ActivationFunction.eval(type, x.get(b, i)) * up.get(b, i);
+                    Assert.assertEquals(expected, control.get(b, i), 1e-5f);
+                }
+            }
+
+            for (TensorOperations t : opTypes) {
+                AbstractTensor xhat = new FloatBufferTensor(x);
+                t.gatedActivation(type, xhat, Optional.of(up), Optional.empty(), offset, length);
+                for (int b = 0; b < 3; b++) {
+                    for (int i = 0; i < SIZE; i++) {
+                        Assert.assertEquals(
+                                t.name() + " " + type + " differs", control.get(b, i), xhat.get(b, i), 1e-5f);
+                    }
+                }
+
+                // Whole blocks can also be quantized on the way out, in steps of about 4 / 127 here
+                int qlength = length - 3;
+                AbstractTensor q = new Q8ByteBufferTensor(3, SIZE);
+                xhat = new FloatBufferTensor(x);
+                t.gatedActivation(type, xhat, Optional.empty(), Optional.of(q), offset, qlength);
+                for (int b = 0; b < 3; b++) {
+                    for (int i = offset; i < offset + qlength; i++) {
+                        Assert.assertEquals(ActivationFunction.eval(type, x.get(b, i)), xhat.get(b, i), 1e-5f);
+                        Assert.assertEquals(t.name() + " " + type + " quantized", xhat.get(b, i), q.get(b, i), 0.02f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRmsNorm() {
+        // A range that leaves a tail for the vector loops
+        int offset = 32;
+        int length = SIZE - 45;
+        AbstractTensor x = makeWeights(3, SIZE);
+        AbstractTensor weights = makeTensor(SIZE);
+
+        AbstractTensor control = new FloatBufferTensor(3, SIZE);
+        controlOps.rmsNorm(control, x, weights, 1.0f, 1e-5f, length, offset, length, Optional.empty());
+
+        for (int b = 0; b < 3; b++) {
+            double ss = 0;
+            for (int i = offset; i < offset + length; i++) ss += x.get(b, i) * x.get(b, i);
+            double scale = 1.0 / Math.sqrt(ss / length + 1e-5f);
+            for (int i = offset; i < offset + length; i++)
+                Assert.assertEquals((1.0f + weights.get(0, i)) * scale * x.get(b, i), control.get(b, i), 1e-5f);
+        }
+
+        // The second half of each row, with the first half's sum of squares arriving through the reducer
+        int half = length / 2;
+        for (TensorOperations t : opTypes) {
+            AbstractTensor out = new FloatBufferTensor(3, SIZE);
+            t.rmsNorm(out, x, weights, 1.0f, 1e-5f, length, offset, length, Optional.empty());
+
+            AbstractTensor split = new FloatBufferTensor(3, SIZE);
+            for (int b = 0; b < 3; b++) {
+                AbstractTensor row = x.slice(b);
+                float firstSs = 0;
+                for (int i = offset; i < offset + half; i++) firstSs += row.get(0, i) * row.get(0, i);
+                float ss = firstSs;
+                t.rmsNorm(
+                        split.slice(b),
+                        row,
+                        weights,
+                        1.0f,
+                        1e-5f,
+                        length,
+                        offset + half,
+                        length - half,
+                        Optional.of((a, c) -> Pair.create(a + ss, c)));
+            }
+
+            for (int b = 0; b < 3; b++) {
+                for (int i = offset; i < offset + length; i++)
+                    Assert.assertEquals(t.name() + " differs", control.get(b, i), out.get(b, i), 1e-5f);
+                for (int i = offset + half; i < offset + length; i++)
+                    Assert.assertEquals(t.name() + " reduced differs", control.get(b, i), split.get(b, i), 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    public void testLayerNorm() {
+        int offset = 32;
+        int length = SIZE - 45;
+        AbstractTensor x = makeWeights(3, SIZE);
+        AbstractTensor weights = makeTensor(SIZE);
+        AbstractTensor bias = makeTensor(SIZE);
+
+        AbstractTensor control = new FloatBufferTensor(3, SIZE);
+        controlOps.layerNorm(control, x, weights, bias, 1e-5f, length, offset, length, Optional.empty());
+
+        for (int b = 0; b < 3; b++) {
+            double mean = 0;
+            for (int i = offset; i < offset + length; i++) mean += x.get(b, i);
+            mean /= length;
+            double var = 0;
+            for (int i = offset; i < offset + length; i++) var += (x.get(b, i) - mean) * (x.get(b, i) - mean);
+            double scale = 1.0 / Math.sqrt(var / length + 1e-5f);
+            for (int i = offset; i < offset + length; i++)
+                Assert.assertEquals(
+                        (x.get(b, i) - mean) * scale * weights.get(0, i) + bias.get(0, i), control.get(b, i), 1e-4f);
+        }
+
+        for (TensorOperations t : opTypes) {
+            AbstractTensor out = new FloatBufferTensor(3, SIZE);
+            t.layerNorm(out, x, weights, bias, 1e-5f, length, offset, length, Optional.empty());
+            for (int b = 0; b < 3; b++)
+                for (int i = offset; i < offset + length; i++)
+                    Assert.assertEquals(t.name() + " differs", control.get(b, i), out.get(b, i), 1e-4f);
+        }
+    }
+
+    @Test
+    public void testNormQuantized() {
+        // Whole blocks, as the norms only quantize those
+        int offset = 2 * Q8ByteBufferTensor.BLOCK_SIZE;
+        int length = SIZE - 4 * Q8ByteBufferTensor.BLOCK_SIZE;
+        AbstractTensor x = makeWeights(3, SIZE);
+        AbstractTensor weights = makeTensor(SIZE);
+        AbstractTensor bias = makeTensor(SIZE);
+
+        AbstractTensor rms = new FloatBufferTensor(3, SIZE);
+        controlOps.rmsNorm(rms, x, weights, 1.0f, 1e-5f, SIZE, offset, length, Optional.empty());
+        AbstractTensor ln = new FloatBufferTensor(3, SIZE);
+        controlOps.layerNorm(ln, x, weights, bias, 1e-5f, SIZE, offset, length, Optional.empty());
+
+        List<TensorOperations> ops = new ArrayList<>(opTypes);
+        ops.add(controlOps);
+        for (TensorOperations t : ops) {
+            Q8ByteBufferTensor q = new Q8ByteBufferTensor(3, SIZE);
+            t.rmsNorm(q, x, weights, 1.0f, 1e-5f, SIZE, offset, length, Optional.empty());
+            Q8ByteBufferTensor lq = new Q8ByteBufferTensor(3, SIZE);
+            t.layerNorm(lq, x, weights, bias, 1e-5f, SIZE, offset, length, Optional.empty());
+
+            // Within a quantization step of the block, the scalar reference truncates rather than rounds
+            for (int b = 0; b < 3; b++) {
+                for (int i = offset; i < offset + length; i++) {
+                    Assert.assertEquals(
+                            t.name() + " rms", rms.get(b, i), q.get(b, i), q.getFactorForIndex(b, i) + 1e-5f);
+                    Assert.assertEquals(
+                            t.name() + " layer", ln.get(b, i), lq.get(b, i), lq.getFactorForIndex(b, i) + 1e-5f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSoftmax() {
+        int offset = 16;
+        int length = SIZE - 37;
+        AbstractTensor x = makeWeights(3, SIZE);
+
+        // Spread the logits so the exponentials cover a wide range
+        for (int b = 0; b < 3; b++) for (int i = 0; i < SIZE; i++) x.set(40 * (x.get(b, i) - 0.5f), b, i);
+
+        AbstractTensor control = new FloatBufferTensor(x);
+        controlOps.softmax(control, offset, length);
+
+        for (int b = 0; b < 3; b++) {
+            float sum = 0;
+            for (int i = offset; i < offset + length; i++) sum += control.get(b, i);
+            Assert.assertEquals(1.0f, sum, 1e-4f);
+            // Outside the range is untouched
+            Assert.assertEquals(x.get(b, 0), control.get(b, 0), 0f);
+        }
+
+        for (TensorOperations t : opTypes) {
+            AbstractTensor xhat = new FloatBufferTensor(x);
+            t.softmax(xhat, offset, length);
+            for (int b = 0; b < 3; b++) {
+                for (int i = 0; i < SIZE; i++) {
+                    float expected = control.get(b, i);
+                    float tolerance = i < offset || i >= offset + length ? 0f : Math.max(1e-7f, expected * 1e-5f);
+                    Assert.assertEquals(t.name() + " differs", expected, xhat.get(b, i), tolerance);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKvStore() {
+        AbstractTensor a = makeTensor(SIZE);
+
+        for (TensorOperations t : opTypes) {
+            for (DType kvType : List.of(DType.F32, DType.BF16, DType.F16, DType.I8)) {
+                AbstractTensor kv = bTypes.get(kvType).apply(new FloatBufferTensor(4, SIZE));
+                t.kvStore(a, kv.slice(2), 64, 256);
+
+                for (int i = 64; i < 64 + 256; i++) {
+                    Assert.assertEquals(t.name() + " KVType " + kvType, a.get(0, i), kv.get(2, i), 0.01f);
+                }
+            }
+        }
+    }
+
     @Test
     public void testQ8Vectorized() {
         FloatBufferTensor a = makeTensor(SIZE);
@@ -403,6 +859,120 @@ public class TestOperations {
         }
     }
 
+    @Test
+    public void testQ8BatchDotProduct() {
+        FloatBufferTensor a = makeWeights(BATCH, SIZE);
+        Q8ByteBufferTensor q8b = new Q8ByteBufferTensor(makeWeights(ROWS + 3, SIZE));
+
+        assertBatchDotProduct(q8b, List.of(a, new Q8ByteBufferTensor(a)), 0, 512);
+    }
+
+    @Test
+    public void testMixedBatchDotProductChunk() {
+        // A GGUF layer can hold weights of different types side by side
+        Q8ByteBufferTensor a = new Q8ByteBufferTensor(makeWeights(BATCH, SIZE));
+        AbstractTensor[] b = {
+            new Q4KByteBufferTensor(makeWeights(ROWS, SIZE)), new Q8ByteBufferTensor(makeWeights(ROWS, SIZE))
+        };
+
+        AbstractTensor[] c = {new FloatBufferTensor(BATCH, ROWS), new FloatBufferTensor(BATCH, ROWS)};
+        for (int w = 0; w < b.length; w++) controlOps.batchDotProduct(c[w], a, b[w], 0, 0, SIZE);
+
+        for (TensorOperations t : opTypes) {
+            AbstractTensor[] c1 = {new FloatBufferTensor(BATCH, ROWS), new FloatBufferTensor(BATCH, ROWS)};
+            t.dotProductBatchChunk(c1, a, b, 0, SIZE, 0, ROWS);
+
+            for (int w = 0; w < b.length; w++)
+                for (int i = 0; i < BATCH; i++)
+                    for (int j = 0; j < ROWS; j++)
+                        Assert.assertEquals(
+                                t.name() + " " + b[w].dType(),
+                                c[w].get(i, j),
+                                c1[w].get(i, j),
+                                Math.abs(c[w].get(i, j)) * 1e-4f);
+        }
+    }
+
+    /**
+     * Checks batchDotProduct and dotProductBatchChunk of each activation against the weights b, from each column
+     * offset to the end. M == BATCH, N == the rows of b, K == SIZE, so rows past ROWS cover the 1x1 kernels
+     */
+    private void assertBatchDotProduct(AbstractTensor b, List<AbstractTensor> activations, int... offsets) {
+        int rows = b.shape().first();
+        for (AbstractTensor a : activations) {
+            for (int offset : offsets) {
+                FloatBufferTensor c = new FloatBufferTensor(BATCH, rows);
+                controlOps.batchDotProduct(c, a, b, offset, offset, SIZE - offset);
+
+                for (TensorOperations t : opTypes) {
+                    String msg = t.name() + " " + a.dType() + " x " + b.dType() + " offset " + offset;
+                    FloatBufferTensor c1 = new FloatBufferTensor(BATCH, rows);
+                    FloatBufferTensor c2 = new FloatBufferTensor(BATCH, rows);
+
+                    // F32 x I8 is only vectorized for AVX
+                    MachineSpec.Type vectorType = vectorTypes.getOrDefault(t, MachineSpec.VECTOR_TYPE);
+                    if (a.dType() == DType.F32 && b.dType() == DType.I8 && vectorType == MachineSpec.Type.ARM_128) {
+                        Assert.assertThrows(
+                                msg,
+                                UnsupportedOperationException.class,
+                                () -> t.batchDotProduct(c1, a, b, offset, offset, SIZE - offset));
+                        continue;
+                    }
+
+                    t.batchDotProduct(c1, a, b, offset, offset, SIZE - offset);
+                    t.dotProductBatchChunk(
+                            new AbstractTensor[] {c2}, a, new AbstractTensor[] {b}, offset, SIZE - offset, 0, rows);
+
+                    for (int i = 0; i < BATCH; i++) {
+                        for (int j = 0; j < rows; j++) {
+                            float delta = Math.abs(c.get(i, j)) * 1e-4f;
+                            Assert.assertEquals(msg, c.get(i, j), c1.get(i, j), delta);
+                            Assert.assertEquals(msg, c.get(i, j), c2.get(i, j), delta);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQ5BatchDotProduct() {
+        FloatBufferTensor a = makeWeights(BATCH, SIZE);
+        FloatBufferTensor b = makeWeights(ROWS + 3, SIZE);
+        Q5ByteBufferTensor q5b = new Q5ByteBufferTensor(b);
+
+        // Each value is within half a step of its block scale
+        for (int j = 0; j < b.shape().first(); j++)
+            for (int i = 0; i < SIZE; i++)
+                Assert.assertEquals(b.get(j, i), q5b.get(j, i), Math.abs(q5b.getFactorForIndex(j, i)) * 0.5f + 1e-6f);
+
+        assertBatchDotProduct(q5b, List.of(a, new Q8ByteBufferTensor(a)), 0, 512);
+    }
+
+    @Test
+    public void testQ4KBatchDotProduct() {
+        FloatBufferTensor a = makeWeights(BATCH, SIZE);
+        FloatBufferTensor b = makeWeights(ROWS + 3, SIZE);
+        Q4KByteBufferTensor q4kb = new Q4KByteBufferTensor(b);
+
+        // The sub-block scales and mins are rounded so allow a full step
+        for (int j = 0; j < b.shape().first(); j++)
+            for (int i = 0; i < SIZE; i++)
+                Assert.assertEquals(b.get(j, i), q4kb.get(j, i), q4kb.getScaleForIndex(j, i) + 1e-6f);
+
+        // Offsets that start mid super-block exercise the sub-block lookups
+        assertBatchDotProduct(q4kb, List.of(a, new Q8ByteBufferTensor(a)), 0, 96, 512);
+    }
+
+    @Test
+    public void testHalfBatchDotProduct() {
+        FloatBufferTensor a = makeWeights(BATCH, SIZE);
+        FloatBufferTensor b = makeWeights(ROWS + 3, SIZE);
+
+        assertBatchDotProduct(new BFloat16BufferTensor(b), List.of(a), 0, 512);
+        assertBatchDotProduct(new Float16BufferTensor(b), List.of(a), 0, 512);
+    }
+
     @Test
     public void testNativeBatchDotProduct() {
         // M == BATCH, N == ROWS, K == SIZE